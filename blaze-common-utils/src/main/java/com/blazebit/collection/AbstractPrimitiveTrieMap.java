@@ -0,0 +1,690 @@
+/**
+ * Copyright 2012 Blazebit
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.blazebit.collection;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Base class for tries with primitive values. The trie is a path compressed
+ * (radix) trie like {@link TrieMap}, but instead of a value every node that
+ * holds an entry has a slot id. Subclasses store the values in primitive
+ * arrays that are indexed by the slot ids, so values are never boxed except
+ * when they are accessed through the {@link Map} interface. The slots of
+ * removed entries are reused by later insertions.
+ *
+ * This map does not support null keys and null values.
+ *
+ * @param <V>
+ *            The boxed value type
+ */
+public abstract class AbstractPrimitiveTrieMap<V> extends
+        AbstractMap<CharSequence, V> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final char[] EMPTY_CHARS = new char[0];
+    private static final Node[] EMPTY_NODES = new Node[0];
+
+    private static final class Node implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+        /* The chars of the edge from the parent to this node */
+        private char[] label;
+        /* The first label chars of the children, sorted ascending */
+        private char[] childChars;
+        private Node[] children;
+        /* The index of the value or -1 if the node holds no entry */
+        private int slot;
+
+        public Node(final char[] label, final int slot) {
+            this.label = label;
+            this.childChars = EMPTY_CHARS;
+            this.children = EMPTY_NODES;
+            this.slot = slot;
+        }
+
+        public int indexOf(final char c) {
+            final char[] chars = childChars;
+            int low = 0;
+            int high = chars.length - 1;
+
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                final char midChar = chars[mid];
+
+                if (midChar < c) {
+                    low = mid + 1;
+                } else if (midChar > c) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+
+            return -(low + 1);
+        }
+
+        public Node child(final char c) {
+            final int index = indexOf(c);
+            return index < 0 ? null : children[index];
+        }
+
+        public void insertChild(final int index, final Node child) {
+            final int length = children.length;
+            final char[] newChildChars = new char[length + 1];
+            final Node[] newChildren = new Node[length + 1];
+
+            System.arraycopy(childChars, 0, newChildChars, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            newChildChars[index] = child.label[0];
+            newChildren[index] = child;
+            System.arraycopy(childChars, index, newChildChars, index + 1,
+                    length - index);
+            System.arraycopy(children, index, newChildren, index + 1, length
+                    - index);
+
+            childChars = newChildChars;
+            children = newChildren;
+        }
+
+        public void removeChild(final int index) {
+            final int length = children.length;
+
+            if (length == 1) {
+                childChars = EMPTY_CHARS;
+                children = EMPTY_NODES;
+                return;
+            }
+
+            final char[] newChildChars = new char[length - 1];
+            final Node[] newChildren = new Node[length - 1];
+
+            System.arraycopy(childChars, 0, newChildChars, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            System.arraycopy(childChars, index + 1, newChildChars, index,
+                    length - index - 1);
+            System.arraycopy(children, index + 1, newChildren, index, length
+                    - index - 1);
+
+            childChars = newChildChars;
+            children = newChildren;
+        }
+    }
+
+    private Node root;
+    private int size;
+    private transient int modCount;
+    /* The next never used slot and the slots of removed entries */
+    private int nextSlot;
+    private int[] freeSlots;
+    private int freeSlotCount;
+
+    AbstractPrimitiveTrieMap() {
+        this.root = new Node(EMPTY_CHARS, -1);
+        this.freeSlots = new int[0];
+    }
+
+    /**
+     * Makes sure that values can be stored for all slots lower than the given
+     * slot count.
+     */
+    abstract void ensureCapacity(int slotCount);
+
+    /**
+     * Returns the value of the given slot boxed.
+     */
+    abstract V boxedValue(int slot);
+
+    /**
+     * Sets the value of the given slot from the given boxed value.
+     */
+    abstract void setBoxedValue(int slot, V value);
+
+    /**
+     * Returns the slot of the given key or -1 if the key is not contained.
+     */
+    final int findSlot(final CharSequence key) {
+        final int keyLength = key.length();
+        Node currentNode = root;
+        int i = 0;
+
+        while (i < keyLength) {
+            currentNode = currentNode.child(key.charAt(i));
+
+            if (currentNode == null) {
+                return -1;
+            }
+
+            final char[] label = currentNode.label;
+
+            if (keyLength - i < label.length) {
+                return -1;
+            }
+
+            for (int j = 1; j < label.length; j++) {
+                if (label[j] != key.charAt(i + j)) {
+                    return -1;
+                }
+            }
+
+            i += label.length;
+        }
+
+        return currentNode.slot;
+    }
+
+    /**
+     * Returns the slot of the given key. When the key is not contained yet, a
+     * slot is allocated for it and <code>-(slot + 1)</code> is returned, the
+     * value of that slot has to be initialized by the caller.
+     */
+    final int insertSlot(final CharSequence key) {
+        final int keyLength = key.length();
+        Node currentNode = root;
+        int i = 0;
+
+        while (i < keyLength) {
+            final int index = currentNode.indexOf(key.charAt(i));
+
+            if (index < 0) {
+				/* No child starts with the next char, so add a leaf for the rest */
+                final int slot = allocateSlot();
+                currentNode.insertChild(-(index + 1), new Node(toChars(key, i,
+                        keyLength), slot));
+                return -(slot + 1);
+            }
+
+            final Node child = currentNode.children[index];
+            final int matched = matchLabel(child.label, key, i);
+
+            if (matched < child.label.length) {
+				/* The key leaves or ends within the label, so split the edge */
+                final Node splitNode = split(currentNode, index, matched);
+                final int slot = allocateSlot();
+                i += matched;
+
+                if (i == keyLength) {
+                    splitNode.slot = slot;
+                } else {
+                    splitNode.insertChild(
+                            -(splitNode.indexOf(key.charAt(i)) + 1),
+                            new Node(toChars(key, i, keyLength), slot));
+                }
+
+                return -(slot + 1);
+            }
+
+            i += matched;
+            currentNode = child;
+        }
+
+        if (currentNode.slot >= 0) {
+            return currentNode.slot;
+        }
+
+        final int slot = allocateSlot();
+        currentNode.slot = slot;
+        return -(slot + 1);
+    }
+
+    private int allocateSlot() {
+        final int slot;
+
+        if (freeSlotCount > 0) {
+            slot = freeSlots[--freeSlotCount];
+        } else {
+            slot = nextSlot++;
+            ensureCapacity(nextSlot);
+        }
+
+        ++size;
+        ++modCount;
+        return slot;
+    }
+
+    /**
+     * Removes the given key and returns its slot or -1 if the key is not
+     * contained. The value of the slot stays readable until the next
+     * insertion.
+     */
+    final int removeSlot(final CharSequence key) {
+        final int keyLength = key.length();
+        Node grandParentNode = null;
+        Node parentNode = null;
+        Node currentNode = root;
+        int parentIndex = -1;
+        int index = -1;
+        int i = 0;
+
+        while (i < keyLength) {
+            final int childIndex = currentNode.indexOf(key.charAt(i));
+
+            if (childIndex < 0) {
+                return -1;
+            }
+
+            final Node child = currentNode.children[childIndex];
+            final char[] label = child.label;
+
+            if (keyLength - i < label.length
+                    || matchLabel(label, key, i) < label.length) {
+                return -1;
+            }
+
+            grandParentNode = parentNode;
+            parentNode = currentNode;
+            parentIndex = index;
+            currentNode = child;
+            index = childIndex;
+            i += label.length;
+        }
+
+        final int slot = currentNode.slot;
+
+        if (slot < 0) {
+            return -1;
+        }
+
+        currentNode.slot = -1;
+        freeSlot(slot);
+        --size;
+        ++modCount;
+
+        if (parentNode != null) {
+            compact(grandParentNode, parentIndex, parentNode, index);
+        }
+
+        return slot;
+    }
+
+    private void freeSlot(final int slot) {
+        if (freeSlotCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots,
+                    Math.max(8, freeSlotCount << 1));
+        }
+
+        freeSlots[freeSlotCount++] = slot;
+    }
+
+    /**
+     * Splits the label of the child at the given index of the given node
+     * after the given amount of chars and returns the new intermediate node.
+     */
+    private static Node split(final Node node, final int index,
+                              final int length) {
+        final Node child = node.children[index];
+        final char[] label = child.label;
+        final Node splitNode = new Node(Arrays.copyOfRange(label, 0, length),
+                -1);
+
+        child.label = Arrays.copyOfRange(label, length, label.length);
+        splitNode.insertChild(0, child);
+        node.children[index] = splitNode;
+        return splitNode;
+    }
+
+    /**
+     * Merges the only child of the node at the given index of the given parent
+     * into that node. The child node instance is kept so that iterators still
+     * see it.
+     */
+    private static void merge(final Node parent, final int index) {
+        final Node node = parent.children[index];
+        final Node child = node.children[0];
+        final char[] label = new char[node.label.length + child.label.length];
+
+        System.arraycopy(node.label, 0, label, 0, node.label.length);
+        System.arraycopy(child.label, 0, label, node.label.length,
+                child.label.length);
+        child.label = label;
+        parent.children[index] = child;
+    }
+
+    /**
+     * Compacts the trie after the node at the given index of the given parent
+     * has been unset, so that every node except the root either holds an
+     * entry or has at least two children.
+     */
+    private static void compact(final Node grandParentNode,
+                                final int parentIndex, final Node parentNode,
+                                final int index) {
+        final Node node = parentNode.children[index];
+        final int childCount = node.children.length;
+
+        if (childCount == 1) {
+            merge(parentNode, index);
+        } else if (childCount == 0) {
+            parentNode.removeChild(index);
+
+            if (grandParentNode != null && parentNode.slot < 0
+                    && parentNode.children.length == 1) {
+                merge(grandParentNode, parentIndex);
+            }
+        }
+    }
+
+    private static int matchLabel(final char[] label, final CharSequence key,
+                                  final int offset) {
+        final int length = Math.min(label.length, key.length() - offset);
+        int i = 1;
+
+        while (i < length && label[i] == key.charAt(offset + i)) {
+            ++i;
+        }
+
+        return i;
+    }
+
+    private static char[] toChars(final CharSequence key, final int start,
+                                  final int end) {
+        final char[] chars = new char[end - start];
+
+        for (int i = start; i < end; i++) {
+            chars[i - start] = key.charAt(i);
+        }
+
+        return chars;
+    }
+
+    static CharSequence keyCheck(final Object key) {
+        if (key == null) {
+            throw new IllegalArgumentException(
+                    "This map does not support null keys");
+        } else if (!(key instanceof CharSequence)) {
+            throw new IllegalArgumentException(
+                    "Argument must be instance of CharSequence");
+        }
+
+        return (CharSequence) key;
+    }
+
+    private static <V> V valueCheck(final V value) {
+        if (value == null) {
+            throw new IllegalArgumentException(
+                    "This map does not support null values");
+        }
+
+        return value;
+    }
+
+    /**
+     * Returns true when an entry exists that that has the given prefix.
+     *
+     * @param prefix
+     *            The prefix for which to check if an entry is contained.
+     * @return True when an entry with the given prefix exists, otherwise false.
+     */
+    public boolean containsKeyPrefix(final CharSequence prefix) {
+        final CharSequence checkedPrefix = keyCheck(prefix);
+        final int prefixLength = checkedPrefix.length();
+        Node currentNode = root;
+        int i = 0;
+
+        while (i < prefixLength) {
+            currentNode = currentNode.child(checkedPrefix.charAt(i));
+
+            if (currentNode == null) {
+                return false;
+            }
+
+            final char[] label = currentNode.label;
+            final int matched = matchLabel(label, checkedPrefix, i);
+
+            if (matched < label.length && i + matched < prefixLength) {
+                return false;
+            }
+
+            i += matched;
+        }
+
+		/* Except for the root, every node holds an entry or has children */
+        return currentNode != root || size > 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean containsKey(final Object key) {
+        return findSlot(keyCheck(key)) >= 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V get(final Object key) {
+        final int slot = findSlot(keyCheck(key));
+        return slot < 0 ? null : boxedValue(slot);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V put(final CharSequence key, final V value) {
+        valueCheck(value);
+        final int slot = insertSlot(keyCheck(key));
+
+        if (slot < 0) {
+            setBoxedValue(-(slot + 1), value);
+            return null;
+        }
+
+        final V oldValue = boxedValue(slot);
+        setBoxedValue(slot, value);
+        return oldValue;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V remove(final Object key) {
+        final int slot = removeSlot(keyCheck(key));
+        return slot < 0 ? null : boxedValue(slot);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clear() {
+        root = new Node(EMPTY_CHARS, -1);
+        size = 0;
+        nextSlot = 0;
+        freeSlotCount = 0;
+        ++modCount;
+    }
+
+	/*
+	 * Iterators
+	 */
+
+    /**
+     * Entry implementation that reads and writes the slot of a node.
+     */
+    private final class SlotEntry implements Entry<CharSequence, V> {
+
+        private final CharSequence key;
+        private final int slot;
+
+        public SlotEntry(final CharSequence key, final int slot) {
+            this.key = key;
+            this.slot = slot;
+        }
+
+        @Override
+        public CharSequence getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return boxedValue(slot);
+        }
+
+        @Override
+        public V setValue(final V value) {
+            final V oldValue = boxedValue(slot);
+            setBoxedValue(slot, valueCheck(value));
+            return oldValue;
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() ^ getValue().hashCode();
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Map.Entry<?, ?>)) {
+                return false;
+            }
+
+            final Map.Entry<?, ?> other = (Map.Entry<?, ?>) obj;
+            return key.equals(other.getKey())
+                    && getValue().equals(other.getValue());
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + getValue();
+        }
+    }
+
+    /**
+     * Iterator that returns the entries in lexicographical order of their
+     * keys. Removing through the iterator is safe since compacting keeps the
+     * node instances of pending subtrees.
+     */
+    private final class EntryIterator implements
+            Iterator<Entry<CharSequence, V>> {
+
+        private final Deque<Node> nodes = new ArrayDeque<Node>();
+        private final Deque<String> keys = new ArrayDeque<String>();
+        private int expectedModCount = modCount;
+        private SlotEntry next;
+        private SlotEntry current;
+
+        public EntryIterator() {
+            nodes.push(root);
+            keys.push("");
+            fetchEntry();
+        }
+
+        private void fetchEntry() {
+            SlotEntry localNext = null;
+
+            while (localNext == null && !nodes.isEmpty()) {
+                final Node node = nodes.pop();
+                final String key = keys.pop();
+                final Node[] children = node.children;
+
+                if (node.slot >= 0) {
+                    localNext = new SlotEntry(key, node.slot);
+                }
+
+				/* Push in reverse order so the smallest child comes first */
+                for (int i = children.length - 1; i >= 0; i--) {
+                    final char[] label = children[i].label;
+                    nodes.push(children[i]);
+                    keys.push(new StringBuilder(key.length() + label.length)
+                            .append(key).append(label).toString());
+                }
+            }
+
+            next = localNext;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry<CharSequence, V> next() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+
+            final SlotEntry entry = next;
+
+            if (entry == null) {
+                throw new NoSuchElementException();
+            }
+
+            current = entry;
+            fetchEntry();
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            if (current == null) {
+                throw new IllegalStateException();
+            }
+
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+
+            removeSlot(current.key);
+            current = null;
+            expectedModCount = modCount;
+        }
+    }
+
+    /*
+     * Views
+     */
+    private transient Set<Entry<CharSequence, V>> entrySet;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<Entry<CharSequence, V>> entrySet() {
+        final Set<Entry<CharSequence, V>> es = entrySet;
+        return es != null ? es : (entrySet = new EntrySet());
+    }
+
+    private final class EntrySet extends AbstractSet<Entry<CharSequence, V>> {
+
+        @Override
+        public Iterator<Entry<CharSequence, V>> iterator() {
+            return new EntryIterator();
+        }
+
+        @Override
+        public int size() {
+            return AbstractPrimitiveTrieMap.this.size();
+        }
+
+        @Override
+        public void clear() {
+            AbstractPrimitiveTrieMap.this.clear();
+        }
+    }
+}
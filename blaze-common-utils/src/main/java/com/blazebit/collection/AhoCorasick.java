@@ -0,0 +1,260 @@
+/**
+ * Copyright 2012 Blazebit
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.blazebit.collection;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * An Aho-Corasick automaton that finds all occurrences of the keys of a
+ * {@link TrieMap} in a text within a single pass, see
+ * {@link TrieMap#toMatcher()}. Every char of the keys is a state, the states
+ * are numbered in breadth first order and the transitions of a state are the
+ * sorted range of its child states. Failure links lead to the state of the
+ * longest proper suffix that is a key prefix and output links to the next
+ * state on the failure chain whose key is contained in the map.
+ *
+ * Scanning does not allocate objects per char and an automaton can be used by
+ * multiple threads concurrently. The empty key never matches.
+ *
+ * @param <V>
+ *            The value type of the keys
+ */
+public final class AhoCorasick<V> {
+
+    /**
+     * Callback for the matches that are found while scanning.
+     *
+     * @param <V>
+     *            The value type of the keys
+     */
+    public static interface MatchHandler<V> {
+
+        /**
+         * Is invoked for every occurrence of a key in the text. Matches are
+         * reported in order of their end, for the same end the longest match
+         * comes first.
+         *
+         * @param start
+         *            The index of the first char of the match, inclusive
+         * @param end
+         *            The index of the last char of the match, exclusive
+         * @param value
+         *            The value of the matched key
+         * @return True to continue scanning, false to stop
+         */
+        public boolean onMatch(int start, int end, V value);
+    }
+
+    private final char[] stateChars;
+    private final int[] childOffsets;
+    private final int[] outputs;
+    private final Object[] values;
+    private final int[] depths;
+    private final int[] failures;
+    private final int[] outputLinks;
+
+    /**
+     * Creates the automaton from the goto function of the states.
+     *
+     * @param stateChars
+     *            The char that leads to a state
+     * @param childOffsets
+     *            The id of the first child state of every state, followed by
+     *            the state count
+     * @param outputs
+     *            The value index of every state or -1 if the key of the state
+     *            is not contained
+     * @param values
+     *            The values
+     */
+    AhoCorasick(final char[] stateChars, final int[] childOffsets,
+                final int[] outputs, final Object[] values) {
+        final int stateCount = outputs.length;
+        this.stateChars = stateChars;
+        this.childOffsets = childOffsets;
+        this.outputs = outputs;
+        this.values = values;
+        this.depths = new int[stateCount];
+        this.failures = new int[stateCount];
+        this.outputLinks = new int[stateCount];
+        this.outputLinks[0] = -1;
+
+		/* Failure states are less deep, so they are done before in breadth first order */
+        for (int state = 0; state < stateCount; state++) {
+            final int childEnd = childOffsets[state + 1];
+
+            for (int child = childOffsets[state]; child < childEnd; child++) {
+                depths[child] = depths[state] + 1;
+
+                if (state != 0) {
+                    final char c = stateChars[child];
+                    int failure = failures[state];
+                    int next;
+
+                    while ((next = transition(failure, c)) < 0 && failure != 0) {
+                        failure = failures[failure];
+                    }
+
+                    failures[child] = next < 0 ? 0 : next;
+                }
+
+                final int failure = failures[child];
+                outputLinks[child] = outputs[failure] >= 0 ? failure
+                        : outputLinks[failure];
+            }
+        }
+    }
+
+    /**
+     * Returns the child of the given state that is reached with the given
+     * char or -1 if there is none.
+     */
+    private int transition(final int state, final char c) {
+        final char[] chars = stateChars;
+        int low = childOffsets[state];
+        int high = childOffsets[state + 1] - 1;
+
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final char midChar = chars[mid];
+
+            if (midChar < c) {
+                low = mid + 1;
+            } else if (midChar > c) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the state that is reached from the given state with the given
+     * char, following failure links until a transition exists.
+     */
+    private int next(final int state, final char c) {
+        int current = state;
+        int next;
+
+        while ((next = transition(current, c)) < 0 && current != 0) {
+            current = failures[current];
+        }
+
+        return next < 0 ? 0 : next;
+    }
+
+    /**
+     * Reports the keys that end in the given state and returns false if the
+     * handler requested to stop.
+     */
+    @SuppressWarnings("unchecked")
+    private boolean report(final int state, final int end,
+                           final MatchHandler<? super V> handler) {
+        int output = outputs[state] >= 0 ? state : outputLinks[state];
+
+        while (output >= 0) {
+            if (!handler.onMatch(end - depths[output], end,
+                    (V) values[outputs[output]])) {
+                return false;
+            }
+
+            output = outputLinks[output];
+        }
+
+        return true;
+    }
+
+    /**
+     * Reports all occurrences of the keys in the given text to the given
+     * handler.
+     *
+     * @param text
+     *            The text to scan
+     * @param handler
+     *            The handler for the matches
+     */
+    public void scan(final CharSequence text,
+                     final MatchHandler<? super V> handler) {
+        final int length = text.length();
+        int state = 0;
+
+        for (int i = 0; i < length; i++) {
+            state = next(state, text.charAt(i));
+
+            if (!report(state, i + 1, handler)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reports all occurrences of the keys in the chars of the given reader to
+     * the given handler. The chars are read in chunks, the positions are
+     * relative to the current position of the reader and the reader is not
+     * closed.
+     *
+     * @param reader
+     *            The reader to scan
+     * @param handler
+     *            The handler for the matches
+     * @throws IOException
+     *             When reading fails
+     */
+    public void scan(final Reader reader, final MatchHandler<? super V> handler)
+            throws IOException {
+        final char[] buffer = new char[8192];
+        int position = 0;
+        int state = 0;
+        int read;
+
+        while ((read = reader.read(buffer)) != -1) {
+            for (int i = 0; i < read; i++) {
+                state = next(state, buffer[i]);
+
+                if (!report(state, position + i + 1, handler)) {
+                    return;
+                }
+            }
+
+            position += read;
+        }
+    }
+
+    /**
+     * Returns true when any key occurs in the given text.
+     *
+     * @param text
+     *            The text to scan
+     * @return True when a key occurs in the text, otherwise false
+     */
+    public boolean containsMatch(final CharSequence text) {
+        final int length = text.length();
+        int state = 0;
+
+        for (int i = 0; i < length; i++) {
+            state = next(state, text.charAt(i));
+
+            if (outputs[state] >= 0 || outputLinks[state] >= 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
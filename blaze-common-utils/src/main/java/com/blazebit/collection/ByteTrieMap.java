@@ -0,0 +1,845 @@
+/**
+ * Copyright 2012 Blazebit
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.blazebit.collection;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * A trie that indexes its keys by their UTF-8 bytes. Additionally to the
+ * {@link Map} interface with char sequence keys, entries can be looked up
+ * directly from slices of byte arrays and byte buffers, including direct
+ * buffers, without decoding the bytes into strings.
+ *
+ * The implementation is a path compressed (radix) trie like {@link TrieMap}
+ * with byte labels. The children of a node are sorted by the unsigned value of
+ * their first byte, so entries are iterated in UTF-8 byte order which is the
+ * order of the code points of the keys.
+ *
+ * This map does not support null keys, instead an empty string should be used.
+ * Keys must be well-formed UTF-16, a key that contains a lone surrogate can't
+ * be encoded and is rejected with an {@link IllegalArgumentException}.
+ *
+ * @param <V>
+ *            The value type that the trie holds.
+ *
+ */
+public class ByteTrieMap<V> extends AbstractMap<CharSequence, V> implements
+        Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] EMPTY_BYTES = new byte[0];
+    private static final Node<?>[] EMPTY_NODES = new Node<?>[0];
+
+    private static final class Node<V> implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+        /* The bytes of the edge from the parent to this node */
+        private byte[] label;
+        /* The first label bytes of the children, sorted ascending unsigned */
+        private byte[] childBytes;
+        private Node<V>[] children;
+        private V value;
+        private boolean inUse;
+
+        public Node(final byte[] label, final V value, final boolean inUse) {
+            this.label = label;
+            this.childBytes = EMPTY_BYTES;
+            this.children = Node.<V> newArray(0);
+            this.value = value;
+            this.inUse = inUse;
+        }
+
+        /**
+         * Returns the index of the child whose label starts with the given
+         * byte or <code>-(insertionPoint + 1)</code> if there is none.
+         */
+        public int indexOf(final byte b) {
+            final byte[] bytes = childBytes;
+            final int key = b & 0xFF;
+            int low = 0;
+            int high = bytes.length - 1;
+
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                final int midByte = bytes[mid] & 0xFF;
+
+                if (midByte < key) {
+                    low = mid + 1;
+                } else if (midByte > key) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+
+            return -(low + 1);
+        }
+
+        public Node<V> child(final byte b) {
+            final int index = indexOf(b);
+            return index < 0 ? null : children[index];
+        }
+
+        @SuppressWarnings("unchecked")
+        public static <V> Node<V>[] newArray(final int length) {
+            return (Node<V>[]) (length == 0 ? EMPTY_NODES : new Node<?>[length]);
+        }
+
+        public void insertChild(final int index, final Node<V> child) {
+            final int length = children.length;
+            final byte[] newChildBytes = new byte[length + 1];
+            final Node<V>[] newChildren = Node.<V> newArray(length + 1);
+
+            System.arraycopy(childBytes, 0, newChildBytes, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            newChildBytes[index] = child.label[0];
+            newChildren[index] = child;
+            System.arraycopy(childBytes, index, newChildBytes, index + 1,
+                    length - index);
+            System.arraycopy(children, index, newChildren, index + 1, length
+                    - index);
+
+            childBytes = newChildBytes;
+            children = newChildren;
+        }
+
+        public void removeChild(final int index) {
+            final int length = children.length;
+            final byte[] newChildBytes = length == 1 ? EMPTY_BYTES
+                    : new byte[length - 1];
+            final Node<V>[] newChildren = Node.<V> newArray(length - 1);
+
+            System.arraycopy(childBytes, 0, newChildBytes, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            System.arraycopy(childBytes, index + 1, newChildBytes, index,
+                    length - index - 1);
+            System.arraycopy(children, index + 1, newChildren, index, length
+                    - index - 1);
+
+            childBytes = newChildBytes;
+            children = newChildren;
+        }
+    }
+
+    private Node<V> root;
+    private int size;
+    private transient int modCount;
+
+    /**
+     * Constructs an empty ByteTrieMap
+     */
+    public ByteTrieMap() {
+        this.root = new Node<V>(EMPTY_BYTES, null, false);
+    }
+
+    /**
+     * Constructs a new ByteTrieMap with the values from the given map.
+     *
+     * @param map
+     *            The map from which to construct this ByteTrieMap
+     */
+    public ByteTrieMap(final Map<? extends CharSequence, ? extends V> map) {
+        this();
+        putAll(map);
+    }
+
+    /**
+     * Encodes the given key as UTF-8. Unlike {@link String#getBytes(Charset)}
+     * a lone surrogate is not replaced, since distinct keys would collide.
+     */
+    private static byte[] encode(final Object key) {
+        final CharSequence chars = keyCheck(key);
+        final int length = chars.length();
+        int byteLength = 0;
+
+        for (int i = 0; i < length; i++) {
+            final char c = chars.charAt(i);
+
+            if (c < 0x80) {
+                byteLength++;
+            } else if (c < 0x800) {
+                byteLength += 2;
+            } else if (!Character.isSurrogate(c)) {
+                byteLength += 3;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                byteLength += 4;
+                i++;
+            } else {
+                throw new IllegalArgumentException(
+                        "Key contains a lone surrogate at index " + i);
+            }
+        }
+
+        final byte[] bytes = new byte[byteLength];
+        int j = 0;
+
+        for (int i = 0; i < length; i++) {
+            final char c = chars.charAt(i);
+
+            if (c < 0x80) {
+                bytes[j++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[j++] = (byte) (0xC0 | (c >>> 6));
+                bytes[j++] = (byte) (0x80 | (c & 0x3F));
+            } else if (!Character.isSurrogate(c)) {
+                bytes[j++] = (byte) (0xE0 | (c >>> 12));
+                bytes[j++] = (byte) (0x80 | ((c >>> 6) & 0x3F));
+                bytes[j++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                final int codePoint = Character.toCodePoint(c,
+                        chars.charAt(++i));
+                bytes[j++] = (byte) (0xF0 | (codePoint >>> 18));
+                bytes[j++] = (byte) (0x80 | ((codePoint >>> 12) & 0x3F));
+                bytes[j++] = (byte) (0x80 | ((codePoint >>> 6) & 0x3F));
+                bytes[j++] = (byte) (0x80 | (codePoint & 0x3F));
+            }
+        }
+
+        return bytes;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V put(final CharSequence key, final V value) {
+        final byte[] bytes = encode(key);
+        return put(bytes, 0, bytes.length, value);
+    }
+
+    /**
+     * Associates the given value with the key that consists of the given
+     * UTF-8 bytes.
+     *
+     * @param key
+     *            The array that contains the key
+     * @param offset
+     *            The index of the first byte of the key
+     * @param length
+     *            The amount of bytes of the key
+     * @param value
+     *            The value
+     * @return The previous value of the key or null
+     */
+    public V put(final byte[] key, final int offset, final int length,
+                 final V value) {
+        checkBounds(key.length, offset, length);
+        final int end = offset + length;
+        Node<V> currentNode = root;
+        int i = offset;
+
+        while (i < end) {
+            final int index = currentNode.indexOf(key[i]);
+
+            if (index < 0) {
+				/* No child starts with the next byte, so add a leaf for the rest */
+                currentNode.insertChild(-(index + 1), new Node<V>(
+                        Arrays.copyOfRange(key, i, end), value, true));
+                ++modCount;
+                ++size;
+                return null;
+            }
+
+            final Node<V> child = currentNode.children[index];
+            final byte[] label = child.label;
+            final int labelEnd = Math.min(label.length, end - i);
+            int matched = 1;
+
+            while (matched < labelEnd && label[matched] == key[i + matched]) {
+                ++matched;
+            }
+
+            if (matched < label.length) {
+				/* The key leaves or ends within the label, so split the edge */
+                final Node<V> splitNode = new Node<V>(Arrays.copyOfRange(
+                        label, 0, matched), null, false);
+                child.label = Arrays.copyOfRange(label, matched, label.length);
+                splitNode.insertChild(0, child);
+                currentNode.children[index] = splitNode;
+                i += matched;
+
+                if (i == end) {
+                    splitNode.value = value;
+                    splitNode.inUse = true;
+                } else {
+                    splitNode.insertChild(-(splitNode.indexOf(key[i]) + 1),
+                            new Node<V>(Arrays.copyOfRange(key, i, end),
+                                    value, true));
+                }
+
+                ++modCount;
+                ++size;
+                return null;
+            }
+
+            i += matched;
+            currentNode = child;
+        }
+
+        final V oldValue = currentNode.value;
+        currentNode.value = value;
+
+        if (currentNode.inUse) {
+            return oldValue;
+        }
+
+        currentNode.inUse = true;
+        ++modCount;
+        ++size;
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V get(final Object key) {
+        final byte[] bytes = encode(key);
+        return get(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Returns the value of the key that consists of the given UTF-8 bytes or
+     * null if the key is not contained.
+     *
+     * @param key
+     *            The array that contains the key
+     * @param offset
+     *            The index of the first byte of the key
+     * @param length
+     *            The amount of bytes of the key
+     * @return The value of the key or null
+     */
+    public V get(final byte[] key, final int offset, final int length) {
+        final Node<V> node = findNode(key, offset, length);
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * Returns the value of the key that consists of the given UTF-8 bytes of
+     * the buffer or null if the key is not contained. Only absolute reads are
+     * used, so the position and limit of the buffer are not changed.
+     *
+     * @param buffer
+     *            The buffer that contains the key
+     * @param offset
+     *            The index of the first byte of the key
+     * @param length
+     *            The amount of bytes of the key
+     * @return The value of the key or null
+     */
+    public V get(final ByteBuffer buffer, final int offset, final int length) {
+        final Node<V> node = findNode(buffer, offset, length);
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean containsKey(final Object key) {
+        final byte[] bytes = encode(key);
+        final Node<V> node = findNode(bytes, 0, bytes.length);
+        return node != null && node.inUse;
+    }
+
+    /**
+     * Returns true when the key that consists of the given UTF-8 bytes of the
+     * buffer is contained.
+     *
+     * @param buffer
+     *            The buffer that contains the key
+     * @param offset
+     *            The index of the first byte of the key
+     * @param length
+     *            The amount of bytes of the key
+     * @return True when the key is contained, otherwise false
+     */
+    public boolean containsKey(final ByteBuffer buffer, final int offset,
+                               final int length) {
+        final Node<V> node = findNode(buffer, offset, length);
+        return node != null && node.inUse;
+    }
+
+    private Node<V> findNode(final byte[] key, final int offset,
+                             final int length) {
+        checkBounds(key.length, offset, length);
+        final int end = offset + length;
+        Node<V> currentNode = root;
+        int i = offset;
+
+        while (i < end) {
+            currentNode = currentNode.child(key[i]);
+
+            if (currentNode == null) {
+                return null;
+            }
+
+            final byte[] label = currentNode.label;
+
+            if (end - i < label.length) {
+                return null;
+            }
+
+            for (int j = 1; j < label.length; j++) {
+                if (label[j] != key[i + j]) {
+                    return null;
+                }
+            }
+
+            i += label.length;
+        }
+
+        return currentNode;
+    }
+
+    private Node<V> findNode(final ByteBuffer buffer, final int offset,
+                             final int length) {
+        checkBounds(buffer.limit(), offset, length);
+        final int end = offset + length;
+        Node<V> currentNode = root;
+        int i = offset;
+
+        while (i < end) {
+            currentNode = currentNode.child(buffer.get(i));
+
+            if (currentNode == null) {
+                return null;
+            }
+
+            final byte[] label = currentNode.label;
+
+            if (end - i < label.length) {
+                return null;
+            }
+
+            for (int j = 1; j < label.length; j++) {
+                if (label[j] != buffer.get(i + j)) {
+                    return null;
+                }
+            }
+
+            i += label.length;
+        }
+
+        return currentNode;
+    }
+
+    /**
+     * Returns the amount of bytes of the longest key that is a prefix of the
+     * given bytes of the buffer or -1 if there is no such key. The result is
+     * stored in the given holder if it is not null. This method does not
+     * allocate any objects.
+     *
+     * @param buffer
+     *            The buffer that contains the bytes to match
+     * @param offset
+     *            The index of the first byte to match
+     * @param length
+     *            The maximum amount of bytes to match
+     * @param match
+     *            The holder for the result or null
+     * @return The length of the longest matching key in bytes or -1
+     */
+    public int longestPrefixMatch(final ByteBuffer buffer, final int offset,
+                                  final int length,
+                                  final PrefixMatch<? super V> match) {
+        checkBounds(buffer.limit(), offset, length);
+        final int end = offset + length;
+        Node<V> currentNode = root;
+        Node<V> matchedNode = root.inUse ? root : null;
+        int matched = root.inUse ? 0 : -1;
+        int i = offset;
+
+        while (i < end) {
+            currentNode = currentNode.child(buffer.get(i));
+
+            if (currentNode == null) {
+                break;
+            }
+
+            final byte[] label = currentNode.label;
+
+            if (end - i < label.length) {
+                break;
+            }
+
+            int j = 1;
+
+            while (j < label.length && label[j] == buffer.get(i + j)) {
+                ++j;
+            }
+
+            if (j < label.length) {
+                break;
+            }
+
+            i += label.length;
+
+            if (currentNode.inUse) {
+                matchedNode = currentNode;
+                matched = i - offset;
+            }
+        }
+
+        if (match != null) {
+            if (matchedNode == null) {
+                match.reset();
+            } else {
+                match.set(matched, matchedNode.value);
+            }
+        }
+
+        return matched;
+    }
+
+    private static void checkBounds(final int available, final int offset,
+                                    final int length) {
+        if (offset < 0 || length < 0 || offset > available - length) {
+            throw new IndexOutOfBoundsException("offset: " + offset
+                    + ", length: " + length + ", available: " + available);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V remove(final Object o) {
+        final byte[] key = encode(o);
+        return remove(key, 0, key.length);
+    }
+
+    /**
+     * Removes the key that consists of the given UTF-8 bytes.
+     *
+     * @param key
+     *            The array that contains the key
+     * @param offset
+     *            The index of the first byte of the key
+     * @param length
+     *            The amount of bytes of the key
+     * @return The value of the removed key or null
+     */
+    public V remove(final byte[] key, final int offset, final int length) {
+        checkBounds(key.length, offset, length);
+        final int end = offset + length;
+        Node<V> grandParentNode = null;
+        Node<V> parentNode = null;
+        Node<V> currentNode = root;
+        int parentIndex = -1;
+        int index = -1;
+        int i = offset;
+
+        while (i < end) {
+            final int childIndex = currentNode.indexOf(key[i]);
+
+            if (childIndex < 0) {
+                return null;
+            }
+
+            final Node<V> child = currentNode.children[childIndex];
+            final byte[] label = child.label;
+
+            if (end - i < label.length) {
+                return null;
+            }
+
+            for (int j = 1; j < label.length; j++) {
+                if (label[j] != key[i + j]) {
+                    return null;
+                }
+            }
+
+            grandParentNode = parentNode;
+            parentNode = currentNode;
+            parentIndex = index;
+            currentNode = child;
+            index = childIndex;
+            i += label.length;
+        }
+
+        if (!currentNode.inUse) {
+            return null;
+        }
+
+        final V removed = currentNode.value;
+        currentNode.value = null;
+        currentNode.inUse = false;
+        --size;
+        ++modCount;
+
+        if (parentNode != null) {
+            compact(grandParentNode, parentIndex, parentNode, index);
+        }
+
+        return removed;
+    }
+
+    /**
+     * Compacts the trie after the node at the given index of the given parent
+     * has been unset, so that every node except the root is either in use or
+     * has at least two children.
+     */
+    private static <V> void compact(final Node<V> grandParentNode,
+                                    final int parentIndex,
+                                    final Node<V> parentNode, final int index) {
+        final Node<V> node = parentNode.children[index];
+        final int childCount = node.children.length;
+
+        if (childCount == 1) {
+            merge(parentNode, index);
+        } else if (childCount == 0) {
+            parentNode.removeChild(index);
+
+            if (grandParentNode != null && !parentNode.inUse
+                    && parentNode.children.length == 1) {
+                merge(grandParentNode, parentIndex);
+            }
+        }
+    }
+
+    /**
+     * Merges the only child of the node at the given index of the given parent
+     * into that node. The child node instance is kept so that iterators still
+     * see it.
+     */
+    private static <V> void merge(final Node<V> parent, final int index) {
+        final Node<V> node = parent.children[index];
+        final Node<V> child = node.children[0];
+        final byte[] label = new byte[node.label.length + child.label.length];
+
+        System.arraycopy(node.label, 0, label, 0, node.label.length);
+        System.arraycopy(child.label, 0, label, node.label.length,
+                child.label.length);
+        child.label = label;
+        parent.children[index] = child;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clear() {
+        root = new Node<V>(EMPTY_BYTES, null, false);
+        size = 0;
+        ++modCount;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private static CharSequence keyCheck(final Object key) {
+        if (key == null) {
+            throw new IllegalArgumentException(
+                    "This map does not support null keys");
+        } else if (!(key instanceof CharSequence)) {
+            throw new IllegalArgumentException(
+                    "Argument must be instance of CharSequence");
+        }
+
+        return (CharSequence) key;
+    }
+
+	/*
+	 * Iterators
+	 */
+
+    /**
+     * Entry implementation for ByteTrieMap.
+     */
+    private static final class NodeEntry<V> implements Entry<CharSequence, V> {
+
+        private final String key;
+        /* The raw key, since keys that are no valid UTF-8 don't survive decoding */
+        private final byte[] bytes;
+        private final Node<V> node;
+
+        public NodeEntry(final byte[] bytes, final Node<V> node) {
+            this.key = new String(bytes, UTF_8);
+            this.bytes = bytes;
+            this.node = node;
+        }
+
+        @Override
+        public CharSequence getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return node.value;
+        }
+
+        @Override
+        public V setValue(final V value) {
+            final V oldValue = node.value;
+            node.value = value;
+            return oldValue;
+        }
+
+        @Override
+        public int hashCode() {
+            final Object v = node.value;
+            return key.hashCode() ^ (v == null ? 0 : v.hashCode());
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Map.Entry<?, ?>)) {
+                return false;
+            }
+
+            final Map.Entry<?, ?> other = (Map.Entry<?, ?>) obj;
+            final Object v1 = node.value;
+            final Object v2 = other.getValue();
+            return key.equals(other.getKey())
+                    && (v1 == v2 || (v1 != null && v1.equals(v2)));
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + node.value;
+        }
+    }
+
+    /**
+     * Iterator that returns the entries in UTF-8 byte order of their keys.
+     * Removing through the iterator is safe since compacting keeps the node
+     * instances of pending subtrees.
+     */
+    private final class EntryIterator implements
+            Iterator<Entry<CharSequence, V>> {
+
+        private final Deque<Node<V>> nodes = new ArrayDeque<Node<V>>();
+        private final Deque<byte[]> keys = new ArrayDeque<byte[]>();
+        private int expectedModCount = modCount;
+        private NodeEntry<V> next;
+        private NodeEntry<V> current;
+
+        public EntryIterator() {
+            nodes.push(root);
+            keys.push(EMPTY_BYTES);
+            fetchEntry();
+        }
+
+        private void fetchEntry() {
+            NodeEntry<V> localNext = null;
+
+            while (localNext == null && !nodes.isEmpty()) {
+                final Node<V> node = nodes.pop();
+                final byte[] key = keys.pop();
+                final Node<V>[] children = node.children;
+
+                if (node.inUse) {
+                    localNext = new NodeEntry<V>(key, node);
+                }
+
+				/* Push in reverse order so the smallest child comes first */
+                for (int i = children.length - 1; i >= 0; i--) {
+                    final byte[] label = children[i].label;
+                    final byte[] childKey = Arrays.copyOf(key, key.length
+                            + label.length);
+                    System.arraycopy(label, 0, childKey, key.length,
+                            label.length);
+                    nodes.push(children[i]);
+                    keys.push(childKey);
+                }
+            }
+
+            next = localNext;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry<CharSequence, V> next() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+
+            final NodeEntry<V> entry = next;
+
+            if (entry == null) {
+                throw new NoSuchElementException();
+            }
+
+            current = entry;
+            fetchEntry();
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            if (current == null) {
+                throw new IllegalStateException();
+            }
+
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+
+            ByteTrieMap.this.remove(current.bytes, 0, current.bytes.length);
+            current = null;
+            expectedModCount = modCount;
+        }
+    }
+
+    /*
+     * Views
+     */
+    private transient Set<Entry<CharSequence, V>> entrySet;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<Entry<CharSequence, V>> entrySet() {
+        final Set<Entry<CharSequence, V>> es = entrySet;
+        return es != null ? es : (entrySet = new EntrySet());
+    }
+
+    private final class EntrySet extends AbstractSet<Entry<CharSequence, V>> {
+
+        @Override
+        public Iterator<Entry<CharSequence, V>> iterator() {
+            return new EntryIterator();
+        }
+
+        @Override
+        public int size() {
+            return ByteTrieMap.this.size();
+        }
+
+        @Override
+        public void clear() {
+            ByteTrieMap.this.clear();
+        }
+    }
+}
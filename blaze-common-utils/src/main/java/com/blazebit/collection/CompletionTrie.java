@@ -0,0 +1,586 @@
+/**
+ * Copyright 2012 Blazebit
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.blazebit.collection;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A trie for prefix completion that associates every key with a value and a
+ * score. Every node caches the maximum score of the entries in its subtree,
+ * so {@link #topK(CharSequence, int)} can do a best first search that only
+ * expands the subtrees that can still contain one of the best entries. The
+ * cost of a completion therefore depends on k and the branching of the trie
+ * instead of the amount of entries with the prefix.
+ *
+ * The implementation is a path compressed (radix) trie like {@link TrieMap}.
+ * Modifications recompute the cached maximum scores on the path of the key.
+ *
+ * This trie does not support null keys, instead an empty string should be
+ * used.
+ *
+ * @param <V>
+ *            The value type that the trie holds.
+ */
+public class CompletionTrie<V> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final char[] EMPTY_CHARS = new char[0];
+    private static final Node<?>[] EMPTY_NODES = new Node<?>[0];
+
+    private static final class Node<V> implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+        private char[] label;
+        private char[] childChars;
+        private Node<V>[] children;
+        private V value;
+        private double score;
+        private boolean inUse;
+        /* The maximum score of the entries in the subtree of this node */
+        private double maxScore;
+
+        public Node(final char[] label) {
+            this.label = label;
+            this.childChars = EMPTY_CHARS;
+            this.children = Node.<V> newArray(0);
+            this.maxScore = Double.NEGATIVE_INFINITY;
+        }
+
+        @SuppressWarnings("unchecked")
+        public static <V> Node<V>[] newArray(final int length) {
+            return (Node<V>[]) (length == 0 ? EMPTY_NODES : new Node<?>[length]);
+        }
+
+        public void set(final V value, final double score) {
+            this.value = value;
+            this.score = score;
+            this.inUse = true;
+        }
+
+        public int indexOf(final char c) {
+            return Arrays.binarySearch(childChars, c);
+        }
+
+        public void insertChild(final int index, final Node<V> child) {
+            final int length = children.length;
+            final char[] newChildChars = new char[length + 1];
+            final Node<V>[] newChildren = Node.<V> newArray(length + 1);
+
+            System.arraycopy(childChars, 0, newChildChars, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            newChildChars[index] = child.label[0];
+            newChildren[index] = child;
+            System.arraycopy(childChars, index, newChildChars, index + 1,
+                    length - index);
+            System.arraycopy(children, index, newChildren, index + 1, length
+                    - index);
+
+            childChars = newChildChars;
+            children = newChildren;
+        }
+
+        public void removeChild(final int index) {
+            final int length = children.length;
+
+            if (length == 1) {
+                childChars = EMPTY_CHARS;
+                children = Node.<V> newArray(0);
+                return;
+            }
+
+            final char[] newChildChars = new char[length - 1];
+            final Node<V>[] newChildren = Node.<V> newArray(length - 1);
+
+            System.arraycopy(childChars, 0, newChildChars, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            System.arraycopy(childChars, index + 1, newChildChars, index,
+                    length - index - 1);
+            System.arraycopy(children, index + 1, newChildren, index, length
+                    - index - 1);
+
+            childChars = newChildChars;
+            children = newChildren;
+        }
+
+        public void updateMaxScore() {
+            double max = inUse ? score : Double.NEGATIVE_INFINITY;
+
+            for (int i = 0; i < children.length; i++) {
+                if (children[i].maxScore > max) {
+                    max = children[i].maxScore;
+                }
+            }
+
+            maxScore = max;
+        }
+    }
+
+    private Node<V> root;
+    private int size;
+    /* The nodes on the path of the last modification */
+    private transient Node<?>[] path;
+
+    /**
+     * Constructs an empty CompletionTrie
+     */
+    public CompletionTrie() {
+        this.root = new Node<V>(EMPTY_CHARS);
+    }
+
+    private Node<?>[] path(final int length) {
+        Node<?>[] localPath = path;
+
+        if (localPath == null || localPath.length < length) {
+            localPath = path = new Node<?>[Math.max(16, length)];
+        }
+
+        return localPath;
+    }
+
+    /**
+     * Associates the given value and score with the given key.
+     *
+     * @param key
+     *            The key
+     * @param value
+     *            The value
+     * @param score
+     *            The score by which the completions are ordered
+     * @return The previous value of the key or null
+     * @throws IllegalArgumentException
+     *             When the key is null or the score is NaN
+     */
+    public V put(final CharSequence key, final V value, final double score) {
+        keyCheck(key);
+
+        if (Double.isNaN(score)) {
+            throw new IllegalArgumentException("The score must not be NaN");
+        }
+
+        final int keyLength = key.length();
+        final Node<?>[] nodes = path(keyLength + 2);
+        Node<V> currentNode = root;
+        int depth = 0;
+        int i = 0;
+        V oldValue = null;
+
+        nodes[depth++] = currentNode;
+
+        while (true) {
+            if (i == keyLength) {
+                if (currentNode.inUse) {
+                    oldValue = currentNode.value;
+                } else {
+                    ++size;
+                }
+
+                currentNode.set(value, score);
+                break;
+            }
+
+            final int index = currentNode.indexOf(key.charAt(i));
+
+            if (index < 0) {
+                final Node<V> leaf = new Node<V>(toChars(key, i, keyLength));
+                leaf.set(value, score);
+                currentNode.insertChild(-(index + 1), leaf);
+                nodes[depth++] = leaf;
+                ++size;
+                break;
+            }
+
+            final Node<V> child = currentNode.children[index];
+            final char[] label = child.label;
+            final int end = Math.min(label.length, keyLength - i);
+            int matched = 1;
+
+            while (matched < end && label[matched] == key.charAt(i + matched)) {
+                ++matched;
+            }
+
+            if (matched < label.length) {
+				/* The key leaves or ends within the label, so split the edge */
+                final Node<V> splitNode = new Node<V>(Arrays.copyOf(label,
+                        matched));
+                child.label = Arrays.copyOfRange(label, matched, label.length);
+                splitNode.insertChild(0, child);
+                currentNode.children[index] = splitNode;
+                currentNode = splitNode;
+                nodes[depth++] = splitNode;
+                i += matched;
+                continue;
+            }
+
+            currentNode = child;
+            nodes[depth++] = child;
+            i += label.length;
+        }
+
+        updateMaxScores(nodes, depth);
+        return oldValue;
+    }
+
+    /**
+     * Recomputes the maximum scores of the given path nodes, deepest first.
+     */
+    private static void updateMaxScores(final Node<?>[] nodes, final int depth) {
+        for (int i = depth - 1; i >= 0; i--) {
+            nodes[i].updateMaxScore();
+            nodes[i] = null;
+        }
+    }
+
+    private static char[] toChars(final CharSequence s, final int start,
+                                  final int end) {
+        final char[] chars = new char[end - start];
+
+        for (int i = start; i < end; i++) {
+            chars[i - start] = s.charAt(i);
+        }
+
+        return chars;
+    }
+
+    private Node<V> findNode(final CharSequence key) {
+        final int keyLength = keyCheck(key).length();
+        Node<V> currentNode = root;
+        int i = 0;
+
+        while (i < keyLength) {
+            final int index = currentNode.indexOf(key.charAt(i));
+
+            if (index < 0) {
+                return null;
+            }
+
+            currentNode = currentNode.children[index];
+            final char[] label = currentNode.label;
+
+            if (keyLength - i < label.length) {
+                return null;
+            }
+
+            for (int j = 1; j < label.length; j++) {
+                if (label[j] != key.charAt(i + j)) {
+                    return null;
+                }
+            }
+
+            i += label.length;
+        }
+
+        return currentNode.inUse ? currentNode : null;
+    }
+
+    /**
+     * Returns the value of the given key or null if the key is not contained.
+     *
+     * @param key
+     *            The key
+     * @return The value of the key or null
+     */
+    public V get(final CharSequence key) {
+        final Node<V> node = findNode(key);
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * Returns the score of the given key or {@link Double#NaN} if the key is
+     * not contained.
+     *
+     * @param key
+     *            The key
+     * @return The score of the key or NaN
+     */
+    public double getScore(final CharSequence key) {
+        final Node<V> node = findNode(key);
+        return node == null ? Double.NaN : node.score;
+    }
+
+    /**
+     * Returns true when the given key is contained.
+     *
+     * @param key
+     *            The key
+     * @return True when the key is contained, otherwise false
+     */
+    public boolean containsKey(final CharSequence key) {
+        return findNode(key) != null;
+    }
+
+    /**
+     * Removes the given key.
+     *
+     * @param key
+     *            The key
+     * @return The value of the removed key or null
+     */
+    public V remove(final CharSequence key) {
+        final int keyLength = keyCheck(key).length();
+        final Node<?>[] nodes = path(keyLength + 1);
+        final int[] indexes = new int[keyLength + 1];
+        Node<V> currentNode = root;
+        int depth = 0;
+        int i = 0;
+
+        nodes[depth++] = currentNode;
+
+        while (i < keyLength) {
+            final int index = currentNode.indexOf(key.charAt(i));
+
+            if (index < 0) {
+                Arrays.fill(nodes, 0, depth, null);
+                return null;
+            }
+
+            final Node<V> child = currentNode.children[index];
+            final char[] label = child.label;
+            boolean matches = keyLength - i >= label.length;
+
+            for (int j = 1; matches && j < label.length; j++) {
+                matches = label[j] == key.charAt(i + j);
+            }
+
+            if (!matches) {
+                Arrays.fill(nodes, 0, depth, null);
+                return null;
+            }
+
+            indexes[depth] = index;
+            nodes[depth++] = child;
+            currentNode = child;
+            i += label.length;
+        }
+
+        if (!currentNode.inUse) {
+            Arrays.fill(nodes, 0, depth, null);
+            return null;
+        }
+
+        final V removed = currentNode.value;
+        currentNode.value = null;
+        currentNode.inUse = false;
+        --size;
+
+        if (depth > 1) {
+            compact(nodes, indexes, depth - 1);
+        }
+
+        updateMaxScores(nodes, depth);
+        return removed;
+    }
+
+    /**
+     * Restores the invariant that every node except the root is in use or
+     * has at least two children after the node at the given depth has been
+     * unset. Nodes that are removed from the trie stay on the path, updating
+     * their maximum score is harmless.
+     */
+    @SuppressWarnings("unchecked")
+    private static <V> void compact(final Node<?>[] nodes, final int[] indexes,
+                                    final int depth) {
+        final Node<V> node = (Node<V>) nodes[depth];
+        final Node<V> parent = (Node<V>) nodes[depth - 1];
+        final int childCount = node.children.length;
+
+        if (childCount == 1) {
+            merge(parent, indexes[depth]);
+        } else if (childCount == 0) {
+            parent.removeChild(indexes[depth]);
+
+            if (depth > 1 && !parent.inUse && parent.children.length == 1) {
+                merge((Node<V>) nodes[depth - 2], indexes[depth - 1]);
+            }
+        }
+    }
+
+    /**
+     * Merges the only child of the node at the given index of the given parent
+     * into that node.
+     */
+    private static <V> void merge(final Node<V> parent, final int index) {
+        final Node<V> node = parent.children[index];
+        final Node<V> child = node.children[0];
+        final char[] label = new char[node.label.length + child.label.length];
+
+        System.arraycopy(node.label, 0, label, 0, node.label.length);
+        System.arraycopy(child.label, 0, label, node.label.length,
+                child.label.length);
+        child.label = label;
+        parent.children[index] = child;
+    }
+
+    /**
+     * Returns the amount of entries.
+     *
+     * @return The amount of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear() {
+        root = new Node<V>(EMPTY_CHARS);
+        size = 0;
+    }
+
+    /**
+     * A subtree that still has to be expanded or an entry that can be
+     * returned, ordered by their score.
+     */
+    private static final class Candidate<V> {
+
+        private final Node<V> node;
+        private final String key;
+        private final boolean entry;
+        private final double score;
+
+        public Candidate(final Node<V> node, final String key,
+                         final boolean entry) {
+            this.node = node;
+            this.key = key;
+            this.entry = entry;
+            this.score = entry ? node.score : node.maxScore;
+        }
+    }
+
+    /**
+     * Orders candidates by descending score and then by key, for equal keys
+     * the entry comes before the subtree.
+     */
+    @SuppressWarnings("rawtypes")
+    private static final Comparator<Candidate> CANDIDATE_ORDER = new Comparator<Candidate>() {
+
+        @Override
+        public int compare(final Candidate o1, final Candidate o2) {
+            final int scoreOrder = Double.compare(o2.score, o1.score);
+
+            if (scoreOrder != 0) {
+                return scoreOrder;
+            }
+
+            final int keyOrder = o1.key.compareTo(o2.key);
+
+            if (keyOrder != 0) {
+                return keyOrder;
+            }
+
+            return o1.entry == o2.entry ? 0 : o1.entry ? -1 : 1;
+        }
+    };
+
+    /**
+     * Returns the entries with the highest scores whose keys start with the
+     * given prefix, ordered by descending score and for equal scores by key.
+     * The search expands the subtree with the highest maximum score first and
+     * stops as soon as k entries have been found.
+     *
+     * @param prefix
+     *            The prefix of the keys
+     * @param k
+     *            The maximum amount of entries to return
+     * @return The best k completions of the prefix
+     * @throws IllegalArgumentException
+     *             When the prefix is null or k is negative
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public List<Completion<V>> topK(final CharSequence prefix, final int k) {
+        final int prefixLength = keyCheck(prefix).length();
+
+        if (k < 0) {
+            throw new IllegalArgumentException("k must not be negative");
+        }
+
+        Node<V> currentNode = root;
+        int i = 0;
+
+        while (i < prefixLength) {
+            final int index = currentNode.indexOf(prefix.charAt(i));
+
+            if (index < 0) {
+                return Collections.emptyList();
+            }
+
+            currentNode = currentNode.children[index];
+            final char[] label = currentNode.label;
+            final int end = Math.min(label.length, prefixLength - i);
+
+            for (int j = 1; j < end; j++) {
+                if (label[j] != prefix.charAt(i + j)) {
+                    return Collections.emptyList();
+                }
+            }
+
+            i += label.length;
+        }
+
+        if (k == 0 || currentNode.maxScore == Double.NEGATIVE_INFINITY) {
+            return Collections.emptyList();
+        }
+
+		/* The prefix may end within the label of the node */
+        final String nodeKey = new StringBuilder(i).append(prefix)
+                .append(currentNode.label, currentNode.label.length
+                        - (i - prefixLength), i - prefixLength).toString();
+        final List<Completion<V>> result = new ArrayList<Completion<V>>(k);
+        final PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>(
+                16, CANDIDATE_ORDER);
+
+        queue.add(new Candidate<V>(currentNode, nodeKey, false));
+
+        while (!queue.isEmpty() && result.size() < k) {
+            final Candidate<V> candidate = queue.poll();
+            final Node<V> node = candidate.node;
+
+            if (candidate.entry) {
+                result.add(new Completion<V>(candidate.key, node.value,
+                        node.score));
+                continue;
+            }
+
+            if (node.inUse) {
+                queue.add(new Candidate<V>(node, candidate.key, true));
+            }
+
+            for (final Node<V> child : node.children) {
+                queue.add(new Candidate<V>(child, new StringBuilder(
+                        candidate.key.length() + child.label.length)
+                        .append(candidate.key).append(child.label).toString(),
+                        false));
+            }
+        }
+
+        return result;
+    }
+
+    private static CharSequence keyCheck(final CharSequence key) {
+        if (key == null) {
+            throw new IllegalArgumentException(
+                    "This trie does not support null keys");
+        }
+
+        return key;
+    }
+}
@@ -0,0 +1,859 @@
+/**
+ * Copyright 2012 Blazebit
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.blazebit.collection;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A thread safe trie that can be used as concurrent map with char sequence
+ * keys. It offers the same prefix operations as {@link TrieMap}.
+ *
+ * The nodes of the trie are immutable radix nodes. A modification copies the
+ * nodes on the path to the modified key and publishes the new root with a
+ * compare and set, retrying when another thread was faster. Reads never block
+ * and never retry, they simply work on the root they have read.
+ *
+ * Since a root is never modified, {@link #snapshot()} only needs to read the
+ * current root, which makes snapshots constant time operations. Iterators and
+ * the views work on the root that was current when they were created and are
+ * therefore weakly consistent and never throw a
+ * {@link ConcurrentModificationException}.
+ *
+ * This map supports neither null keys nor null values.
+ *
+ * @param <V>
+ *            The value type that the trie holds.
+ *
+ */
+public class ConcurrentTrieMap<V> extends AbstractMap<CharSequence, V>
+        implements ConcurrentMap<CharSequence, V>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final AtomicReference<ImmutableTrieNode<V>> root;
+
+    /**
+     * Constructs an empty ConcurrentTrieMap
+     */
+    public ConcurrentTrieMap() {
+        this(ImmutableTrieNode.<V> empty());
+    }
+
+    /**
+     * Constructs a new ConcurrentTrieMap with the values from the given map.
+     *
+     * @param map
+     *            The map from which to construct this ConcurrentTrieMap
+     */
+    public ConcurrentTrieMap(final Map<? extends CharSequence, ? extends V> map) {
+        this();
+        putAll(map);
+    }
+
+    private ConcurrentTrieMap(final ImmutableTrieNode<V> rootNode) {
+        this.root = new AtomicReference<ImmutableTrieNode<V>>(rootNode);
+    }
+
+    /**
+     * Returns the current root node which mainly is for sub map to override.
+     * When the given builder is not null, the key of the returned node
+     * relative to this map is appended to it.
+     */
+    ImmutableTrieNode<V> getRoot(final StringBuilder rootKey) {
+        return root.get();
+    }
+
+    /**
+     * Returns a new map that contains the entries of this map at the time of
+     * the invocation. Both maps can be modified independently afterwards
+     * without seeing the modifications of each other. This operation runs in
+     * constant time since the nodes are shared.
+     *
+     * @return A snapshot of the current map
+     */
+    public ConcurrentTrieMap<V> snapshot() {
+        return new ConcurrentTrieMap<V>(root.get());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V get(final Object key) {
+        final ImmutableTrieNode<V> node = findNode(getRoot(null), keyCheck(key));
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean containsKey(final Object key) {
+        final ImmutableTrieNode<V> node = findNode(getRoot(null), keyCheck(key));
+        return node != null && node.inUse;
+    }
+
+    /**
+     * Returns true when an entry exists that that has the given prefix.
+     *
+     * @param prefix
+     *            The prefix for which to check if an entry is contained.
+     * @return True when an entry with the given prefix exists, otherwise false.
+     */
+    public boolean containsKeyPrefix(final CharSequence prefix) {
+        return countKeysWithPrefix(prefix) > 0;
+    }
+
+    /**
+     * Returns the amount of entries whose keys start with the given prefix.
+     *
+     * @param prefix
+     *            The prefix for which to count the entries.
+     * @return The amount of entries with the given prefix.
+     */
+    public int countKeysWithPrefix(final CharSequence prefix) {
+        final ImmutableTrieNode<V> node = findPrefixNode(getRoot(null),
+                keyCheck(prefix), null);
+        return node == null ? 0 : node.size;
+    }
+
+    /**
+     * Returns the longest prefix of the given string that is a prefix of a key
+     * in this map.
+     *
+     * @param str
+     *            The string for which to find the best match
+     * @return The longest matching prefix
+     */
+    public String getBestMatch(final CharSequence str) {
+        final int matched = matchLength(getRoot(null), keyCheck(str));
+        return new StringBuilder(matched).append(str, 0, matched).toString();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return getRoot(null).size;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V put(final CharSequence key, final V value) {
+        final CharSequence checkedKey = keyCheck(key);
+        valueCheck(value);
+
+        while (true) {
+            final ImmutableTrieNode<V> currentRoot = root.get();
+            final ImmutableTrieNode<V> node = findNode(currentRoot, checkedKey);
+            final V oldValue = node == null || !node.inUse ? null : node.value;
+
+            if (oldValue == value
+                    || root.compareAndSet(currentRoot,
+                    put(currentRoot, checkedKey, 0, value))) {
+                return oldValue;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V putIfAbsent(final CharSequence key, final V value) {
+        final CharSequence checkedKey = keyCheck(key);
+        valueCheck(value);
+
+        while (true) {
+            final ImmutableTrieNode<V> currentRoot = root.get();
+            final ImmutableTrieNode<V> node = findNode(currentRoot, checkedKey);
+
+            if (node != null && node.inUse) {
+                return node.value;
+            }
+
+            if (root.compareAndSet(currentRoot,
+                    put(currentRoot, checkedKey, 0, value))) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V replace(final CharSequence key, final V value) {
+        final CharSequence checkedKey = keyCheck(key);
+        valueCheck(value);
+
+        while (true) {
+            final ImmutableTrieNode<V> currentRoot = root.get();
+            final ImmutableTrieNode<V> node = findNode(currentRoot, checkedKey);
+
+            if (node == null || !node.inUse) {
+                return null;
+            }
+
+            if (root.compareAndSet(currentRoot,
+                    put(currentRoot, checkedKey, 0, value))) {
+                return node.value;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean replace(final CharSequence key, final V oldValue,
+                           final V newValue) {
+        final CharSequence checkedKey = keyCheck(key);
+        valueCheck(newValue);
+
+        while (true) {
+            final ImmutableTrieNode<V> currentRoot = root.get();
+            final ImmutableTrieNode<V> node = findNode(currentRoot, checkedKey);
+
+            if (node == null || !node.inUse || !node.value.equals(oldValue)) {
+                return false;
+            }
+
+            if (root.compareAndSet(currentRoot,
+                    put(currentRoot, checkedKey, 0, newValue))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V remove(final Object key) {
+        final CharSequence checkedKey = keyCheck(key);
+
+        while (true) {
+            final ImmutableTrieNode<V> currentRoot = root.get();
+            final ImmutableTrieNode<V> node = findNode(currentRoot, checkedKey);
+
+            if (node == null || !node.inUse) {
+                return null;
+            }
+
+            if (root.compareAndSet(currentRoot,
+                    remove(currentRoot, checkedKey, 0, true))) {
+                return node.value;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean remove(final Object key, final Object value) {
+        final CharSequence checkedKey = keyCheck(key);
+
+        while (true) {
+            final ImmutableTrieNode<V> currentRoot = root.get();
+            final ImmutableTrieNode<V> node = findNode(currentRoot, checkedKey);
+
+            if (node == null || !node.inUse || !node.value.equals(value)) {
+                return false;
+            }
+
+            if (root.compareAndSet(currentRoot,
+                    remove(currentRoot, checkedKey, 0, true))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clear() {
+        root.set(ImmutableTrieNode.<V> empty());
+    }
+
+    /**
+     * Removes all entries whose keys start with the given prefix.
+     */
+    void removePrefix(final CharSequence prefix) {
+        if (prefix.length() == 0) {
+            clear();
+            return;
+        }
+
+        while (true) {
+            final ImmutableTrieNode<V> currentRoot = root.get();
+            final ImmutableTrieNode<V> node = findPrefixNode(currentRoot,
+                    prefix, null);
+
+            if (node == null
+                    || root.compareAndSet(currentRoot,
+                    removePrefix(currentRoot, prefix, 0, true))) {
+                return;
+            }
+        }
+    }
+
+    /*
+     * Path copying operations
+     */
+
+    /**
+     * Returns a copy of the given node in which the given key, relative to the
+     * node at the given offset, maps to the given value.
+     */
+    private static <V> ImmutableTrieNode<V> put(
+            final ImmutableTrieNode<V> node, final CharSequence key,
+            final int offset, final V value) {
+        final int keyLength = key.length();
+
+        if (offset == keyLength) {
+            return node.withValue(value);
+        }
+
+        final int index = node.indexOf(key.charAt(offset));
+
+        if (index < 0) {
+			/* No child starts with the next char, so add a leaf for the rest */
+            return node.withInsertedChild(-(index + 1),
+                    new ImmutableTrieNode<V>(toChars(key, offset, keyLength),
+                            value));
+        }
+
+        final ImmutableTrieNode<V> child = node.children[index];
+        final char[] label = child.label;
+        final int matched = matchLabel(label, key, offset);
+
+        if (matched < label.length) {
+			/* The key leaves or ends within the label, so split the edge */
+            final ImmutableTrieNode<V> trimmedChild = child.withLabel(Arrays
+                    .copyOfRange(label, matched, label.length));
+            final ImmutableTrieNode<V>[] splitChildren = ImmutableTrieNode
+                    .<V> newArray(1);
+            splitChildren[0] = trimmedChild;
+            final ImmutableTrieNode<V> splitNode = new ImmutableTrieNode<V>(
+                    Arrays.copyOfRange(label, 0, matched),
+                    new char[] { trimmedChild.label[0] }, splitChildren, null,
+                    false, trimmedChild.size);
+
+            return node.withChild(index, put(splitNode, key, offset + matched,
+                    value));
+        }
+
+        return node.withChild(index, put(child, key, offset + matched, value));
+    }
+
+    /**
+     * Returns a copy of the given node without the given key, relative to the
+     * node at the given offset, or null if the node is not needed anymore. The
+     * key must be contained.
+     */
+    private static <V> ImmutableTrieNode<V> remove(
+            final ImmutableTrieNode<V> node, final CharSequence key,
+            final int offset, final boolean isRoot) {
+        if (offset == key.length()) {
+            return compact(node.withoutValue(), isRoot);
+        }
+
+        final int index = node.indexOf(key.charAt(offset));
+        final ImmutableTrieNode<V> child = node.children[index];
+        final ImmutableTrieNode<V> newChild = remove(child, key,
+                offset + child.label.length, false);
+
+        if (newChild == null) {
+            return compact(node.withoutChild(index), isRoot);
+        }
+
+        return node.withChild(index, newChild);
+    }
+
+    /**
+     * Returns a copy of the given node without the entries with the given
+     * prefix or null if the node is not needed anymore.
+     */
+    private static <V> ImmutableTrieNode<V> removePrefix(
+            final ImmutableTrieNode<V> node, final CharSequence prefix,
+            final int offset, final boolean isRoot) {
+        final int index = node.indexOf(prefix.charAt(offset));
+        final ImmutableTrieNode<V> child = node.children[index];
+        final int next = offset + child.label.length;
+
+        if (next >= prefix.length()) {
+            return compact(node.withoutChild(index), isRoot);
+        }
+
+        final ImmutableTrieNode<V> newChild = removePrefix(child, prefix, next,
+                false);
+
+        if (newChild == null) {
+            return compact(node.withoutChild(index), isRoot);
+        }
+
+        return node.withChild(index, newChild);
+    }
+
+    /**
+     * Ensures that every node except the root is either in use or has at
+     * least two children.
+     */
+    private static <V> ImmutableTrieNode<V> compact(
+            final ImmutableTrieNode<V> node, final boolean isRoot) {
+        if (isRoot || node.inUse) {
+            return node;
+        }
+
+        final int childCount = node.children.length;
+
+        if (childCount == 0) {
+            return null;
+        } else if (childCount == 1) {
+            return node.mergeWithChild();
+        }
+
+        return node;
+    }
+
+    /*
+     * Lookup operations
+     */
+
+    private static <V> ImmutableTrieNode<V> findNode(
+            final ImmutableTrieNode<V> root, final CharSequence key) {
+        final int keyLength = key.length();
+        ImmutableTrieNode<V> currentNode = root;
+        int i = 0;
+
+        while (i < keyLength) {
+            currentNode = currentNode.child(key.charAt(i));
+
+            if (currentNode == null) {
+                return null;
+            }
+
+            final char[] label = currentNode.label;
+
+            if (keyLength - i < label.length
+                    || matchLabel(label, key, i) < label.length) {
+                return null;
+            }
+
+            i += label.length;
+        }
+
+        return currentNode;
+    }
+
+    /**
+     * Returns the topmost node whose key starts with the given prefix or null
+     * if there is no such node. When the given builder is not null, the part
+     * of the key of the node that exceeds the prefix is appended to it.
+     */
+    private static <V> ImmutableTrieNode<V> findPrefixNode(
+            final ImmutableTrieNode<V> root, final CharSequence prefix,
+            final StringBuilder remainder) {
+        final int prefixLength = prefix.length();
+        ImmutableTrieNode<V> currentNode = root;
+        int i = 0;
+
+        while (i < prefixLength) {
+            currentNode = currentNode.child(prefix.charAt(i));
+
+            if (currentNode == null) {
+                return null;
+            }
+
+            final char[] label = currentNode.label;
+            final int matched = matchLabel(label, prefix, i);
+
+            if (matched < label.length) {
+                if (i + matched < prefixLength) {
+                    return null;
+                }
+
+                if (remainder != null) {
+                    remainder.append(label, matched, label.length - matched);
+                }
+
+                return currentNode;
+            }
+
+            i += matched;
+        }
+
+        return currentNode;
+    }
+
+    private static <V> int matchLength(final ImmutableTrieNode<V> root,
+                                       final CharSequence str) {
+        final int strLen = str.length();
+        ImmutableTrieNode<V> currentNode = root;
+        int i = 0;
+
+        while (i < strLen) {
+            currentNode = currentNode.child(str.charAt(i));
+
+            if (currentNode == null) {
+                return i;
+            }
+
+            final int matched = matchLabel(currentNode.label, str, i);
+            i += matched;
+
+            if (matched < currentNode.label.length) {
+                return i;
+            }
+        }
+
+        return i;
+    }
+
+    private static int matchLabel(final char[] label, final CharSequence key,
+                                  final int offset) {
+        final int length = Math.min(label.length, key.length() - offset);
+        int i = 1;
+
+        while (i < length && label[i] == key.charAt(offset + i)) {
+            ++i;
+        }
+
+        return i;
+    }
+
+    private static char[] toChars(final CharSequence key, final int start,
+                                  final int end) {
+        final char[] chars = new char[end - start];
+
+        for (int i = start; i < end; i++) {
+            chars[i - start] = key.charAt(i);
+        }
+
+        return chars;
+    }
+
+    private static CharSequence keyCheck(final Object key) {
+        if (key == null) {
+            throw new IllegalArgumentException(
+                    "This map does not support null keys");
+        } else if (!(key instanceof CharSequence)) {
+            throw new IllegalArgumentException(
+                    "Argument must be instance of CharSequence");
+        }
+
+        return (CharSequence) key;
+    }
+
+    private static void valueCheck(final Object value) {
+        if (value == null) {
+            throw new IllegalArgumentException(
+                    "This map does not support null values");
+        }
+    }
+
+	/*
+	 * Iterators
+	 */
+
+    /**
+     * Entry implementation for ConcurrentTrieMap that writes through to the
+     * map.
+     */
+    private final class SnapshotEntry extends
+            AbstractMap.SimpleEntry<CharSequence, V> {
+
+        private static final long serialVersionUID = 1L;
+
+        public SnapshotEntry(final CharSequence key, final V value) {
+            super(key, value);
+        }
+
+        @Override
+        public V setValue(final V value) {
+            valueCheck(value);
+            super.setValue(value);
+            return ConcurrentTrieMap.this.put(getKey(), value);
+        }
+    }
+
+    /**
+     * Iterator implementation that returns the entries of the root node at
+     * the time of the creation in lexicographical order of their keys.
+     */
+    private final class EntryIterator implements
+            Iterator<Entry<CharSequence, V>> {
+
+        private final Deque<ImmutableTrieNode<V>> nodes =
+                new ArrayDeque<ImmutableTrieNode<V>>();
+        private final Deque<String> keys = new ArrayDeque<String>();
+        private Entry<CharSequence, V> next;
+        private Entry<CharSequence, V> current;
+
+        public EntryIterator() {
+            final StringBuilder rootKey = new StringBuilder();
+            final ImmutableTrieNode<V> startNode = getRoot(rootKey);
+
+            if (startNode != null) {
+                nodes.push(startNode);
+                keys.push(rootKey.toString());
+            }
+
+            fetchEntry();
+        }
+
+        private void fetchEntry() {
+            Entry<CharSequence, V> localNext = null;
+
+            while (localNext == null && !nodes.isEmpty()) {
+                final ImmutableTrieNode<V> node = nodes.pop();
+                final String key = keys.pop();
+                final ImmutableTrieNode<V>[] children = node.children;
+
+                if (node.inUse) {
+                    localNext = new SnapshotEntry(key, node.value);
+                }
+
+				/* Push in reverse order so the smallest child comes first */
+                for (int i = children.length - 1; i >= 0; i--) {
+                    final char[] label = children[i].label;
+                    nodes.push(children[i]);
+                    keys.push(new StringBuilder(key.length() + label.length)
+                            .append(key).append(label).toString());
+                }
+            }
+
+            next = localNext;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry<CharSequence, V> next() {
+            final Entry<CharSequence, V> entry = next;
+
+            if (entry == null) {
+                throw new NoSuchElementException();
+            }
+
+            current = entry;
+            fetchEntry();
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            final Entry<CharSequence, V> entry = current;
+
+            if (entry == null) {
+                throw new IllegalStateException();
+            }
+
+            ConcurrentTrieMap.this.remove(entry.getKey());
+            current = null;
+        }
+    }
+
+    /*
+     * Views
+     */
+    private transient Set<Entry<CharSequence, V>> entrySet;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<Entry<CharSequence, V>> entrySet() {
+        final Set<Entry<CharSequence, V>> es = entrySet;
+        return es != null ? es : (entrySet = new EntrySet());
+    }
+
+    private final class EntrySet extends AbstractSet<Entry<CharSequence, V>> {
+
+        @Override
+        public void clear() {
+            ConcurrentTrieMap.this.clear();
+        }
+
+        @Override
+        public boolean contains(final Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+
+            final Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            final V value = get(e.getKey());
+            return value != null && value.equals(e.getValue());
+        }
+
+        @Override
+        public Iterator<Entry<CharSequence, V>> iterator() {
+            return new EntryIterator();
+        }
+
+        @Override
+        public boolean remove(final Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+
+            final Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            return ConcurrentTrieMap.this.remove(e.getKey(), e.getValue());
+        }
+
+        @Override
+        public int size() {
+            return ConcurrentTrieMap.this.size();
+        }
+    }
+
+    /**
+     * A prefixed view on an existing ConcurrentTrieMap.
+     *
+     * @param <V>
+     *            The value type that the trie holds.
+     */
+    private static class SubConcurrentTrieMap<V> extends ConcurrentTrieMap<V> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ConcurrentTrieMap<V> parent;
+        private final CharSequence prefix;
+
+        public SubConcurrentTrieMap(final ConcurrentTrieMap<V> parent,
+                                    final CharSequence prefix) {
+            this.parent = parent;
+            this.prefix = prefix;
+        }
+
+        private String prefixed(final CharSequence key) {
+            final CharSequence localPrefix = prefix;
+            return new StringBuilder(localPrefix.length() + key.length())
+                    .append(localPrefix).append(key).toString();
+        }
+
+        @Override
+        ImmutableTrieNode<V> getRoot(final StringBuilder rootKey) {
+            return findPrefixNode(parent.getRoot(null), prefix, rootKey);
+        }
+
+        @Override
+        public ConcurrentTrieMap<V> snapshot() {
+            return parent.snapshot().subMap(prefix);
+        }
+
+        @Override
+        public V get(final Object key) {
+            return parent.get(prefixed(keyCheck(key)));
+        }
+
+        @Override
+        public boolean containsKey(final Object key) {
+            return parent.containsKey(prefixed(keyCheck(key)));
+        }
+
+        @Override
+        public int countKeysWithPrefix(final CharSequence prefix) {
+            return parent.countKeysWithPrefix(prefixed(keyCheck(prefix)));
+        }
+
+        @Override
+        public String getBestMatch(final CharSequence str) {
+            final int matched = matchLength(parent.getRoot(null),
+                    prefixed(keyCheck(str))) - prefix.length();
+
+            if (matched < 0) {
+                return "";
+            }
+
+            return new StringBuilder(matched).append(str, 0, matched)
+                    .toString();
+        }
+
+        @Override
+        public int size() {
+            final ImmutableTrieNode<V> node = getRoot(null);
+            return node == null ? 0 : node.size;
+        }
+
+        @Override
+        public V put(final CharSequence key, final V value) {
+            return parent.put(prefixed(keyCheck(key)), value);
+        }
+
+        @Override
+        public V putIfAbsent(final CharSequence key, final V value) {
+            return parent.putIfAbsent(prefixed(keyCheck(key)), value);
+        }
+
+        @Override
+        public V replace(final CharSequence key, final V value) {
+            return parent.replace(prefixed(keyCheck(key)), value);
+        }
+
+        @Override
+        public boolean replace(final CharSequence key, final V oldValue,
+                               final V newValue) {
+            return parent.replace(prefixed(keyCheck(key)), oldValue, newValue);
+        }
+
+        @Override
+        public V remove(final Object key) {
+            return parent.remove(prefixed(keyCheck(key)));
+        }
+
+        @Override
+        public boolean remove(final Object key, final Object value) {
+            return parent.remove(prefixed(keyCheck(key)), value);
+        }
+
+        @Override
+        public void clear() {
+            parent.removePrefix(prefix);
+        }
+
+        @Override
+        public ConcurrentTrieMap<V> subMap(final CharSequence prefix) {
+            return parent.subMap(prefixed(keyCheck(prefix)));
+        }
+    }
+
+    /**
+     * Returns a view on the current map that acts like if every method call to
+     * the current map where a key is involved would be prefixed with the given
+     * prefix. To iterate over a consistent state of a prefix, use the sub map
+     * of a {@link #snapshot()}.
+     *
+     * @param prefix
+     *            The prefix which to use for the sub map.
+     * @return A prefixed view on the current map.
+     */
+    public ConcurrentTrieMap<V> subMap(final CharSequence prefix) {
+        return new SubConcurrentTrieMap<V>(this, keyCheck(prefix));
+    }
+}
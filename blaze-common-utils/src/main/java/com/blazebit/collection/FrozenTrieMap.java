@@ -0,0 +1,499 @@
+/**
+ * Copyright 2012 Blazebit
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.blazebit.collection;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * A read only trie that is compiled from a {@link TrieMap} via
+ * {@link TrieMap#freeze()}. Instead of node objects, the trie is encoded in a
+ * few primitive arrays, so lookups are tight loops over arrays that neither
+ * allocate nor box.
+ *
+ * The nodes are numbered in pre-order, which means that the subtree of a node
+ * is the contiguous range of node ids from the node up to its subtree end.
+ * Prefix iteration therefore is a linear scan that returns the entries in
+ * lexicographical order of their keys and the amount of entries with a prefix
+ * is the difference of two entry ranks.
+ *
+ * All modification operations throw an
+ * {@link UnsupportedOperationException}.
+ *
+ * @param <V>
+ *            The value type that the trie holds.
+ */
+public class FrozenTrieMap<V> extends AbstractMap<CharSequence, V> implements
+        Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /* The labels of all nodes, the label of node i is in [labelOffsets[i], labelOffsets[i + 1]) */
+    final char[] labels;
+    final int[] labelOffsets;
+    /* The children of node i are in [childOffsets[i], childOffsets[i + 1]), sorted by their first char */
+    final char[] childChars;
+    final int[] childOffsets;
+    final int[] childNodes;
+    /* The first node id after the subtree of node i */
+    final int[] subtreeEnds;
+    /* The amount of entries before node i, node i is in use if entryRanks[i + 1] > entryRanks[i] */
+    final int[] entryRanks;
+    final Object[] values;
+    /* The node at which this map starts and the amount of its label chars that belong to the prefix */
+    private final int rootNode;
+    private final int rootLabelOffset;
+
+    FrozenTrieMap(final char[] labels, final int[] labelOffsets,
+                  final char[] childChars, final int[] childOffsets,
+                  final int[] childNodes, final int[] subtreeEnds,
+                  final int[] entryRanks, final Object[] values) {
+        this(labels, labelOffsets, childChars, childOffsets, childNodes,
+                subtreeEnds, entryRanks, values, 0, 0);
+    }
+
+    private FrozenTrieMap(final char[] labels, final int[] labelOffsets,
+                          final char[] childChars, final int[] childOffsets,
+                          final int[] childNodes, final int[] subtreeEnds,
+                          final int[] entryRanks, final Object[] values,
+                          final int rootNode, final int rootLabelOffset) {
+        this.labels = labels;
+        this.labelOffsets = labelOffsets;
+        this.childChars = childChars;
+        this.childOffsets = childOffsets;
+        this.childNodes = childNodes;
+        this.subtreeEnds = subtreeEnds;
+        this.entryRanks = entryRanks;
+        this.values = values;
+        this.rootNode = rootNode;
+        this.rootLabelOffset = rootLabelOffset;
+    }
+
+    /**
+     * Returns the child of the given node whose label starts with the given
+     * char or -1 if there is none.
+     */
+    private int child(final int node, final char c) {
+        final char[] chars = childChars;
+        int low = childOffsets[node];
+        int high = childOffsets[node + 1] - 1;
+
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final char midChar = chars[mid];
+
+            if (midChar < c) {
+                low = mid + 1;
+            } else if (midChar > c) {
+                high = mid - 1;
+            } else {
+                return childNodes[mid];
+            }
+        }
+
+        return -1;
+    }
+
+    private boolean inUse(final int node) {
+        return entryRanks[node + 1] != entryRanks[node];
+    }
+
+    @SuppressWarnings("unchecked")
+    private V value(final int node) {
+        return (V) values[entryRanks[node]];
+    }
+
+    /**
+     * Returns the node whose key equals the given key or -1 if there is none.
+     */
+    private int findNode(final CharSequence key) {
+        final char[] localLabels = labels;
+        final int keyLength = key.length();
+        int node = rootNode;
+
+        if (node < 0) {
+            return -1;
+        }
+
+        int labelPos = labelOffsets[node] + rootLabelOffset;
+        int labelEnd = labelOffsets[node + 1];
+        int i = 0;
+
+        while (true) {
+            if (keyLength - i < labelEnd - labelPos) {
+                return -1;
+            }
+
+            while (labelPos < labelEnd) {
+                if (localLabels[labelPos++] != key.charAt(i++)) {
+                    return -1;
+                }
+            }
+
+            if (i == keyLength) {
+                return node;
+            }
+
+            node = child(node, key.charAt(i));
+
+            if (node < 0) {
+                return -1;
+            }
+
+            labelPos = labelOffsets[node];
+            labelEnd = labelOffsets[node + 1];
+        }
+    }
+
+    /**
+     * Returns the topmost node whose key starts with the given prefix in the
+     * upper and the amount of label chars of that node that are part of the
+     * prefix in the lower 32 bits, or -1 if there is no such node.
+     */
+    private long locate(final CharSequence prefix) {
+        final char[] localLabels = labels;
+        final int prefixLength = prefix.length();
+        int node = rootNode;
+
+        if (node < 0) {
+            return -1L;
+        }
+
+        int labelStart = labelOffsets[node];
+        int labelPos = labelStart + rootLabelOffset;
+        int labelEnd = labelOffsets[node + 1];
+        int i = 0;
+
+        while (true) {
+            while (labelPos < labelEnd && i < prefixLength) {
+                if (localLabels[labelPos++] != prefix.charAt(i++)) {
+                    return -1L;
+                }
+            }
+
+            if (i == prefixLength) {
+                return ((long) node << 32) | (labelPos - labelStart);
+            }
+
+            node = child(node, prefix.charAt(i));
+
+            if (node < 0) {
+                return -1L;
+            }
+
+            labelStart = labelPos = labelOffsets[node];
+            labelEnd = labelOffsets[node + 1];
+        }
+    }
+
+    /**
+     * Returns the amount of leading chars of the given string that can be
+     * matched by walking the trie.
+     */
+    private int matchLength(final CharSequence str) {
+        final char[] localLabels = labels;
+        final int strLen = str.length();
+        int node = rootNode;
+
+        if (node < 0) {
+            return 0;
+        }
+
+        int labelPos = labelOffsets[node] + rootLabelOffset;
+        int labelEnd = labelOffsets[node + 1];
+        int i = 0;
+
+        while (true) {
+            while (labelPos < labelEnd) {
+                if (i == strLen || localLabels[labelPos++] != str.charAt(i)) {
+                    return i;
+                }
+
+                ++i;
+            }
+
+            if (i == strLen) {
+                return i;
+            }
+
+            node = child(node, str.charAt(i));
+
+            if (node < 0) {
+                return i;
+            }
+
+            labelPos = labelOffsets[node];
+            labelEnd = labelOffsets[node + 1];
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V get(final Object key) {
+        final int node = findNode(keyCheck(key));
+        return node < 0 || !inUse(node) ? null : value(node);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean containsKey(final Object key) {
+        final int node = findNode(keyCheck(key));
+        return node >= 0 && inUse(node);
+    }
+
+    /**
+     * Returns true when an entry exists that that has the given prefix.
+     *
+     * @param prefix
+     *            The prefix for which to check if an entry is contained.
+     * @return True when an entry with the given prefix exists, otherwise false.
+     */
+    public boolean containsKeyPrefix(final CharSequence prefix) {
+        final long locus = locate(keyCheck(prefix));
+        return locus >= 0 && count((int) (locus >>> 32)) > 0;
+    }
+
+    /**
+     * Returns the amount of entries whose keys start with the given prefix.
+     *
+     * @param prefix
+     *            The prefix for which to count the entries.
+     * @return The amount of entries with the given prefix.
+     */
+    public int countKeysWithPrefix(final CharSequence prefix) {
+        final long locus = locate(keyCheck(prefix));
+        return locus < 0 ? 0 : count((int) (locus >>> 32));
+    }
+
+    /**
+     * Returns the longest prefix of the given string that is a prefix of a key
+     * in this map.
+     *
+     * @param str
+     *            The string for which to find the best match
+     * @return The longest matching prefix
+     */
+    public String getBestMatch(final CharSequence str) {
+        final int matched = matchLength(keyCheck(str));
+        return new StringBuilder(matched).append(str, 0, matched).toString();
+    }
+
+    private int count(final int node) {
+        return entryRanks[subtreeEnds[node]] - entryRanks[node];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return rootNode < 0 ? 0 : count(rootNode);
+    }
+
+    /**
+     * Returns a read only view on the entries whose keys start with the given
+     * prefix, the keys of the view don't contain the prefix. The view shares
+     * the arrays with this map.
+     *
+     * @param prefix
+     *            The prefix which to use for the sub map.
+     * @return A prefixed view on the current map.
+     */
+    public FrozenTrieMap<V> subMap(final CharSequence prefix) {
+        final long locus = locate(keyCheck(prefix));
+        final int node = locus < 0 ? -1 : (int) (locus >>> 32);
+        final int labelOffset = locus < 0 ? 0 : (int) locus;
+
+        return new FrozenTrieMap<V>(labels, labelOffsets, childChars,
+                childOffsets, childNodes, subtreeEnds, entryRanks, values,
+                node, labelOffset);
+    }
+
+    private static CharSequence keyCheck(final Object key) {
+        if (key == null) {
+            throw new IllegalArgumentException(
+                    "This map does not support null keys");
+        } else if (!(key instanceof CharSequence)) {
+            throw new IllegalArgumentException(
+                    "Argument must be instance of CharSequence");
+        }
+
+        return (CharSequence) key;
+    }
+
+    /*
+     * Iterators
+     */
+
+    /**
+     * Iterator that scans the pre-order node range of the root node and
+     * rebuilds the keys in a single char buffer.
+     */
+    private final class EntryIterator implements
+            Iterator<Entry<CharSequence, V>> {
+
+        private final int end;
+        private int node;
+        private char[] key = new char[16];
+        /* Subtree ends and key lengths of the ancestors of the current node */
+        private int[] ancestorEnds = new int[8];
+        private int[] ancestorKeyLengths = new int[8];
+        private int depth;
+        private int lastNode;
+
+        public EntryIterator() {
+            final int startNode = rootNode;
+
+            if (startNode < 0) {
+                this.node = 0;
+                this.end = 0;
+            } else {
+                this.node = startNode;
+                this.end = subtreeEnds[startNode];
+            }
+
+            skipUnused();
+        }
+
+        private void skipUnused() {
+            while (node < end && !inUse(node)) {
+                ++node;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return node < end;
+        }
+
+        @Override
+        public Entry<CharSequence, V> next() {
+            final int targetNode = node;
+
+            if (targetNode >= end) {
+                throw new NoSuchElementException();
+            }
+
+            final String entryKey = keyOf(targetNode);
+            ++node;
+            skipUnused();
+            return new AbstractMap.SimpleImmutableEntry<CharSequence, V>(
+                    entryKey, value(targetNode));
+        }
+
+        /**
+         * Returns the key of the given node, the key of every node between
+         * the last returned node and the given node is computed in between.
+         */
+        private String keyOf(final int targetNode) {
+            int current = depth == 0 ? rootNode : lastNode + 1;
+
+            for (; current <= targetNode; current++) {
+                while (depth > 0 && ancestorEnds[depth - 1] <= current) {
+                    --depth;
+                }
+
+                final int parentKeyLength = depth == 0 ? 0
+                        : ancestorKeyLengths[depth - 1];
+                final int labelStart = labelOffsets[current]
+                        + (current == rootNode ? rootLabelOffset : 0);
+                final int labelLength = labelOffsets[current + 1] - labelStart;
+                final int keyLength = parentKeyLength + labelLength;
+
+                if (keyLength > key.length) {
+                    key = Arrays.copyOf(key, Math.max(keyLength, key.length << 1));
+                }
+
+                System.arraycopy(labels, labelStart, key, parentKeyLength,
+                        labelLength);
+
+                if (depth == ancestorEnds.length) {
+                    ancestorEnds = Arrays.copyOf(ancestorEnds, depth << 1);
+                    ancestorKeyLengths = Arrays.copyOf(ancestorKeyLengths,
+                            depth << 1);
+                }
+
+                ancestorEnds[depth] = subtreeEnds[current];
+                ancestorKeyLengths[depth] = keyLength;
+                ++depth;
+            }
+
+            lastNode = targetNode;
+            return new String(key, 0, ancestorKeyLengths[depth - 1]);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /*
+     * Views
+     */
+    private transient Set<Entry<CharSequence, V>> entrySet;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<Entry<CharSequence, V>> entrySet() {
+        final Set<Entry<CharSequence, V>> es = entrySet;
+        return es != null ? es : (entrySet = new EntrySet());
+    }
+
+    private final class EntrySet extends AbstractSet<Entry<CharSequence, V>> {
+
+        @Override
+        public boolean contains(final Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+
+            final Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            final Object key = e.getKey();
+
+            if (!(key instanceof CharSequence)) {
+                return false;
+            }
+
+            final int node = findNode((CharSequence) key);
+
+            if (node < 0 || !inUse(node)) {
+                return false;
+            }
+
+            final V value = value(node);
+            final Object otherValue = e.getValue();
+            return value == otherValue
+                    || (value != null && value.equals(otherValue));
+        }
+
+        @Override
+        public Iterator<Entry<CharSequence, V>> iterator() {
+            return new EntryIterator();
+        }
+
+        @Override
+        public int size() {
+            return FrozenTrieMap.this.size();
+        }
+    }
+}
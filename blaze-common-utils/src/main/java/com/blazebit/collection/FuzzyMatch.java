@@ -0,0 +1,59 @@
+/**
+ * Copyright 2012 Blazebit
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.blazebit.collection;
+
+/**
+ * An entry that was found by a fuzzy lookup together with its edit distance
+ * to the query, see {@link TrieMap#fuzzyMatches(CharSequence, int)}.
+ *
+ * @param <V>
+ *            The value type of the entry
+ */
+public final class FuzzyMatch<V> {
+
+    private final String key;
+    private final V value;
+    private final int distance;
+
+    public FuzzyMatch(final String key, final V value, final int distance) {
+        this.key = key;
+        this.value = value;
+        this.distance = distance;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public V getValue() {
+        return value;
+    }
+
+    /**
+     * Returns the Levenshtein distance between the key and the query.
+     *
+     * @return The edit distance
+     */
+    public int getDistance() {
+        return distance;
+    }
+
+    @Override
+    public String toString() {
+        return "FuzzyMatch [key=" + key + ", value=" + value + ", distance="
+                + distance + "]";
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright 2012 Blazebit
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.blazebit.collection;
+
+import java.io.Serializable;
+
+/**
+ * Immutable radix node that is shared by {@link ConcurrentTrieMap} and
+ * {@link PersistentTrieMap}. The children are stored in exactly sized arrays
+ * that are sorted by the first char of their labels. Every node knows the
+ * amount of entries in its subtree and every update returns a new node.
+ *
+ * @param <V>
+ *            The value type that the trie holds.
+ */
+final class ImmutableTrieNode<V> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    static final char[] EMPTY_CHARS = new char[0];
+    private static final ImmutableTrieNode<?>[] EMPTY_NODES = new ImmutableTrieNode<?>[0];
+
+    final char[] label;
+    final char[] childChars;
+    final ImmutableTrieNode<V>[] children;
+    final V value;
+    final boolean inUse;
+    final int size;
+
+    public ImmutableTrieNode(final char[] label, final char[] childChars,
+                             final ImmutableTrieNode<V>[] children, final V value,
+                             final boolean inUse, final int size) {
+        this.label = label;
+        this.childChars = childChars;
+        this.children = children;
+        this.value = value;
+        this.inUse = inUse;
+        this.size = size;
+    }
+
+    /**
+     * Constructs a leaf with the given label and value.
+     */
+    public ImmutableTrieNode(final char[] label, final V value) {
+        this(label, EMPTY_CHARS, ImmutableTrieNode.<V> newArray(0), value,
+                true, 1);
+    }
+
+    /**
+     * Returns the node of an empty trie.
+     */
+    public static <V> ImmutableTrieNode<V> empty() {
+        return new ImmutableTrieNode<V>(EMPTY_CHARS, EMPTY_CHARS,
+                ImmutableTrieNode.<V> newArray(0), null, false, 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <V> ImmutableTrieNode<V>[] newArray(final int length) {
+        return (ImmutableTrieNode<V>[]) (length == 0 ? EMPTY_NODES
+                : new ImmutableTrieNode<?>[length]);
+    }
+
+    /**
+     * Returns the index of the child whose label starts with the given char
+     * or <code>-(insertionPoint + 1)</code> if there is none.
+     */
+    public int indexOf(final char c) {
+        final char[] chars = childChars;
+        int low = 0;
+        int high = chars.length - 1;
+
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final char midChar = chars[mid];
+
+            if (midChar < c) {
+                low = mid + 1;
+            } else if (midChar > c) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+
+        return -(low + 1);
+    }
+
+    public ImmutableTrieNode<V> child(final char c) {
+        final int index = indexOf(c);
+        return index < 0 ? null : children[index];
+    }
+
+    public ImmutableTrieNode<V> withLabel(final char[] newLabel) {
+        return new ImmutableTrieNode<V>(newLabel, childChars, children, value,
+                inUse, size);
+    }
+
+    public ImmutableTrieNode<V> withValue(final V newValue) {
+        return new ImmutableTrieNode<V>(label, childChars, children, newValue,
+                true, inUse ? size : size + 1);
+    }
+
+    public ImmutableTrieNode<V> withoutValue() {
+        return new ImmutableTrieNode<V>(label, childChars, children, null,
+                false, size - 1);
+    }
+
+    public ImmutableTrieNode<V> withChild(final int index,
+                                          final ImmutableTrieNode<V> child) {
+        final ImmutableTrieNode<V>[] newChildren = children.clone();
+        newChildren[index] = child;
+        return new ImmutableTrieNode<V>(label, childChars, newChildren, value,
+                inUse, size - children[index].size + child.size);
+    }
+
+    public ImmutableTrieNode<V> withInsertedChild(final int index,
+                                                  final ImmutableTrieNode<V> child) {
+        final int length = children.length;
+        final char[] newChildChars = new char[length + 1];
+        final ImmutableTrieNode<V>[] newChildren = ImmutableTrieNode
+                .<V> newArray(length + 1);
+
+        System.arraycopy(childChars, 0, newChildChars, 0, index);
+        System.arraycopy(children, 0, newChildren, 0, index);
+        newChildChars[index] = child.label[0];
+        newChildren[index] = child;
+        System.arraycopy(childChars, index, newChildChars, index + 1,
+                length - index);
+        System.arraycopy(children, index, newChildren, index + 1, length
+                - index);
+
+        return new ImmutableTrieNode<V>(label, newChildChars, newChildren,
+                value, inUse, size + child.size);
+    }
+
+    public ImmutableTrieNode<V> withoutChild(final int index) {
+        final int length = children.length;
+        final char[] newChildChars = length == 1 ? EMPTY_CHARS
+                : new char[length - 1];
+        final ImmutableTrieNode<V>[] newChildren = ImmutableTrieNode
+                .<V> newArray(length - 1);
+
+        System.arraycopy(childChars, 0, newChildChars, 0, index);
+        System.arraycopy(children, 0, newChildren, 0, index);
+        System.arraycopy(childChars, index + 1, newChildChars, index,
+                length - index - 1);
+        System.arraycopy(children, index + 1, newChildren, index, length
+                - index - 1);
+
+        return new ImmutableTrieNode<V>(label, newChildChars, newChildren,
+                value, inUse, size - children[index].size);
+    }
+
+    /**
+     * Returns the only child of this node with the label of this node
+     * prepended.
+     */
+    public ImmutableTrieNode<V> mergeWithChild() {
+        final ImmutableTrieNode<V> child = children[0];
+        final char[] newLabel = new char[label.length + child.label.length];
+
+        System.arraycopy(label, 0, newLabel, 0, label.length);
+        System.arraycopy(child.label, 0, newLabel, label.length,
+                child.label.length);
+        return child.withLabel(newLabel);
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2012 Blazebit
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.blazebit.collection;
+
+import java.util.Arrays;
+
+/**
+ * A trie with <code>int</code> values that are stored in a primitive array,
+ * which makes it suitable for dictionaries and counters without boxing.
+ */
+public class IntTrieMap extends AbstractPrimitiveTrieMap<Integer> {
+
+    private static final long serialVersionUID = 1L;
+
+    private int[] values = new int[16];
+
+    @Override
+    void ensureCapacity(final int slotCount) {
+        if (slotCount > values.length) {
+            values = Arrays.copyOf(values,
+                    Math.max(slotCount, values.length << 1));
+        }
+    }
+
+    @Override
+    Integer boxedValue(final int slot) {
+        return values[slot];
+    }
+
+    @Override
+    void setBoxedValue(final int slot, final Integer value) {
+        values[slot] = value;
+    }
+
+    /**
+     * Returns the value for the given key or the given default value if the
+     * key is not contained.
+     *
+     * @param key
+     *            The key of the entry
+     * @param defaultValue
+     *            The value to return when the key is not contained
+     * @return The value of the key or the default value
+     */
+    public int getInt(final CharSequence key, final int defaultValue) {
+        final int slot = findSlot(keyCheck(key));
+        return slot < 0 ? defaultValue : values[slot];
+    }
+
+    /**
+     * Sets the value for the given key.
+     *
+     * @param key
+     *            The key of the entry
+     * @param value
+     *            The new value
+     * @param defaultValue
+     *            The value to return when the key was not contained
+     * @return The previous value of the key or the default value
+     */
+    public int putInt(final CharSequence key, final int value,
+                      final int defaultValue) {
+        final int slot = insertSlot(keyCheck(key));
+
+        if (slot < 0) {
+            values[-(slot + 1)] = value;
+            return defaultValue;
+        }
+
+        final int oldValue = values[slot];
+        values[slot] = value;
+        return oldValue;
+    }
+
+    /**
+     * Adds the given delta to the value of the given key, a key that is not
+     * contained is added with the delta as value.
+     *
+     * @param key
+     *            The key of the entry
+     * @param delta
+     *            The amount to add
+     * @return The new value of the key
+     */
+    public int addTo(final CharSequence key, final int delta) {
+        final int slot = insertSlot(keyCheck(key));
+
+        if (slot < 0) {
+            values[-(slot + 1)] = delta;
+            return delta;
+        }
+
+        return values[slot] += delta;
+    }
+
+    /**
+     * Removes the given key.
+     *
+     * @param key
+     *            The key of the entry
+     * @param defaultValue
+     *            The value to return when the key was not contained
+     * @return The previous value of the key or the default value
+     */
+    public int removeInt(final CharSequence key, final int defaultValue) {
+        final int slot = removeSlot(keyCheck(key));
+        return slot < 0 ? defaultValue : values[slot];
+    }
+}
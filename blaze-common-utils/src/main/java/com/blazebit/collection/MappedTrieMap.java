@@ -0,0 +1,713 @@
+/**
+ * Copyright 2012 Blazebit
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.blazebit.collection;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * A read only trie that is served directly from a memory mapped file. The
+ * file is written with {@link #write(TrieMap, ValueSerializer, File)} and
+ * contains the same pre-order encoding as {@link FrozenTrieMap}, followed by
+ * the serialized values which are addressed by their offsets.
+ *
+ * Opening a file only maps it, so the startup cost does not depend on the
+ * size of the trie. The pages are loaded lazily by the operating system and
+ * are shared between all processes that map the same file. Instances are safe
+ * for concurrent reads since only absolute buffer operations are used.
+ *
+ * A file can be at most 2GB large since it is mapped as a single buffer.
+ *
+ * <pre>
+ * Header:  int magic, int version, int nodeCount, int labelCount,
+ *          int childCount, int entryCount
+ * Nodes:   char[labelCount] labels, int[nodeCount + 1] labelOffsets,
+ *          char[childCount] childChars, int[nodeCount + 1] childOffsets,
+ *          int[childCount] childNodes, int[nodeCount] subtreeEnds,
+ *          int[nodeCount + 1] entryRanks
+ * Values:  byte[] serialized values, each prefixed with a null flag byte
+ * Offsets: int[entryCount + 1] value offsets relative to the value section
+ * </pre>
+ *
+ * @param <V>
+ *            The value type that the trie holds.
+ */
+public class MappedTrieMap<V> extends AbstractMap<CharSequence, V> {
+
+    private static final int MAGIC = 0x42545249;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Writes and reads values of a mapped trie.
+     *
+     * @param <V>
+     *            The value type
+     */
+    public static interface ValueSerializer<V> {
+
+        public void write(V value, DataOutput out) throws IOException;
+
+        /**
+         * Reads the value that is stored in the given bytes of the buffer.
+         * Implementations must only use absolute get operations.
+         */
+        public V read(ByteBuffer buffer, int offset, int length);
+    }
+
+    public static final ValueSerializer<String> STRING_SERIALIZER = new ValueSerializer<String>() {
+
+        @Override
+        public void write(final String value, final DataOutput out)
+                throws IOException {
+            out.write(value.getBytes(UTF_8));
+        }
+
+        @Override
+        public String read(final ByteBuffer buffer, final int offset,
+                           final int length) {
+            final byte[] bytes = new byte[length];
+
+            for (int i = 0; i < length; i++) {
+                bytes[i] = buffer.get(offset + i);
+            }
+
+            return new String(bytes, UTF_8);
+        }
+    };
+
+    public static final ValueSerializer<Integer> INTEGER_SERIALIZER = new ValueSerializer<Integer>() {
+
+        @Override
+        public void write(final Integer value, final DataOutput out)
+                throws IOException {
+            out.writeInt(value);
+        }
+
+        @Override
+        public Integer read(final ByteBuffer buffer, final int offset,
+                            final int length) {
+            return buffer.getInt(offset);
+        }
+    };
+
+    public static final ValueSerializer<Long> LONG_SERIALIZER = new ValueSerializer<Long>() {
+
+        @Override
+        public void write(final Long value, final DataOutput out)
+                throws IOException {
+            out.writeLong(value);
+        }
+
+        @Override
+        public Long read(final ByteBuffer buffer, final int offset,
+                         final int length) {
+            return buffer.getLong(offset);
+        }
+    };
+
+    private final ValueSerializer<? extends V> serializer;
+    private final CharBuffer labels;
+    private final IntBuffer labelOffsets;
+    private final CharBuffer childChars;
+    private final IntBuffer childOffsets;
+    private final IntBuffer childNodes;
+    private final IntBuffer subtreeEnds;
+    private final IntBuffer entryRanks;
+    private final ByteBuffer values;
+    private final IntBuffer valueOffsets;
+    /* The node at which this map starts and the amount of its label chars that belong to the prefix */
+    private final int rootNode;
+    private final int rootLabelOffset;
+
+    private MappedTrieMap(final MappedTrieMap<V> map, final int rootNode,
+                          final int rootLabelOffset) {
+        this.serializer = map.serializer;
+        this.labels = map.labels;
+        this.labelOffsets = map.labelOffsets;
+        this.childChars = map.childChars;
+        this.childOffsets = map.childOffsets;
+        this.childNodes = map.childNodes;
+        this.subtreeEnds = map.subtreeEnds;
+        this.entryRanks = map.entryRanks;
+        this.values = map.values;
+        this.valueOffsets = map.valueOffsets;
+        this.rootNode = rootNode;
+        this.rootLabelOffset = rootLabelOffset;
+    }
+
+    private MappedTrieMap(final ByteBuffer buffer,
+                          final ValueSerializer<? extends V> serializer)
+            throws IOException {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a mapped trie file");
+        }
+
+        final int version = buffer.getInt(4);
+
+        if (version != VERSION) {
+            throw new IOException("Unsupported mapped trie version " + version);
+        }
+
+        final int nodeCount = buffer.getInt(8);
+        final int labelCount = buffer.getInt(12);
+        final int childCount = buffer.getInt(16);
+        final int entryCount = buffer.getInt(20);
+        int position = HEADER_SIZE;
+
+        this.serializer = serializer;
+        this.labels = slice(buffer, position, labelCount * 2).asCharBuffer();
+        position += labelCount * 2;
+        this.labelOffsets = slice(buffer, position, (nodeCount + 1) * 4)
+                .asIntBuffer();
+        position += (nodeCount + 1) * 4;
+        this.childChars = slice(buffer, position, childCount * 2)
+                .asCharBuffer();
+        position += childCount * 2;
+        this.childOffsets = slice(buffer, position, (nodeCount + 1) * 4)
+                .asIntBuffer();
+        position += (nodeCount + 1) * 4;
+        this.childNodes = slice(buffer, position, childCount * 4)
+                .asIntBuffer();
+        position += childCount * 4;
+        this.subtreeEnds = slice(buffer, position, nodeCount * 4)
+                .asIntBuffer();
+        position += nodeCount * 4;
+        this.entryRanks = slice(buffer, position, (nodeCount + 1) * 4)
+                .asIntBuffer();
+        position += (nodeCount + 1) * 4;
+
+        final int offsetsPosition = buffer.capacity() - (entryCount + 1) * 4;
+
+        if (offsetsPosition < position) {
+            throw new IOException("Truncated mapped trie file");
+        }
+
+        this.values = slice(buffer, position, offsetsPosition - position);
+        this.valueOffsets = slice(buffer, offsetsPosition,
+                (entryCount + 1) * 4).asIntBuffer();
+        this.rootNode = 0;
+        this.rootLabelOffset = 0;
+    }
+
+    private static ByteBuffer slice(final ByteBuffer buffer,
+                                    final int position, final int length) {
+        final ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(position);
+        duplicate.limit(position + length);
+        return duplicate.slice();
+    }
+
+    /**
+     * Maps the given file that was written by
+     * {@link #write(TrieMap, ValueSerializer, File)} as read only trie.
+     *
+     * @param file
+     *            The file to map
+     * @param serializer
+     *            The serializer that was used to write the values
+     * @return The mapped trie
+     * @throws IOException
+     *             When the file can not be mapped or has an invalid format
+     */
+    public static <V> MappedTrieMap<V> open(final File file,
+                                            final ValueSerializer<? extends V> serializer)
+            throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try {
+            final FileChannel channel = raf.getChannel();
+			/* The mapping stays valid after the channel has been closed */
+            final MappedByteBuffer buffer = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new MappedTrieMap<V>(buffer, serializer);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes the given map to the given file in the format that can be opened
+     * by {@link #open(File, ValueSerializer)}.
+     *
+     * @param map
+     *            The map to write
+     * @param serializer
+     *            The serializer for the values
+     * @param file
+     *            The target file
+     * @throws IOException
+     *             When the file can not be written
+     */
+    public static <V> void write(final TrieMap<? extends V> map,
+                                 final ValueSerializer<? super V> serializer,
+                                 final File file) throws IOException {
+        final FrozenTrieMap<? extends V> frozenMap = map.freeze();
+        final int nodeCount = frozenMap.subtreeEnds.length;
+        final int entryCount = frozenMap.values.length;
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(nodeCount);
+            out.writeInt(frozenMap.labels.length);
+            out.writeInt(frozenMap.childChars.length);
+            out.writeInt(entryCount);
+
+            writeChars(out, frozenMap.labels);
+            writeInts(out, frozenMap.labelOffsets);
+            writeChars(out, frozenMap.childChars);
+            writeInts(out, frozenMap.childOffsets);
+            writeInts(out, frozenMap.childNodes);
+            writeInts(out, frozenMap.subtreeEnds);
+            writeInts(out, frozenMap.entryRanks);
+
+            final int[] valueOffsets = new int[entryCount + 1];
+            final int valuesStart = out.size();
+
+            for (int i = 0; i < entryCount; i++) {
+                @SuppressWarnings("unchecked") final V value = (V) frozenMap.values[i];
+                valueOffsets[i] = out.size() - valuesStart;
+
+                if (value == null) {
+                    out.writeByte(0);
+                } else {
+                    out.writeByte(1);
+                    serializer.write(value, out);
+                }
+            }
+
+            valueOffsets[entryCount] = out.size() - valuesStart;
+            writeInts(out, valueOffsets);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeChars(final DataOutputStream out,
+                                   final char[] chars) throws IOException {
+        for (int i = 0; i < chars.length; i++) {
+            out.writeChar(chars[i]);
+        }
+    }
+
+    private static void writeInts(final DataOutputStream out, final int[] ints)
+            throws IOException {
+        for (int i = 0; i < ints.length; i++) {
+            out.writeInt(ints[i]);
+        }
+    }
+
+    /**
+     * Returns the child of the given node whose label starts with the given
+     * char or -1 if there is none.
+     */
+    private int child(final int node, final char c) {
+        final CharBuffer chars = childChars;
+        int low = childOffsets.get(node);
+        int high = childOffsets.get(node + 1) - 1;
+
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final char midChar = chars.get(mid);
+
+            if (midChar < c) {
+                low = mid + 1;
+            } else if (midChar > c) {
+                high = mid - 1;
+            } else {
+                return childNodes.get(mid);
+            }
+        }
+
+        return -1;
+    }
+
+    private boolean inUse(final int node) {
+        return entryRanks.get(node + 1) != entryRanks.get(node);
+    }
+
+    private V value(final int node) {
+        final int entry = entryRanks.get(node);
+        final int offset = valueOffsets.get(entry);
+
+        if (values.get(offset) == 0) {
+            return null;
+        }
+
+        return serializer.read(values, offset + 1, valueOffsets.get(entry + 1)
+                - offset - 1);
+    }
+
+    /**
+     * Returns the node whose key equals the given key or -1 if there is none.
+     */
+    private int findNode(final CharSequence key) {
+        final CharBuffer localLabels = labels;
+        final int keyLength = key.length();
+        int node = rootNode;
+
+        if (node < 0) {
+            return -1;
+        }
+
+        int labelPos = labelOffsets.get(node) + rootLabelOffset;
+        int labelEnd = labelOffsets.get(node + 1);
+        int i = 0;
+
+        while (true) {
+            if (keyLength - i < labelEnd - labelPos) {
+                return -1;
+            }
+
+            while (labelPos < labelEnd) {
+                if (localLabels.get(labelPos++) != key.charAt(i++)) {
+                    return -1;
+                }
+            }
+
+            if (i == keyLength) {
+                return node;
+            }
+
+            node = child(node, key.charAt(i));
+
+            if (node < 0) {
+                return -1;
+            }
+
+            labelPos = labelOffsets.get(node);
+            labelEnd = labelOffsets.get(node + 1);
+        }
+    }
+
+    /**
+     * Returns the topmost node whose key starts with the given prefix in the
+     * upper and the amount of label chars of that node that are part of the
+     * prefix in the lower 32 bits, or -1 if there is no such node.
+     */
+    private long locate(final CharSequence prefix) {
+        final CharBuffer localLabels = labels;
+        final int prefixLength = prefix.length();
+        int node = rootNode;
+
+        if (node < 0) {
+            return -1L;
+        }
+
+        int labelStart = labelOffsets.get(node);
+        int labelPos = labelStart + rootLabelOffset;
+        int labelEnd = labelOffsets.get(node + 1);
+        int i = 0;
+
+        while (true) {
+            while (labelPos < labelEnd && i < prefixLength) {
+                if (localLabels.get(labelPos++) != prefix.charAt(i++)) {
+                    return -1L;
+                }
+            }
+
+            if (i == prefixLength) {
+                return ((long) node << 32) | (labelPos - labelStart);
+            }
+
+            node = child(node, prefix.charAt(i));
+
+            if (node < 0) {
+                return -1L;
+            }
+
+            labelStart = labelPos = labelOffsets.get(node);
+            labelEnd = labelOffsets.get(node + 1);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V get(final Object key) {
+        final int node = findNode(keyCheck(key));
+        return node < 0 || !inUse(node) ? null : value(node);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean containsKey(final Object key) {
+        final int node = findNode(keyCheck(key));
+        return node >= 0 && inUse(node);
+    }
+
+    /**
+     * Returns true when an entry exists that that has the given prefix.
+     *
+     * @param prefix
+     *            The prefix for which to check if an entry is contained.
+     * @return True when an entry with the given prefix exists, otherwise false.
+     */
+    public boolean containsKeyPrefix(final CharSequence prefix) {
+        return countKeysWithPrefix(prefix) > 0;
+    }
+
+    /**
+     * Returns the amount of entries whose keys start with the given prefix.
+     *
+     * @param prefix
+     *            The prefix for which to count the entries.
+     * @return The amount of entries with the given prefix.
+     */
+    public int countKeysWithPrefix(final CharSequence prefix) {
+        final long locus = locate(keyCheck(prefix));
+        return locus < 0 ? 0 : count((int) (locus >>> 32));
+    }
+
+    /**
+     * Returns the longest prefix of the given string that is a prefix of any
+     * key in this map.
+     *
+     * @param str
+     *            The string for which to find the best match.
+     * @return The best matching prefix.
+     */
+    public String getBestMatch(final CharSequence str) {
+        final int matched = matchLength(keyCheck(str));
+        return new StringBuilder(matched).append(str, 0, matched).toString();
+    }
+
+    private int matchLength(final CharSequence str) {
+        final CharBuffer localLabels = labels;
+        final int strLen = str.length();
+        int node = rootNode;
+
+        if (node < 0) {
+            return 0;
+        }
+
+        int labelPos = labelOffsets.get(node) + rootLabelOffset;
+        int labelEnd = labelOffsets.get(node + 1);
+        int i = 0;
+
+        while (true) {
+            while (labelPos < labelEnd) {
+                if (i == strLen || localLabels.get(labelPos++) != str.charAt(i)) {
+                    return i;
+                }
+
+                ++i;
+            }
+
+            if (i == strLen) {
+                return i;
+            }
+
+            node = child(node, str.charAt(i));
+
+            if (node < 0) {
+                return i;
+            }
+
+            labelPos = labelOffsets.get(node);
+            labelEnd = labelOffsets.get(node + 1);
+        }
+    }
+
+    private int count(final int node) {
+        return entryRanks.get(subtreeEnds.get(node)) - entryRanks.get(node);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return rootNode < 0 ? 0 : count(rootNode);
+    }
+
+    /**
+     * Returns a read only view on the entries whose keys start with the given
+     * prefix, the keys of the view don't contain the prefix.
+     *
+     * @param prefix
+     *            The prefix which to use for the sub map.
+     * @return A prefixed view on the current map.
+     */
+    public MappedTrieMap<V> subMap(final CharSequence prefix) {
+        final long locus = locate(keyCheck(prefix));
+        final int node = locus < 0 ? -1 : (int) (locus >>> 32);
+        final int labelOffset = locus < 0 ? 0 : (int) locus;
+
+        return new MappedTrieMap<V>(this, node, labelOffset);
+    }
+
+    private static CharSequence keyCheck(final Object key) {
+        if (key == null) {
+            throw new IllegalArgumentException(
+                    "This map does not support null keys");
+        } else if (!(key instanceof CharSequence)) {
+            throw new IllegalArgumentException(
+                    "Argument must be instance of CharSequence");
+        }
+
+        return (CharSequence) key;
+    }
+
+    /*
+     * Iterators
+     */
+
+    /**
+     * Iterator that scans the pre-order node range of the root node and
+     * rebuilds the keys in a single char buffer.
+     */
+    private final class EntryIterator implements
+            Iterator<Entry<CharSequence, V>> {
+
+        private final int end;
+        private int node;
+        private char[] key = new char[16];
+        /* Subtree ends and key lengths of the ancestors of the current node */
+        private int[] ancestorEnds = new int[8];
+        private int[] ancestorKeyLengths = new int[8];
+        private int depth;
+        private int lastNode;
+
+        public EntryIterator() {
+            final int startNode = rootNode;
+
+            if (startNode < 0) {
+                this.node = 0;
+                this.end = 0;
+            } else {
+                this.node = startNode;
+                this.end = subtreeEnds.get(startNode);
+            }
+
+            skipUnused();
+        }
+
+        private void skipUnused() {
+            while (node < end && !inUse(node)) {
+                ++node;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return node < end;
+        }
+
+        @Override
+        public Entry<CharSequence, V> next() {
+            final int targetNode = node;
+
+            if (targetNode >= end) {
+                throw new NoSuchElementException();
+            }
+
+            final String entryKey = keyOf(targetNode);
+            ++node;
+            skipUnused();
+            return new AbstractMap.SimpleImmutableEntry<CharSequence, V>(
+                    entryKey, value(targetNode));
+        }
+
+        /**
+         * Returns the key of the given node, the key of every node between
+         * the last returned node and the given node is computed in between.
+         */
+        private String keyOf(final int targetNode) {
+            int current = depth == 0 ? rootNode : lastNode + 1;
+
+            for (; current <= targetNode; current++) {
+                while (depth > 0 && ancestorEnds[depth - 1] <= current) {
+                    --depth;
+                }
+
+                final int parentKeyLength = depth == 0 ? 0
+                        : ancestorKeyLengths[depth - 1];
+                final int labelStart = labelOffsets.get(current)
+                        + (current == rootNode ? rootLabelOffset : 0);
+                final int labelLength = labelOffsets.get(current + 1)
+                        - labelStart;
+                final int keyLength = parentKeyLength + labelLength;
+
+                if (keyLength > key.length) {
+                    key = Arrays.copyOf(key, Math.max(keyLength, key.length << 1));
+                }
+
+                for (int i = 0; i < labelLength; i++) {
+                    key[parentKeyLength + i] = labels.get(labelStart + i);
+                }
+
+                if (depth == ancestorEnds.length) {
+                    ancestorEnds = Arrays.copyOf(ancestorEnds, depth << 1);
+                    ancestorKeyLengths = Arrays.copyOf(ancestorKeyLengths,
+                            depth << 1);
+                }
+
+                ancestorEnds[depth] = subtreeEnds.get(current);
+                ancestorKeyLengths[depth] = keyLength;
+                ++depth;
+            }
+
+            lastNode = targetNode;
+            return new String(key, 0, ancestorKeyLengths[depth - 1]);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /*
+     * Views
+     */
+    private transient Set<Entry<CharSequence, V>> entrySet;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<Entry<CharSequence, V>> entrySet() {
+        final Set<Entry<CharSequence, V>> es = entrySet;
+        return es != null ? es : (entrySet = new EntrySet());
+    }
+
+    private final class EntrySet extends AbstractSet<Entry<CharSequence, V>> {
+
+        @Override
+        public Iterator<Entry<CharSequence, V>> iterator() {
+            return new EntryIterator();
+        }
+
+        @Override
+        public int size() {
+            return MappedTrieMap.this.size();
+        }
+    }
+}
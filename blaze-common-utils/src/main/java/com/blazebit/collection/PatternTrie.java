@@ -18,8 +18,13 @@ package com.blazebit.collection;
 import com.blazebit.regex.Pattern;
 import com.blazebit.regex.node.*;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.io.StreamCorruptedException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  *
@@ -33,16 +38,272 @@ import java.util.*;
 public class PatternTrie<V> implements Serializable {
 
     private static final long serialVersionUID = 1L;
-    private final TrieNode<V> root;
-    private final Map<Integer, List<PatternParameter>> patternParameters;
+    private final boolean concurrent;
+    private final boolean segmented;
+    private final char delimiter;
+    /* The node graph may be cyclic, it is written as a node table, see writeObject */
+    private transient volatile Version<V> version;
     private int patternIds = 0;
+    private int registrationCount = 0;
+    private volatile boolean compiled = false;
+    private volatile int resolveCacheSize = 0;
+    private transient AtomicLong resolveCacheHits = new AtomicLong();
+    private transient AtomicLong resolveCacheMisses = new AtomicLong();
 
     /**
      * Constructs an empty PatternTrie
      */
     public PatternTrie() {
-        this.root = new TrieNode<V>();
-        this.patternParameters = new HashMap<Integer, List<PatternParameter>>();
+        this(false, false, '\0');
+    }
+
+    private PatternTrie(final boolean concurrent, final boolean segmented,
+                        final char delimiter) {
+        this.concurrent = concurrent;
+        this.segmented = segmented;
+        this.delimiter = delimiter;
+        this.version = new Version<V>(new TrieNode<V>(),
+                new HashMap<Integer, List<PatternParameter>>(),
+                segmented ? new SegmentNode<V>() : null);
+    }
+
+    /**
+     * Returns a new empty PatternTrie that can be resolved against while keys
+     * and patterns are added concurrently.
+     *
+     * Resolving reads the currently published version of the trie and never
+     * blocks. Adding a key or pattern copies the current version, adds to the
+     * copy and publishes it, so an add costs time proportional to the size of
+     * the trie and adds are serialized among each other. Resolves that
+     * started before the publication still see the previous version.
+     *
+     * @param <V>
+     *            The value type that the pattern trie holds.
+     * @return A new concurrent PatternTrie
+     */
+    public static <V> PatternTrie<V> concurrent() {
+        return new PatternTrie<V>(true, false, '\0');
+    }
+
+    /**
+     * Returns a new empty PatternTrie that matches keys segment by segment
+     * instead of char by char, e.g. the segments of URLs when the delimiter
+     * is '/'.
+     *
+     * Keys and patterns are split at the delimiter. A segment without
+     * parameters is looked up with a single hash lookup. A segment with
+     * parameters is matched as a whole against a regular expression built
+     * from its literal parts and the patterns of its parameters, see
+     * {@link java.util.regex.Pattern}. A parameter therefore never spans
+     * multiple segments. A parameter that was declared via
+     * {@link ParameterizedKeyBuilder#matchingNot(String, String)} matches
+     * every value of the segment that does not match the pattern.
+     *
+     * Resolving costs time proportional to the amount of segments and the
+     * amount of parameter segments that have to be tried at every level.
+     * Since there are no chars to build an automaton from, {@link #compile()}
+     * has no effect on a segmented trie.
+     *
+     * @param <V>
+     *            The value type that the pattern trie holds.
+     * @param delimiter
+     *            The delimiter of segments
+     * @return A new segmented PatternTrie
+     */
+    public static <V> PatternTrie<V> segmented(final char delimiter) {
+        return new PatternTrie<V>(false, true, delimiter);
+    }
+
+    /**
+     * Like {@link #segmented(char)}, but the returned trie may also be
+     * {@link #concurrent() concurrent}.
+     *
+     * @param <V>
+     *            The value type that the pattern trie holds.
+     * @param delimiter
+     *            The delimiter of segments
+     * @param concurrent
+     *            Whether adds should publish new versions of the trie
+     * @return A new segmented PatternTrie
+     */
+    public static <V> PatternTrie<V> segmented(final char delimiter,
+                                               final boolean concurrent) {
+        return new PatternTrie<V>(concurrent, true, delimiter);
+    }
+
+    /**
+     * Returns whether this trie was created via {@link #segmented(char)}.
+     *
+     * @return True if keys are matched segment by segment
+     */
+    public boolean isSegmented() {
+        return segmented;
+    }
+
+    /**
+     * Returns whether this trie was created via {@link #concurrent()}.
+     *
+     * @return True if adds publish new versions of the trie
+     */
+    public boolean isConcurrent() {
+        return concurrent;
+    }
+
+    /**
+     * The nodes and the parameter bookkeeping of the trie. In concurrent mode
+     * a version is never modified after it was published.
+     */
+    private static final class Version<V> {
+
+        private final TrieNode<V> root;
+        private final Map<Integer, List<PatternParameter>> patternParameters;
+        /* Only used in segmented tries */
+        private final SegmentNode<V> segmentRoot;
+        /* The registrations by their sequence, needed for removal */
+        private final Map<Integer, Registration<V>> registrations = new HashMap<Integer, Registration<V>>();
+        /* Built lazily after compile was invoked */
+        private volatile DeterministicAutomaton<V> automaton;
+        /* Created lazily when the resolve cache is enabled */
+        private volatile ResolveCache<V> resolveCache;
+
+        public Version(final TrieNode<V> root,
+                       final Map<Integer, List<PatternParameter>> patternParameters,
+                       final SegmentNode<V> segmentRoot) {
+            this.root = root;
+            this.patternParameters = patternParameters;
+            this.segmentRoot = segmentRoot;
+        }
+
+        /**
+         * Returns a deep copy of the node graph and the parameter bookkeeping.
+         * The graph may contain cycles and shared nodes, so the nodes are
+         * copied iteratively via an identity map.
+         */
+        public Version<V> copy() {
+            final Map<TrieNode<V>, TrieNode<V>> copies = new IdentityHashMap<TrieNode<V>, TrieNode<V>>();
+            final List<TrieNode<V>> nodes = new ArrayList<TrieNode<V>>();
+            final Map<Integer, List<PatternParameter>> parameters = new HashMap<Integer, List<PatternParameter>>(
+                    patternParameters.size() * 2);
+
+            copies.put(root, new TrieNode<V>());
+            nodes.add(root);
+
+            for (int i = 0; i < nodes.size(); i++) {
+                final TrieNode<V> node = nodes.get(i);
+                final TrieNode<V> copy = copies.get(node);
+
+                if (node.inUse) {
+                    copy.value = new ArrayList<V>(node.value);
+                    copy.sequences = new ArrayList<Integer>(node.sequences);
+                    copy.inUse = true;
+                }
+
+                copyChildren(copies, nodes, node.children, copy.children);
+                copyChildren(copies, nodes, node.complementChildren,
+                        copy.complementChildren);
+
+                if (node.anyCharChild != null) {
+                    copy.anyCharChild = copyOf(copies, nodes,
+                            node.anyCharChild);
+                }
+
+                copy.associatedParameters.addAll(node.associatedParameters);
+                copy.associatedParametersEnd
+                        .addAll(node.associatedParametersEnd);
+            }
+
+            for (Map.Entry<Integer, List<PatternParameter>> entry : patternParameters
+                    .entrySet()) {
+                parameters.put(entry.getKey(), new ArrayList<PatternParameter>(
+                        entry.getValue()));
+            }
+
+            final Version<V> copy = new Version<V>(copies.get(root),
+                    parameters, segmentRoot == null ? null
+                    : segmentRoot.copy());
+            copy.registrations.putAll(registrations);
+            return copy;
+        }
+
+        private static <V> void copyChildren(
+                final Map<TrieNode<V>, TrieNode<V>> copies,
+                final List<TrieNode<V>> nodes,
+                final Map<Character, TrieNode<V>> children,
+                final Map<Character, TrieNode<V>> target) {
+            for (Map.Entry<Character, TrieNode<V>> entry : children.entrySet()) {
+                target.put(entry.getKey(),
+                        copyOf(copies, nodes, entry.getValue()));
+            }
+        }
+
+        private static <V> TrieNode<V> copyOf(
+                final Map<TrieNode<V>, TrieNode<V>> copies,
+                final List<TrieNode<V>> nodes, final TrieNode<V> node) {
+            TrieNode<V> copy = copies.get(node);
+
+            if (copy == null) {
+                copy = new TrieNode<V>();
+                copies.put(node, copy);
+                nodes.add(node);
+            }
+
+            return copy;
+        }
+    }
+
+    /**
+     * Identifies a pattern that was added to a PatternTrie, see
+     * {@link PatternTrie#remove(PatternHandle)}.
+     */
+    public static final class PatternHandle implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+        private final int sequence;
+
+        private PatternHandle(final int sequence) {
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int hashCode() {
+            return sequence;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            return obj instanceof PatternHandle
+                    && sequence == ((PatternHandle) obj).sequence;
+        }
+    }
+
+    /**
+     * A key or pattern as it was added, a removal rebuilds the nodes from the
+     * remaining registrations.
+     */
+    private static final class Registration<V> {
+        private final String pattern;
+        private final int patternId;
+        private final V value;
+        private final Map<Parameter, ExtendedPattern> parameters;
+        /* The positions of the opening brackets of the parameters in the pattern */
+        private final int[] parameterStarts;
+
+        public Registration(final String pattern, final int patternId,
+                            final V value, final Map<Parameter, ExtendedPattern> parameters) {
+            this.pattern = pattern;
+            this.patternId = patternId;
+            this.value = value;
+			/* The builder of the pattern can still change its parameters */
+            this.parameters = parameters.isEmpty() ? Collections
+                    .<Parameter, ExtendedPattern> emptyMap()
+                    : new LinkedHashMap<Parameter, ExtendedPattern>(parameters);
+            this.parameterStarts = new int[parameters.size()];
+            int i = 0;
+
+            for (Parameter parameter : parameters.keySet()) {
+                parameterStarts[i++] = parameter.startPosition;
+            }
+        }
     }
 
     public static interface ParameterizedKeyBuilder<V> {
@@ -52,7 +313,7 @@ public class PatternTrie<V> implements Serializable {
         ParameterizedKeyBuilder<V> matchingNot(String parameterName,
                                                String pattern);
 
-        void add();
+        PatternHandle add();
     }
 
     public static interface ParameterizedValue<V> {
@@ -71,7 +332,7 @@ public class PatternTrie<V> implements Serializable {
 
 		/* Avoid casting */
         final Map<Parameter, ExtendedPattern> emptyMap = Collections.emptyMap();
-        add(key.toString().toCharArray(), value, -1, emptyMap);
+        add(key.toString().toCharArray(), value, emptyMap);
 
         return this;
     }
@@ -180,9 +441,8 @@ public class PatternTrie<V> implements Serializable {
                 }
 
                 @Override
-                public void add() {
-                    PatternTrie.this
-                            .add(chars, value, patternIds++, parameters);
+                public PatternHandle add() {
+                    return PatternTrie.this.add(chars, value, parameters);
                 }
             };
         }
@@ -213,248 +473,1032 @@ public class PatternTrie<V> implements Serializable {
             }
 
             @Override
-            public void add() {
+            public PatternHandle add() {
 				/* Avoid casting */
                 final Map<Parameter, ExtendedPattern> emptyMap = Collections
                         .emptyMap();
-                PatternTrie.this.add(chars, value, -1, emptyMap);
+                return PatternTrie.this.add(chars, value, emptyMap);
             }
         };
     }
 
+    /**
+     * Switches resolving to a deterministic automaton that is built from the
+     * pattern nodes by subset construction. The states of the automaton are
+     * created lazily when a resolve first needs them and are cached, so every
+     * char of a key costs one transition lookup regardless of the amount of
+     * patterns. Adding keys or patterns discards the automaton, it is rebuilt
+     * on demand.
+     *
+     * The automaton only decides whether a key reaches a value, parameter
+     * values are not tracked while it runs. If a key reaches a value and the
+     * trie contains patterns with parameters, the key is resolved once more
+     * without the automaton to capture the parameters, so both ways always
+     * return the same result. Keys that don't match anything and tries
+     * without parameters only cost the transitions.
+     *
+     * @return This pattern trie
+     */
+    public PatternTrie<V> compile() {
+        compiled = true;
+        return this;
+    }
+
+    /**
+     * Returns whether {@link #compile()} has been invoked.
+     *
+     * @return True if resolving uses a deterministic automaton
+     */
+    public boolean isCompiled() {
+        return compiled;
+    }
+
+    /**
+     * Enables a cache for the results of {@link #resolve(String)} that holds
+     * at most the given amount of keys and evicts the least recently used
+     * keys. The cached result sets are unmodifiable and are shared between
+     * callers. Every add discards the cached results.
+     *
+     * The cache is divided into segments with separate locks, so concurrent
+     * resolves only contend when their keys fall into the same segment. The
+     * least recently used key is determined per segment.
+     *
+     * @param maximumSize
+     *            The maximum amount of cached keys
+     * @return This pattern trie
+     */
+    public PatternTrie<V> enableResolveCache(final int maximumSize) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("Invalid maximum size: "
+                    + maximumSize);
+        }
+
+        resolveCacheSize = maximumSize;
+        version.resolveCache = null;
+        return this;
+    }
+
+    /**
+     * Disables and discards the cache for the results of
+     * {@link #resolve(String)}.
+     *
+     * @return This pattern trie
+     */
+    public PatternTrie<V> disableResolveCache() {
+        resolveCacheSize = 0;
+        version.resolveCache = null;
+        return this;
+    }
+
+    /**
+     * Returns the amount of resolves that were answered by the resolve cache.
+     *
+     * @return The amount of cache hits
+     */
+    public long getResolveCacheHits() {
+        return resolveCacheHits.get();
+    }
+
+    /**
+     * Returns the amount of resolves that had to be computed while the resolve
+     * cache was enabled.
+     *
+     * @return The amount of cache misses
+     */
+    public long getResolveCacheMisses() {
+        return resolveCacheMisses.get();
+    }
+
     public Set<ParameterizedValue<V>> resolve(String key) {
         if (key == null) {
             throw new NullPointerException("key");
         }
 
-        Set<ParameterizedValue<V>> result = new HashSet<ParameterizedValue<V>>();
-        final char[] chars = key.toString().toCharArray();
-        Map<TrieNode<V>, Map<PatternParameter, ParameterResult>> currentNodes = new HashMap<TrieNode<V>, Map<PatternParameter, ParameterResult>>(
-                1);
+        final Version<V> current = version;
+        final int cacheSize = resolveCacheSize;
 
-        if (root != null) {
-            currentNodes.put(root,
-                    new HashMap<PatternParameter, ParameterResult>(0));
+        if (cacheSize == 0) {
+            return resolve(current, key);
         }
 
-        for (int i = 0; i < chars.length && !currentNodes.isEmpty(); i++) {
-            currentNodes = findMatchingNodes(currentNodes, chars[i]);
-        }
+        ResolveCache<V> cache = current.resolveCache;
 
-        for (Map.Entry<TrieNode<V>, Map<PatternParameter, ParameterResult>> nodeEntry : currentNodes
-                .entrySet()) {
-            System.out.println(nodeEntry.getKey().value + " ----");
-            for (ParameterResult parameterResult : nodeEntry.getValue()
-                    .values()) {
-                System.out.println(parameterResult.parameter.name + " - "
-                        + parameterResult.parameter.patternId + " - "
-                        + parameterResult.value.toString());
-            }
+        if (cache == null || cache.maximumSize != cacheSize) {
+            cache = new ResolveCache<V>(cacheSize);
+            current.resolveCache = cache;
         }
 
-        if (!currentNodes.isEmpty()) {
-            for (Map.Entry<TrieNode<V>, Map<PatternParameter, ParameterResult>> nodeEntry : currentNodes
-                    .entrySet()) {
-                TrieNode<V> node = nodeEntry.getKey();
+        Set<ParameterizedValue<V>> result = cache.get(key);
 
-                if (node.inUse) {
-                    for (V nodeValue : node.value) {
-                        ParameterizedValueImpl<V> value = new ParameterizedValueImpl<V>(
-                                nodeValue);
-
-                        for (ParameterResult parameterResult : nodeEntry
-                                .getValue().values()) {
-                            if (parameterResult.ended) {
-                                value.setParameter(
-                                        parameterResult.parameter.name,
-                                        parameterResult.value.toString());
-                            }
-                        }
+        if (result != null) {
+            resolveCacheHits.incrementAndGet();
+            return result;
+        }
+
+        resolveCacheMisses.incrementAndGet();
+        result = Collections.unmodifiableSet(resolve(current, key));
+        cache.put(key, result);
+        return result;
+    }
 
-                        result.add(value);
+    /**
+     * A bounded cache from keys to resolve results, divided into segments
+     * that are least recently used maps.
+     */
+    private static final class ResolveCache<V> {
+
+        private final int maximumSize;
+        private final Map<String, Set<ParameterizedValue<V>>>[] segments;
+
+        @SuppressWarnings("unchecked")
+        public ResolveCache(final int maximumSize) {
+			/* Small caches use fewer segments to keep the eviction order close to global LRU */
+            final int segmentCount = Math.min(16, Math.max(1, maximumSize >>> 6));
+            this.maximumSize = maximumSize;
+            this.segments = (Map<String, Set<ParameterizedValue<V>>>[])
+                    new Map<?, ?>[segmentCount];
+
+            for (int i = 0; i < segmentCount; i++) {
+				/* Distribute the remainder so that the segment sizes sum up to the maximum size */
+                final int segmentSize = maximumSize / segmentCount
+                        + (i < maximumSize % segmentCount ? 1 : 0);
+                segments[i] = new LinkedHashMap<String, Set<ParameterizedValue<V>>>(
+                        16, 0.75f, true) {
+
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected boolean removeEldestEntry(
+                            final Map.Entry<String, Set<ParameterizedValue<V>>> eldest) {
+                        return size() > segmentSize;
                     }
-                }
+                };
             }
         }
 
-        return result;
-    }
+        private Map<String, Set<ParameterizedValue<V>>> segmentFor(
+                final String key) {
+            int hash = key.hashCode();
+            hash ^= (hash >>> 16);
+            return segments[(hash & 0x7fffffff) % segments.length];
+        }
 
-    private static class ParameterResult {
-        private PatternParameter parameter;
-        private StringBuilder value;
-        private boolean ended = false;
+        public Set<ParameterizedValue<V>> get(final String key) {
+            final Map<String, Set<ParameterizedValue<V>>> segment = segmentFor(key);
 
-        public ParameterResult(PatternParameter parameter) {
-            this.parameter = parameter;
-            this.value = new StringBuilder();
+            synchronized (segment) {
+                return segment.get(key);
+            }
         }
 
-        @Override
-        public int hashCode() {
-            final int prime = 31;
-            int result = 1;
-            result = prime * result
-                    + ((parameter == null) ? 0 : parameter.hashCode());
+        public void put(final String key,
+                        final Set<ParameterizedValue<V>> result) {
+            final Map<String, Set<ParameterizedValue<V>>> segment = segmentFor(key);
+
+            synchronized (segment) {
+                segment.put(key, result);
+            }
+        }
+    }
+
+    private Set<ParameterizedValue<V>> resolve(final Version<V> current,
+                                               final String key) {
+        if (segmented) {
+            final SegmentSearch<V> search = new SegmentSearch<V>(key,
+                    delimiter);
+            final Set<ParameterizedValue<V>> result = new HashSet<ParameterizedValue<V>>();
+            search.collect(current.segmentRoot, 0, null, result);
             return result;
         }
+        if (compiled) {
+            return resolveCompiled(current, key);
+        }
 
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj) {
-                return true;
-            }
-            if (obj == null) {
-                return false;
-            }
-            if (!(obj instanceof ParameterResult)) {
-                return false;
-            }
-            ParameterResult other = (ParameterResult) obj;
-            if (parameter == null) {
-                if (other.parameter != null) {
-                    return false;
-                }
-            } else if (!parameter.equals(other.parameter)) {
-                return false;
-            }
-            return true;
+        return resolveInterpreted(current, key);
+    }
+
+    private Set<ParameterizedValue<V>> resolveInterpreted(
+            final Version<V> current, final String key) {
+        final Set<ParameterizedValue<V>> result = new HashSet<ParameterizedValue<V>>();
+        final int length = key.length();
+		/* The candidate sets are swapped instead of allocating one per char */
+        CandidateSet<V> currentNodes = new CandidateSet<V>();
+        CandidateSet<V> nextNodes = new CandidateSet<V>();
+
+        currentNodes.add(current.root, null, 0);
+
+        for (int i = 0; i < length && currentNodes.size > 0; i++) {
+            findMatchingNodes(currentNodes, nextNodes, key.charAt(i), i);
+
+            final CandidateSet<V> temp = currentNodes;
+            currentNodes = nextNodes;
+            nextNodes = temp;
         }
+
+        for (Match<V> match : matches(current, key, currentNodes).values()) {
+            result.add(match.toValue(key));
+        }
+
+        return result;
     }
 
-    private Map<TrieNode<V>, Map<PatternParameter, ParameterResult>> findMatchingNodes(
-            Map<TrieNode<V>, Map<PatternParameter, ParameterResult>> nodes,
-            char c) {
-        Map<TrieNode<V>, Map<PatternParameter, ParameterResult>> matchingNodes = new HashMap<TrieNode<V>, Map<PatternParameter, ParameterResult>>(
-                1);
+    /**
+     * Returns the most specific value that matches the given key or null if
+     * there is none. Keys are matched char by char from the left and the
+     * first char at which the paths of two matches differ decides: a literal
+     * char beats a complement, which beats an any char or a parameter that
+     * consumes the rest of the key. Char classes are matched like literal
+     * chars, so among equally specific matches the values of keys that were
+     * added without parameters win, the rest is ordered by the registration
+     * of the values.
+     *
+     * The candidates are kept ordered by the specificity of the most specific
+     * path to them. The parameters are captured like
+     * {@link #resolve(String)} does, so the result is always contained in the
+     * result of {@link #resolve(String)}.
+     *
+     * @param key
+     *            The key to resolve
+     * @return The most specific matching value or null
+     */
+    public ParameterizedValue<V> resolveBest(final String key) {
+        return resolveOne(key, true);
+    }
 
-        for (Map.Entry<TrieNode<V>, Map<PatternParameter, ParameterResult>> nodeEntry : nodes
-                .entrySet()) {
-            TrieNode<V> node = nodeEntry.getKey();
-            TrieNode<V> childNode = node.anyCharChild;
+    /**
+     * Returns the matching value that was registered first or null if there
+     * is none. The parameters are captured like {@link #resolve(String)}
+     * does.
+     *
+     * @param key
+     *            The key to resolve
+     * @return The first registered matching value or null
+     */
+    public ParameterizedValue<V> resolveFirst(final String key) {
+        return resolveOne(key, false);
+    }
+
+    private ParameterizedValue<V> resolveOne(final String key,
+                                             final boolean bySpecificity) {
+        if (key == null) {
+            throw new NullPointerException("key");
+        }
+        final Version<V> current = version;
+
+        if (segmented) {
+            final SegmentSearch<V> search = new SegmentSearch<V>(key,
+                    delimiter);
+            search.find(current.segmentRoot, 0, null, bySpecificity, true);
+            return search.best();
+        }
+
+        final int length = key.length();
+        CandidateSet<V> currentNodes = new CandidateSet<V>();
+        CandidateSet<V> nextNodes = new CandidateSet<V>();
+
+        currentNodes.add(current.root, null, 0);
+
+        for (int i = 0; i < length && currentNodes.size > 0; i++) {
+            findRankedNodes(currentNodes, nextNodes, key.charAt(i), i);
 
-            if (childNode != null) {
-                matchingNodes.put(
-                        childNode,
-                        getParameterResult(nodeEntry.getValue(), c,
-                                childNode.associatedParameters,
-                                childNode.associatedParametersEnd));
+            final CandidateSet<V> temp = currentNodes;
+            currentNodes = nextNodes;
+            nextNodes = temp;
+        }
+
+        Match<V> best = null;
+        int bestSequence = Integer.MAX_VALUE;
+        boolean bestStatic = false;
+
+        for (Map.Entry<Integer, Match<V>> entry : matches(current, key,
+                currentNodes).entrySet()) {
+            final Match<V> match = entry.getValue();
+            final int sequence = entry.getKey();
+            final boolean isStatic = bySpecificity
+                    && current.registrations.get(sequence).patternId < 0;
+
+            if (best == null || (bySpecificity && match.rank != best.rank
+                    ? match.rank < best.rank
+                    : isStatic != bestStatic ? isStatic
+                    : sequence < bestSequence)) {
+                best = match;
+                bestSequence = sequence;
+                bestStatic = isStatic;
             }
+        }
+
+        return best == null ? null : best.toValue(key);
+    }
 
-            childNode = node.children.get(c);
+    /**
+     * Like findMatchingNodes, but the candidates stay ordered by specificity.
+     * Candidates of the same rank are expanded together, first via literal
+     * chars, then via complements and last via any chars, so that the
+     * successors of equally specific candidates share a rank again.
+     */
+    private void findRankedNodes(final CandidateSet<V> nodes,
+                                 final CandidateSet<V> rankedNodes, final char c, final int position) {
+        rankedNodes.clear();
+        int rank = 0;
+        int groupStart = 0;
+
+        while (groupStart < nodes.size) {
+            int groupEnd = groupStart + 1;
+
+            while (groupEnd < nodes.size
+                    && nodes.ranks[groupEnd] == nodes.ranks[groupStart]) {
+                groupEnd++;
+            }
 
-            if (childNode != null) {
-                matchingNodes.put(
-                        childNode,
-                        getParameterResult(nodeEntry.getValue(), c,
-                                childNode.associatedParameters,
-                                childNode.associatedParametersEnd));
+            for (int i = groupStart; i < groupEnd; i++) {
+                addMatching(rankedNodes, nodes.nodes[i].children.get(c),
+                        nodes.captures[i], position, rank);
             }
 
-            for (Map.Entry<Character, TrieNode<V>> complementNodeEntry : node.complementChildren
-                    .entrySet()) {
-                childNode = complementNodeEntry.getValue();
+            rank++;
 
-                if (complementNodeEntry.getKey() != c
-                        || !childNode.associatedParametersEnd.isEmpty()) {
-                    matchingNodes.put(
-                            childNode,
-                            getParameterResult(nodeEntry.getValue(), c,
-                                    childNode.associatedParameters,
-                                    childNode.associatedParametersEnd));
+            for (int i = groupStart; i < groupEnd; i++) {
+                for (Map.Entry<Character, TrieNode<V>> complementNodeEntry : nodes.nodes[i].complementChildren
+                        .entrySet()) {
+                    final TrieNode<V> childNode = complementNodeEntry
+                            .getValue();
+
+                    if (complementNodeEntry.getKey() != c
+                            || !childNode.associatedParametersEnd.isEmpty()) {
+                        addMatching(rankedNodes, childNode, nodes.captures[i],
+                                position, rank);
+                    }
                 }
             }
 
-            // Consume the rest of the characters
-            if (node.anyCharChild == null && node.children.isEmpty()
-                    && node.complementChildren.isEmpty()) {
-                for (Map.Entry<PatternParameter, ParameterResult> resultEntry : nodeEntry
-                        .getValue().entrySet()) {
-                    if (node.associatedParametersEnd.contains(resultEntry
-                            .getKey())) {
-                        matchingNodes.put(
-                                node,
-                                getParameterResult(nodeEntry.getValue(), c,
-                                        node.associatedParameters,
-                                        node.associatedParametersEnd));
+            rank++;
+
+            for (int i = groupStart; i < groupEnd; i++) {
+                final TrieNode<V> node = nodes.nodes[i];
+                final Capture captures = nodes.captures[i];
+
+                addMatching(rankedNodes, node.anyCharChild, captures,
+                        position, rank);
+
+                // Consume the rest of the characters
+                if (node.anyCharChild == null && node.children.isEmpty()
+                        && node.complementChildren.isEmpty()) {
+                    for (Capture capture = captures; capture != null; capture = capture.next) {
+                        if (node.associatedParametersEnd
+                                .contains(capture.parameter)) {
+                            addMatching(rankedNodes, node, captures,
+                                    position, rank);
+                            break;
+                        }
                     }
                 }
             }
-        }
 
-        return matchingNodes;
+            rank++;
+            groupStart = groupEnd;
+        }
     }
 
-    private Map<PatternParameter, ParameterResult> getParameterResult(
-            Map<PatternParameter, ParameterResult> parameterResults, char c,
-            Set<PatternParameter> associatedParameters,
-            Set<PatternParameter> associatedParametersEnd) {
-        parameterResults = new HashMap<PatternParameter, ParameterResult>(
-                parameterResults);
-
-        for (PatternParameter parameter : associatedParameters) {
-            ParameterResult parameterResult = parameterResults.get(parameter);
+    /**
+     * The nodes that match the key up to the current char together with the
+     * parameter captures of the path that lead to a node. A node that is
+     * reached on multiple paths is contained once for every distinct capture,
+     * because the paths of different patterns share nodes and the captures
+     * of one path can't stand in for another one. The rank of ranked
+     * candidates is the one of the first and therefore most specific path.
+     */
+    private static final class CandidateSet<V> {
+
+        /* The index of the last added candidate of a node, the candidates of a node are chained */
+        private final Map<TrieNode<V>, Integer> indices = new IdentityHashMap<TrieNode<V>, Integer>();
+        private TrieNode<V>[] nodes;
+        private Capture[] captures;
+        private int[] previous;
+        private int[] ranks;
+        private int size;
+
+        public CandidateSet() {
+            this.nodes = TrieNode.<V> newArray(4);
+            this.captures = new Capture[4];
+            this.previous = new int[4];
+            this.ranks = new int[4];
+        }
 
-            if (parameterResult == null) {
-                parameterResult = new ParameterResult(parameter);
-                parameterResults.put(parameter, parameterResult);
+        /**
+         * Adds the given node with the given captures and rank unless it is
+         * already contained with equal captures.
+         */
+        public void add(final TrieNode<V> node, final Capture capture,
+                        final int rank) {
+            final Integer last = indices.get(node);
+            final int index = last == null ? -1 : last;
+
+            for (int i = index; i >= 0; i = previous[i]) {
+                if (Capture.equal(captures[i], capture)) {
+                    return;
+                }
             }
 
-            parameterResult.value.append(c);
-
-            if (associatedParametersEnd.contains(parameter)) {
-                parameterResult.ended = true;
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size << 1);
+                captures = Arrays.copyOf(captures, size << 1);
+                previous = Arrays.copyOf(previous, size << 1);
+                ranks = Arrays.copyOf(ranks, size << 1);
             }
+
+            indices.put(node, size);
+            nodes[size] = node;
+            captures[size] = capture;
+            previous[size] = index;
+            ranks[size++] = rank;
         }
 
-        return parameterResults;
+        public void clear() {
+            Arrays.fill(nodes, 0, size, null);
+            Arrays.fill(captures, 0, size, null);
+            indices.clear();
+            size = 0;
+        }
     }
 
-    private static final class PatternParameter {
-        private final int patternId;
-        private final int parameterIndex;
-        private final String name;
+    /**
+     * An immutable list of the parameter bounds that were captured on a path.
+     * Paths that share a prefix share the captures of that prefix, so a step
+     * only allocates when the reached node belongs to a parameter. A capture
+     * is ended if the last node that extended it ends the parameter and it is
+     * broken if the path left the parameter and came back to it.
+     */
+    private static final class Capture {
 
-        public PatternParameter(int patternId, int parameterIndex, String name) {
-            super();
-            this.patternId = patternId;
-            this.parameterIndex = parameterIndex;
-            this.name = name;
+        private final PatternParameter parameter;
+        private final int start;
+        private final int end;
+        private final boolean ended;
+        private final boolean broken;
+        private final Capture next;
+        private final int hash;
+
+        public Capture(final PatternParameter parameter, final int start,
+                       final int end, final boolean ended,
+                       final boolean broken, final Capture next) {
+            this.parameter = parameter;
+            this.start = start;
+            this.end = end;
+            this.ended = ended;
+            this.broken = broken;
+            this.next = next;
+            this.hash = 31 * (31 * (31 * (next == null ? 0 : next.hash)
+                    + parameter.hashCode()) + start) + end;
         }
 
-        @Override
-        public int hashCode() {
-            final int prime = 31;
-            int result = 1;
-            result = prime * result + parameterIndex;
-            result = prime * result + patternId;
-            return result;
-        }
+        public static boolean equal(Capture first, Capture second) {
+            while (first != second) {
+                if (first == null || second == null
+                        || first.hash != second.hash
+                        || first.start != second.start
+                        || first.end != second.end
+                        || first.ended != second.ended
+                        || first.broken != second.broken
+                        || !first.parameter.equals(second.parameter)) {
+                    return false;
+                }
+
+                first = first.next;
+                second = second.next;
+            }
 
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj)
-                return true;
-            if (obj == null)
-                return false;
-            if (getClass() != obj.getClass())
-                return false;
-            PatternParameter other = (PatternParameter) obj;
-            if (parameterIndex != other.parameterIndex)
-                return false;
-            if (patternId != other.patternId)
-                return false;
             return true;
         }
     }
 
-    private static final class Parameter {
-        private final String name;
-        private final int startPosition;
+    /**
+     * A matching value together with the parameter captures of the chosen
+     * path and the best rank of the paths that match it.
+     */
+    private static final class Match<V> {
 
-        public Parameter(String name, int startPosition) {
-            super();
-            this.name = name;
+        private final V value;
+        private Capture[] parameters;
+        private int rank;
+
+        public Match(final V value, final Capture[] parameters, final int rank) {
+            this.value = value;
+            this.parameters = parameters;
+            this.rank = rank;
+        }
+
+        public ParameterizedValue<V> toValue(final String key) {
+            final ParameterizedValueImpl<V> result = new ParameterizedValueImpl<V>(
+                    value, key);
+
+            for (Capture capture : parameters) {
+                if (capture != null) {
+                    result.setParameter(capture.parameter.name,
+                            capture.start, capture.end);
+                }
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Returns the matches of the values of the given candidates by their
+     * sequence. A value matches on a path if the path reproduces the pattern
+     * of the value, see {@link #parameters(String, Registration, Capture)}.
+     * If a value matches on multiple paths, earlier parameters capture as
+     * much as possible, so the result doesn't depend on the order of the
+     * candidates.
+     */
+    private static <V> Map<Integer, Match<V>> matches(final Version<V> current,
+                                                      final String key, final CandidateSet<V> candidates) {
+        final Map<Integer, Match<V>> matches = new HashMap<Integer, Match<V>>();
+
+        for (int i = 0; i < candidates.size; i++) {
+            final TrieNode<V> node = candidates.nodes[i];
+
+            if (!node.inUse) {
+                continue;
+            }
+
+            for (int j = 0; j < node.sequences.size(); j++) {
+                final Integer sequence = node.sequences.get(j);
+                final Capture[] parameters = parameters(key,
+                        current.registrations.get(sequence),
+                        candidates.captures[i]);
+
+                if (parameters == null) {
+                    continue;
+                }
+
+                final Match<V> match = matches.get(sequence);
+
+                if (match == null) {
+                    matches.put(sequence, new Match<V>(node.value.get(j),
+                            parameters, candidates.ranks[i]));
+                } else {
+                    match.rank = Math.min(match.rank, candidates.ranks[i]);
+
+                    if (isGreedier(parameters, match.parameters)) {
+                        match.parameters = parameters;
+                    }
+                }
+            }
+        }
+
+        return matches;
+    }
+
+    /**
+     * Returns the captures of the parameters of the given registration by
+     * their index or null if the path with the given captures doesn't match
+     * the registration. Nodes are shared between patterns, so a path matches
+     * only if the captures of the pattern are ended and not broken and the
+     * key is the pattern with the parameters replaced by the captured parts.
+     * Parameters without capture are empty.
+     */
+    private static Capture[] parameters(final String key,
+                                        final Registration<?> registration, final Capture captures) {
+        final String pattern = registration.pattern;
+        final int[] starts = registration.parameterStarts;
+        final Capture[] parameters = new Capture[starts.length];
+
+        for (Capture capture = captures; capture != null; capture = capture.next) {
+            if (capture.parameter.patternId == registration.patternId) {
+                if (!capture.ended || capture.broken) {
+                    return null;
+                }
+
+                parameters[capture.parameter.parameterIndex] = capture;
+            }
+        }
+
+        int keyIndex = 0;
+        int patternIndex = 0;
+
+        for (int i = 0; i < starts.length; i++) {
+            final int literalLength = starts[i] - patternIndex;
+
+            if (!key.regionMatches(keyIndex, pattern, patternIndex,
+                    literalLength)) {
+                return null;
+            }
+
+            keyIndex += literalLength;
+
+            if (parameters[i] != null) {
+                if (parameters[i].start != keyIndex) {
+                    return null;
+                }
+
+                keyIndex = parameters[i].end;
+            }
+
+            patternIndex = pattern.indexOf('}', starts[i]) + 1;
+        }
+
+        final int rest = pattern.length() - patternIndex;
+
+        if (keyIndex + rest != key.length()
+                || !key.regionMatches(keyIndex, pattern, patternIndex, rest)) {
+            return null;
+        }
+
+        return parameters;
+    }
+
+    private static boolean isGreedier(final Capture[] parameters,
+                                      final Capture[] other) {
+        for (int i = 0; i < parameters.length; i++) {
+            final int end = parameters[i] == null ? -1 : parameters[i].end;
+            final int otherEnd = other[i] == null ? -1 : other[i].end;
+
+            if (end != otherEnd) {
+                return end > otherEnd;
+            }
+        }
+
+        return false;
+    }
+
+    private void findMatchingNodes(final CandidateSet<V> nodes,
+                                   final CandidateSet<V> matchingNodes, final char c, final int position) {
+        matchingNodes.clear();
+
+        for (int i = 0; i < nodes.size; i++) {
+            final TrieNode<V> node = nodes.nodes[i];
+            final Capture captures = nodes.captures[i];
+
+            addMatching(matchingNodes, node.anyCharChild, captures, position,
+                    0);
+            addMatching(matchingNodes, node.children.get(c), captures,
+                    position, 0);
+
+            for (Map.Entry<Character, TrieNode<V>> complementNodeEntry : node.complementChildren
+                    .entrySet()) {
+                final TrieNode<V> childNode = complementNodeEntry.getValue();
+
+                if (complementNodeEntry.getKey() != c
+                        || !childNode.associatedParametersEnd.isEmpty()) {
+                    addMatching(matchingNodes, childNode, captures, position,
+                            0);
+                }
+            }
+
+            // Consume the rest of the characters
+            if (node.anyCharChild == null && node.children.isEmpty()
+                    && node.complementChildren.isEmpty()) {
+                for (Capture capture = captures; capture != null; capture = capture.next) {
+                    if (node.associatedParametersEnd.contains(capture.parameter)) {
+                        addMatching(matchingNodes, node, captures, position,
+                                0);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private static <V> void addMatching(final CandidateSet<V> matchingNodes,
+                                        final TrieNode<V> node, final Capture captures, final int position,
+                                        final int rank) {
+        if (node != null) {
+            matchingNodes.add(node, capture(captures, position, node), rank);
+        }
+    }
+
+    /**
+     * Extends the captures of the parameters of the given node by the char at
+     * the given position.
+     */
+    private static Capture capture(Capture captures, final int position,
+                                   final TrieNode<?> node) {
+        for (PatternParameter parameter : node.associatedParameters) {
+            final boolean ended = node.associatedParametersEnd
+                    .contains(parameter);
+            Capture capture = captures;
+
+            while (capture != null && !capture.parameter.equals(parameter)) {
+                capture = capture.next;
+            }
+
+            if (capture == null) {
+                captures = new Capture(parameter, position, position + 1,
+                        ended, false, captures);
+            } else {
+                captures = replace(captures, capture, new Capture(parameter,
+                        capture.start, position + 1, ended, capture.broken
+                        || capture.end != position, capture.next));
+            }
+        }
+
+        return captures;
+    }
+
+    private static Capture replace(final Capture captures,
+                                   final Capture capture, final Capture replacement) {
+        if (captures == capture) {
+            return replacement;
+        }
+
+        return new Capture(captures.parameter, captures.start, captures.end,
+                captures.ended, captures.broken, replace(captures.next,
+                capture, replacement));
+    }
+
+    private Set<ParameterizedValue<V>> resolveCompiled(
+            final Version<V> current, final String key) {
+        DeterministicAutomaton<V> dfa = current.automaton;
+
+        if (dfa == null) {
+			/* Racing resolves may build separate automatons, one of them is kept */
+            dfa = new DeterministicAutomaton<V>(current.root);
+            current.automaton = dfa;
+        }
+
+        final int length = key.length();
+        AutomatonState<V> state = dfa.start;
+
+        for (int i = 0; i < length && state.nodes.length > 0; i++) {
+            final char c = key.charAt(i);
+            AutomatonTransitions<V> transitions = state.transitions;
+            int index = transitions.indexOf(c);
+
+            if (index < 0) {
+                transitions = dfa.addTransition(state, c);
+                index = transitions.indexOf(c);
+            }
+
+            state = transitions.targets[index];
+        }
+
+        final Set<ParameterizedValue<V>> result = new HashSet<ParameterizedValue<V>>();
+        boolean matched = false;
+
+        for (int i = 0; i < state.nodes.length && !matched; i++) {
+            matched = state.nodes[i].inUse;
+        }
+
+        if (!matched) {
+            return result;
+        }
+        if (!current.patternParameters.isEmpty()) {
+			/* The automaton reaches at least the nodes of the interpreted resolve, so only hits are resolved twice */
+            return resolveInterpreted(current, key);
+        }
+
+        for (int i = 0; i < state.nodes.length; i++) {
+            final TrieNode<V> node = state.nodes[i];
+
+            if (node.inUse) {
+                for (V nodeValue : node.value) {
+                    result.add(new ParameterizedValueImpl<V>(nodeValue, key));
+                }
+            }
+        }
+
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> AutomatonState<V>[] newStateArray(final int length) {
+        return (AutomatonState<V>[]) new AutomatonState<?>[length];
+    }
+
+    /**
+     * A state of the deterministic automaton which stands for a set of pattern
+     * nodes.
+     */
+    private static final class AutomatonState<V> {
+
+        private final TrieNode<V>[] nodes;
+        /* Replaced as a whole when a transition is added so readers need no lock */
+        private volatile AutomatonTransitions<V> transitions;
+
+        public AutomatonState(final TrieNode<V>[] nodes) {
+            this.nodes = nodes;
+            this.transitions = new AutomatonTransitions<V>();
+        }
+    }
+
+    private static final class AutomatonTransitions<V> {
+
+        private final char[] chars;
+        private final AutomatonState<V>[] targets;
+
+        public AutomatonTransitions() {
+            this.chars = new char[0];
+            this.targets = PatternTrie.<V> newStateArray(0);
+        }
+
+        private AutomatonTransitions(final char[] chars,
+                                     final AutomatonState<V>[] targets) {
+            this.chars = chars;
+            this.targets = targets;
+        }
+
+        public int indexOf(final char c) {
+            return Arrays.binarySearch(chars, c);
+        }
+
+        public AutomatonTransitions<V> with(final char c,
+                                            final AutomatonState<V> target) {
+            final int insertionPoint = -(indexOf(c) + 1);
+            final int length = chars.length;
+            final char[] newChars = new char[length + 1];
+            final AutomatonState<V>[] newTargets = Arrays.copyOf(targets,
+                    length + 1);
+
+            System.arraycopy(chars, 0, newChars, 0, insertionPoint);
+            System.arraycopy(chars, insertionPoint, newChars,
+                    insertionPoint + 1, length - insertionPoint);
+            System.arraycopy(targets, insertionPoint, newTargets,
+                    insertionPoint + 1, length - insertionPoint);
+            newChars[insertionPoint] = c;
+            newTargets[insertionPoint] = target;
+
+            return new AutomatonTransitions<V>(newChars, newTargets);
+        }
+    }
+
+    /**
+     * Lazy subset construction over the pattern nodes. A step from a set of
+     * nodes follows the same edges as the nondeterministic resolve, i.e. the
+     * any char child, the child of the char, the complement children of other
+     * chars and the complement children that end a parameter. A node without
+     * children that ends a parameter consumes the rest of the key.
+     */
+    private static final class DeterministicAutomaton<V> {
+
+        private final Map<TrieNode<V>, Integer> nodeIds = new IdentityHashMap<TrieNode<V>, Integer>();
+        private final Map<StateKey, AutomatonState<V>> states = new HashMap<StateKey, AutomatonState<V>>();
+        private final AutomatonState<V> start;
+
+        public DeterministicAutomaton(final TrieNode<V> root) {
+            final TrieNode<V>[] nodes = TrieNode.<V> newArray(1);
+            nodes[0] = root;
+            nodeIds.put(root, 0);
+            this.start = new AutomatonState<V>(nodes);
+            states.put(new StateKey(new int[]{ 0 }), start);
+        }
+
+        public synchronized AutomatonTransitions<V> addTransition(
+                final AutomatonState<V> state, final char c) {
+            final AutomatonTransitions<V> transitions = state.transitions;
+
+            if (transitions.indexOf(c) >= 0) {
+				/* Another thread was faster */
+                return transitions;
+            }
+
+            final Map<TrieNode<V>, Boolean> reached = new IdentityHashMap<TrieNode<V>, Boolean>();
+            final List<TrieNode<V>> targets = new ArrayList<TrieNode<V>>();
+
+            for (int i = 0; i < state.nodes.length; i++) {
+                final TrieNode<V> node = state.nodes[i];
+
+                addTarget(reached, targets, node.anyCharChild);
+                addTarget(reached, targets, node.children.get(c));
+
+                for (Map.Entry<Character, TrieNode<V>> entry : node.complementChildren
+                        .entrySet()) {
+                    final TrieNode<V> child = entry.getValue();
+
+                    if (entry.getKey() != c
+                            || !child.associatedParametersEnd.isEmpty()) {
+                        addTarget(reached, targets, child);
+                    }
+                }
+
+                if (node.anyCharChild == null && node.children.isEmpty()
+                        && node.complementChildren.isEmpty()
+                        && !node.associatedParametersEnd.isEmpty()) {
+                    addTarget(reached, targets, node);
+                }
+            }
+
+            final int size = targets.size();
+            final int[] ids = new int[size];
+
+            for (int i = 0; i < size; i++) {
+                final TrieNode<V> target = targets.get(i);
+                Integer id = nodeIds.get(target);
+
+                if (id == null) {
+                    id = nodeIds.size();
+                    nodeIds.put(target, id);
+                }
+
+                ids[i] = id;
+            }
+
+            Arrays.sort(ids);
+
+            final StateKey key = new StateKey(ids);
+            AutomatonState<V> target = states.get(key);
+
+            if (target == null) {
+                target = new AutomatonState<V>(targets.toArray(TrieNode
+                        .<V> newArray(size)));
+                states.put(key, target);
+            }
+
+            final AutomatonTransitions<V> newTransitions = transitions.with(c,
+                    target);
+            state.transitions = newTransitions;
+            return newTransitions;
+        }
+
+        private static <V> void addTarget(
+                final Map<TrieNode<V>, Boolean> reached,
+                final List<TrieNode<V>> targets, final TrieNode<V> target) {
+            if (target != null && reached.put(target, Boolean.TRUE) == null) {
+                targets.add(target);
+            }
+        }
+
+        public synchronized int stateCount() {
+            return states.size();
+        }
+    }
+
+    private static final class StateKey {
+
+        private final int[] nodeIds;
+        private final int hashCode;
+
+        public StateKey(final int[] nodeIds) {
+            this.nodeIds = nodeIds;
+            this.hashCode = Arrays.hashCode(nodeIds);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            return obj instanceof StateKey
+                    && Arrays.equals(nodeIds, ((StateKey) obj).nodeIds);
+        }
+    }
+
+    /**
+     * Returns the number of states the deterministic automaton has built so
+     * far or 0 if it wasn't built yet.
+     */
+    int automatonStateCount() {
+        final DeterministicAutomaton<V> dfa = version.automaton;
+        return dfa == null ? 0 : dfa.stateCount();
+    }
+
+    private static final class PatternParameter implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final int patternId;
+        private final int parameterIndex;
+        private final String name;
+
+        public PatternParameter(int patternId, int parameterIndex, String name) {
+            super();
+            this.patternId = patternId;
+            this.parameterIndex = parameterIndex;
+            this.name = name;
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + parameterIndex;
+            result = prime * result + patternId;
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            PatternParameter other = (PatternParameter) obj;
+            if (parameterIndex != other.parameterIndex)
+                return false;
+            if (patternId != other.patternId)
+                return false;
+            return true;
+        }
+    }
+
+    private static final class Parameter {
+        private final String name;
+        private final int startPosition;
+
+        public Parameter(String name, int startPosition) {
+            super();
+            this.name = name;
             this.startPosition = startPosition;
         }
 
@@ -496,14 +1540,21 @@ public class PatternTrie<V> implements Serializable {
 
     }
 
+    /**
+     * A resolved value whose parameters are stored as bounds within the key,
+     * the parameter strings are only created when they are accessed.
+     */
     private static final class ParameterizedValueImpl<V> implements
             ParameterizedValue<V> {
 
-        private V value;
-        private final Map<String, String> parameters = new HashMap<String, String>();
+        private final V value;
+        private final String key;
+        private Map<String, ParameterBounds> parameters = Collections
+                .emptyMap();
 
-        public ParameterizedValueImpl(V value) {
+        public ParameterizedValueImpl(V value, String key) {
             this.value = value;
+            this.key = key;
         }
 
         @Override
@@ -513,23 +1564,43 @@ public class PatternTrie<V> implements Serializable {
 
         @Override
         public String getParameter(String patternKey) {
-            return parameters.get(patternKey);
+            final ParameterBounds bounds = parameters.get(patternKey);
+
+            if (bounds == null) {
+                return null;
+            }
+            if (bounds.value == null) {
+				/* Cached values are shared, racing threads create equal strings */
+                bounds.value = key.substring(bounds.start, bounds.end);
+            }
+
+            return bounds.value;
         }
 
         public Set<String> getParameterNames() {
-            return parameters.keySet();
+            return Collections.unmodifiableSet(parameters.keySet());
         }
 
-        public void setParameter(String patternKey, String value) {
-            parameters.put(patternKey, value);
+        public void setParameter(String patternKey, int start, int end) {
+            if (parameters.isEmpty()) {
+                parameters = new HashMap<String, ParameterBounds>(4);
+            }
+
+            parameters.put(patternKey, new ParameterBounds(start, end));
         }
 
         @Override
         public int hashCode() {
             final int prime = 31;
+            int parametersHash = 0;
+
+			/* Same as the hash code of a map from names to parameter values */
+            for (String name : parameters.keySet()) {
+                parametersHash += name.hashCode() ^ getParameter(name).hashCode();
+            }
+
             int result = 1;
-            result = prime * result
-                    + ((parameters == null) ? 0 : parameters.hashCode());
+            result = prime * result + parametersHash;
             result = prime * result + ((value == null) ? 0 : value.hashCode());
             return result;
         }
@@ -545,14 +1616,7 @@ public class PatternTrie<V> implements Serializable {
             if (!(obj instanceof ParameterizedValueImpl)) {
                 return false;
             }
-            ParameterizedValueImpl<V> other = (ParameterizedValueImpl<V>) obj;
-            if (parameters == null) {
-                if (other.parameters != null) {
-                    return false;
-                }
-            } else if (!parameters.equals(other.parameters)) {
-                return false;
-            }
+            ParameterizedValueImpl<?> other = (ParameterizedValueImpl<?>) obj;
             if (value == null) {
                 if (other.value != null) {
                     return false;
@@ -560,152 +1624,820 @@ public class PatternTrie<V> implements Serializable {
             } else if (!value.equals(other.value)) {
                 return false;
             }
-            return true;
-        }
+            if (!parameters.keySet().equals(other.parameters.keySet())) {
+                return false;
+            }
+            for (String name : parameters.keySet()) {
+                if (!getParameter(name).equals(other.getParameter(name))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(value).append(" {");
+
+            for (String name : parameters.keySet()) {
+                if (sb.charAt(sb.length() - 1) != '{') {
+                    sb.append(", ");
+                }
+
+                sb.append(name).append('=').append(getParameter(name));
+            }
+
+            return sb.append('}').toString();
+        }
+    }
+
+    private static final class ParameterBounds {
+
+        private final int start;
+        private final int end;
+        private String value;
+
+        public ParameterBounds(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private static final class TrieNode<V> implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+        private final Map<Character, TrieNode<V>> children = new HashMap<Character, TrieNode<V>>();
+        private final Map<Character, TrieNode<V>> complementChildren = new HashMap<Character, TrieNode<V>>();
+        private List<V> value;
+        /* The sequences of the registrations of the values, in registration order */
+        private List<Integer> sequences;
+        private boolean inUse;
+        private TrieNode<V> anyCharChild;
+        private final Set<PatternParameter> associatedParameters = new HashSet<PatternParameter>();
+        private final Set<PatternParameter> associatedParametersEnd = new HashSet<PatternParameter>();
+
+        public TrieNode(final V value, final int sequence) {
+            this.value = new ArrayList<V>();
+            this.value.add(value);
+            this.sequences = new ArrayList<Integer>();
+            this.sequences.add(sequence);
+            this.inUse = true;
+        }
+
+        public TrieNode() {
+            this.inUse = false;
+        }
+
+        @SuppressWarnings("unchecked")
+        public static <V> TrieNode<V>[] newArray(final int length) {
+            return (TrieNode<V>[]) new TrieNode<?>[length];
+        }
+
+        @Override
+        public String toString() {
+            return toString(0);
+        }
+
+        private String toString(int depth) {
+            StringBuilder sb = new StringBuilder();
+
+            for (Map.Entry<Character, TrieNode<V>> entry : children.entrySet()) {
+                for (int i = 0; i < depth; i++) {
+                    sb.append(' ');
+                }
+                sb.append('[').append(entry.getKey()).append("] = {\n")
+                        .append(entry.getValue().toString(depth + 1));
+
+                sb.append("\n");
+                for (int i = 0; i < depth; i++) {
+                    sb.append(' ');
+                }
+                sb.append("}");
+            }
+
+            return sb.toString();
+        }
+    }
+
+    private PatternHandle add(final char[] pattern, final V value,
+                              final Map<Parameter, ExtendedPattern> parameters) {
+        final int sequence;
+
+        if (concurrent) {
+            synchronized (this) {
+                final Version<V> next = version.copy();
+                sequence = registrationCount++;
+                add(next, pattern, value,
+                        parameters.isEmpty() ? -1 : patternIds++, sequence,
+                        parameters);
+                version = next;
+            }
+        } else {
+            final Version<V> current = version;
+            current.automaton = null;
+            current.resolveCache = null;
+            sequence = registrationCount++;
+            add(current, pattern, value,
+                    parameters.isEmpty() ? -1 : patternIds++, sequence,
+                    parameters);
+        }
+
+        return new PatternHandle(sequence);
+    }
+
+    /**
+     * Removes every key and pattern that was added with exactly the given
+     * key or pattern text, e.g. "/users/{id}".
+     *
+     * @param key
+     *            The key or pattern text
+     * @return True if something was removed
+     * @see #remove(PatternHandle)
+     */
+    public boolean remove(final CharSequence key) {
+        if (key == null) {
+            throw new NullPointerException("key");
+        }
+
+        return remove(key.toString(), -1);
+    }
+
+    /**
+     * Removes the pattern that was added when the given handle was returned.
+     * The nodes are rebuilt from the remaining keys and patterns, so the trie
+     * is the same as if the pattern had never been added. A removal costs as
+     * much as adding the remaining patterns again, publishes the new nodes
+     * in concurrent mode and discards the automaton and the resolve cache.
+     *
+     * @param handle
+     *            The handle of the pattern
+     * @return True if the pattern was removed, false if it was already
+     *         removed
+     */
+    public boolean remove(final PatternHandle handle) {
+        if (handle == null) {
+            throw new NullPointerException("handle");
+        }
+
+        return remove(null, handle.sequence);
+    }
+
+    private boolean remove(final String pattern, final int sequence) {
+        if (concurrent) {
+            synchronized (this) {
+                return rebuildWithout(pattern, sequence);
+            }
+        }
+
+        return rebuildWithout(pattern, sequence);
+    }
+
+    private static <V> Set<Integer> findRegistrations(
+            final Version<V> target, final String pattern, final int sequence) {
+        final Set<Integer> sequences = new HashSet<Integer>();
+
+        if (pattern == null) {
+            if (target.registrations.containsKey(sequence)) {
+                sequences.add(sequence);
+            }
+        } else {
+            for (Map.Entry<Integer, Registration<V>> entry : target.registrations
+                    .entrySet()) {
+                if (pattern.equals(entry.getValue().pattern)) {
+                    sequences.add(entry.getKey());
+                }
+            }
+        }
+
+        return sequences;
+    }
+
+    /**
+     * Publishes a new version that contains the remaining registrations in
+     * their original order with their original sequences and pattern ids.
+     * The nodes of patterns are merged with each other, so only a rebuild
+     * can tell which nodes and parameters still belong to another pattern.
+     * The automaton and the resolve cache belong to the old version.
+     */
+    private boolean rebuildWithout(final String pattern, final int sequence) {
+        final Version<V> current = version;
+        final Set<Integer> sequences = findRegistrations(current, pattern,
+                sequence);
+
+        if (sequences.isEmpty()) {
+            return false;
+        }
+
+        final Map<Integer, Registration<V>> remaining = new TreeMap<Integer, Registration<V>>(
+                current.registrations);
+        final Version<V> next = new Version<V>(new TrieNode<V>(),
+                new HashMap<Integer, List<PatternParameter>>(),
+                segmented ? new SegmentNode<V>() : null);
+
+        remaining.keySet().removeAll(sequences);
+
+        for (Map.Entry<Integer, Registration<V>> entry : remaining.entrySet()) {
+            final Registration<V> registration = entry.getValue();
+            add(next, registration.pattern.toCharArray(), registration.value,
+                    registration.patternId, entry.getKey(),
+                    registration.parameters);
+        }
+
+        version = next;
+        return true;
+    }
+
+    /**
+     * Returns the number of nodes that are reachable from the root.
+     */
+    int nodeCount() {
+        final Version<V> current = version;
+
+        if (segmented) {
+            return segmentNodeCount(current.segmentRoot);
+        }
+
+        final Map<TrieNode<V>, Integer> nodeIds = new IdentityHashMap<TrieNode<V>, Integer>();
+        final List<TrieNode<V>> nodes = new ArrayList<TrieNode<V>>();
+        nodeIds.put(current.root, 0);
+        nodes.add(current.root);
+
+        for (int i = 0; i < nodes.size(); i++) {
+            final TrieNode<V> node = nodes.get(i);
+
+            for (TrieNode<V> child : node.children.values()) {
+                addNode(nodeIds, nodes, child);
+            }
+            for (TrieNode<V> child : node.complementChildren.values()) {
+                addNode(nodeIds, nodes, child);
+            }
+            if (node.anyCharChild != null) {
+                addNode(nodeIds, nodes, node.anyCharChild);
+            }
+        }
+
+        return nodes.size();
+    }
+
+    private static <V> int segmentNodeCount(final SegmentNode<V> node) {
+        int count = 1;
+
+        for (SegmentNode<V> child : node.literalChildren.values()) {
+            count += segmentNodeCount(child);
+        }
+        for (SegmentEdge<V> edge : node.parameterChildren) {
+            count += segmentNodeCount(edge.target);
+        }
+
+        return count;
+    }
+
+    /**
+     * Returns the number of pattern ids with parameter bookkeeping.
+     */
+    int patternCount() {
+        return version.patternParameters.size();
+    }
+
+    private void add(final Version<V> target, final char[] pattern,
+                     final V value, final int patternId, final int sequence,
+                     final Map<Parameter, ExtendedPattern> parameters) {
+        target.registrations.put(sequence, new Registration<V>(new String(
+                pattern), patternId, value, parameters));
+
+        if (segmented) {
+            addSegments(target.segmentRoot, pattern, value, sequence,
+                    parameters);
+            return;
+        }
+
+        final TrieNode<V> root = target.root;
+        final Map<Integer, List<PatternParameter>> patternParameters = target.patternParameters;
+
+        if (pattern.length == 0) {
+            update(root, value, sequence);
+        }
+
+        int cursor = 0;
+
+        if (parameters.isEmpty()) {
+            TrieNode<V> currentNode = root;
+            TrieNode<V> lastNode = null;
+			/* Simple key */
+            while (cursor < pattern.length && currentNode != null) {
+                lastNode = currentNode;
+                currentNode = currentNode.children.get(pattern[cursor]);
+
+                ++cursor;
+            }
+
+            if (currentNode == null) {
+                cursor--;
+
+                for (; cursor < pattern.length - 1; cursor++) {
+                    final TrieNode<V> nextNode = new TrieNode<V>();
+                    lastNode.children.put(pattern[cursor], nextNode);
+                    lastNode = nextNode;
+                }
+
+                lastNode.children.put(pattern[cursor], new TrieNode<V>(value,
+                        sequence));
+            } else {
+                update(currentNode, value, sequence);
+            }
+        } else {
+            final List<Map.Entry<Parameter, ExtendedPattern>> parameterEntries = new ArrayList<Map.Entry<Parameter, ExtendedPattern>>(
+                    parameters.entrySet());
+            List<TrieNode<V>> currentNodes = new ArrayList<TrieNode<V>>();
+            currentNodes.add(root);
+
+            patternParameters.put(patternId, new ArrayList<PatternParameter>());
+
+			/* Parameterized key */
+            int currentParameterIndex = 0;
+            Parameter currentParameter = parameterEntries.get(
+                    currentParameterIndex).getKey();
+            int currentParameterStart = currentParameter.startPosition;
+
+            for (; cursor < pattern.length - 1; cursor++) {
+                if (currentParameterStart == cursor) {
+                    PatternParameter patternParameter = new PatternParameter(
+                            patternId, currentParameterIndex,
+                            currentParameter.name);
+                    patternParameters.get(patternId).add(patternParameter);
+                    currentNodes = getOrCreatePatternNodes(currentNodes,
+                            patternParameter,
+                            parameterEntries.get(currentParameterIndex)
+                                    .getValue());
+                    cursor = currentParameterStart
+                            + currentParameter.name.length();
+
+                    if (++currentParameterIndex < parameterEntries.size()) {
+                        ++cursor;
+                        currentParameter = parameterEntries.get(
+                                currentParameterIndex).getKey();
+                        currentParameterStart = currentParameter.startPosition;
+                    }
+                } else {
+                    currentNodes = getOrCreate(currentNodes, pattern[cursor],
+                            null);
+                }
+            }
+
+            if (cursor == pattern.length - 1) {
+				/* Last char in pattern is part of parameter */
+                update(currentNodes, value, sequence);
+            } else {
+				/* Last char in pattern is not part of parameter */
+                update(getOrCreate(currentNodes, pattern[cursor], null), value,
+                        sequence);
+            }
+        }
+    }
+
+    /* The specificity of parameter segments, literal segments come first */
+    private static final int SEGMENT_RESTRICTED = 1;
+    private static final int SEGMENT_NEGATED = 2;
+    private static final int SEGMENT_ANY = 3;
+
+    /**
+     * A node of a segmented trie, the children are reached by a whole segment
+     * of the key.
+     */
+    private static final class SegmentNode<V> implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+        private final Map<String, SegmentNode<V>> literalChildren = new HashMap<String, SegmentNode<V>>();
+        /* Ordered by specificity and then by creation */
+        private final List<SegmentEdge<V>> parameterChildren = new ArrayList<SegmentEdge<V>>();
+        private List<V> value;
+        private List<Integer> sequences;
+        private boolean inUse;
+
+        public void update(final V newValue, final int sequence) {
+            if (!inUse) {
+                value = new ArrayList<V>();
+                sequences = new ArrayList<Integer>();
+                inUse = true;
+            }
+
+            value.add(newValue);
+            sequences.add(sequence);
+        }
+
+        public SegmentNode<V> copy() {
+            final SegmentNode<V> copy = new SegmentNode<V>();
+
+            if (inUse) {
+                copy.value = new ArrayList<V>(value);
+                copy.sequences = new ArrayList<Integer>(sequences);
+                copy.inUse = true;
+            }
+
+            for (Map.Entry<String, SegmentNode<V>> entry : literalChildren
+                    .entrySet()) {
+                copy.literalChildren.put(entry.getKey(), entry.getValue()
+                        .copy());
+            }
+
+            for (SegmentEdge<V> edge : parameterChildren) {
+                copy.parameterChildren.add(new SegmentEdge<V>(edge,
+                        edge.target.copy()));
+            }
+
+            return copy;
+        }
+    }
+
+    /**
+     * An edge for a segment with parameters. The segment has to match the
+     * regular expression as a whole, every parameter is a group of it.
+     */
+    private static final class SegmentEdge<V> implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+        private final String template;
+        private final int specificity;
+        private final java.util.regex.Pattern pattern;
+        private final PatternParameter[] parameters;
+        private final int[] groups;
+        /* The patterns a negated parameter must not match, null for others */
+        private final java.util.regex.Pattern[] excluded;
+        private final SegmentNode<V> target;
+
+        public SegmentEdge(final String template, final int specificity,
+                           final java.util.regex.Pattern pattern,
+                           final PatternParameter[] parameters, final int[] groups,
+                           final java.util.regex.Pattern[] excluded) {
+            this.template = template;
+            this.specificity = specificity;
+            this.pattern = pattern;
+            this.parameters = parameters;
+            this.groups = groups;
+            this.excluded = excluded;
+            this.target = new SegmentNode<V>();
+        }
+
+        public SegmentEdge(final SegmentEdge<V> edge,
+                           final SegmentNode<V> target) {
+            this.template = edge.template;
+            this.specificity = edge.specificity;
+            this.pattern = edge.pattern;
+            this.parameters = edge.parameters;
+            this.groups = edge.groups;
+            this.excluded = edge.excluded;
+            this.target = target;
+        }
+
+        public boolean isSame(final SegmentEdge<V> edge) {
+            if (!template.equals(edge.template)
+                    || !pattern.pattern().equals(edge.pattern.pattern())) {
+                return false;
+            }
+
+            for (int i = 0; i < excluded.length; i++) {
+                if ((excluded[i] == null) != (edge.excluded[i] == null)
+                        || (excluded[i] != null && !excluded[i].pattern()
+                        .equals(edge.excluded[i].pattern()))) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * Returns the given captures extended by the parameters of this edge
+         * or null if the segment between start and end does not match.
+         */
+        public Capture match(final String key, final int start,
+                             final int end, Capture captures) {
+            final java.util.regex.Matcher matcher = pattern.matcher(key);
+
+            if (!matcher.region(start, end).matches()) {
+                return null;
+            }
+
+            for (int i = 0; i < parameters.length; i++) {
+                final int parameterStart = matcher.start(groups[i]);
+                final int parameterEnd = matcher.end(groups[i]);
+
+                if (excluded[i] != null
+                        && excluded[i].matcher(key)
+                        .region(parameterStart, parameterEnd).matches()) {
+                    return null;
+                }
+
+                captures = new Capture(parameters[i], parameterStart,
+                        parameterEnd, true, false, captures);
+            }
+
+            return captures;
+        }
+    }
+
+    private void addSegments(SegmentNode<V> node, final char[] pattern,
+                             final V value, final int sequence,
+                             final Map<Parameter, ExtendedPattern> parameters) {
+        final List<Map.Entry<Parameter, ExtendedPattern>> parameterEntries = new ArrayList<Map.Entry<Parameter, ExtendedPattern>>(
+                parameters.entrySet());
+        int parameterIndex = 0;
+        int segmentStart = 0;
+        int cursor = 0;
+
+        while (true) {
+            final int segmentParameterStart = parameterIndex;
+
+			/* Find the end of the segment, delimiters within parameter names don't count */
+            while (cursor < pattern.length && pattern[cursor] != delimiter) {
+                if (parameterIndex < parameterEntries.size()
+                        && parameterEntries.get(parameterIndex).getKey().startPosition == cursor) {
+                    cursor += parameterEntries.get(parameterIndex).getKey().name
+                            .length() + 2;
+                    parameterIndex++;
+                } else {
+                    cursor++;
+                }
+            }
+
+            if (segmentParameterStart == parameterIndex) {
+                final String segment = new String(pattern, segmentStart,
+                        cursor - segmentStart);
+                SegmentNode<V> child = node.literalChildren.get(segment);
+
+                if (child == null) {
+                    child = new SegmentNode<V>();
+                    node.literalChildren.put(segment, child);
+                }
+
+                node = child;
+            } else {
+                node = getOrCreateSegmentEdge(node, pattern, segmentStart,
+                        cursor, parameterEntries.subList(
+                        segmentParameterStart, parameterIndex)).target;
+            }
+
+            if (cursor >= pattern.length) {
+                break;
+            }
+
+            segmentStart = ++cursor;
+        }
+
+        node.update(value, sequence);
+    }
+
+    private SegmentEdge<V> getOrCreateSegmentEdge(final SegmentNode<V> node,
+                                                  final char[] pattern, final int start, final int end,
+                                                  final List<Map.Entry<Parameter, ExtendedPattern>> parameterEntries) {
+        final int parameterCount = parameterEntries.size();
+        final StringBuilder regex = new StringBuilder();
+        final PatternParameter[] segmentParameters = new PatternParameter[parameterCount];
+        final int[] groups = new int[parameterCount];
+        final java.util.regex.Pattern[] excluded = new java.util.regex.Pattern[parameterCount];
+        int specificity = SEGMENT_RESTRICTED;
+        int group = 1;
+        int cursor = start;
+
+        for (int i = 0; i < parameterCount; i++) {
+            final Parameter parameter = parameterEntries.get(i).getKey();
+            final ExtendedPattern parameterPattern = parameterEntries.get(i)
+                    .getValue();
+            final java.util.regex.Pattern compiledPattern = java.util.regex.Pattern
+                    .compile(parameterPattern.pattern);
+
+            if (cursor < parameter.startPosition) {
+                regex.append(java.util.regex.Pattern.quote(new String(
+                        pattern, cursor, parameter.startPosition - cursor)));
+            }
 
-    }
+            segmentParameters[i] = new PatternParameter(-1, i, parameter.name);
+            groups[i] = group;
 
-    private static final class TrieNode<V> implements Serializable {
+            if (parameterPattern.negated) {
+                excluded[i] = compiledPattern;
+                specificity = Math.max(specificity, SEGMENT_NEGATED);
+                regex.append("(.*)");
+                group++;
+            } else {
+                if (".*".equals(parameterPattern.pattern)) {
+                    specificity = SEGMENT_ANY;
+                }
 
-        private static final long serialVersionUID = 1L;
-        private final Map<Character, TrieNode<V>> children = new HashMap<Character, TrieNode<V>>();
-        private final Map<Character, TrieNode<V>> complementChildren = new HashMap<Character, TrieNode<V>>();
-        private List<V> value;
-        private boolean inUse;
-        private TrieNode<V> anyCharChild;
-        private final Set<PatternParameter> associatedParameters = new HashSet<PatternParameter>();
-        private final Set<PatternParameter> associatedParametersEnd = new HashSet<PatternParameter>();
+                regex.append('(').append(parameterPattern.pattern).append(')');
+				/* Groups within the parameter pattern shift the following groups */
+                group += 1 + compiledPattern.matcher("").groupCount();
+            }
 
-        public TrieNode(final V value) {
-            this.value = new ArrayList<V>();
-            this.value.add(value);
-            this.inUse = true;
+            cursor = parameter.startPosition + parameter.name.length() + 2;
         }
 
-        public TrieNode() {
-            this.inUse = false;
+        if (cursor < end) {
+            regex.append(java.util.regex.Pattern.quote(new String(pattern,
+                    cursor, end - cursor)));
         }
 
-        @Override
-        public String toString() {
-            return toString(0);
+        final SegmentEdge<V> edge = new SegmentEdge<V>(new String(pattern,
+                start, end - start), specificity,
+                java.util.regex.Pattern.compile(regex.toString()),
+                segmentParameters, groups, excluded);
+        final List<SegmentEdge<V>> edges = node.parameterChildren;
+        int insertionPoint = edges.size();
+
+        for (int i = 0; i < edges.size(); i++) {
+            final SegmentEdge<V> existing = edges.get(i);
+
+            if (existing.isSame(edge)) {
+                return existing;
+            }
+            if (existing.specificity > specificity
+                    && insertionPoint == edges.size()) {
+                insertionPoint = i;
+            }
         }
 
-        private String toString(int depth) {
-            StringBuilder sb = new StringBuilder();
+        edges.add(insertionPoint, edge);
+        return edge;
+    }
 
-            for (Map.Entry<Character, TrieNode<V>> entry : children.entrySet()) {
-                for (int i = 0; i < depth; i++) {
-                    sb.append(' ');
+    /**
+     * A depth first search through the segments of a key. The children of a
+     * segment node are tried in the order of their specificity, so the
+     * first match that is found is the most specific one.
+     */
+    private static final class SegmentSearch<V> {
+
+        private final String key;
+        private final int[] segmentStarts;
+        /* The specificity of the segments on the current path and on the path of the best match */
+        private final int[] specificities;
+        private int[] bestSpecificities;
+        private SegmentNode<V> bestNode;
+        private int bestValue;
+        private int bestSequence = Integer.MAX_VALUE;
+        private Capture bestCaptures;
+
+        public SegmentSearch(final String key, final char delimiter) {
+            int segmentCount = 1;
+
+            for (int i = 0; i < key.length(); i++) {
+                if (key.charAt(i) == delimiter) {
+                    segmentCount++;
                 }
-                sb.append('[').append(entry.getKey()).append("] = {\n")
-                        .append(entry.getValue().toString(depth + 1));
+            }
 
-                sb.append("\n");
-                for (int i = 0; i < depth; i++) {
-                    sb.append(' ');
+            this.key = key;
+            this.segmentStarts = new int[segmentCount];
+            this.specificities = new int[segmentCount];
+
+            for (int i = 0, segment = 1; i < key.length(); i++) {
+                if (key.charAt(i) == delimiter) {
+                    segmentStarts[segment++] = i + 1;
                 }
-                sb.append("}");
             }
-
-            return sb.toString();
         }
-    }
 
-    private void add(final char[] pattern, final V value, final int patternId,
-                     final Map<Parameter, ExtendedPattern> parameters) {
-        if (pattern.length == 0) {
-            update(root, value);
+        private int segmentEnd(final int segment) {
+            return segment + 1 < segmentStarts.length ? segmentStarts[segment + 1] - 1
+                    : key.length();
         }
 
-        int cursor = 0;
+        public void collect(final SegmentNode<V> node, final int segment,
+                            final Capture captures,
+                            final Set<ParameterizedValue<V>> result) {
+            if (segment == segmentStarts.length) {
+                if (node.inUse) {
+                    for (V nodeValue : node.value) {
+                        result.add(toValue(nodeValue, captures));
+                    }
+                }
 
-        if (parameters.isEmpty()) {
-            TrieNode<V> currentNode = root;
-            TrieNode<V> lastNode = null;
-			/* Simple key */
-            while (cursor < pattern.length && currentNode != null) {
-                lastNode = currentNode;
-                currentNode = currentNode.children.get(pattern[cursor]);
+                return;
+            }
 
-                ++cursor;
+            final int start = segmentStarts[segment];
+            final int end = segmentEnd(segment);
+            final SegmentNode<V> child = node.literalChildren.get(key
+                    .substring(start, end));
+
+            if (child != null) {
+                collect(child, segment + 1, captures, result);
             }
 
-            if (currentNode == null) {
-                cursor--;
+            for (SegmentEdge<V> edge : node.parameterChildren) {
+                final Capture edgeCaptures = edge.match(key, start, end,
+                        captures);
 
-                for (; cursor < pattern.length - 1; cursor++) {
-                    final TrieNode<V> nextNode = new TrieNode<V>();
-                    lastNode.children.put(pattern[cursor], nextNode);
-                    lastNode = nextNode;
+                if (edgeCaptures != null) {
+                    collect(edge.target, segment + 1, edgeCaptures, result);
                 }
+            }
+        }
 
-                lastNode.children.put(pattern[cursor], new TrieNode<V>(value));
-            } else {
-                update(currentNode, value);
+        /**
+         * Searches the best match, if only the specificity matters, paths
+         * that are less specific than the best match are not followed.
+         */
+        public void find(final SegmentNode<V> node, final int segment,
+                         final Capture captures, final boolean bySpecificity,
+                         final boolean equalToBest) {
+            if (segment == segmentStarts.length) {
+                if (node.inUse) {
+                    for (int i = 0; i < node.sequences.size(); i++) {
+                        if (node.sequences.get(i) < bestSequence) {
+                            bestNode = node;
+                            bestValue = i;
+                            bestSequence = node.sequences.get(i);
+                            bestCaptures = captures;
+
+                            if (bestSpecificities == null) {
+                                bestSpecificities = specificities.clone();
+                            }
+                        }
+                    }
+                }
+
+                return;
             }
-        } else {
-            final List<Map.Entry<Parameter, ExtendedPattern>> parameterEntries = new ArrayList<Map.Entry<Parameter, ExtendedPattern>>(
-                    parameters.entrySet());
-            List<TrieNode<V>> currentNodes = new ArrayList<TrieNode<V>>();
-            currentNodes.add(root);
 
-            patternParameters.put(patternId, new ArrayList<PatternParameter>());
+            final int start = segmentStarts[segment];
+            final int end = segmentEnd(segment);
+            final SegmentNode<V> child = node.literalChildren.get(key
+                    .substring(start, end));
 
-			/* Parameterized key */
-            int currentParameterIndex = 0;
-            Parameter currentParameter = parameterEntries.get(
-                    currentParameterIndex).getKey();
-            int currentParameterStart = currentParameter.startPosition;
+            if (child != null && follow(segment, 0, bySpecificity, equalToBest)) {
+                specificities[segment] = 0;
+                find(child, segment + 1, captures, bySpecificity,
+                        bestSpecificities == null
+                                || (equalToBest && bestSpecificities[segment] == 0));
+            }
 
-            for (; cursor < pattern.length - 1; cursor++) {
-                if (currentParameterStart == cursor) {
-                    PatternParameter patternParameter = new PatternParameter(
-                            patternId, currentParameterIndex,
-                            currentParameter.name);
-                    patternParameters.get(patternId).add(patternParameter);
-                    currentNodes = getOrCreatePatternNodes(currentNodes,
-                            patternParameter,
-                            parameterEntries.get(currentParameterIndex)
-                                    .getValue());
-                    cursor = currentParameterStart
-                            + currentParameter.name.length();
+            for (SegmentEdge<V> edge : node.parameterChildren) {
+                if (!follow(segment, edge.specificity, bySpecificity,
+                        equalToBest)) {
+					/* The edges are ordered by specificity, so the rest is even less specific */
+                    return;
+                }
 
-                    if (++currentParameterIndex < parameterEntries.size()) {
-                        ++cursor;
-                        currentParameter = parameterEntries.get(
-                                currentParameterIndex).getKey();
-                        currentParameterStart = currentParameter.startPosition;
-                    }
-                } else {
-                    currentNodes = getOrCreate(currentNodes, pattern[cursor],
-                            null);
+                final Capture edgeCaptures = edge.match(key, start, end,
+                        captures);
+
+                if (edgeCaptures != null) {
+                    specificities[segment] = edge.specificity;
+                    find(edge.target, segment + 1, edgeCaptures,
+                            bySpecificity, bestSpecificities == null
+                            || (equalToBest && bestSpecificities[segment] == edge.specificity));
                 }
             }
+        }
 
-            if (cursor == pattern.length - 1) {
-				/* Last char in pattern is part of parameter */
-                update(currentNodes, value);
-            } else {
-				/* Last char in pattern is not part of parameter */
-                update(getOrCreate(currentNodes, pattern[cursor], null), value);
+        private boolean follow(final int segment, final int specificity,
+                               final boolean bySpecificity, final boolean equalToBest) {
+            return !bySpecificity || bestSpecificities == null
+                    || (equalToBest && bestSpecificities[segment] == specificity);
+        }
+
+        public ParameterizedValue<V> best() {
+            if (bestNode == null) {
+                return null;
+            }
+
+            return toValue(bestNode.value.get(bestValue), bestCaptures);
+        }
+
+        private ParameterizedValue<V> toValue(final V nodeValue,
+                                              final Capture captures) {
+            final ParameterizedValueImpl<V> value = new ParameterizedValueImpl<V>(
+                    nodeValue, key);
+
+            for (Capture capture = captures; capture != null; capture = capture.next) {
+                value.setParameter(capture.parameter.name, capture.start,
+                        capture.end);
             }
+
+            return value;
         }
     }
 
-    private void update(final TrieNode<V> node, final V value) {
+    private void update(final TrieNode<V> node, final V value,
+                        final int sequence) {
         if (node.inUse) {
             node.value.add(value);
+            node.sequences.add(sequence);
         } else {
             node.value = new ArrayList<V>();
             node.value.add(value);
+            node.sequences = new ArrayList<Integer>();
+            node.sequences.add(sequence);
             node.inUse = true;
         }
     }
 
-    private void update(final List<TrieNode<V>> nodes, final V value) {
+    private void update(final List<TrieNode<V>> nodes, final V value,
+                        final int sequence) {
         for (int i = 0; i < nodes.size(); i++) {
-            update(nodes.get(i), value);
+            update(nodes.get(i), value, sequence);
         }
     }
 
@@ -776,6 +2508,39 @@ public class PatternTrie<V> implements Serializable {
     }
 
     private void mergeIntoNodes(List<TrieNode<V>> nodes, TrieNode<V> node) {
+        mergeIntoNodes(nodes, node,
+                new IdentityHashMap<TrieNode<V>, Set<TrieNode<V>>>());
+    }
+
+    /**
+     * Merges the edges, parameters and values of the given node into the
+     * given nodes and recursively merges the children that both have for the
+     * same edge. The graphs of repeated patterns contain cycles, e.g. after
+     * "/{a}/{b}" was added, adding "/{a}" merges the loop of the new
+     * parameter into the loop of the existing one. Without remembering the
+     * pairs of nodes that were merged already, the recursion would follow
+     * both cycles forever and end with a StackOverflowError.
+     */
+    private void mergeIntoNodes(final List<TrieNode<V>> targets,
+                                final TrieNode<V> node,
+                                final Map<TrieNode<V>, Set<TrieNode<V>>> merged) {
+        final List<TrieNode<V>> nodes = new ArrayList<TrieNode<V>>(
+                targets.size());
+
+        for (int i = 0; i < targets.size(); i++) {
+            final TrieNode<V> target = targets.get(i);
+            Set<TrieNode<V>> sources = merged.get(target);
+
+            if (sources == null) {
+                sources = Collections
+                        .newSetFromMap(new IdentityHashMap<TrieNode<V>, Boolean>());
+                merged.put(target, sources);
+            }
+            if (target != node && sources.add(node)) {
+                nodes.add(target);
+            }
+        }
+
         if (nodes.isEmpty()) {
             return;
         }
@@ -797,7 +2562,7 @@ public class PatternTrie<V> implements Serializable {
                 }
             }
 
-            mergeIntoNodes(newTargetNodes, tempNodeEntry.getValue());
+            mergeIntoNodes(newTargetNodes, tempNodeEntry.getValue(), merged);
         }
 
         for (Map.Entry<Character, TrieNode<V>> tempNodeEntry : node.complementChildren
@@ -817,7 +2582,7 @@ public class PatternTrie<V> implements Serializable {
                 }
             }
 
-            mergeIntoNodes(newTargetNodes, tempNodeEntry.getValue());
+            mergeIntoNodes(newTargetNodes, tempNodeEntry.getValue(), merged);
         }
 
         List<TrieNode<V>> newTargetNodes = new ArrayList<TrieNode<V>>();
@@ -838,13 +2603,14 @@ public class PatternTrie<V> implements Serializable {
         }
 
         if (node.anyCharChild != null) {
-            mergeIntoNodes(newTargetNodes, node.anyCharChild);
+            mergeIntoNodes(newTargetNodes, node.anyCharChild, merged);
         }
 
         if (node.inUse) {
             for (int i = 0; i < nodes.size(); i++) {
                 for (int j = 0; j < node.value.size(); j++) {
-                    update(nodes.get(i), node.value.get(j));
+                    update(nodes.get(i), node.value.get(j),
+                            node.sequences.get(j));
                 }
             }
         }
@@ -1063,16 +2829,328 @@ public class PatternTrie<V> implements Serializable {
         return newNodes;
     }
 
+    /**
+     * Writes the node graph as a table in breadth first order where the edges
+     * refer to the index of the target node and the pattern parameters refer
+     * to their index in a parameter table. Since nodes can be shared and the
+     * graph of repeated patterns contains cycles, this avoids the deep
+     * recursion of the default serialization.
+     *
+     * @serialData The parameter table, the parameters of every pattern id,
+     *             the node table and the registered patterns with their
+     *             values and the positions and patterns of their parameters,
+     *             all counts, ids and indices as variable length ints
+     */
+    private synchronized void writeObject(final ObjectOutputStream out)
+            throws IOException {
+        out.defaultWriteObject();
+
+        final Version<V> current = version;
+        final TrieNode<V> root = current.root;
+        final Map<Integer, List<PatternParameter>> patternParameters = current.patternParameters;
+
+        final Map<TrieNode<V>, Integer> nodeIds = new IdentityHashMap<TrieNode<V>, Integer>();
+        final List<TrieNode<V>> nodes = new ArrayList<TrieNode<V>>();
+        final Map<PatternParameter, Integer> parameterIds = new HashMap<PatternParameter, Integer>();
+        final List<PatternParameter> parameters = new ArrayList<PatternParameter>();
+
+        nodeIds.put(root, 0);
+        nodes.add(root);
+
+        for (int i = 0; i < nodes.size(); i++) {
+            final TrieNode<V> node = nodes.get(i);
+
+            for (TrieNode<V> child : node.children.values()) {
+                addNode(nodeIds, nodes, child);
+            }
+            for (TrieNode<V> child : node.complementChildren.values()) {
+                addNode(nodeIds, nodes, child);
+            }
+            if (node.anyCharChild != null) {
+                addNode(nodeIds, nodes, node.anyCharChild);
+            }
+            for (PatternParameter parameter : node.associatedParameters) {
+                addParameter(parameterIds, parameters, parameter);
+            }
+            for (PatternParameter parameter : node.associatedParametersEnd) {
+                addParameter(parameterIds, parameters, parameter);
+            }
+        }
+
+        for (List<PatternParameter> params : patternParameters.values()) {
+            for (PatternParameter parameter : params) {
+                addParameter(parameterIds, parameters, parameter);
+            }
+        }
+
+        TrieMap.writeVarInt(out, parameters.size());
+
+        for (PatternParameter parameter : parameters) {
+            TrieMap.writeVarInt(out, parameter.patternId);
+            TrieMap.writeVarInt(out, parameter.parameterIndex);
+            out.writeUTF(parameter.name);
+        }
+
+        TrieMap.writeVarInt(out, patternParameters.size());
+
+        for (Map.Entry<Integer, List<PatternParameter>> entry : patternParameters
+                .entrySet()) {
+            TrieMap.writeVarInt(out, entry.getKey());
+            writeParameters(out, parameterIds, entry.getValue());
+        }
+
+        TrieMap.writeVarInt(out, nodes.size());
+
+        for (TrieNode<V> node : nodes) {
+            out.writeBoolean(node.inUse);
+
+            if (node.inUse) {
+                TrieMap.writeVarInt(out, node.value.size());
+
+                for (int i = 0; i < node.value.size(); i++) {
+                    out.writeObject(node.value.get(i));
+                    TrieMap.writeVarInt(out, node.sequences.get(i));
+                }
+            }
+
+            writeChildren(out, nodeIds, node.children);
+            writeChildren(out, nodeIds, node.complementChildren);
+			/* The root can't be a child, so 0 means there is no any char child */
+            TrieMap.writeVarInt(out, node.anyCharChild == null ? 0 : nodeIds
+                    .get(node.anyCharChild));
+            writeParameters(out, parameterIds, node.associatedParameters);
+            writeParameters(out, parameterIds, node.associatedParametersEnd);
+        }
+
+        TrieMap.writeVarInt(out, current.registrations.size());
+
+        for (Map.Entry<Integer, Registration<V>> entry : current.registrations
+                .entrySet()) {
+            final String pattern = entry.getValue().pattern;
+            TrieMap.writeVarInt(out, entry.getKey());
+			/* Static keys have the pattern id -1 */
+            TrieMap.writeVarInt(out, entry.getValue().patternId + 1);
+            TrieMap.writeVarInt(out, pattern.length());
+
+            for (int i = 0; i < pattern.length(); i++) {
+                out.writeChar(pattern.charAt(i));
+            }
+
+            out.writeObject(entry.getValue().value);
+            TrieMap.writeVarInt(out, entry.getValue().parameters.size());
+
+            for (Map.Entry<Parameter, ExtendedPattern> parameter : entry
+                    .getValue().parameters.entrySet()) {
+                TrieMap.writeVarInt(out, parameter.getKey().startPosition);
+                out.writeUTF(parameter.getKey().name);
+                out.writeUTF(parameter.getValue().pattern);
+                out.writeBoolean(parameter.getValue().negated);
+            }
+        }
+
+        if (segmented) {
+            out.writeObject(current.segmentRoot);
+        }
+    }
+
+    private static <V> void addNode(final Map<TrieNode<V>, Integer> nodeIds,
+                                    final List<TrieNode<V>> nodes,
+                                    final TrieNode<V> node) {
+        if (!nodeIds.containsKey(node)) {
+            nodeIds.put(node, nodes.size());
+            nodes.add(node);
+        }
+    }
+
+    private static void addParameter(
+            final Map<PatternParameter, Integer> parameterIds,
+            final List<PatternParameter> parameters,
+            final PatternParameter parameter) {
+        if (!parameterIds.containsKey(parameter)) {
+            parameterIds.put(parameter, parameters.size());
+            parameters.add(parameter);
+        }
+    }
+
+    private static <V> void writeChildren(final ObjectOutputStream out,
+                                          final Map<TrieNode<V>, Integer> nodeIds,
+                                          final Map<Character, TrieNode<V>> children)
+            throws IOException {
+        TrieMap.writeVarInt(out, children.size());
+
+        for (Map.Entry<Character, TrieNode<V>> entry : children.entrySet()) {
+            out.writeChar(entry.getKey());
+            TrieMap.writeVarInt(out, nodeIds.get(entry.getValue()));
+        }
+    }
+
+    private static void writeParameters(final ObjectOutputStream out,
+                                        final Map<PatternParameter, Integer> parameterIds,
+                                        final Collection<PatternParameter> parameters)
+            throws IOException {
+        TrieMap.writeVarInt(out, parameters.size());
+
+        for (PatternParameter parameter : parameters) {
+            TrieMap.writeVarInt(out, parameterIds.get(parameter));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(final ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        resolveCacheHits = new AtomicLong();
+        resolveCacheMisses = new AtomicLong();
+
+        final PatternParameter[] parameters = new PatternParameter[TrieMap
+                .readVarInt(in)];
+
+        for (int i = 0; i < parameters.length; i++) {
+            final int patternId = TrieMap.readVarInt(in);
+            final int parameterIndex = TrieMap.readVarInt(in);
+            parameters[i] = new PatternParameter(patternId, parameterIndex,
+                    in.readUTF());
+        }
+
+        final int patternCount = TrieMap.readVarInt(in);
+        final Map<Integer, List<PatternParameter>> patternParameters = new HashMap<Integer, List<PatternParameter>>(
+                Math.max(16, patternCount * 2));
+
+        for (int i = 0; i < patternCount; i++) {
+            final int patternId = TrieMap.readVarInt(in);
+            final List<PatternParameter> params = new ArrayList<PatternParameter>();
+            readParameters(in, parameters, params);
+            patternParameters.put(patternId, params);
+        }
+
+        final TrieNode<V>[] nodes = TrieNode.<V> newArray(TrieMap.readVarInt(in));
+
+        if (nodes.length == 0) {
+            throw new StreamCorruptedException("Missing root node");
+        }
+
+		/* Edges can point to nodes that come later, so create all nodes first */
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = new TrieNode<V>();
+        }
+
+        for (int i = 0; i < nodes.length; i++) {
+            final TrieNode<V> node = nodes[i];
+
+            if (in.readBoolean()) {
+                final int valueCount = TrieMap.readVarInt(in);
+                node.value = new ArrayList<V>(valueCount);
+                node.sequences = new ArrayList<Integer>(valueCount);
+                node.inUse = true;
+
+                for (int j = 0; j < valueCount; j++) {
+                    node.value.add((V) in.readObject());
+                    node.sequences.add(TrieMap.readVarInt(in));
+                }
+            }
+
+            readChildren(in, nodes, node.children);
+            readChildren(in, nodes, node.complementChildren);
+
+            final int anyCharChild = TrieMap.readVarInt(in);
+
+            if (anyCharChild != 0) {
+                node.anyCharChild = nodes[checkIndex(anyCharChild, nodes.length)];
+            }
+
+            readParameters(in, parameters, node.associatedParameters);
+            readParameters(in, parameters, node.associatedParametersEnd);
+        }
+
+        final int registrationCount = TrieMap.readVarInt(in);
+        final Map<Integer, Registration<V>> registrations = new HashMap<Integer, Registration<V>>(
+                Math.max(16, registrationCount * 2));
+        final StringBuilder pattern = new StringBuilder();
+
+        for (int i = 0; i < registrationCount; i++) {
+            final int sequence = TrieMap.readVarInt(in);
+            final int patternId = TrieMap.readVarInt(in) - 1;
+            final int patternLength = TrieMap.readVarInt(in);
+            pattern.setLength(0);
+
+            for (int j = 0; j < patternLength; j++) {
+                pattern.append(in.readChar());
+            }
+
+            final V value = (V) in.readObject();
+            final int parameterCount = TrieMap.readVarInt(in);
+            final Map<Parameter, ExtendedPattern> registrationParameters = new LinkedHashMap<Parameter, ExtendedPattern>(
+                    Math.max(16, parameterCount * 2));
+
+            for (int j = 0; j < parameterCount; j++) {
+                final int start = checkIndex(TrieMap.readVarInt(in),
+                        patternLength);
+                final String name = in.readUTF();
+                registrationParameters.put(new Parameter(name, start),
+                        new ExtendedPattern(in.readUTF(), in.readBoolean()));
+            }
+
+            registrations.put(sequence, new Registration<V>(
+                    pattern.toString(), patternId, value,
+                    registrationParameters));
+        }
+
+        version = new Version<V>(nodes[0], patternParameters,
+                segmented ? (SegmentNode<V>) in.readObject() : null);
+        version.registrations.putAll(registrations);
+    }
+
+    private static <V> void readChildren(final ObjectInputStream in,
+                                         final TrieNode<V>[] nodes,
+                                         final Map<Character, TrieNode<V>> children)
+            throws IOException {
+        final int childCount = TrieMap.readVarInt(in);
+
+        for (int i = 0; i < childCount; i++) {
+            final char c = in.readChar();
+            children.put(c, nodes[checkIndex(TrieMap.readVarInt(in),
+                    nodes.length)]);
+        }
+    }
+
+    private static void readParameters(final ObjectInputStream in,
+                                       final PatternParameter[] parameters,
+                                       final Collection<PatternParameter> target)
+            throws IOException {
+        final int parameterCount = TrieMap.readVarInt(in);
+
+        for (int i = 0; i < parameterCount; i++) {
+            target.add(parameters[checkIndex(TrieMap.readVarInt(in),
+                    parameters.length)]);
+        }
+    }
+
+    private static int checkIndex(final int index, final int length)
+            throws StreamCorruptedException {
+        if (index >= length) {
+            throw new StreamCorruptedException("Invalid reference " + index);
+        }
+
+        return index;
+    }
+
     public String toString() {
+        final Version<V> current = version;
+
+        if (segmented) {
+            return toString(current.segmentRoot, new StringBuilder(), 0)
+                    .toString();
+        }
+
         Map<PatternParameter, Integer> parameterCount = new HashMap<PatternParameter, Integer>();
 
-        for (List<PatternParameter> params : patternParameters.values()) {
+        for (List<PatternParameter> params : current.patternParameters.values()) {
             for (PatternParameter param : params) {
                 parameterCount.put(param, 0);
             }
         }
 
-        return toString(root, new StringBuilder(), 0, parameterCount, 100)
+        return toString(current.root, new StringBuilder(), 0, parameterCount, 100)
                 .toString();
     }
 
@@ -1220,4 +3298,36 @@ public class PatternTrie<V> implements Serializable {
 
         return sb;
     }
+
+    private static <V> StringBuilder toString(final SegmentNode<V> node,
+                                              final StringBuilder sb, final int depth) {
+        for (Map.Entry<String, SegmentNode<V>> entry : new TreeMap<String, SegmentNode<V>>(
+                node.literalChildren).entrySet()) {
+            appendSegment(sb, depth, entry.getKey(), entry.getValue());
+            toString(entry.getValue(), sb, depth + 2);
+        }
+
+        for (SegmentEdge<V> edge : node.parameterChildren) {
+            appendSegment(sb, depth, edge.template + " ~ "
+                    + edge.pattern.pattern(), edge.target);
+            toString(edge.target, sb, depth + 2);
+        }
+
+        return sb;
+    }
+
+    private static <V> void appendSegment(final StringBuilder sb,
+                                          final int depth, final String segment, final SegmentNode<V> node) {
+        for (int i = 0; i < depth; i++) {
+            sb.append(' ');
+        }
+
+        sb.append('[').append(segment).append(']');
+
+        if (node.inUse) {
+            sb.append(" => ").append(node.value);
+        }
+
+        sb.append('\n');
+    }
 }
@@ -0,0 +1,501 @@
+/**
+ * Copyright 2012 Blazebit
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.blazebit.collection;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * An immutable trie map whose modifications return new versions of the map
+ * that share all untouched nodes with the previous version. Since the nodes
+ * are never modified, every version can be read concurrently without
+ * synchronization and publishing a new version is as cheap as publishing a
+ * reference.
+ *
+ * The implementation is a path compressed (radix) trie like {@link TrieMap}.
+ * The children of a node are stored in exactly sized arrays that are sorted
+ * by the first char of the child labels. {@link #with(CharSequence, Object)}
+ * and {@link #without(CharSequence)} copy only the nodes on the path of the
+ * key, so an update costs <code>O(k)</code> time and memory where
+ * <code>k</code> is the length of the key.
+ *
+ * The mutating methods of the {@link Map} interface throw an
+ * {@link UnsupportedOperationException}. This map does not support null keys,
+ * instead an empty string should be used.
+ *
+ * @param <V>
+ *            The value type that the trie holds.
+ *
+ */
+public final class PersistentTrieMap<V> extends AbstractMap<CharSequence, V>
+        implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final PersistentTrieMap<Object> EMPTY = new PersistentTrieMap<Object>(
+            ImmutableTrieNode.<Object> empty(), 0);
+
+    /* The nodes are written as entries, see writeObject */
+    private transient ImmutableTrieNode<V> root;
+    private transient int size;
+
+    private PersistentTrieMap(final ImmutableTrieNode<V> root, final int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Returns the empty map.
+     *
+     * @return The empty map
+     */
+    @SuppressWarnings("unchecked")
+    public static <V> PersistentTrieMap<V> empty() {
+        return (PersistentTrieMap<V>) EMPTY;
+    }
+
+    /**
+     * Returns a map with the entries of the given map.
+     *
+     * @param map
+     *            The map from which to take the entries
+     * @return A map with the entries of the given map
+     */
+    public static <V> PersistentTrieMap<V> from(
+            final Map<? extends CharSequence, ? extends V> map) {
+        PersistentTrieMap<V> result = empty();
+
+        for (Entry<? extends CharSequence, ? extends V> entry : map.entrySet()) {
+            result = result.with(entry.getKey(), entry.getValue());
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns a map that contains the entries of this map and associates the
+     * given value with the given key. This map is not modified.
+     *
+     * @param key
+     *            The key
+     * @param value
+     *            The value
+     * @return The new version of the map or this map when the key is already
+     *         associated with the same value instance
+     */
+    public PersistentTrieMap<V> with(final CharSequence key, final V value) {
+        final int keyLength = keyCheck(key).length();
+        final Path<V> path = new Path<V>(keyLength);
+        ImmutableTrieNode<V> node = root;
+        ImmutableTrieNode<V> replacement;
+        int i = 0;
+        int newSize = size + 1;
+
+        while (true) {
+            if (i == keyLength) {
+                if (node.inUse) {
+                    if (node.value == value) {
+                        return this;
+                    }
+
+                    --newSize;
+                }
+
+                replacement = node.withValue(value);
+                break;
+            }
+
+            final int index = node.indexOf(key.charAt(i));
+
+            if (index < 0) {
+                replacement = node.withInsertedChild(-(index + 1),
+                        new ImmutableTrieNode<V>(toChars(key, i, keyLength),
+                                value));
+                break;
+            }
+
+            final ImmutableTrieNode<V> child = node.children[index];
+            final char[] label = child.label;
+            final int end = Math.min(label.length, keyLength - i);
+            int matched = 1;
+
+            while (matched < end && label[matched] == key.charAt(i + matched)) {
+                ++matched;
+            }
+
+            if (matched < label.length) {
+				/* The key leaves or ends within the label, so split the edge */
+                final ImmutableTrieNode<V> rest = child.withLabel(Arrays
+                        .copyOfRange(label, matched, label.length));
+                final ImmutableTrieNode<V> split = new ImmutableTrieNode<V>(
+                        Arrays.copyOf(label, matched), value);
+                ImmutableTrieNode<V> splitNode;
+
+                if (i + matched == keyLength) {
+                    splitNode = split.withInsertedChild(0, rest);
+                } else {
+                    final ImmutableTrieNode<V> leaf = new ImmutableTrieNode<V>(
+                            toChars(key, i + matched, keyLength), value);
+                    splitNode = split.withoutValue().withInsertedChild(0, rest);
+                    splitNode = splitNode.withInsertedChild(-(splitNode
+                            .indexOf(leaf.label[0]) + 1), leaf);
+                }
+
+                replacement = node.withChild(index, splitNode);
+                break;
+            }
+
+            path.push(node, index);
+            node = child;
+            i += label.length;
+        }
+
+        return new PersistentTrieMap<V>(path.rebuild(replacement), newSize);
+    }
+
+    /**
+     * Returns a map that contains the entries of this map except the given
+     * key. This map is not modified.
+     *
+     * @param key
+     *            The key
+     * @return The new version of the map or this map when the key is not
+     *         contained
+     */
+    public PersistentTrieMap<V> without(final CharSequence key) {
+        final int keyLength = keyCheck(key).length();
+        final Path<V> path = new Path<V>(keyLength);
+        ImmutableTrieNode<V> node = root;
+        int i = 0;
+
+        while (i < keyLength) {
+            final int index = node.indexOf(key.charAt(i));
+
+            if (index < 0) {
+                return this;
+            }
+
+            final ImmutableTrieNode<V> child = node.children[index];
+            final char[] label = child.label;
+
+            if (keyLength - i < label.length) {
+                return this;
+            }
+
+            for (int j = 1; j < label.length; j++) {
+                if (label[j] != key.charAt(i + j)) {
+                    return this;
+                }
+            }
+
+            path.push(node, index);
+            node = child;
+            i += label.length;
+        }
+
+        if (!node.inUse) {
+            return this;
+        }
+
+        final ImmutableTrieNode<V> replacement;
+
+        if (path.depth == 0) {
+			/* The root keeps its empty label */
+            replacement = node.withoutValue();
+        } else if (node.children.length == 0) {
+            replacement = null;
+        } else if (node.children.length == 1) {
+            replacement = node.mergeWithChild();
+        } else {
+            replacement = node.withoutValue();
+        }
+
+        return new PersistentTrieMap<V>(path.rebuild(replacement), size - 1);
+    }
+
+    /**
+     * The nodes and child indexes on the path to a modified node.
+     */
+    private static final class Path<V> {
+
+        private ImmutableTrieNode<V>[] nodes;
+        private int[] indexes;
+        private int depth;
+
+        public Path(final int keyLength) {
+            final int capacity = Math.min(keyLength + 1, 16);
+            this.nodes = ImmutableTrieNode.<V> newArray(capacity);
+            this.indexes = new int[capacity];
+        }
+
+        public void push(final ImmutableTrieNode<V> node, final int index) {
+            if (depth == nodes.length) {
+                nodes = Arrays.copyOf(nodes, depth << 1);
+                indexes = Arrays.copyOf(indexes, depth << 1);
+            }
+
+            nodes[depth] = node;
+            indexes[depth] = index;
+            ++depth;
+        }
+
+        /**
+         * Copies the nodes on the path with the given replacement of the
+         * deepest child, a null replacement removes the child. Returns the
+         * new root.
+         */
+        public ImmutableTrieNode<V> rebuild(
+                final ImmutableTrieNode<V> replacement) {
+            ImmutableTrieNode<V> current = replacement;
+
+            for (int i = depth - 1; i >= 0; i--) {
+                final ImmutableTrieNode<V> parent = nodes[i];
+
+                if (current == null) {
+                    current = parent.withoutChild(indexes[i]);
+
+                    if (i > 0 && !current.inUse
+                            && current.children.length == 1) {
+                        current = current.mergeWithChild();
+                    }
+                } else {
+                    current = parent.withChild(indexes[i], current);
+                }
+            }
+
+            return current;
+        }
+    }
+
+    private static char[] toChars(final CharSequence s, final int start,
+                                  final int end) {
+        final char[] chars = new char[end - start];
+
+        for (int i = start; i < end; i++) {
+            chars[i - start] = s.charAt(i);
+        }
+
+        return chars;
+    }
+
+    private ImmutableTrieNode<V> findNode(final CharSequence key) {
+        final int keyLength = key.length();
+        ImmutableTrieNode<V> node = root;
+        int i = 0;
+
+        while (i < keyLength) {
+            final int index = node.indexOf(key.charAt(i));
+
+            if (index < 0) {
+                return null;
+            }
+
+            node = node.children[index];
+            final char[] label = node.label;
+
+            if (keyLength - i < label.length) {
+                return null;
+            }
+
+            for (int j = 1; j < label.length; j++) {
+                if (label[j] != key.charAt(i + j)) {
+                    return null;
+                }
+            }
+
+            i += label.length;
+        }
+
+        return node.inUse ? node : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V get(final Object key) {
+        final ImmutableTrieNode<V> node = findNode(keyCheck(key));
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean containsKey(final Object key) {
+        return findNode(keyCheck(key)) != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private static CharSequence keyCheck(final Object key) {
+        if (key == null) {
+            throw new IllegalArgumentException(
+                    "This map does not support null keys");
+        } else if (!(key instanceof CharSequence)) {
+            throw new IllegalArgumentException(
+                    "Argument must be instance of CharSequence");
+        }
+
+        return (CharSequence) key;
+    }
+
+    /*
+     * Serialization
+     */
+
+    private void writeObject(final ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size);
+
+        for (Entry<CharSequence, V> entry : entrySet()) {
+            final CharSequence key = entry.getKey();
+            final int keyLength = key.length();
+            TrieMap.writeVarInt(out, keyLength);
+
+            for (int i = 0; i < keyLength; i++) {
+                out.writeChar(key.charAt(i));
+            }
+
+            out.writeObject(entry.getValue());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(final ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        final int entryCount = in.readInt();
+        final StringBuilder key = new StringBuilder();
+        PersistentTrieMap<V> map = empty();
+
+        for (int i = 0; i < entryCount; i++) {
+            final int keyLength = TrieMap.readVarInt(in);
+            key.setLength(0);
+
+            for (int j = 0; j < keyLength; j++) {
+                key.append(in.readChar());
+            }
+
+            map = map.with(key, (V) in.readObject());
+        }
+
+        this.root = map.root;
+        this.size = map.size;
+    }
+
+	/*
+	 * Iterators
+	 */
+
+    /**
+     * Iterator that returns the entries in lexicographical order of their
+     * keys. Since the nodes are immutable, the iterator is not affected by
+     * newer versions of the map.
+     */
+    private final class EntryIterator implements
+            Iterator<Entry<CharSequence, V>> {
+
+        private final Deque<ImmutableTrieNode<V>> nodes =
+                new ArrayDeque<ImmutableTrieNode<V>>();
+        private final Deque<String> keys = new ArrayDeque<String>();
+        private Entry<CharSequence, V> next;
+
+        public EntryIterator() {
+            nodes.push(root);
+            keys.push("");
+            fetchEntry();
+        }
+
+        private void fetchEntry() {
+            Entry<CharSequence, V> localNext = null;
+
+            while (localNext == null && !nodes.isEmpty()) {
+                final ImmutableTrieNode<V> node = nodes.pop();
+                final String key = keys.pop();
+                final ImmutableTrieNode<V>[] children = node.children;
+
+                if (node.inUse) {
+                    localNext = new AbstractMap.SimpleImmutableEntry<CharSequence, V>(
+                            key, node.value);
+                }
+
+				/* Push in reverse order so the smallest child comes first */
+                for (int i = children.length - 1; i >= 0; i--) {
+                    nodes.push(children[i]);
+                    keys.push(new StringBuilder(key.length()
+                            + children[i].label.length).append(key)
+                            .append(children[i].label).toString());
+                }
+            }
+
+            next = localNext;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry<CharSequence, V> next() {
+            final Entry<CharSequence, V> entry = next;
+
+            if (entry == null) {
+                throw new NoSuchElementException();
+            }
+
+            fetchEntry();
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException(
+                    "PersistentTrieMap is immutable");
+        }
+    }
+
+    private transient Set<Entry<CharSequence, V>> entrySet;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<Entry<CharSequence, V>> entrySet() {
+        final Set<Entry<CharSequence, V>> es = entrySet;
+        return es != null ? es : (entrySet = new AbstractSet<Entry<CharSequence, V>>() {
+
+            @Override
+            public Iterator<Entry<CharSequence, V>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        });
+    }
+}
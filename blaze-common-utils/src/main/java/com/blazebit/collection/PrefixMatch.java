@@ -0,0 +1,75 @@
+/**
+ * Copyright 2012 Blazebit
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.blazebit.collection;
+
+/**
+ * A reusable holder for the result of a longest prefix match, see
+ * {@link TrieMap#longestPrefixMatch(CharSequence, int, int, PrefixMatch)}.
+ * Reusing one instance for many lookups avoids allocations on hot paths.
+ *
+ * @param <V>
+ *            The value type of the matched entry
+ */
+public final class PrefixMatch<V> {
+
+    private int length = -1;
+    private V value;
+
+    /**
+     * Returns true when the last lookup found a key.
+     *
+     * @return True when a key was found, otherwise false
+     */
+    public boolean isMatched() {
+        return length >= 0;
+    }
+
+    /**
+     * Returns the length of the matched key or -1 if no key was found.
+     *
+     * @return The length of the matched key
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the value of the matched key or null if no key was found.
+     *
+     * @return The value of the matched key
+     */
+    public V getValue() {
+        return value;
+    }
+
+    void set(final int length, final V value) {
+        this.length = length;
+        this.value = value;
+    }
+
+    /**
+     * Resets this holder to the unmatched state.
+     */
+    public void reset() {
+        this.length = -1;
+        this.value = null;
+    }
+
+    @Override
+    public String toString() {
+        return "PrefixMatch [length=" + length + ", value=" + value + "]";
+    }
+}
@@ -0,0 +1,410 @@
+/**
+ * Copyright 2012 Blazebit
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.blazebit.collection;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * An index that finds the keys which contain a substring. The index is a
+ * generalized suffix automaton of the keys, so every substring of a key leads
+ * to exactly one state. Every state stores the ids of the keys that contain
+ * its substrings in the order in which the keys were added, which makes
+ * {@link #keysContaining(CharSequence)} take time proportional to the length
+ * of the substring plus the amount of results.
+ *
+ * Keys are added incrementally. Adding a key extends the automaton in time
+ * proportional to the key length and then marks the states of the substrings
+ * of the key by following the suffix links from the state of every prefix
+ * until a state is reached that is already marked with that key.
+ */
+public class SubstringIndex implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final char[] EMPTY_CHARS = new char[0];
+    private static final State[] EMPTY_STATES = new State[0];
+    private static final int[] EMPTY_INTS = new int[0];
+
+    private static final class State {
+
+        /* The length of the longest substring of this state */
+        private int length;
+        private State link;
+        /* Transitions sorted by char */
+        private char[] chars;
+        private State[] targets;
+        private int transitionCount;
+        /* The ids of the keys that contain the substrings of this state, ascending */
+        private int[] keyIds;
+        private int keyCount;
+
+        public State(final int length) {
+            this.length = length;
+            this.chars = EMPTY_CHARS;
+            this.targets = EMPTY_STATES;
+            this.keyIds = EMPTY_INTS;
+        }
+
+        public State cloneWithLength(final int newLength) {
+            final State clone = new State(newLength);
+            clone.link = link;
+            clone.chars = Arrays.copyOf(chars, transitionCount);
+            clone.targets = Arrays.copyOf(targets, transitionCount);
+            clone.transitionCount = transitionCount;
+            clone.keyIds = Arrays.copyOf(keyIds, keyCount);
+            clone.keyCount = keyCount;
+            return clone;
+        }
+
+        private int indexOf(final char c) {
+            return Arrays.binarySearch(chars, 0, transitionCount, c);
+        }
+
+        public State next(final char c) {
+            final int index = indexOf(c);
+            return index < 0 ? null : targets[index];
+        }
+
+        public void setNext(final char c, final State target) {
+            final int index = indexOf(c);
+
+            if (index >= 0) {
+                targets[index] = target;
+                return;
+            }
+
+            final int insertionPoint = -(index + 1);
+
+            if (transitionCount == chars.length) {
+                final int newLength = Math.max(2, transitionCount << 1);
+                chars = Arrays.copyOf(chars, newLength);
+                targets = Arrays.copyOf(targets, newLength);
+            }
+
+            System.arraycopy(chars, insertionPoint, chars, insertionPoint + 1,
+                    transitionCount - insertionPoint);
+            System.arraycopy(targets, insertionPoint, targets,
+                    insertionPoint + 1, transitionCount - insertionPoint);
+            chars[insertionPoint] = c;
+            targets[insertionPoint] = target;
+            ++transitionCount;
+        }
+
+        /**
+         * Marks this state with the given key id and returns false if it was
+         * already marked. Key ids are added in ascending order, so only the
+         * last id has to be checked.
+         */
+        public boolean mark(final int keyId) {
+            if (keyCount > 0 && keyIds[keyCount - 1] == keyId) {
+                return false;
+            }
+
+            if (keyCount == keyIds.length) {
+                keyIds = Arrays.copyOf(keyIds, Math.max(2, keyCount << 1));
+            }
+
+            keyIds[keyCount++] = keyId;
+            return true;
+        }
+    }
+
+    /* Only the keys are written, the automaton is rebuilt, see writeObject */
+    private transient State root;
+    private transient List<String> keys;
+    private transient TrieMap<Integer> keyIds;
+    private transient int stateCount;
+
+    /**
+     * Constructs an empty SubstringIndex
+     */
+    public SubstringIndex() {
+        init();
+    }
+
+    /**
+     * Constructs a new SubstringIndex that contains the given keys.
+     *
+     * @param keys
+     *            The keys to add
+     */
+    public SubstringIndex(final Iterable<? extends CharSequence> keys) {
+        this();
+        addAll(keys);
+    }
+
+    private void init() {
+        this.root = new State(0);
+        this.keys = new ArrayList<String>();
+        this.keyIds = new TrieMap<Integer>();
+        this.stateCount = 1;
+    }
+
+    /**
+     * Adds the given key to the index.
+     *
+     * @param key
+     *            The key to add
+     * @return True if the key was added, false if it was already contained
+     * @throws IllegalArgumentException
+     *             When the key is null
+     */
+    public boolean add(final CharSequence key) {
+        if (key == null) {
+            throw new IllegalArgumentException(
+                    "This index does not support null keys");
+        }
+        if (keyIds.containsKey(key)) {
+            return false;
+        }
+
+        final String keyString = key.toString();
+        final int keyId = keys.size();
+        final int keyLength = keyString.length();
+        final State[] prefixStates = new State[keyLength];
+        State last = root;
+
+        keys.add(keyString);
+        keyIds.put(keyString, keyId);
+
+        for (int i = 0; i < keyLength; i++) {
+            last = extend(last, keyString.charAt(i));
+            prefixStates[i] = last;
+        }
+
+		/* Every substring is a suffix of a prefix, the root stands for the empty substring */
+        for (int i = 0; i < keyLength; i++) {
+            State state = prefixStates[i];
+
+            while (state != root && state.mark(keyId)) {
+                state = state.link;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Adds the given keys to the index.
+     *
+     * @param keys
+     *            The keys to add
+     */
+    public void addAll(final Iterable<? extends CharSequence> keys) {
+        for (CharSequence key : keys) {
+            add(key);
+        }
+    }
+
+    /**
+     * Extends the automaton by the given char after the state of the current
+     * prefix and returns the state of the extended prefix. The transition may
+     * already exist because of a previously added key.
+     */
+    private State extend(final State last, final char c) {
+        final State existing = last.next(c);
+
+        if (existing != null) {
+            if (existing.length == last.length + 1) {
+                return existing;
+            }
+
+            return split(last, c, existing);
+        }
+
+        final State current = new State(last.length + 1);
+        State p = last;
+        ++stateCount;
+
+        while (p != null && p.next(c) == null) {
+            p.setNext(c, current);
+            p = p.link;
+        }
+
+        if (p == null) {
+            current.link = root;
+        } else {
+            final State q = p.next(c);
+
+            if (q.length == p.length + 1) {
+                current.link = q;
+            } else {
+                current.link = split(p, c, q);
+            }
+        }
+
+        return current;
+    }
+
+    /**
+     * Splits the given state so that the substrings that are reached from the
+     * given state with the given char get a state of their own and returns
+     * that state.
+     */
+    private State split(final State p, final char c, final State q) {
+		/* The shorter substrings were contained in the same keys until now */
+        final State clone = q.cloneWithLength(p.length + 1);
+        State state = p;
+        ++stateCount;
+
+        q.link = clone;
+
+        while (state != null && state.next(c) == q) {
+            state.setNext(c, clone);
+            state = state.link;
+        }
+
+        return clone;
+    }
+
+    /**
+     * Returns the keys that contain the given substring in the order in which
+     * they were added. The returned list is a view that must not be used
+     * after further keys were added.
+     *
+     * @param substring
+     *            The substring
+     * @return The keys containing the substring
+     */
+    public List<String> keysContaining(final CharSequence substring) {
+        final State state = find(substring);
+
+        if (state == null) {
+            return Collections.emptyList();
+        }
+        if (state == root) {
+            return Collections.unmodifiableList(keys);
+        }
+
+        return new KeyList(state.keyIds, state.keyCount);
+    }
+
+    /**
+     * Returns the amount of keys that contain the given substring.
+     *
+     * @param substring
+     *            The substring
+     * @return The amount of keys containing the substring
+     */
+    public int countKeysContaining(final CharSequence substring) {
+        final State state = find(substring);
+
+        if (state == null) {
+            return 0;
+        }
+
+        return state == root ? keys.size() : state.keyCount;
+    }
+
+    private State find(final CharSequence substring) {
+        if (substring == null) {
+            throw new IllegalArgumentException("substring");
+        }
+
+        final int length = substring.length();
+        State state = root;
+
+        for (int i = 0; i < length && state != null; i++) {
+            state = state.next(substring.charAt(i));
+        }
+
+        return state;
+    }
+
+    /**
+     * Returns the amount of keys.
+     *
+     * @return The amount of keys
+     */
+    public int size() {
+        return keys.size();
+    }
+
+    /**
+     * Returns the number of states of the automaton.
+     */
+    int stateCount() {
+        return stateCount;
+    }
+
+    private void writeObject(final ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        TrieMap.writeVarInt(out, keys.size());
+
+        for (String key : keys) {
+            final int keyLength = key.length();
+            TrieMap.writeVarInt(out, keyLength);
+
+            for (int i = 0; i < keyLength; i++) {
+                out.writeChar(key.charAt(i));
+            }
+        }
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        init();
+        final int keyCount = TrieMap.readVarInt(in);
+        final StringBuilder key = new StringBuilder();
+
+        for (int i = 0; i < keyCount; i++) {
+            final int keyLength = TrieMap.readVarInt(in);
+            key.setLength(0);
+
+            for (int j = 0; j < keyLength; j++) {
+                key.append(in.readChar());
+            }
+
+            add(key);
+        }
+    }
+
+    private final class KeyList extends AbstractList<String> implements
+            RandomAccess {
+
+        private final int[] ids;
+        private final int size;
+
+        public KeyList(final int[] ids, final int size) {
+            this.ids = ids;
+            this.size = size;
+        }
+
+        @Override
+        public String get(final int index) {
+            if (index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index
+                        + ", Size: " + size);
+            }
+
+            return keys.get(ids[index]);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -15,8 +15,16 @@
  */
 package com.blazebit.collection;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.io.StreamCorruptedException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * A trie implementation that can be used as map. This map implementation is
@@ -27,10 +35,18 @@ import java.util.*;
  *
  * This map does not support null keys, instead an empty string should be used.
  *
- * The implementation uses nested {@link HashMap}s with {@link Character} keys
- * internally to ensure <code>O(k)</code> performance where <code>k</code> is
+ * The implementation is a path compressed (radix) trie. Every node stores the
+ * chars of the edge that leads to it as <code>char[]</code> label and keeps its
+ * children in small arrays that are sorted by the first char of the child
+ * labels. This ensures <code>O(k)</code> performance where <code>k</code> is
  * the length of an existing key, <code>keyLen</code> is the key which is used
- * for retrieval or modification operations and <code>k &le; keyLen</code>.
+ * for retrieval or modification operations and <code>k &le; keyLen</code>,
+ * while only allocating nodes where keys branch or end.
+ *
+ * Since the children are sorted, the map is a {@link NavigableMap} whose keys
+ * are ordered by their chars like {@link String} keys. Navigation operations
+ * only walk the path of the given key and range views share the nodes of the
+ * map.
  *
  * @param <V>
  *            The value type that the trie holds.
@@ -39,31 +55,118 @@ import java.util.*;
  *
  */
 public class TrieMap<V> extends AbstractMap<CharSequence, V> implements
-        Serializable, Map<CharSequence, V> {
+        Serializable, NavigableMap<CharSequence, V> {
 
     private static final long serialVersionUID = 1L;
+    private static final char[] EMPTY_CHARS = new char[0];
+    private static final TrieNode<?>[] EMPTY_NODES = new TrieNode<?>[0];
 
     private static final class TrieNode<V> implements Serializable {
 
-        private static final long serialVersionUID = 1L;
-        private final Map<Character, TrieNode<V>> children;
+        private static final long serialVersionUID = 3L;
+        /* The chars of the edge from the parent to this node */
+        private char[] label;
+        /* The first label chars of the children, sorted ascending */
+        private char[] childChars;
+        private TrieNode<V>[] children;
         private V value;
         private boolean inUse;
+        /* The amount of entries in the subtree of this node */
+        private int count;
 
-        public TrieNode(final V value, final boolean inUse) {
-            this.children = new HashMap<Character, TrieNode<V>>();
+        public TrieNode(final char[] label, final V value, final boolean inUse) {
+            this.label = label;
+            this.childChars = EMPTY_CHARS;
+            this.children = TrieNode.<V> newArray(0);
             this.value = value;
             this.inUse = inUse;
+            this.count = inUse ? 1 : 0;
         }
 
-        private TrieNode(final V value, final boolean inUse, int childrenSize) {
-            this.children = new HashMap<Character, TrieNode<V>>(childrenSize);
-            this.value = value;
-            this.inUse = inUse;
+        public TrieNode(final boolean inUse) {
+            this(EMPTY_CHARS, null, inUse);
         }
 
-        public TrieNode(final boolean inUse) {
-            this(null, inUse);
+        @SuppressWarnings("unchecked")
+        public static <V> TrieNode<V>[] newArray(final int length) {
+            return (TrieNode<V>[]) (length == 0 ? EMPTY_NODES
+                    : new TrieNode<?>[length]);
+        }
+
+        /**
+         * Returns the index of the child whose label starts with the given
+         * char or <code>-(insertionPoint + 1)</code> if there is none.
+         */
+        public int indexOf(final char c) {
+            final char[] chars = childChars;
+            int low = 0;
+            int high = chars.length - 1;
+
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                final char midChar = chars[mid];
+
+                if (midChar < c) {
+                    low = mid + 1;
+                } else if (midChar > c) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+
+            return -(low + 1);
+        }
+
+        public TrieNode<V> child(final char c) {
+            final int index = indexOf(c);
+            return index < 0 ? null : children[index];
+        }
+
+        public void insertChild(final int index, final TrieNode<V> child) {
+            final int length = children.length;
+            final char[] newChildChars = new char[length + 1];
+            final TrieNode<V>[] newChildren = TrieNode.<V> newArray(length + 1);
+
+            System.arraycopy(childChars, 0, newChildChars, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            newChildChars[index] = child.label[0];
+            newChildren[index] = child;
+            System.arraycopy(childChars, index, newChildChars, index + 1,
+                    length - index);
+            System.arraycopy(children, index, newChildren, index + 1, length
+                    - index);
+
+            childChars = newChildChars;
+            children = newChildren;
+        }
+
+        public void removeChild(final int index) {
+            final int length = children.length;
+
+            if (length == 1) {
+                childChars = EMPTY_CHARS;
+                children = TrieNode.<V> newArray(0);
+                return;
+            }
+
+            final char[] newChildChars = new char[length - 1];
+            final TrieNode<V>[] newChildren = TrieNode.<V> newArray(length - 1);
+
+            System.arraycopy(childChars, 0, newChildChars, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            System.arraycopy(childChars, index + 1, newChildChars, index,
+                    length - index - 1);
+            System.arraycopy(children, index + 1, newChildren, index, length
+                    - index - 1);
+
+            childChars = newChildChars;
+            children = newChildren;
+        }
+
+        public void clearChildren() {
+            childChars = EMPTY_CHARS;
+            children = TrieNode.<V> newArray(0);
         }
 
         public TrieNode<V> unset() {
@@ -73,20 +176,215 @@ public class TrieMap<V> extends AbstractMap<CharSequence, V> implements
         }
 
         public TrieNode<V> cloneDeep() {
-            final TrieNode<V> node = new TrieNode<V>(value, inUse,
-                    children.size());
-            final Map<Character, TrieNode<V>> nodeChildren = node.children;
+            final TrieNode<V> node = new TrieNode<V>(label, value, inUse);
+            final int length = children.length;
+            node.count = count;
+
+            if (length > 0) {
+                final TrieNode<V>[] nodeChildren = TrieNode.<V> newArray(length);
+
+                for (int i = 0; i < length; i++) {
+                    nodeChildren[i] = children[i].cloneDeep();
+                }
+
+                node.childChars = childChars;
+                node.children = nodeChildren;
+            }
+
+            return node;
+        }
+    }
+
+    /**
+     * Builds the nodes below an empty root from keys that are added in
+     * ascending order. Only the path to the last added key is kept on a stack,
+     * so every key is attached at the end of the common prefix with the
+     * previous key without walking from the root again.
+     */
+    private static final class TrieBuilder<V> {
+
+        private final TrieNode<V> root;
+        /* The nodes on the path to the last key, their key lengths and child counts */
+        private TrieNode<V>[] nodes;
+        private int[] depths;
+        private int[] childCounts;
+        private int top;
+        private char[] lastKey;
+        private int lastKeyLength;
+        private int size;
+
+        public TrieBuilder(final TrieNode<V> root) {
+            this.root = root;
+            this.nodes = TrieNode.<V> newArray(16);
+            this.depths = new int[16];
+            this.childCounts = new int[16];
+            this.nodes[0] = root;
+            this.lastKey = new char[16];
+            this.lastKeyLength = -1;
+        }
+
+        /**
+         * Adds the given entry which must not be smaller than the previously
+         * added one. When the key equals the previous key, the value is
+         * replaced.
+         */
+        public void add(final CharSequence key, final V value) {
+            final int keyLength = key.length();
+            final int commonLength = commonPrefixLength(key);
+
+            if (commonLength == keyLength) {
+                if (commonLength != lastKeyLength) {
+                    throw new IllegalArgumentException("The keys are not sorted, '"
+                            + key + "' was added after '"
+                            + new String(lastKey, 0, lastKeyLength) + "'");
+                }
+
+				/* The node of the previous key is on top of the stack */
+                final TrieNode<V> node = nodes[top];
+
+                if (!node.inUse) {
+					/* Only the root can be not in use when the key is empty */
+                    node.inUse = true;
+                    ++size;
+                }
+
+                node.value = value;
+                return;
+            } else if (commonLength < lastKeyLength
+                    && key.charAt(commonLength) < lastKey[commonLength]) {
+                throw new IllegalArgumentException("The keys are not sorted, '"
+                        + key + "' was added after '"
+                        + new String(lastKey, 0, lastKeyLength) + "'");
+            }
+
+            TrieNode<V> popped = null;
+
+            while (depths[top] > commonLength) {
+                popped = pop();
+            }
+
+            if (depths[top] < commonLength) {
+				/* The key leaves within the label of the last child, so split it */
+                final char[] label = popped.label;
+                final int splitLength = commonLength - depths[top];
+                final TrieNode<V> splitNode = new TrieNode<V>(
+                        Arrays.copyOfRange(label, 0, splitLength), null, false);
+
+                popped.label = Arrays.copyOfRange(label, splitLength,
+                        label.length);
+                nodes[top].children[childCounts[top] - 1] = splitNode;
+                push(splitNode, commonLength);
+                addChild(popped);
+            }
+
+            final TrieNode<V> leaf = new TrieNode<V>(toChars(key, commonLength,
+                    keyLength), value, true);
+            addChild(leaf);
+            push(leaf, keyLength);
+            ++size;
+
+            if (keyLength > lastKey.length) {
+                lastKey = Arrays.copyOf(lastKey, Math.max(keyLength,
+                        lastKey.length << 1));
+            }
+
+            for (int i = commonLength; i < keyLength; i++) {
+                lastKey[i] = key.charAt(i);
+            }
+
+            lastKeyLength = keyLength;
+        }
+
+        private int commonPrefixLength(final CharSequence key) {
+            if (lastKeyLength < 0) {
+				/* For the first key only the root is on the stack */
+                lastKeyLength = 0;
+                return 0;
+            }
+
+            final int length = Math.min(lastKeyLength, key.length());
+            int i = 0;
+
+            while (i < length && lastKey[i] == key.charAt(i)) {
+                ++i;
+            }
+
+            return i;
+        }
 
-            for (final Map.Entry<Character, TrieNode<V>> entry : children
-                    .entrySet()) {
-                nodeChildren.put(entry.getKey(), entry.getValue().cloneDeep());
+        private void push(final TrieNode<V> node, final int depth) {
+            if (++top == nodes.length) {
+                nodes = Arrays.copyOf(nodes, top << 1);
+                depths = Arrays.copyOf(depths, top << 1);
+                childCounts = Arrays.copyOf(childCounts, top << 1);
             }
 
+            nodes[top] = node;
+            depths[top] = depth;
+            childCounts[top] = 0;
+        }
+
+        /**
+         * Removes the top node from the stack and trims its child arrays to
+         * the actual amount of children.
+         */
+        private TrieNode<V> pop() {
+            final TrieNode<V> node = nodes[top];
+            final int childCount = childCounts[top];
+            int count = node.inUse ? 1 : 0;
+
+			/* All children have already been popped and know their counts */
+            for (int i = 0; i < childCount; i++) {
+                count += node.children[i].count;
+            }
+
+            node.count = count;
+
+            if (childCount == 0) {
+                node.childChars = EMPTY_CHARS;
+                node.children = TrieNode.<V> newArray(0);
+            } else if (childCount != node.children.length) {
+                node.childChars = Arrays.copyOf(node.childChars, childCount);
+                node.children = Arrays.copyOf(node.children, childCount);
+            }
+
+            nodes[top--] = null;
             return node;
         }
+
+        /**
+         * Appends the given child to the top node, the child is the greatest
+         * one since the keys arrive in ascending order.
+         */
+        private void addChild(final TrieNode<V> child) {
+            final TrieNode<V> node = nodes[top];
+            final int childCount = childCounts[top]++;
+
+            if (childCount == node.children.length) {
+                final int newLength = Math.max(4, childCount << 1);
+                node.childChars = Arrays.copyOf(node.childChars, newLength);
+                node.children = Arrays.copyOf(node.children, newLength);
+            }
+
+            node.childChars[childCount] = child.label[0];
+            node.children[childCount] = child;
+        }
+
+        /**
+         * Trims the nodes that are still on the stack and returns the amount
+         * of added entries.
+         */
+        public int finish() {
+            while (top >= 0) {
+                pop();
+            }
+
+            return size;
+        }
     }
 
-    private final TrieNode<V> root;
+    /* The nodes are written as prefix delta encoded entries, see writeObject */
+    private transient TrieNode<V> root;
     int size;
     transient int modCount;
 
@@ -105,7 +403,24 @@ public class TrieMap<V> extends AbstractMap<CharSequence, V> implements
      */
     public TrieMap(final Map<CharSequence, ? extends V> map) {
         this(map, false);
-        putAll(map);
+
+        if (map instanceof TrieMap<?>) {
+            if (((TrieMap<?>) map).getBackingMap() != map) {
+				/* Sub maps already iterate in key order */
+                load(map.entrySet().iterator());
+            }
+        } else {
+            final List<Entry<CharSequence, V>> entries = new ArrayList<Entry<CharSequence, V>>(
+                    map.size());
+
+            for (final Entry<CharSequence, ? extends V> entry : map.entrySet()) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<CharSequence, V>(
+                        keyCheck(entry.getKey()), entry.getValue()));
+            }
+
+            Collections.sort(entries, KEY_COMPARATOR);
+            load(entries.iterator());
+        }
     }
 
     /**
@@ -116,6 +431,11 @@ public class TrieMap<V> extends AbstractMap<CharSequence, V> implements
      */
     public TrieMap(final TrieMap<? extends V> map) {
         this(map, false);
+
+        if (map.getBackingMap() != map) {
+			/* Sub maps can't be cloned node by node */
+            putAll(map);
+        }
     }
 
     /**
@@ -129,787 +449,3187 @@ public class TrieMap<V> extends AbstractMap<CharSequence, V> implements
     @SuppressWarnings("unchecked")
     private TrieMap(final Map<CharSequence, ? extends V> map,
                     final boolean nullAllowed) {
-        if ((nullAllowed && map == null) || !(map instanceof TrieMap<?>)) {
+        if ((nullAllowed && map == null) || !(map instanceof TrieMap<?>)
+                || ((TrieMap<V>) map).getBackingMap() != map) {
             this.root = new TrieNode<V>(false);
+            this.size = 0;
         } else {
-            this.root = ((TrieMap<V>) map).root.cloneDeep();
+            final TrieMap<V> trieMap = (TrieMap<V>) map;
+            this.root = trieMap.getRoot().cloneDeep();
+            this.size = trieMap.size();
         }
 
-        this.size = 0;
         this.modCount = 0;
     }
 
     /**
-     * This method returns the root element and mainly is for sub map to
-     * override.
+     * Constructs a new TrieMap from the given entries in a single pass. The
+     * keys must be in ascending lexicographical order of their chars, for
+     * equal keys the last value wins.
      *
-     * @return The current root node.
+     * @param entries
+     *            The sorted entries
+     * @return A new TrieMap containing the given entries
+     * @throws IllegalArgumentException
+     *             When the keys are not sorted
      */
-    TrieNode<V> getRoot() {
-        return root;
+    public static <V> TrieMap<V> fromSorted(
+            final Iterator<? extends Entry<? extends CharSequence, ? extends V>> entries) {
+        final TrieMap<V> map = new TrieMap<V>();
+        map.load(entries);
+        return map;
     }
 
     /**
-     * {@inheritDoc}
+     * Constructs a new TrieMap from the given entries like
+     * {@link #fromSorted(Iterator)}, but builds the sub tries for every first
+     * char of the keys in parallel in the given pool. The list should support
+     * fast random access.
+     *
+     * @param entries
+     *            The sorted entries
+     * @param pool
+     *            The pool in which to build the sub tries
+     * @return A new TrieMap containing the given entries
+     * @throws IllegalArgumentException
+     *             When the keys are not sorted
      */
-    @Override
-    public V put(final CharSequence key, final V value) {
-        final CharSequence checkedKey = keyCheck(key);
-        final int keyLength = checkedKey.length();
-        final V replacedValue;
-        TrieNode<V> currentNode = getRoot();
-        TrieNode<V> lastNode = null;
-        int i = 0;
+    public static <V> TrieMap<V> fromSorted(
+            final List<? extends Entry<? extends CharSequence, ? extends V>> entries,
+            final ForkJoinPool pool) {
+        final TrieMap<V> map = new TrieMap<V>();
+        final TrieNode<V> rootNode = map.root;
+        final List<BuildTask<V>> tasks = new ArrayList<BuildTask<V>>();
+        final int entryCount = entries.size();
+        int start = 0;
+
+		/* Empty keys are the smallest ones and belong to the root */
+        while (start < entryCount
+                && keyCheck(entries.get(start).getKey()).length() == 0) {
+            rootNode.value = entries.get(start++).getValue();
+            rootNode.inUse = true;
+        }
+
+        int previousChar = -1;
+
+        while (start < entryCount) {
+            final CharSequence startKey = keyCheck(entries.get(start).getKey());
+            final char c = startKey.length() == 0 ? 0 : startKey.charAt(0);
+
+            if (startKey.length() == 0 || c <= previousChar) {
+                throw new IllegalArgumentException("The keys are not sorted, '"
+                        + startKey + "' was found after '"
+                        + entries.get(start - 1).getKey() + "'");
+            }
 
-        while (i < keyLength && currentNode != null) {
-            lastNode = currentNode;
-            currentNode = currentNode.children.get(checkedKey.charAt(i));
-            ++i;
-        }
+            int end = start + 1;
 
-        if (currentNode == null) {
-            /* We could not find the node for the given key, so create it */
-            currentNode = lastNode;
-            final TrieNode<V> newNode = new TrieNode<V>(true);
+            while (end < entryCount) {
+                final CharSequence key = keyCheck(entries.get(end).getKey());
 
-            addNode(currentNode, checkedKey, --i, newNode);
-            modifyData(newNode, value);
-            replacedValue = null;
-        } else if (currentNode.inUse) {
-			/* We found the node and it is in use, so replace the value */
-            replacedValue = currentNode.value;
+                if (key.length() == 0 || key.charAt(0) != c) {
+                    break;
+                }
 
-            if (replacedValue != value
-                    && (replacedValue == null || !replacedValue.equals(value))) {
-                currentNode.value = value;
+                ++end;
             }
-        } else {
-			/* We found a node that is not in use, so just set the value */
-            modifyData(currentNode, value);
-            currentNode.inUse = true;
-            replacedValue = null;
+
+            tasks.add(new BuildTask<V>(entries, start, end));
+            previousChar = c;
+            start = end;
         }
 
-        return replacedValue;
-    }
+        pool.invoke(new RecursiveAction() {
 
-    /**
-     * Sets the given value as the new value on the given node, increases size
-     * and modCount.
-     */
-    void modifyData(final TrieNode<V> node, final V value) {
-        node.value = value;
-        ++modCount;
-        ++size;
-    }
+            private static final long serialVersionUID = 1L;
 
-    /**
-     * Adds the given new node to the node with the given key beginning at
-     * beginIndex.
-     */
-    private void addNode(final TrieNode<V> node, final CharSequence key,
-                         final int beginIndex, final TrieNode<V> newNode) {
-        final int lastKeyIndex = key.length() - 1;
-        TrieNode<V> currentNode = node;
-        int i = beginIndex;
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+
+        final int taskCount = tasks.size();
+        final char[] childChars = new char[taskCount];
+        final TrieNode<V>[] children = TrieNode.<V> newArray(taskCount);
+        int newSize = rootNode.inUse ? 1 : 0;
+
+        for (int i = 0; i < taskCount; i++) {
+            final BuildTask<V> task = tasks.get(i);
+            children[i] = task.node;
+            childChars[i] = task.node.label[0];
+            newSize += task.size;
+        }
 
-        for (; i < lastKeyIndex; i++) {
-            final TrieNode<V> nextNode = new TrieNode<V>(false);
-            currentNode.children.put(key.charAt(i), nextNode);
-            currentNode = nextNode;
+        if (taskCount > 0) {
+            rootNode.childChars = childChars;
+            rootNode.children = children;
         }
 
-        currentNode.children.put(key.charAt(i), newNode);
+        rootNode.count = newSize;
+        map.size = newSize;
+        return map;
     }
 
     /**
-     * {@inheritDoc}
+     * Builds the sub trie for a range of sorted entries whose keys all start
+     * with the same char.
      */
-    @Override
-    public V get(final Object key) {
-        final TrieNode<V> node = findNode(keyCheck(key));
-        return node == null ? null : node.value;
-    }
+    private static final class BuildTask<V> extends RecursiveAction {
 
-    private TrieNode<V> findNode(final CharSequence key) {
-        final int strLen = key.length();
-        TrieNode<V> currentNode = getRoot();
+        private static final long serialVersionUID = 1L;
 
-        for (int i = 0; i < strLen && currentNode != null; i++) {
-            currentNode = currentNode.children.get(key.charAt(i));
-        }
+        private final List<? extends Entry<? extends CharSequence, ? extends V>> entries;
+        private final int start;
+        private final int end;
+        private TrieNode<V> node;
+        private int size;
 
-        return currentNode;
-    }
+        public BuildTask(
+                final List<? extends Entry<? extends CharSequence, ? extends V>> entries,
+                final int start, final int end) {
+            this.entries = entries;
+            this.start = start;
+            this.end = end;
+        }
 
-    public String getBestMatch(final CharSequence str) {
-        final int strLen = str.length();
-        TrieNode<V> curNode = getRoot();
-        int i = 0;
+        @Override
+        protected void compute() {
+            final TrieBuilder<V> builder = new TrieBuilder<V>(
+                    new TrieNode<V>(false));
+
+            for (int i = start; i < end; i++) {
+                final Entry<? extends CharSequence, ? extends V> entry = entries
+                        .get(i);
+                builder.add(keyCheck(entry.getKey()), entry.getValue());
+            }
 
-        for (; i < strLen && curNode != null; i++) {
-            curNode = curNode.children.get(str.charAt(i));
+            size = builder.finish();
+            node = builder.root.children[0];
         }
-
-        return new StringBuilder(i - 1).append(str, 0, i - 1).toString();
     }
 
     /**
-     * {@inheritDoc}
+     * Adds the given sorted entries to this empty map.
      */
-    @Override
-    public boolean containsKey(final Object key) {
-        final TrieNode<V> node = findNode(keyCheck(key));
-        return node != null && node.inUse;
-    }
+    private void load(
+            final Iterator<? extends Entry<? extends CharSequence, ? extends V>> entries) {
+        final TrieBuilder<V> builder = new TrieBuilder<V>(root);
 
-    /**
-     * Returns true when an entry exists that that has the given prefix.
-     *
-     * @param prefix
-     *            The prefix for which to check if an entry is contained.
-     * @return True when an entry with the given prefix exists, otherwise false.
-     */
-    public boolean containsKeyPrefix(final CharSequence prefix) {
-        return findNode(keyCheck(prefix)) != null;
+        while (entries.hasNext()) {
+            final Entry<? extends CharSequence, ? extends V> entry = entries
+                    .next();
+            builder.add(keyCheck(entry.getKey()), entry.getValue());
+        }
+
+        size = builder.finish();
     }
 
     /**
-     * {@inheritDoc}
+     * Writes the entries in key order. Every key is written as the length of
+     * the common prefix with the previous key and the remaining chars, so
+     * the stream contains every shared prefix only once. The nodes are
+     * walked with a cursor and rebuilt with a {@link TrieBuilder}, so neither
+     * direction recurses on the depth of the trie.
+     *
+     * @serialData The entry count as variable length int, followed by the
+     *             common prefix length and suffix length as variable length
+     *             ints, the suffix chars and the value object of every entry
      */
-    @Override
-    public V remove(final Object o) {
-        final CharSequence key = keyCheck(o);
-        final TrieNode<V> currentNode = findPreviousNode(key);
+    private void writeObject(final ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+		/* Sub maps have an empty root and serialize their parent instead */
+        writeVarInt(out, root.count);
+
+        final TrieCursor<V> cursor = new TrieCursor<V>();
+        char[] previousKey = EMPTY_CHARS;
+        int previousKeyLength = 0;
+        TrieNode<V> node;
+
+        cursor.reset(root, "");
+
+        while ((node = cursor.next()) != null) {
+            final char[] key = cursor.key;
+            final int keyLength = cursor.keyLength;
+            final int length = Math.min(keyLength, previousKeyLength);
+            int common = 0;
+
+            while (common < length && key[common] == previousKey[common]) {
+                ++common;
+            }
 
-        if (currentNode == null) {
-			/* Node not found for the given key */
-            return null;
-        }
+            writeVarInt(out, common);
+            writeVarInt(out, keyLength - common);
 
-        final TrieNode<V> node = currentNode.children.get(key.charAt(key
-                .length() - 1));
+            for (int i = common; i < keyLength; i++) {
+                out.writeChar(key[i]);
+            }
 
-        if (node == null || !node.inUse) {
-			/* Node not found for the given key or is not in use */
-            return null;
-        }
+            out.writeObject(node.value);
 
-        final V removed = node.value;
-        node.unset();
-        --size;
-        ++modCount;
+            if (keyLength > previousKey.length) {
+                previousKey = Arrays.copyOf(previousKey, Math.max(keyLength,
+                        previousKey.length << 1));
+            }
 
-        if (node.children.isEmpty()) {
-			/* Since there are no children left, we can compact the trie */
-            compact(key);
+            System.arraycopy(key, common, previousKey, common, keyLength
+                    - common);
+            previousKeyLength = keyLength;
         }
-
-        return removed;
     }
 
-    private TrieNode<V> findPreviousNode(final CharSequence key) {
-        final int lastKeyIndex = key.length() - 1;
-        TrieNode<V> currentNode = getRoot();
+    @SuppressWarnings("unchecked")
+    private void readObject(final ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        root = new TrieNode<V>(false);
+
+        final int entryCount = readVarInt(in);
+        final TrieBuilder<V> builder = new TrieBuilder<V>(root);
+        final StringBuilder key = new StringBuilder();
+
+        for (int i = 0; i < entryCount; i++) {
+            final int common = readVarInt(in);
+            final int suffixLength = readVarInt(in);
+
+            if (common > key.length()) {
+                throw new StreamCorruptedException(
+                        "Invalid common prefix length " + common);
+            }
+
+            key.setLength(common);
+
+            for (int j = 0; j < suffixLength; j++) {
+                key.append(in.readChar());
+            }
 
-        for (int i = 0; i < lastKeyIndex && currentNode != null; i++) {
-            currentNode = currentNode.children.get(key.charAt(i));
+            builder.add(key, (V) in.readObject());
         }
 
-        return currentNode;
+        size = builder.finish();
     }
 
     /**
-     * Special version of remove for EntrySet.
+     * Writes the given non-negative int in 7 bit groups, the least
+     * significant group first, with the high bit marking that more groups
+     * follow.
      */
-    V removeMapping(final Object o) {
-        if (!(o instanceof Map.Entry)) {
-            throw new IllegalArgumentException();
-        }
-
-        @SuppressWarnings("unchecked") final Entry<? extends CharSequence, V> e = (Map.Entry<? extends CharSequence, V>) o;
-        final CharSequence key = keyCheck(e.getKey());
-        final V value = e.getValue();
-        final TrieNode<V> currentNode = findPreviousNode(key);
-
-        if (currentNode == null) {
-			/* Node not found for the given key */
-            return null;
-        }
+    static void writeVarInt(final DataOutput out, final int value)
+            throws IOException {
+        int v = value;
 
-        final TrieNode<V> node = currentNode.children.get(key.charAt(key
-                .length() - 1));
-
-        if (node == null || !node.inUse) {
-			/* Node not found for the given key or is not in use */
-            return null;
+        while ((v & ~0x7F) != 0) {
+            out.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
         }
 
-        final V removed = node.value;
+        out.writeByte(v);
+    }
 
-        if (removed != value && (removed == null || !removed.equals(value))) {
-			/*
-			 * Value in the map differs from the value given in the entry so do
-			 * nothing and return null.
-			 */
-            return null;
-        }
+    static int readVarInt(final DataInput in) throws IOException {
+        int value = 0;
 
-        node.unset();
-        --size;
-        ++modCount;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
 
-        if (node.children.isEmpty()) {
-			/* Since there are no children left, we can compact the trie */
-            compact(key);
+            if ((b & 0x80) == 0) {
+                return value;
+            }
         }
 
-        return removed;
+        throw new StreamCorruptedException(
+                "Malformed variable length int");
     }
 
     /**
-     * {@inheritDoc}
+     * Compares the given keys by their chars like {@link String} does, which
+     * is the order in which the entries of a TrieMap are iterated.
      */
-    @Override
-    public void clear() {
-        final TrieNode<V> rootNode = root;
-        rootNode.children.clear();
-        rootNode.unset();
-        ++modCount;
-        size = 0;
-    }
+    static int compareKeys(final CharSequence key1, final CharSequence key2) {
+        final int length1 = key1.length();
+        final int length2 = key2.length();
+        final int length = Math.min(length1, length2);
 
-    /**
-     * Compact the trie by removing unused nodes on the path that is specified
-     * by the given key.
-     */
-    private void compact(final CharSequence key) {
-        final int keyLength = key.length();
-        TrieNode<V> currentNode = getRoot();
-        TrieNode<V> lastInUseNode = currentNode;
-        int lastInUseIndex = 0;
+        for (int i = 0; i < length; i++) {
+            final char c1 = key1.charAt(i);
+            final char c2 = key2.charAt(i);
 
-        for (int i = 0; i < keyLength && currentNode != null; i++) {
-            if (currentNode.inUse) {
-                lastInUseNode = currentNode;
-                lastInUseIndex = i;
+            if (c1 != c2) {
+                return c1 - c2;
             }
-
-            currentNode = currentNode.children.get(key.charAt(i));
         }
 
-        currentNode = lastInUseNode;
-
-        for (int i = lastInUseIndex; i < keyLength; i++) {
-            currentNode = currentNode.children.remove(key.charAt(i)).unset();
-        }
+        return length1 - length2;
     }
 
-    private static CharSequence keyCheck(final Object key) {
-        if (key == null) {
-            throw new IllegalArgumentException(
-                    "This map does not support null keys");
-        } else if (!(key instanceof CharSequence)) {
-            throw new IllegalArgumentException(
-                    "Argument must be instance of CharSequence");
-        }
+    private static final class KeyOrder implements Comparator<CharSequence>,
+            Serializable {
 
-        return (CharSequence) key;
-    }
+        private static final long serialVersionUID = 1L;
 
-    private static CharSequence keyCheck(final CharSequence key) {
-        if (key == null) {
-            throw new IllegalArgumentException(
-                    "This map does not support null keys");
+        @Override
+        public int compare(final CharSequence o1, final CharSequence o2) {
+            return compareKeys(o1, o2);
         }
 
-        return key;
+        private Object readResolve() {
+            return KEY_ORDER;
+        }
     }
 
     /**
-     * {@inheritDoc}
+     * The order of the keys, see {@link #comparator()}.
      */
-    @Override
-    public int size() {
-        return size;
-    }
-
-	/*
-	 * Iterators
-	 */
+    private static final Comparator<CharSequence> KEY_ORDER = new KeyOrder();
 
     /**
-     * Entry implementation for TrieMap.
+     * Orders entries by the chars of their keys like {@link String} does.
      */
-    private final class TrieEntry implements Entry<CharSequence, V> {
-
-        private final CharSequence key;
-        private final TrieNode<V> node;
+    private static final Comparator<Entry<CharSequence, ?>> KEY_COMPARATOR = new Comparator<Entry<CharSequence, ?>>() {
 
-        public TrieEntry(final CharSequence key, final TrieNode<V> node) {
-            this.key = key;
-            this.node = node;
+        @Override
+        public int compare(final Entry<CharSequence, ?> o1,
+                           final Entry<CharSequence, ?> o2) {
+            return compareKeys(o1.getKey(), o2.getKey());
         }
+    };
+
+    /**
+     * This method returns the root element and mainly is for sub map to
+     * override.
+     *
+     * @return The current root node.
+     */
+    TrieNode<V> getRoot() {
+        return root;
+    }
+
+    /**
+     * Returns the map that owns the nodes and holds the modification count,
+     * this is the map itself except for sub maps.
+     */
+    TrieMap<V> getBackingMap() {
+        return this;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V put(final CharSequence key, final V value) {
+        final CharSequence checkedKey = keyCheck(key);
+        final int keyLength = checkedKey.length();
+        TrieNode<V> currentNode = root;
+        int i = 0;
+
+		/*
+		 * The counts on the path are incremented while descending and are only
+		 * reverted when the key turns out to exist already
+		 */
+        while (i < keyLength) {
+            ++currentNode.count;
+            final int index = currentNode.indexOf(checkedKey.charAt(i));
+
+            if (index < 0) {
+				/* No child starts with the next char, so add a leaf for the rest */
+                currentNode.insertChild(-(index + 1), new TrieNode<V>(
+                        toChars(checkedKey, i, keyLength), value, true));
+                ++modCount;
+                ++size;
+                return null;
+            }
+
+            final TrieNode<V> child = currentNode.children[index];
+            final int matched = matchLabel(child.label, checkedKey, i);
+
+            if (matched < child.label.length) {
+				/* The key leaves or ends within the label, so split the edge */
+                final TrieNode<V> splitNode = split(currentNode, index, matched);
+                ++splitNode.count;
+                i += matched;
+
+                if (i == keyLength) {
+                    splitNode.value = value;
+                    splitNode.inUse = true;
+                } else {
+                    splitNode.insertChild(
+                            -(splitNode.indexOf(checkedKey.charAt(i)) + 1),
+                            new TrieNode<V>(toChars(checkedKey, i, keyLength),
+                                    value, true));
+                }
+
+                ++modCount;
+                ++size;
+                return null;
+            }
+
+            i += matched;
+            currentNode = child;
+        }
+
+        ++currentNode.count;
+
+        if (currentNode.inUse) {
+			/* We found the node and it is in use, so replace the value */
+            final V replacedValue = currentNode.value;
+
+            if (replacedValue != value
+                    && (replacedValue == null || !replacedValue.equals(value))) {
+                currentNode.value = value;
+            }
+
+            addToCounts(checkedKey, keyLength, -1);
+            return replacedValue;
+        }
+
+		/* We found a node that is not in use, so just set the value */
+        currentNode.value = value;
+        currentNode.inUse = true;
+        ++modCount;
+        ++size;
+        return null;
+    }
+
+    /**
+     * Splits the label of the child at the given index of the given node
+     * after the given amount of chars and returns the new intermediate node.
+     */
+    private static <V> TrieNode<V> split(final TrieNode<V> node,
+                                         final int index, final int length) {
+        final TrieNode<V> child = node.children[index];
+        final char[] label = child.label;
+        final TrieNode<V> splitNode = new TrieNode<V>(Arrays.copyOfRange(
+                label, 0, length), null, false);
+
+        splitNode.count = child.count;
+        child.label = Arrays.copyOfRange(label, length, label.length);
+        splitNode.insertChild(0, child);
+        node.children[index] = splitNode;
+        return splitNode;
+    }
+
+    /**
+     * Merges the only child of the node at the given index of the given parent
+     * into that node by prepending the label of the node to the one of the
+     * child. The child node instance is kept so that iterators still see it.
+     */
+    private static <V> void merge(final TrieNode<V> parent, final int index) {
+        final TrieNode<V> node = parent.children[index];
+        final TrieNode<V> child = node.children[0];
+        final char[] label = new char[node.label.length + child.label.length];
+
+        System.arraycopy(node.label, 0, label, 0, node.label.length);
+        System.arraycopy(child.label, 0, label, node.label.length,
+                child.label.length);
+        child.label = label;
+        parent.children[index] = child;
+    }
+
+    /**
+     * Returns the amount of chars of the given label that match the key
+     * starting at the given offset. The first char is assumed to match.
+     */
+    private static int matchLabel(final char[] label, final CharSequence key,
+                                  final int offset) {
+        final int length = Math.min(label.length, key.length() - offset);
+        int i = 1;
+
+        while (i < length && label[i] == key.charAt(offset + i)) {
+            ++i;
+        }
+
+        return i;
+    }
+
+    private static char[] toChars(final CharSequence key, final int start,
+                                  final int end) {
+        final char[] chars = new char[end - start];
+
+        for (int i = start; i < end; i++) {
+            chars[i - start] = key.charAt(i);
+        }
+
+        return chars;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V get(final Object key) {
+        final TrieNode<V> node = findNode(keyCheck(key));
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * Returns the node whose key equals the given key or null if there is no
+     * such node.
+     */
+    private TrieNode<V> findNode(final CharSequence key) {
+        final int keyLength = key.length();
+        TrieNode<V> currentNode = root;
+        int i = 0;
+
+        while (i < keyLength) {
+            currentNode = currentNode.child(key.charAt(i));
+
+            if (currentNode == null) {
+                return null;
+            }
+
+            final char[] label = currentNode.label;
+
+            if (keyLength - i < label.length) {
+                return null;
+            }
+
+            for (int j = 1; j < label.length; j++) {
+                if (label[j] != key.charAt(i + j)) {
+                    return null;
+                }
+            }
+
+            i += label.length;
+        }
+
+        return currentNode;
+    }
+
+    /**
+     * Returns the topmost node whose key starts with the given prefix or null
+     * if there is no such node. When the given builder is not null, the part
+     * of the key of the node that exceeds the prefix is appended to it.
+     */
+    TrieNode<V> findPrefixNode(final CharSequence prefix,
+                               final StringBuilder remainder) {
+        final int prefixLength = prefix.length();
+        TrieNode<V> currentNode = root;
+        int i = 0;
+
+        while (i < prefixLength) {
+            currentNode = currentNode.child(prefix.charAt(i));
+
+            if (currentNode == null) {
+                return null;
+            }
+
+            final char[] label = currentNode.label;
+            final int matched = matchLabel(label, prefix, i);
+
+            if (matched < label.length) {
+                if (i + matched < prefixLength) {
+                    return null;
+                }
+
+                if (remainder != null) {
+                    remainder.append(label, matched, label.length - matched);
+                }
+
+                return currentNode;
+            }
+
+            i += matched;
+        }
+
+        return currentNode;
+    }
+
+    /**
+     * Returns the amount of leading chars of the given string that can be
+     * matched by walking the trie.
+     */
+    private int matchLength(final CharSequence str) {
+        final int strLen = str.length();
+        TrieNode<V> currentNode = root;
+        int i = 0;
+
+        while (i < strLen) {
+            currentNode = currentNode.child(str.charAt(i));
+
+            if (currentNode == null) {
+                return i;
+            }
+
+            final int matched = matchLabel(currentNode.label, str, i);
+            i += matched;
+
+            if (matched < currentNode.label.length) {
+                return i;
+            }
+        }
+
+        return i;
+    }
+
+    /**
+     * Returns the longest prefix of the given string that is a prefix of any
+     * key in this map.
+     *
+     * @param str
+     *            The string for which to find the best match.
+     * @return The best matching prefix.
+     */
+    public String getBestMatch(final CharSequence str) {
+        final int matched = matchLength(keyCheck(str));
+        return new StringBuilder(matched).append(str, 0, matched).toString();
+    }
+
+    /**
+     * Returns the length of the longest key in this map that is a prefix of
+     * the given range of chars or -1 if there is no such key. This method
+     * does not allocate any objects.
+     *
+     * @param s
+     *            The chars to match
+     * @param from
+     *            The index of the first char to match, inclusive
+     * @param to
+     *            The index at which the match has to end at the latest,
+     *            exclusive
+     * @return The length of the longest matching key or -1
+     */
+    public int longestPrefixMatch(final CharSequence s, final int from,
+                                  final int to) {
+        return matchLongestPrefix(s, from, to, null);
+    }
+
+    /**
+     * Like {@link #longestPrefixMatch(CharSequence, int, int)}, but
+     * additionally stores the length and the value of the longest matching
+     * key in the given holder which is reset when there is no match.
+     *
+     * @param s
+     *            The chars to match
+     * @param from
+     *            The index of the first char to match, inclusive
+     * @param to
+     *            The index at which the match has to end at the latest,
+     *            exclusive
+     * @param match
+     *            The holder for the result
+     * @return True when a key matched, otherwise false
+     */
+    public boolean longestPrefixMatch(final CharSequence s, final int from,
+                                      final int to,
+                                      final PrefixMatch<? super V> match) {
+        if (match == null) {
+            throw new IllegalArgumentException("match");
+        }
+
+        return matchLongestPrefix(s, from, to, match) >= 0;
+    }
+
+    /**
+     * Returns the length of the longest matching key and stores the result in
+     * the given holder if it is not null.
+     */
+    private int matchLongestPrefix(final CharSequence s, final int from,
+                                    final int to,
+                                    final PrefixMatch<? super V> match) {
+        if (keyCheck(s).length() < to || from < 0 || from > to) {
+            throw new IndexOutOfBoundsException("from: " + from + ", to: "
+                    + to + ", length: " + s.length());
+        }
+
+        TrieNode<V> currentNode = getRoot();
+        TrieNode<V> matchedNode = null;
+        int matched = -1;
+
+        if (currentNode != null) {
+			/* Sub maps start within the label of their root node */
+            final CharSequence rootKey = getRootKey();
+            final int rootKeyLength = rootKey.length();
+            int i = from;
+
+            if (to - i >= rootKeyLength) {
+                int j = 0;
+
+                while (j < rootKeyLength && rootKey.charAt(j) == s.charAt(i + j)) {
+                    ++j;
+                }
+
+                if (j == rootKeyLength) {
+                    i += rootKeyLength;
+
+                    if (currentNode.inUse) {
+                        matchedNode = currentNode;
+                        matched = i - from;
+                    }
+
+                    while (i < to) {
+                        currentNode = currentNode.child(s.charAt(i));
+
+                        if (currentNode == null) {
+                            break;
+                        }
+
+                        final char[] label = currentNode.label;
+
+                        if (to - i < label.length
+                                || matchLabel(label, s, i) < label.length) {
+                            break;
+                        }
+
+                        i += label.length;
+
+                        if (currentNode.inUse) {
+                            matchedNode = currentNode;
+                            matched = i - from;
+                        }
+                    }
+                }
+            }
+        }
+
+        if (match != null) {
+            if (matchedNode == null) {
+                match.reset();
+            } else {
+                match.set(matched, matchedNode.value);
+            }
+        }
+
+        return matched;
+    }
+
+    /**
+     * Returns the entries whose keys have a Levenshtein distance of at most
+     * the given amount of edits to the given query. The matches are ordered
+     * by distance and then lexicographically by key.
+     *
+     * The trie is walked with one row of the edit distance matrix per char
+     * and subtrees are skipped as soon as every value of the current row
+     * exceeds the allowed amount of edits, so only a small part of the trie
+     * is visited for small distances.
+     *
+     * @param query
+     *            The string to which the keys should be similar
+     * @param maxEdits
+     *            The maximum amount of inserted, deleted or replaced chars
+     * @return The matching entries ordered by distance
+     */
+    public List<FuzzyMatch<V>> fuzzyMatches(final CharSequence query,
+                                            final int maxEdits) {
+        if (maxEdits < 0) {
+            throw new IllegalArgumentException(
+                    "The amount of edits must not be negative");
+        }
+
+        final TrieNode<V> startNode = getRoot();
+
+        if (startNode == null) {
+            return new ArrayList<FuzzyMatch<V>>(0);
+        }
+
+        final FuzzySearch<V> search = new FuzzySearch<V>(keyCheck(query),
+                maxEdits);
+        final CharSequence rootKey = getRootKey();
+        final int rootKeyLength = rootKey.length();
+
+		/* Sub maps start within the label of their root node */
+        for (int i = 0; i < rootKeyLength; i++) {
+            if (!search.push(rootKey.charAt(i))) {
+                return search.results();
+            }
+        }
+
+        search.visit(startNode);
+        return search.results();
+    }
+
+    /**
+     * Walks a trie while computing the rows of the edit distance matrix
+     * between the query and the key of the current node.
+     */
+    private static final class FuzzySearch<V> {
+
+        private final CharSequence query;
+        private final int queryLength;
+        private final int maxEdits;
+        /* Row i contains the distances of the first i key chars to every query prefix */
+        private int[][] rows;
+        private char[] key;
+        private int depth;
+        private final List<List<FuzzyMatch<V>>> matches;
+
+        public FuzzySearch(final CharSequence query, final int maxEdits) {
+            this.query = query;
+            this.queryLength = query.length();
+            this.maxEdits = maxEdits;
+            this.rows = new int[queryLength + maxEdits + 1][];
+            this.key = new char[queryLength + maxEdits];
+            this.matches = new ArrayList<List<FuzzyMatch<V>>>(maxEdits + 1);
+
+            final int[] firstRow = new int[queryLength + 1];
+
+            for (int j = 0; j <= queryLength; j++) {
+                firstRow[j] = j;
+            }
+
+            this.rows[0] = firstRow;
+
+            for (int i = 0; i <= maxEdits; i++) {
+                matches.add(new ArrayList<FuzzyMatch<V>>());
+            }
+        }
+
+        /**
+         * Appends the given char to the key and computes the next row.
+         * Returns false when no key with the current key as prefix can match.
+         */
+        public boolean push(final char c) {
+            final int[] previousRow = rows[depth];
+            final int newDepth = depth + 1;
+
+            if (newDepth == rows.length) {
+                rows = Arrays.copyOf(rows, newDepth << 1);
+            }
+
+            int[] row = rows[newDepth];
+
+            if (row == null) {
+                row = rows[newDepth] = new int[queryLength + 1];
+            }
+
+            if (depth == key.length) {
+                key = Arrays.copyOf(key, Math.max(4, depth << 1));
+            }
+
+            int min = row[0] = newDepth;
+
+            for (int j = 1; j <= queryLength; j++) {
+                final int replaceCost = previousRow[j - 1]
+                        + (query.charAt(j - 1) == c ? 0 : 1);
+                final int value = Math.min(replaceCost,
+                        Math.min(previousRow[j], row[j - 1]) + 1);
+                row[j] = value;
+
+                if (value < min) {
+                    min = value;
+                }
+            }
+
+            key[depth] = c;
+            depth = newDepth;
+            return min <= maxEdits;
+        }
+
+        /**
+         * Visits the given node whose label has already been pushed and all
+         * of its children.
+         */
+        public void visit(final TrieNode<V> node) {
+            if (node.inUse) {
+                final int distance = rows[depth][queryLength];
+
+                if (distance <= maxEdits) {
+                    matches.get(distance).add(new FuzzyMatch<V>(new String(
+                            key, 0, depth), node.value, distance));
+                }
+            }
+
+            final int nodeDepth = depth;
+
+            for (final TrieNode<V> child : node.children) {
+                final char[] label = child.label;
+                boolean matching = true;
+
+                for (int i = 0; matching && i < label.length; i++) {
+                    matching = push(label[i]);
+                }
+
+                if (matching) {
+                    visit(child);
+                }
+
+                depth = nodeDepth;
+            }
+        }
+
+        public List<FuzzyMatch<V>> results() {
+            int count = 0;
+
+            for (final List<FuzzyMatch<V>> distanceMatches : matches) {
+                count += distanceMatches.size();
+            }
+
+            final List<FuzzyMatch<V>> results = new ArrayList<FuzzyMatch<V>>(
+                    count);
+
+            for (final List<FuzzyMatch<V>> distanceMatches : matches) {
+                results.addAll(distanceMatches);
+            }
+
+            return results;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean containsKey(final Object key) {
+        final TrieNode<V> node = findNode(keyCheck(key));
+        return node != null && node.inUse;
+    }
+
+    /**
+     * Returns true when an entry exists that that has the given prefix.
+     *
+     * @param prefix
+     *            The prefix for which to check if an entry is contained.
+     * @return True when an entry with the given prefix exists, otherwise false.
+     */
+    public boolean containsKeyPrefix(final CharSequence prefix) {
+        return countKeysWithPrefix(prefix) > 0;
+    }
+
+    /**
+     * Returns the amount of entries whose keys start with the given prefix.
+     * Every node knows the amount of entries in its subtree, so this only
+     * requires to walk the prefix.
+     *
+     * @param prefix
+     *            The prefix for which to count the entries.
+     * @return The amount of entries with the given prefix.
+     */
+    public int countKeysWithPrefix(final CharSequence prefix) {
+        final TrieNode<V> node = findPrefixNode(keyCheck(prefix), null);
+        return node == null ? 0 : node.count;
+    }
+
+    /*
+     * Navigation
+     */
+
+    /**
+     * Returns the entry with the least key that is greater than, or when
+     * inclusive equal to, the given key if ceiling is true or the entry with
+     * the greatest key that is less than, or when inclusive equal to, the
+     * given key otherwise. When the key is null, the first respectively last
+     * entry is returned.
+     *
+     * @return An immutable snapshot of the entry or null
+     */
+    Entry<CharSequence, V> navigate(final CharSequence key,
+                                    final boolean ceiling, final boolean inclusive) {
+        final TrieNavigator<V> navigator = new TrieNavigator<V>();
+        final TrieNode<V> node;
+
+        if (key == null) {
+            final TrieNode<V> start = getRoot();
+
+            if (start == null) {
+                return null;
+            }
+
+            navigator.key.append(getRootKey());
+            node = ceiling ? navigator.first(start) : navigator.last(start);
+        } else if (ceiling) {
+            node = navigator.ceiling(root, key, inclusive);
+        } else {
+            node = navigator.floor(root, key, inclusive);
+        }
+
+        return node == null ? null : new AbstractMap.SimpleImmutableEntry<CharSequence, V>(
+                navigator.key.toString(), node.value);
+    }
+
+    /**
+     * Returns the amount of keys that are less than, or when inclusive equal
+     * to, the given key. The counts of the subtrees left of the path are
+     * summed up, so this only requires to walk the path of the key.
+     */
+    int countBefore(final CharSequence key, final boolean inclusive) {
+        final int keyLength = key.length();
+        TrieNode<V> node = root;
+        int count = 0;
+        int i = 0;
+
+        while (i < keyLength) {
+            if (node.inUse) {
+				/* A proper prefix is less than the key */
+                ++count;
+            }
+
+            final char c = key.charAt(i);
+            final TrieNode<V>[] children = node.children;
+            final int index = node.indexOf(c);
+            final int end = index < 0 ? -(index + 1) : index;
+
+            for (int j = 0; j < end; j++) {
+                count += children[j].count;
+            }
+
+            if (index < 0) {
+                return count;
+            }
+
+            final TrieNode<V> child = children[index];
+            final char[] label = child.label;
+            final int matchEnd = Math.min(label.length, keyLength - i);
+            int j = 1;
+
+            while (j < matchEnd && label[j] == key.charAt(i + j)) {
+                ++j;
+            }
+
+            if (j < label.length) {
+                if (j == keyLength - i || label[j] > key.charAt(i + j)) {
+                    return count;
+                }
+
+                return count + child.count;
+            }
+
+            node = child;
+            i += label.length;
+        }
+
+        return inclusive && node.inUse ? count + 1 : count;
+    }
+
+    private static <K> K keyOrNull(final Entry<K, ?> entry) {
+        return entry == null ? null : entry.getKey();
+    }
+
+    private static <K> K keyOrThrow(final Entry<K, ?> entry) {
+        if (entry == null) {
+            throw new NoSuchElementException();
+        }
+
+        return entry.getKey();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Comparator<? super CharSequence> comparator() {
+        return KEY_ORDER;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Entry<CharSequence, V> lowerEntry(final CharSequence key) {
+        return navigate(keyCheck(key), false, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CharSequence lowerKey(final CharSequence key) {
+        return keyOrNull(lowerEntry(key));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Entry<CharSequence, V> floorEntry(final CharSequence key) {
+        return navigate(keyCheck(key), false, true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CharSequence floorKey(final CharSequence key) {
+        return keyOrNull(floorEntry(key));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Entry<CharSequence, V> ceilingEntry(final CharSequence key) {
+        return navigate(keyCheck(key), true, true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CharSequence ceilingKey(final CharSequence key) {
+        return keyOrNull(ceilingEntry(key));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Entry<CharSequence, V> higherEntry(final CharSequence key) {
+        return navigate(keyCheck(key), true, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CharSequence higherKey(final CharSequence key) {
+        return keyOrNull(higherEntry(key));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Entry<CharSequence, V> firstEntry() {
+        return navigate(null, true, true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Entry<CharSequence, V> lastEntry() {
+        return navigate(null, false, true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CharSequence firstKey() {
+        return keyOrThrow(firstEntry());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CharSequence lastKey() {
+        return keyOrThrow(lastEntry());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Entry<CharSequence, V> pollFirstEntry() {
+        final Entry<CharSequence, V> entry = firstEntry();
+
+        if (entry != null) {
+            remove(entry.getKey());
+        }
+
+        return entry;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Entry<CharSequence, V> pollLastEntry() {
+        final Entry<CharSequence, V> entry = lastEntry();
+
+        if (entry != null) {
+            remove(entry.getKey());
+        }
+
+        return entry;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NavigableMap<CharSequence, V> descendingMap() {
+        return new TrieRangeMap<V>(this, null, false, null, false, true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NavigableSet<CharSequence> navigableKeySet() {
+        return new NavigableKeySet(this);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NavigableSet<CharSequence> descendingKeySet() {
+        return descendingMap().navigableKeySet();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NavigableMap<CharSequence, V> subMap(final CharSequence fromKey,
+                                               final boolean fromInclusive,
+                                               final CharSequence toKey,
+                                               final boolean toInclusive) {
+        return new TrieRangeMap<V>(this, keyCheck(fromKey), fromInclusive,
+                keyCheck(toKey), toInclusive, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NavigableMap<CharSequence, V> headMap(final CharSequence toKey,
+                                                final boolean inclusive) {
+        return new TrieRangeMap<V>(this, null, false, keyCheck(toKey),
+                inclusive, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NavigableMap<CharSequence, V> tailMap(final CharSequence fromKey,
+                                                final boolean inclusive) {
+        return new TrieRangeMap<V>(this, keyCheck(fromKey), inclusive, null,
+                false, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<CharSequence, V> subMap(final CharSequence fromKey,
+                                            final CharSequence toKey) {
+        return subMap(fromKey, true, toKey, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<CharSequence, V> headMap(final CharSequence toKey) {
+        return headMap(toKey, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<CharSequence, V> tailMap(final CharSequence fromKey) {
+        return tailMap(fromKey, true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V remove(final Object o) {
+        return removeKey(keyCheck(o), false, null);
+    }
+
+    /**
+     * Special version of remove for EntrySet.
+     */
+    V removeMapping(final Object o) {
+        if (!(o instanceof Map.Entry)) {
+            throw new IllegalArgumentException();
+        }
+
+        @SuppressWarnings("unchecked") final Entry<? extends CharSequence, V> e = (Map.Entry<? extends CharSequence, V>) o;
+        return removeKey(keyCheck(e.getKey()), true, e.getValue());
+    }
+
+    /**
+     * Removes the entry for the given key and compacts the nodes on the path.
+     * If the value should be matched, the entry is only removed when its value
+     * equals the given value.
+     */
+    private V removeKey(final CharSequence key, final boolean matchValue,
+                        final V value) {
+        final int keyLength = key.length();
+        TrieNode<V> grandParentNode = null;
+        TrieNode<V> parentNode = null;
+        TrieNode<V> currentNode = root;
+        int parentIndex = -1;
+        int index = -1;
+        int i = 0;
+
+        while (i < keyLength) {
+            final int childIndex = currentNode.indexOf(key.charAt(i));
+
+            if (childIndex < 0) {
+				/* Node not found for the given key */
+                return null;
+            }
+
+            final TrieNode<V> child = currentNode.children[childIndex];
+            final char[] label = child.label;
+
+            if (keyLength - i < label.length
+                    || matchLabel(label, key, i) < label.length) {
+				/* Node not found for the given key */
+                return null;
+            }
+
+            grandParentNode = parentNode;
+            parentNode = currentNode;
+            parentIndex = index;
+            currentNode = child;
+            index = childIndex;
+            i += label.length;
+        }
+
+        if (!currentNode.inUse) {
+			/* Node is not in use */
+            return null;
+        }
+
+        final V removed = currentNode.value;
+
+        if (matchValue && removed != value
+                && (removed == null || !removed.equals(value))) {
+			/*
+			 * Value in the map differs from the value given in the entry so do
+			 * nothing and return null.
+			 */
+            return null;
+        }
+
+        addToCounts(key, keyLength, -1);
+        currentNode.unset();
+        --size;
+        ++modCount;
+
+        if (parentNode != null) {
+            compact(grandParentNode, parentIndex, parentNode, index);
+        }
+
+        return removed;
+    }
+
+    /**
+     * Compacts the trie after the node at the given index of the given parent
+     * has been unset or removed, so that every node except the root is either
+     * in use or has at least two children.
+     */
+    private static <V> void compact(final TrieNode<V> grandParentNode,
+                                    final int parentIndex,
+                                    final TrieNode<V> parentNode,
+                                    final int index) {
+        final TrieNode<V> node = parentNode.children[index];
+
+        if (node.inUse) {
+            return;
+        }
+
+        final int childCount = node.children.length;
+
+        if (childCount == 1) {
+			/* Only one child left, so the node is not needed as branch */
+            merge(parentNode, index);
+        } else if (childCount == 0) {
+            parentNode.removeChild(index);
+
+            if (grandParentNode != null && !parentNode.inUse
+                    && parentNode.children.length == 1) {
+				/* The parent was a branch that now only has one child */
+                merge(grandParentNode, parentIndex);
+            }
+        }
+    }
+
+    /**
+     * Removes all entries whose keys start with the given prefix and returns
+     * the amount of removed entries.
+     */
+    int removePrefix(final CharSequence prefix) {
+        final int prefixLength = prefix.length();
+
+        if (prefixLength == 0) {
+            final int oldSize = size;
+            clear();
+            return oldSize;
+        }
+
+        TrieNode<V> grandParentNode = null;
+        TrieNode<V> parentNode = null;
+        TrieNode<V> currentNode = root;
+        int parentIndex = -1;
+        int index = -1;
+        int i = 0;
+
+        while (i < prefixLength) {
+            final int childIndex = currentNode.indexOf(prefix.charAt(i));
+
+            if (childIndex < 0) {
+                return 0;
+            }
+
+            final TrieNode<V> child = currentNode.children[childIndex];
+            final int matched = matchLabel(child.label, prefix, i);
+
+            if (matched < child.label.length && i + matched < prefixLength) {
+                return 0;
+            }
+
+            grandParentNode = parentNode;
+            parentNode = currentNode;
+            parentIndex = index;
+            currentNode = child;
+            index = childIndex;
+            i += matched;
+        }
+
+        final int removed = currentNode.count;
+
+        if (removed == 0) {
+            return 0;
+        }
+
+        addToCounts(prefix, prefixLength, -removed);
+        /* Detach the subtree and compact like if a node was removed */
+        currentNode.clearChildren();
+        currentNode.unset();
+        compact(grandParentNode, parentIndex, parentNode, index);
+        size -= removed;
+        ++modCount;
+        return removed;
+    }
+
+    /**
+     * Adds the given delta to the counts of the nodes on the path to the
+     * topmost node whose key starts with the first chars of the given key up
+     * to the given length. The path is assumed to exist.
+     */
+    private void addToCounts(final CharSequence key, final int length,
+                             final int delta) {
+        TrieNode<V> currentNode = root;
+        int i = 0;
+        currentNode.count += delta;
+
+        while (i < length) {
+            currentNode = currentNode.child(key.charAt(i));
+            currentNode.count += delta;
+            i += currentNode.label.length;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clear() {
+        final TrieNode<V> rootNode = root;
+        rootNode.clearChildren();
+        rootNode.unset();
+        rootNode.count = 0;
+        ++modCount;
+        size = 0;
+    }
+
+    private static CharSequence keyCheck(final Object key) {
+        if (key == null) {
+            throw new IllegalArgumentException(
+                    "This map does not support null keys");
+        } else if (!(key instanceof CharSequence)) {
+            throw new IllegalArgumentException(
+                    "Argument must be instance of CharSequence");
+        }
+
+        return (CharSequence) key;
+    }
+
+    private static CharSequence keyCheck(final CharSequence key) {
+        if (key == null) {
+            throw new IllegalArgumentException(
+                    "This map does not support null keys");
+        }
+
+        return key;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+	/*
+	 * Iterators
+	 */
+
+    /**
+     * Entry implementation for TrieMap.
+     */
+    private final class TrieEntry implements Entry<CharSequence, V> {
+
+        private final CharSequence key;
+        private final TrieNode<V> node;
+
+        public TrieEntry(final CharSequence key, final TrieNode<V> node) {
+            this.key = key;
+            this.node = node;
+        }
+
+        @Override
+        public final CharSequence getKey() {
+            return key;
+        }
+
+        @Override
+        public final V getValue() {
+            return node.value;
+        }
+
+        @Override
+        public final V setValue(final V value) {
+            final V oldValue = node.value;
+            node.value = value;
+            return oldValue;
+        }
+
+        @Override
+        public int hashCode() {
+            final Object k = this.key;
+            final Object v = this.node.value;
+            int hash = 7;
+            hash = 37 * hash + (k != null ? k.hashCode() : 0);
+            hash = 37 * hash + (v != null ? v.hashCode() : 0);
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == null) {
+                return false;
+            }
+            if (!(obj instanceof Map.Entry<?, ?>)) {
+                return false;
+            }
+            final Map.Entry<?, ?> other = (Map.Entry<?, ?>) obj;
+
+            final Object k1 = this.key;
+            final Object k2 = other.getKey();
+
+            if (k1 != k2 && (k1 == null || !k1.equals(k2))) {
+                return false;
+            }
+
+            final Object v1 = this.node.value;
+            final Object v2 = other.getValue();
+
+            if (v1 != v2 && (v1 == null || !v1.equals(v2))) {
+                return false;
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * Finds the neighbours of a key in key order by walking the path of the
+     * key. The nodes on the path are kept on a stack, so when the key leaves
+     * the trie, the neighbour is found by stepping to the next smaller or
+     * greater sibling subtree of the deepest possible node. The key of the
+     * found node is in {@link #key}.
+     */
+    private static final class TrieNavigator<V> {
+
+        /* The nodes on the path, the index of the child that was taken and their key lengths */
+        private TrieNode<V>[] nodes;
+        private int[] childIndexes;
+        private int[] keyLengths;
+        private int top;
+        private final StringBuilder key = new StringBuilder();
+
+        public TrieNavigator() {
+            this.nodes = TrieNode.<V> newArray(16);
+            this.childIndexes = new int[16];
+            this.keyLengths = new int[16];
+            this.top = -1;
+        }
+
+        private void push(final TrieNode<V> node) {
+            if (++top == nodes.length) {
+                nodes = Arrays.copyOf(nodes, top << 1);
+                childIndexes = Arrays.copyOf(childIndexes, top << 1);
+                keyLengths = Arrays.copyOf(keyLengths, top << 1);
+            }
+
+            nodes[top] = node;
+            keyLengths[top] = key.length();
+        }
+
+        /**
+         * Returns the node with the least key in the subtree of the given
+         * node whose key is already in the buffer.
+         */
+        public TrieNode<V> first(final TrieNode<V> start) {
+            TrieNode<V> node = start;
+
+			/* Every node except the root is in use or has children */
+            while (!node.inUse) {
+                if (node.children.length == 0) {
+                    return null;
+                }
+
+                node = node.children[0];
+                key.append(node.label);
+            }
+
+            return node;
+        }
+
+        /**
+         * Returns the node with the greatest key in the subtree of the given
+         * node whose key is already in the buffer.
+         */
+        public TrieNode<V> last(final TrieNode<V> start) {
+            TrieNode<V> node = start;
+
+            while (node.children.length != 0) {
+                node = node.children[node.children.length - 1];
+                key.append(node.label);
+            }
+
+            return node.inUse ? node : null;
+        }
+
+        private TrieNode<V> firstOfChild(final int index) {
+            final TrieNode<V> child = nodes[top].children[index];
+            key.setLength(keyLengths[top]);
+            key.append(child.label);
+            return first(child);
+        }
+
+        private TrieNode<V> lastOfChild(final int index) {
+            final TrieNode<V> child = nodes[top].children[index];
+            key.setLength(keyLengths[top]);
+            key.append(child.label);
+            return last(child);
+        }
+
+        /**
+         * Returns the least node after the subtree of the child at the
+         * current child index of the top node.
+         */
+        private TrieNode<V> after() {
+            while (top >= 0) {
+                final int index = childIndexes[top] + 1;
+
+                if (index < nodes[top].children.length) {
+                    return firstOfChild(index);
+                }
+
+                --top;
+            }
+
+            return null;
+        }
+
+        /**
+         * Returns the greatest node before the subtree of the child at the
+         * current child index of the top node.
+         */
+        private TrieNode<V> before() {
+            while (top >= 0) {
+                final int index = childIndexes[top];
+
+                if (index > 0) {
+                    return lastOfChild(index - 1);
+                }
+                if (nodes[top].inUse) {
+                    key.setLength(keyLengths[top]);
+                    return nodes[top];
+                }
+
+                --top;
+            }
+
+            return null;
+        }
+
+        /**
+         * Descends along the given key as far as the labels match and
+         * returns the index of the first unmatched key char or
+         * <code>-(index + 1)</code> if the key ends within a label or at a
+         * node. The child index of the top node is set to the child that
+         * diverges from the key, if there is one.
+         */
+        private int descend(final TrieNode<V> root, final CharSequence target) {
+            final int length = target.length();
+            TrieNode<V> node = root;
+            int i = 0;
+
+            key.setLength(0);
+            push(node);
+
+            while (i < length) {
+                final int index = node.indexOf(target.charAt(i));
+
+                if (index < 0) {
+                    childIndexes[top] = index;
+                    return i;
+                }
+
+                final TrieNode<V> child = node.children[index];
+                final char[] label = child.label;
+                final int end = Math.min(label.length, length - i);
+                int j = 1;
+
+                childIndexes[top] = index;
+
+                while (j < end && label[j] == target.charAt(i + j)) {
+                    ++j;
+                }
+
+                if (j < label.length) {
+                    return j == length - i ? -(i + 1) : i + j;
+                }
+
+                key.append(label);
+                push(child);
+                node = child;
+                i += label.length;
+            }
+
+            return -(length + 1);
+        }
+
+        public TrieNode<V> ceiling(final TrieNode<V> root,
+                                   final CharSequence target, final boolean inclusive) {
+            final int result = descend(root, target);
+            final TrieNode<V> node = nodes[top];
+
+            if (result == -(target.length() + 1)) {
+				/* The key ends at the top node */
+                if (inclusive && node.inUse) {
+                    return node;
+                }
+                if (node.children.length != 0) {
+                    return firstOfChild(0);
+                }
+
+                --top;
+                return after();
+            }
+
+            final int index = childIndexes[top];
+
+            if (index < 0) {
+                final int insertionPoint = -(index + 1);
+
+                if (insertionPoint < node.children.length) {
+                    return firstOfChild(insertionPoint);
+                }
+
+                --top;
+                return after();
+            }
+            if (result < 0) {
+				/* The key ends within the label of the child, so the child is greater */
+                return firstOfChild(index);
+            }
+
+            final TrieNode<V> child = node.children[index];
+
+            if (child.label[result - keyLengths[top]] > target.charAt(result)) {
+                return firstOfChild(index);
+            }
+
+            return after();
+        }
+
+        public TrieNode<V> floor(final TrieNode<V> root,
+                                 final CharSequence target, final boolean inclusive) {
+            final int result = descend(root, target);
+            final TrieNode<V> node = nodes[top];
+
+            if (result == -(target.length() + 1)) {
+				/* The key ends at the top node, its subtree is greater */
+                if (inclusive && node.inUse) {
+                    return node;
+                }
+
+                --top;
+                return before();
+            }
+
+            final int index = childIndexes[top];
+
+            if (index < 0) {
+                childIndexes[top] = -(index + 1);
+                return before();
+            }
+            if (result < 0) {
+				/* The key ends within the label of the child, so the child is greater */
+                return before();
+            }
+
+            final TrieNode<V> child = node.children[index];
+
+            if (child.label[result - keyLengths[top]] < target.charAt(result)) {
+                return lastOfChild(index);
+            }
+
+            return before();
+        }
+    }
+
+    /**
+     * Walks the nodes of a subtree in pre-order, the smallest child first,
+     * and keeps the key of the current node in a single growing buffer so
+     * that no objects are allocated per node.
+     */
+    private static final class TrieCursor<V> {
+
+        /* The nodes on the current path, the index of their next child and their key lengths */
+        private TrieNode<V>[] nodes;
+        private int[] childIndexes;
+        private int[] keyLengths;
+        private int top;
+        private boolean startPending;
+        private char[] key;
+        private int keyLength;
+
+        public TrieCursor() {
+            this.nodes = TrieNode.<V> newArray(16);
+            this.childIndexes = new int[16];
+            this.keyLengths = new int[16];
+            this.key = new char[32];
+            this.top = -1;
+        }
+
+        /**
+         * Positions the cursor before the given node whose key is the given
+         * prefix.
+         */
+        public void reset(final TrieNode<V> start, final CharSequence prefix) {
+            final int prefixLength = prefix.length();
+            clear();
+            ensureKeyCapacity(prefixLength);
+
+            for (int i = 0; i < prefixLength; i++) {
+                key[i] = prefix.charAt(i);
+            }
+
+            push(start, prefixLength);
+            startPending = true;
+        }
+
+        /**
+         * Positions the cursor on the node whose key is currently in the
+         * buffer up to the given length, so that {@link #next()} continues
+         * after that node. The first chars of the buffer up to the given
+         * prefix length must be the key of the given start node.
+         */
+        public void seek(final TrieNode<V> start, final int prefixLength,
+                         final int length) {
+            TrieNode<V> node = start;
+            int i = prefixLength;
+            clear();
+            push(node, i);
+
+            while (i < length) {
+                final int index = node.indexOf(key[i]);
+                childIndexes[top] = index + 1;
+                node = node.children[index];
+                i += node.label.length;
+                push(node, i);
+            }
+
+            keyLength = length;
+        }
+
+        /**
+         * Returns the next node that is in use or null if there is none. The
+         * key of the node is in the buffer up to {@link #keyLength}.
+         */
+        public TrieNode<V> next() {
+            if (startPending) {
+                startPending = false;
+
+                if (nodes[0].inUse) {
+                    keyLength = keyLengths[0];
+                    return nodes[0];
+                }
+            }
+
+            while (top >= 0) {
+                final TrieNode<V> node = nodes[top];
+                final int index = childIndexes[top];
+
+                if (index < node.children.length) {
+                    final TrieNode<V> child = node.children[index];
+                    final char[] label = child.label;
+                    final int parentKeyLength = keyLengths[top];
+                    final int childKeyLength = parentKeyLength + label.length;
+
+                    childIndexes[top] = index + 1;
+                    ensureKeyCapacity(childKeyLength);
+                    System.arraycopy(label, 0, key, parentKeyLength,
+                            label.length);
+                    push(child, childKeyLength);
+
+                    if (child.inUse) {
+                        keyLength = childKeyLength;
+                        return child;
+                    }
+                } else {
+                    nodes[top--] = null;
+                }
+            }
+
+            return null;
+        }
+
+        private void push(final TrieNode<V> node, final int nodeKeyLength) {
+            if (++top == nodes.length) {
+                nodes = Arrays.copyOf(nodes, top << 1);
+                childIndexes = Arrays.copyOf(childIndexes, top << 1);
+                keyLengths = Arrays.copyOf(keyLengths, top << 1);
+            }
+
+            nodes[top] = node;
+            childIndexes[top] = 0;
+            keyLengths[top] = nodeKeyLength;
+        }
+
+        private void clear() {
+            while (top >= 0) {
+                nodes[top--] = null;
+            }
+
+            startPending = false;
+        }
+
+        private void ensureKeyCapacity(final int length) {
+            if (length > key.length) {
+                key = Arrays.copyOf(key, Math.max(length, key.length << 1));
+            }
+        }
+    }
+
+    /**
+     * Iterator implementation for TrieMap. The entries are returned in
+     * lexicographical order of their keys, only the keys of returned entries
+     * are materialized.
+     *
+     * @param <E>
+     *            The type of the entry
+     */
+    private abstract class TrieIterator<E> implements Iterator<E> {
+
+        protected int expectedModCount;
+        private final TrieCursor<V> cursor;
+        private TrieNode<V> next;
+        private Entry<CharSequence, V> current;
+
+        public TrieIterator() {
+            expectedModCount = getBackingMap().modCount;
+            cursor = new TrieCursor<V>();
+
+            final TrieNode<V> startNode = getRoot();
+
+            if (startNode != null) {
+                cursor.reset(startNode, getRootKey());
+                next = cursor.next();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public Entry<CharSequence, V> nextEntry() {
+            if (getBackingMap().modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+
+            final TrieNode<V> node = next;
+
+            if (node == null) {
+                throw new NoSuchElementException();
+            }
+
+            final TrieCursor<V> localCursor = cursor;
+            final Entry<CharSequence, V> entry = new TrieEntry(new String(
+                    localCursor.key, 0, localCursor.keyLength), node);
+            current = entry;
+            next = localCursor.next();
+
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            final Entry<CharSequence, V> entry = current;
+
+            if (entry == null) {
+                throw new IllegalStateException();
+            }
+
+            final TrieMap<V> backingMap = getBackingMap();
+
+            if (backingMap.modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+
+            TrieMap.this.remove(entry.getKey());
+            current = null;
+            expectedModCount = backingMap.modCount;
+
+            if (next != null) {
+				/* Compacting may have merged or shifted nodes on the path to the next node */
+                cursor.seek(getRoot(), getRootKey().length(), cursor.keyLength);
+            }
+        }
+    }
+
+    /**
+     * Visits all entries in lexicographical order of their keys. The keys are
+     * only passed as reused char buffer, so no objects are allocated per
+     * entry.
+     *
+     * @param visitor
+     *            The visitor to invoke for every entry
+     * @throws ConcurrentModificationException
+     *             When the map is modified by the visitor
+     */
+    public void forEach(final TrieVisitor<? super V> visitor) {
+        final TrieMap<V> backingMap = getBackingMap();
+        final int expectedModCount = backingMap.modCount;
+        final TrieNode<V> startNode = getRoot();
+
+        if (startNode == null) {
+            return;
+        }
+
+        final TrieCursor<V> cursor = new TrieCursor<V>();
+        TrieNode<V> node;
+        cursor.reset(startNode, getRootKey());
+
+        while ((node = cursor.next()) != null) {
+            visitor.visit(cursor.key, cursor.keyLength, node.value);
+
+            if (backingMap.modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+        }
+    }
+
+    /**
+     * Visits all entries like {@link #forEach(TrieVisitor)}, but splits the
+     * trie into subtrees that are visited in parallel in the given pool. The
+     * visitor has to be thread safe and the entries are visited in no
+     * particular order. The map must not be modified while visiting.
+     *
+     * @param visitor
+     *            The visitor to invoke for every entry
+     * @param pool
+     *            The pool in which to visit the subtrees
+     * @throws ConcurrentModificationException
+     *             When the map was modified while visiting
+     */
+    public void forEach(final TrieVisitor<? super V> visitor,
+                        final ForkJoinPool pool) {
+        final TrieMap<V> backingMap = getBackingMap();
+        final int expectedModCount = backingMap.modCount;
+        final TrieNode<V> startNode = getRoot();
+
+        if (startNode == null) {
+            return;
+        }
+
+        pool.invoke(new VisitTask<V>(startNode, getRootKey().toString(),
+                visitor));
+
+        if (backingMap.modCount != expectedModCount) {
+            throw new ConcurrentModificationException();
+        }
+    }
+
+    /**
+     * Visits the subtree of a node, subtrees with more entries than
+     * {@link #SPLIT_THRESHOLD} are split into one task per child.
+     */
+    private static final class VisitTask<V> extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private static final int SPLIT_THRESHOLD = 1024;
+
+        private final TrieNode<V> node;
+        private final String key;
+        private final TrieVisitor<? super V> visitor;
+
+        public VisitTask(final TrieNode<V> node, final String key,
+                         final TrieVisitor<? super V> visitor) {
+            this.node = node;
+            this.key = key;
+            this.visitor = visitor;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected void compute() {
+            final TrieNode<V> localNode = node;
+
+            if (localNode.count <= SPLIT_THRESHOLD) {
+                final TrieCursor<V> cursor = new TrieCursor<V>();
+                TrieNode<V> currentNode;
+                cursor.reset(localNode, key);
+
+                while ((currentNode = cursor.next()) != null) {
+                    visitor.visit(cursor.key, cursor.keyLength,
+                            currentNode.value);
+                }
+
+                return;
+            }
+
+            if (localNode.inUse) {
+                visitor.visit(key.toCharArray(), key.length(), localNode.value);
+            }
+
+            final TrieNode<V>[] children = localNode.children;
+            final VisitTask<V>[] tasks = (VisitTask<V>[]) new VisitTask<?>[
+                    children.length];
+
+            for (int i = 0; i < children.length; i++) {
+                final char[] label = children[i].label;
+                tasks[i] = new VisitTask<V>(children[i], new StringBuilder(
+                        key.length() + label.length).append(key).append(label)
+                        .toString(), visitor);
+            }
+
+            invokeAll(tasks);
+        }
+    }
+
+    /**
+     * Returns the key of the node that is returned by {@link #getRoot()}
+     * relative to this map.
+     */
+    CharSequence getRootKey() {
+        return "";
+    }
+
+    private final class KeyIterator extends TrieIterator<CharSequence> {
+
+        @Override
+        public CharSequence next() {
+            return nextEntry().getKey();
+        }
+    }
+
+    private final class EntryIterator extends
+            TrieIterator<Entry<CharSequence, V>> {
+
+        @Override
+        public Entry<CharSequence, V> next() {
+            return nextEntry();
+        }
+    }
+
+    private final class ValueIterator extends TrieIterator<V> {
+
+        @Override
+        public V next() {
+            return nextEntry().getValue();
+        }
+    }
+
+    /*
+     * Views
+     */
+    private transient Set<CharSequence> keySet;
+    private transient Collection<V> values;
+    private transient Set<Entry<CharSequence, V>> entrySet;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<CharSequence> keySet() {
+        final Set<CharSequence> ks = keySet;
+        return ks != null ? ks : (keySet = new KeySet());
+    }
+
+    private final class KeySet extends AbstractSet<CharSequence> {
+
+        @Override
+        public Iterator<CharSequence> iterator() {
+            return new KeyIterator();
+        }
+
+        @Override
+        public int size() {
+            return TrieMap.this.size();
+        }
+
+        @Override
+        public boolean contains(final Object o) {
+            return containsKey((CharSequence) o);
+        }
+
+        @Override
+        public boolean remove(final Object o) {
+            return TrieMap.this.remove((CharSequence) o) != null;
+        }
+
+        @Override
+        public void clear() {
+            TrieMap.this.clear();
+        }
+    }
+
+    @Override
+    public Set<Entry<CharSequence, V>> entrySet() {
+        final Set<Entry<CharSequence, V>> es = entrySet;
+        return es != null ? es : (entrySet = new EntrySet());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    private final class EntrySet extends AbstractSet<Entry<CharSequence, V>> {
 
         @Override
-        public final CharSequence getKey() {
-            return key;
+        public void clear() {
+            TrieMap.this.clear();
         }
 
         @Override
-        public final V getValue() {
-            return node.value;
+        public boolean contains(final Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+
+            @SuppressWarnings("unchecked") final Map.Entry<CharSequence, V> e = (Map.Entry<CharSequence, V>) (Map.Entry<?, ?>) o;
+            final V value = get(e.getKey());
+            return value != null && value.equals(e.getValue());
         }
 
         @Override
-        public final V setValue(final V value) {
-            final V oldValue = node.value;
-            node.value = value;
-            return oldValue;
+        public Iterator<Entry<CharSequence, V>> iterator() {
+            return new EntryIterator();
         }
 
         @Override
-        public int hashCode() {
-            final Object k = this.key;
-            final Object v = this.node.value;
-            int hash = 7;
-            hash = 37 * hash + (k != null ? k.hashCode() : 0);
-            hash = 37 * hash + (v != null ? v.hashCode() : 0);
-            return hash;
+        public boolean remove(final Object o) {
+            return removeMapping(o) != null;
         }
 
         @Override
-        public boolean equals(Object obj) {
-            if (obj == null) {
-                return false;
+        public int size() {
+            return TrieMap.this.size();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<V> values() {
+        final Collection<V> v = values;
+        return v != null ? v : (values = new Values());
+    }
+
+    private final class Values extends AbstractCollection<V> {
+
+        @Override
+        public void clear() {
+            TrieMap.this.clear();
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public boolean contains(final Object o) {
+            return TrieMap.this.containsValue((V) o);
+        }
+
+        @Override
+        public Iterator<V> iterator() {
+            return new ValueIterator();
+        }
+
+        @Override
+        public int size() {
+            return TrieMap.this.size();
+        }
+    }
+
+    /**
+     * Compiles the current state of this map into a read only map that
+     * encodes the trie in primitive arrays. Later modifications of this map
+     * are not visible in the returned map.
+     *
+     * @return A read only copy of this map
+     */
+    public FrozenTrieMap<V> freeze() {
+        if (getBackingMap() != this) {
+            return new TrieMap<V>(this).freeze();
+        }
+
+		/* Collect the nodes in pre-order, the smallest child first */
+        final List<TrieNode<V>> nodes = new ArrayList<TrieNode<V>>();
+        final Deque<TrieNode<V>> stack = new ArrayDeque<TrieNode<V>>();
+        int labelCount = 0;
+        int childCount = 0;
+        stack.push(root);
+
+        while (!stack.isEmpty()) {
+            final TrieNode<V> node = stack.pop();
+            final TrieNode<V>[] children = node.children;
+            nodes.add(node);
+            labelCount += node.label.length;
+            childCount += children.length;
+
+            for (int i = children.length - 1; i >= 0; i--) {
+                stack.push(children[i]);
             }
-            if (!(obj instanceof Map.Entry<?, ?>)) {
-                return false;
+        }
+
+        final int nodeCount = nodes.size();
+        final char[] labels = new char[labelCount];
+        final int[] labelOffsets = new int[nodeCount + 1];
+        final char[] childChars = new char[childCount];
+        final int[] childOffsets = new int[nodeCount + 1];
+        final int[] childNodes = new int[childCount];
+        final int[] subtreeEnds = new int[nodeCount];
+        final int[] entryRanks = new int[nodeCount + 1];
+        final Object[] values = new Object[size];
+        int labelOffset = 0;
+        int childOffset = 0;
+        int entryRank = 0;
+
+        for (int i = 0; i < nodeCount; i++) {
+            final TrieNode<V> node = nodes.get(i);
+            final char[] label = node.label;
+
+            labelOffsets[i] = labelOffset;
+            System.arraycopy(label, 0, labels, labelOffset, label.length);
+            labelOffset += label.length;
+
+            childOffsets[i] = childOffset;
+            System.arraycopy(node.childChars, 0, childChars, childOffset,
+                    node.children.length);
+            childOffset += node.children.length;
+
+            entryRanks[i] = entryRank;
+
+            if (node.inUse) {
+                values[entryRank++] = node.value;
             }
-            final Map.Entry<?, ?> other = (Map.Entry<?, ?>) obj;
+        }
 
-            final Object k1 = this.key;
-            final Object k2 = other.getKey();
+        labelOffsets[nodeCount] = labelOffset;
+        childOffsets[nodeCount] = childOffset;
+        entryRanks[nodeCount] = entryRank;
 
-            if (k1 != k2 && (k1 == null || !k1.equals(k2))) {
-                return false;
+		/*
+		 * Children have higher ids than their parents, so when going backwards
+		 * the subtree ends of the children are known when visiting the parent
+		 */
+        for (int i = nodeCount - 1; i >= 0; i--) {
+            final int childEnd = childOffsets[i + 1];
+            int childNode = i + 1;
+
+            for (int j = childOffsets[i]; j < childEnd; j++) {
+                childNodes[j] = childNode;
+                childNode = subtreeEnds[childNode];
             }
 
-            final Object v1 = this.node.value;
-            final Object v2 = other.getValue();
+            subtreeEnds[i] = childNode;
+        }
 
-            if (v1 != v2 && (v1 == null || !v1.equals(v2))) {
-                return false;
+        return new FrozenTrieMap<V>(labels, labelOffsets, childChars,
+                childOffsets, childNodes, subtreeEnds, entryRanks, values);
+    }
+
+    /**
+     * Compiles the current state of this map into an Aho-Corasick automaton
+     * that finds all occurrences of the keys in a text. Later modifications
+     * of this map are not visible in the returned automaton.
+     *
+     * @return A matcher for the keys of this map
+     */
+    public AhoCorasick<V> toMatcher() {
+        if (getBackingMap() != this) {
+            return new TrieMap<V>(this).toMatcher();
+        }
+
+		/* Every label char becomes a state */
+        final Deque<TrieNode<V>> stack = new ArrayDeque<TrieNode<V>>();
+        int stateCount = 1;
+        stack.push(root);
+
+        while (!stack.isEmpty()) {
+            for (final TrieNode<V> child : stack.pop().children) {
+                stateCount += child.label.length;
+                stack.push(child);
             }
+        }
 
-            return true;
+        final char[] stateChars = new char[stateCount];
+        final int[] childOffsets = new int[stateCount + 1];
+        final int[] outputs = new int[stateCount];
+        final Object[] values = new Object[root.inUse ? size - 1 : size];
+        /* The node and label index of every state, the state ids are the breadth first queue */
+        final TrieNode<V>[] stateNodes = TrieNode.<V> newArray(stateCount);
+        final int[] labelIndexes = new int[stateCount];
+        int nextState = 1;
+        int valueCount = 0;
+
+        stateNodes[0] = root;
+        labelIndexes[0] = -1;
+
+        for (int state = 0; state < stateCount; state++) {
+            final TrieNode<V> node = stateNodes[state];
+            final int labelIndex = labelIndexes[state];
+            childOffsets[state] = nextState;
+            outputs[state] = -1;
+
+            if (labelIndex < node.label.length - 1) {
+                stateNodes[nextState] = node;
+                labelIndexes[nextState] = labelIndex + 1;
+                stateChars[nextState++] = node.label[labelIndex + 1];
+            } else {
+                if (node.inUse && state != 0) {
+                    values[valueCount] = node.value;
+                    outputs[state] = valueCount++;
+                }
+
+                for (final TrieNode<V> child : node.children) {
+                    stateNodes[nextState] = child;
+                    labelIndexes[nextState] = 0;
+                    stateChars[nextState++] = child.label[0];
+                }
+            }
+
+            stateNodes[state] = null;
         }
+
+        childOffsets[stateCount] = nextState;
+        return new AhoCorasick<V>(stateChars, childOffsets, outputs, values);
     }
 
     /**
-     * Iterator implementation for TrieMap.
+     * A special implementation of TrieMap that gives a prefixed view on an
+     * existing TrieMap. Since the prefix may end within the label of a node,
+     * operations are delegated to the parent with the prefixed key.
      *
-     * @param <E>
-     *            The type of the entry
+     * @param <V>
+     *            The value type that the trie holds.
      */
-    private abstract class TrieIterator<E> implements Iterator<E> {
+    private static class SubTrieMap<V> extends TrieMap<V> {
 
-        protected int expectedModCount;
-        private final Deque<TrieEntry> deque;
-        private Entry<CharSequence, V> next;
-        private Entry<CharSequence, V> current;
+        private static final long serialVersionUID = 1;
 
-        public TrieIterator() {
-            this(getRoot(), "");
+        private transient TrieNode<V> subRootNode;
+        private transient CharSequence subRootKey;
+        private TrieMap<V> parent;
+        private final CharSequence prefix;
+
+        public SubTrieMap(final TrieMap<V> parent, final CharSequence prefix) {
+            this.parent = parent;
+            this.prefix = prefix;
+            this.modCount = -1;
+        }
+
+        private void readObject(final ObjectInputStream in)
+                throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+			/* Force a lookup of the sub root in the deserialized parent */
+            this.modCount = -1;
+        }
+
+        private void ensureLatest() {
+            final int parentModCount = parent.modCount;
+
+            if (modCount != parentModCount) {
+                final StringBuilder remainder = new StringBuilder();
+                modCount = parentModCount;
+                subRootNode = parent.findPrefixNode(prefix, remainder);
+                subRootKey = remainder.toString();
+                this.size = subRootNode == null ? 0 : subRootNode.count;
+            }
+        }
+
+        private String prefixed(final CharSequence key) {
+            final CharSequence localPrefix = prefix;
+            return new StringBuilder(localPrefix.length() + key.length())
+                    .append(localPrefix).append(key).toString();
+        }
+
+        @Override
+        TrieNode<V> getRoot() {
+            ensureLatest();
+            return subRootNode;
+        }
+
+        @Override
+        CharSequence getRootKey() {
+            ensureLatest();
+            return subRootKey;
+        }
+
+        @Override
+        TrieMap<V> getBackingMap() {
+            return parent;
+        }
+
+        @Override
+        public V put(final CharSequence key, final V value) {
+            return parent.put(prefixed(keyCheck(key)), value);
+        }
+
+        @Override
+        public V get(final Object key) {
+            return parent.get(prefixed(keyCheck(key)));
+        }
+
+        @Override
+        public boolean containsKey(final Object key) {
+            return parent.containsKey(prefixed(keyCheck(key)));
+        }
+
+        @Override
+        public int countKeysWithPrefix(final CharSequence prefix) {
+            return parent.countKeysWithPrefix(prefixed(keyCheck(prefix)));
+        }
+
+        @Override
+        public String getBestMatch(final CharSequence str) {
+            final int prefixLength = prefix.length();
+            final int matched = parent.matchLength(prefixed(keyCheck(str)))
+                    - prefixLength;
+
+            if (matched < 0) {
+                return "";
+            }
+
+            return new StringBuilder(matched).append(str, 0, matched)
+                    .toString();
+        }
+
+        @Override
+        public V remove(final Object o) {
+            return parent.remove(prefixed(keyCheck(o)));
+        }
+
+        @Override
+        V removeMapping(final Object o) {
+            if (!(o instanceof Map.Entry)) {
+                throw new IllegalArgumentException();
+            }
+
+            final Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            return parent.removeMapping(new AbstractMap.SimpleEntry<String, Object>(
+                    prefixed(keyCheck(e.getKey())), e.getValue()));
+        }
+
+        @Override
+        public void clear() {
+            parent.removePrefix(prefix);
+        }
+
+        @Override
+        public int size() {
+            ensureLatest();
+            return super.size();
+        }
+
+        @Override
+        Entry<CharSequence, V> navigate(final CharSequence key,
+                                        final boolean ceiling, final boolean inclusive) {
+            if (key == null) {
+                return super.navigate(null, ceiling, inclusive);
+            }
+
+			/* The keys with the prefix are a contiguous range of the parent */
+            final Entry<CharSequence, V> entry = parent.navigate(prefixed(key),
+                    ceiling, inclusive);
+
+            if (entry == null) {
+                return null;
+            }
+
+            final String entryKey = entry.getKey().toString();
+            final String localPrefix = prefix.toString();
+
+            if (!entryKey.startsWith(localPrefix)) {
+                return null;
+            }
+
+            return new AbstractMap.SimpleImmutableEntry<CharSequence, V>(
+                    entryKey.substring(localPrefix.length()), entry.getValue());
+        }
+
+        @Override
+        int countBefore(final CharSequence key, final boolean inclusive) {
+            return parent.countBefore(prefixed(key), inclusive)
+                    - parent.countBefore(prefix, false);
+        }
+
+        @Override
+        public TrieMap<V> subMap(final CharSequence prefix) {
+            return parent.subMap(prefixed(keyCheck(prefix)));
+        }
+    }
+
+    /**
+     * A view on the entries of a TrieMap whose keys are within a range,
+     * optionally in descending order. All operations are delegated to the
+     * map with bounds checks, so the view shares the nodes of the map and
+     * navigation and size computation only walk the paths of the bounds.
+     *
+     * @param <V>
+     *            The value type that the trie holds.
+     */
+    private static final class TrieRangeMap<V> extends
+            AbstractMap<CharSequence, V> implements
+            NavigableMap<CharSequence, V>, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final TrieMap<V> map;
+        /* A null bound means the range is unbounded at that side */
+        private final CharSequence lo;
+        private final boolean loInclusive;
+        private final CharSequence hi;
+        private final boolean hiInclusive;
+        private final boolean descending;
+
+        public TrieRangeMap(final TrieMap<V> map, final CharSequence lo,
+                            final boolean loInclusive, final CharSequence hi,
+                            final boolean hiInclusive, final boolean descending) {
+            if (lo != null && hi != null && compareKeys(lo, hi) > 0) {
+                throw new IllegalArgumentException("fromKey > toKey");
+            }
+
+            this.map = map;
+            this.lo = lo;
+            this.loInclusive = loInclusive;
+            this.hi = hi;
+            this.hiInclusive = hiInclusive;
+            this.descending = descending;
+        }
+
+        private boolean tooLow(final CharSequence key) {
+            if (lo == null) {
+                return false;
+            }
+
+            final int c = compareKeys(key, lo);
+            return c < 0 || (c == 0 && !loInclusive);
+        }
+
+        private boolean tooHigh(final CharSequence key) {
+            if (hi == null) {
+                return false;
+            }
+
+            final int c = compareKeys(key, hi);
+            return c > 0 || (c == 0 && !hiInclusive);
         }
 
-        public TrieIterator(final TrieNode<V> startNode, final CharSequence key) {
-            expectedModCount = modCount;
-            deque = new ArrayDeque<TrieEntry>();
-            deque.add(new TrieEntry(key, startNode));
-            fetchEntry();
+        private boolean inRange(final CharSequence key) {
+            return !tooLow(key) && !tooHigh(key);
+        }
+
+        /**
+         * Returns whether the given bound of a new sub view is within the
+         * range, an exclusive bound may also equal an exclusive bound of this
+         * view.
+         */
+        private boolean inRange(final CharSequence key, final boolean inclusive) {
+            if (inclusive) {
+                return inRange(key);
+            }
+
+            return (lo == null || compareKeys(key, lo) >= 0)
+                    && (hi == null || compareKeys(key, hi) <= 0);
+        }
+
+        private CharSequence checkRange(final CharSequence key,
+                                        final boolean inclusive) {
+            if (!inRange(keyCheck(key), inclusive)) {
+                throw new IllegalArgumentException("Key out of range: " + key);
+            }
+
+            return key;
         }
 
-        private void fetchEntry() {
-            final Deque<TrieEntry> localDeque = deque;
-            TrieEntry localNext = null;
+        /*
+         * Navigation in ascending order of the map
+         */
 
-            while (localNext == null && !localDeque.isEmpty()) {
-                final TrieEntry tempEntry = localDeque.removeFirst();
-                final CharSequence key = tempEntry.key;
-                final TrieNode<V> node = tempEntry.node;
-                final StringBuilder sb = new StringBuilder(key.length() + 1);
-                sb.append(key).append(' ');
+        private Entry<CharSequence, V> absLowest() {
+            final Entry<CharSequence, V> entry = lo == null ? map.navigate(
+                    null, true, true) : map.navigate(lo, true, loInclusive);
+            return entry == null || tooHigh(entry.getKey()) ? null : entry;
+        }
 
-                if (node.inUse) {
-                    localNext = tempEntry;
-                }
+        private Entry<CharSequence, V> absHighest() {
+            final Entry<CharSequence, V> entry = hi == null ? map.navigate(
+                    null, false, true) : map.navigate(hi, false, hiInclusive);
+            return entry == null || tooLow(entry.getKey()) ? null : entry;
+        }
 
-                for (final Entry<Character, TrieNode<V>> entry : node.children
-                        .entrySet()) {
-                    sb.setCharAt(key.length(), entry.getKey());
-                    localDeque.addFirst(new TrieEntry(sb.toString(), entry
-                            .getValue()));
-                }
+        private Entry<CharSequence, V> absCeiling(final CharSequence key,
+                                                  final boolean inclusive) {
+            if (tooLow(keyCheck(key))) {
+                return absLowest();
             }
 
-            next = localNext;
-        }
-
-        @Override
-        public boolean hasNext() {
-            return next != null;
+            final Entry<CharSequence, V> entry = map.navigate(key, true,
+                    inclusive);
+            return entry == null || tooHigh(entry.getKey()) ? null : entry;
         }
 
-        public Entry<CharSequence, V> nextEntry() {
-            if (modCount != expectedModCount) {
-                throw new ConcurrentModificationException();
+        private Entry<CharSequence, V> absFloor(final CharSequence key,
+                                                final boolean inclusive) {
+            if (tooHigh(keyCheck(key))) {
+                return absHighest();
             }
 
-            final Entry<CharSequence, V> entry = next;
-            current = entry;
+            final Entry<CharSequence, V> entry = map.navigate(key, false,
+                    inclusive);
+            return entry == null || tooLow(entry.getKey()) ? null : entry;
+        }
 
-            if (entry == null) {
-                throw new NoSuchElementException();
-            }
+        /*
+         * Navigation in the order of this view
+         */
 
-            fetchEntry();
+        @Override
+        public Comparator<? super CharSequence> comparator() {
+            return descending ? Collections.reverseOrder(KEY_ORDER) : KEY_ORDER;
+        }
 
-            return entry;
+        @Override
+        public Entry<CharSequence, V> lowerEntry(final CharSequence key) {
+            return descending ? absCeiling(key, false) : absFloor(key, false);
         }
 
         @Override
-        public void remove() {
-            final Entry<CharSequence, V> entry = current;
+        public CharSequence lowerKey(final CharSequence key) {
+            return keyOrNull(lowerEntry(key));
+        }
 
-            if (entry == null) {
-                throw new IllegalStateException();
-            }
+        @Override
+        public Entry<CharSequence, V> floorEntry(final CharSequence key) {
+            return descending ? absCeiling(key, true) : absFloor(key, true);
+        }
 
-            final int localModCount = modCount;
+        @Override
+        public CharSequence floorKey(final CharSequence key) {
+            return keyOrNull(floorEntry(key));
+        }
 
-            if (localModCount != expectedModCount) {
-                throw new ConcurrentModificationException();
-            }
+        @Override
+        public Entry<CharSequence, V> ceilingEntry(final CharSequence key) {
+            return descending ? absFloor(key, true) : absCeiling(key, true);
+        }
 
-            TrieMap.this.remove(entry.getKey());
-            expectedModCount = localModCount;
+        @Override
+        public CharSequence ceilingKey(final CharSequence key) {
+            return keyOrNull(ceilingEntry(key));
         }
-    }
 
-    private final class KeyIterator extends TrieIterator<CharSequence> {
+        @Override
+        public Entry<CharSequence, V> higherEntry(final CharSequence key) {
+            return descending ? absFloor(key, false) : absCeiling(key, false);
+        }
 
         @Override
-        public CharSequence next() {
-            return nextEntry().getKey();
+        public CharSequence higherKey(final CharSequence key) {
+            return keyOrNull(higherEntry(key));
         }
-    }
 
-    private final class EntryIterator extends
-            TrieIterator<Entry<CharSequence, V>> {
+        @Override
+        public Entry<CharSequence, V> firstEntry() {
+            return descending ? absHighest() : absLowest();
+        }
 
         @Override
-        public Entry<CharSequence, V> next() {
-            return nextEntry();
+        public Entry<CharSequence, V> lastEntry() {
+            return descending ? absLowest() : absHighest();
         }
-    }
 
-    private final class ValueIterator extends TrieIterator<V> {
+        @Override
+        public CharSequence firstKey() {
+            return keyOrThrow(firstEntry());
+        }
 
         @Override
-        public V next() {
-            return nextEntry().getValue();
+        public CharSequence lastKey() {
+            return keyOrThrow(lastEntry());
         }
-    }
 
-    /*
-     * Views
-     */
-    private transient Set<CharSequence> keySet;
-    private transient Collection<V> values;
-    private transient Set<Entry<CharSequence, V>> entrySet;
+        @Override
+        public Entry<CharSequence, V> pollFirstEntry() {
+            final Entry<CharSequence, V> entry = firstEntry();
 
-    /**
-     * {@inheritDoc}
-     */
-    @Override
-    public Set<CharSequence> keySet() {
-        final Set<CharSequence> ks = keySet;
-        return ks != null ? ks : (keySet = new KeySet());
-    }
+            if (entry != null) {
+                map.remove(entry.getKey());
+            }
 
-    private final class KeySet extends AbstractSet<CharSequence> {
+            return entry;
+        }
 
         @Override
-        public Iterator<CharSequence> iterator() {
-            return new KeyIterator();
+        public Entry<CharSequence, V> pollLastEntry() {
+            final Entry<CharSequence, V> entry = lastEntry();
+
+            if (entry != null) {
+                map.remove(entry.getKey());
+            }
+
+            return entry;
         }
 
+        /*
+         * Views
+         */
+
         @Override
-        public int size() {
-            return TrieMap.this.size();
+        public NavigableMap<CharSequence, V> descendingMap() {
+            return new TrieRangeMap<V>(map, lo, loInclusive, hi, hiInclusive,
+                    !descending);
         }
 
         @Override
-        public boolean contains(final Object o) {
-            return containsKey((CharSequence) o);
+        public NavigableSet<CharSequence> navigableKeySet() {
+            return new NavigableKeySet(this);
         }
 
         @Override
-        public boolean remove(final Object o) {
-            return TrieMap.this.remove((CharSequence) o) != null;
+        public NavigableSet<CharSequence> descendingKeySet() {
+            return descendingMap().navigableKeySet();
         }
 
         @Override
-        public void clear() {
-            TrieMap.this.clear();
+        public Set<CharSequence> keySet() {
+            return navigableKeySet();
         }
-    }
 
-    @Override
-    public Set<Entry<CharSequence, V>> entrySet() {
-        final Set<Entry<CharSequence, V>> es = entrySet;
-        return es != null ? es : (entrySet = new EntrySet());
-    }
+        @Override
+        public NavigableMap<CharSequence, V> subMap(final CharSequence fromKey,
+                                                   final boolean fromInclusive,
+                                                   final CharSequence toKey,
+                                                   final boolean toInclusive) {
+            checkRange(fromKey, fromInclusive);
+            checkRange(toKey, toInclusive);
+
+            if (descending) {
+                return new TrieRangeMap<V>(map, toKey, toInclusive, fromKey,
+                        fromInclusive, true);
+            }
 
-    /**
-     * {@inheritDoc}
-     */
-    private final class EntrySet extends AbstractSet<Entry<CharSequence, V>> {
+            return new TrieRangeMap<V>(map, fromKey, fromInclusive, toKey,
+                    toInclusive, false);
+        }
 
         @Override
-        public void clear() {
-            TrieMap.this.clear();
+        public NavigableMap<CharSequence, V> headMap(final CharSequence toKey,
+                                                    final boolean inclusive) {
+            checkRange(toKey, inclusive);
+
+            if (descending) {
+                return new TrieRangeMap<V>(map, toKey, inclusive, hi,
+                        hiInclusive, true);
+            }
+
+            return new TrieRangeMap<V>(map, lo, loInclusive, toKey, inclusive,
+                    false);
         }
 
         @Override
-        public boolean contains(final Object o) {
-            if (!(o instanceof Map.Entry)) {
-                return false;
+        public NavigableMap<CharSequence, V> tailMap(final CharSequence fromKey,
+                                                    final boolean inclusive) {
+            checkRange(fromKey, inclusive);
+
+            if (descending) {
+                return new TrieRangeMap<V>(map, lo, loInclusive, fromKey,
+                        inclusive, true);
             }
 
-            @SuppressWarnings("unchecked") final Map.Entry<CharSequence, V> e = (Map.Entry<CharSequence, V>) (Map.Entry<?, ?>) o;
-            final V value = get(e.getKey());
-            return value != null && value.equals(e.getValue());
+            return new TrieRangeMap<V>(map, fromKey, inclusive, hi,
+                    hiInclusive, false);
         }
 
         @Override
-        public Iterator<Entry<CharSequence, V>> iterator() {
-            return new EntryIterator();
+        public SortedMap<CharSequence, V> subMap(final CharSequence fromKey,
+                                                final CharSequence toKey) {
+            return subMap(fromKey, true, toKey, false);
         }
 
         @Override
-        public boolean remove(final Object o) {
-            return removeMapping(o) != null;
+        public SortedMap<CharSequence, V> headMap(final CharSequence toKey) {
+            return headMap(toKey, false);
         }
 
+        @Override
+        public SortedMap<CharSequence, V> tailMap(final CharSequence fromKey) {
+            return tailMap(fromKey, true);
+        }
+
+        /*
+         * Map operations
+         */
+
         @Override
         public int size() {
-            return TrieMap.this.size();
+            final int hiCount = hi == null ? map.size() : map.countBefore(hi,
+                    hiInclusive);
+            final int loCount = lo == null ? 0 : map.countBefore(lo,
+                    !loInclusive);
+			/* An exclusive range between equal bounds is empty but counts the bound on the low side */
+            return Math.max(0, hiCount - loCount);
         }
-    }
 
-    /**
-     * {@inheritDoc}
-     */
-    @Override
-    public Collection<V> values() {
-        final Collection<V> v = values;
-        return v != null ? v : (values = new Values());
-    }
+        @Override
+        public boolean isEmpty() {
+            return absLowest() == null;
+        }
 
-    private final class Values extends AbstractCollection<V> {
+        @Override
+        public boolean containsKey(final Object key) {
+            return inRange(keyCheck(key)) && map.containsKey(key);
+        }
 
         @Override
-        public void clear() {
-            TrieMap.this.clear();
+        public V get(final Object key) {
+            return inRange(keyCheck(key)) ? map.get(key) : null;
         }
 
-        @SuppressWarnings("unchecked")
         @Override
-        public boolean contains(final Object o) {
-            return TrieMap.this.containsValue((V) o);
+        public V put(final CharSequence key, final V value) {
+            if (!inRange(keyCheck(key))) {
+                throw new IllegalArgumentException("Key out of range: " + key);
+            }
+
+            return map.put(key, value);
         }
 
         @Override
-        public Iterator<V> iterator() {
-            return new ValueIterator();
+        public V remove(final Object key) {
+            return inRange(keyCheck(key)) ? map.remove(key) : null;
         }
 
         @Override
-        public int size() {
-            return TrieMap.this.size();
+        public Set<Entry<CharSequence, V>> entrySet() {
+            return new AbstractSet<Entry<CharSequence, V>>() {
+
+                @Override
+                public Iterator<Entry<CharSequence, V>> iterator() {
+                    return new RangeIterator();
+                }
+
+                @Override
+                public int size() {
+                    return TrieRangeMap.this.size();
+                }
+            };
+        }
+
+        /**
+         * Iterates by navigating to the next key in the order of the view, so
+         * modifications of the map during the iteration are tolerated.
+         */
+        private final class RangeIterator implements
+                Iterator<Entry<CharSequence, V>> {
+
+            private Entry<CharSequence, V> next = firstEntry();
+            private Entry<CharSequence, V> current;
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Entry<CharSequence, V> next() {
+                final Entry<CharSequence, V> entry = next;
+
+                if (entry == null) {
+                    throw new NoSuchElementException();
+                }
+
+                current = entry;
+                next = higherEntry(entry.getKey());
+                return entry;
+            }
+
+            @Override
+            public void remove() {
+                if (current == null) {
+                    throw new IllegalStateException();
+                }
+
+                map.remove(current.getKey());
+                current = null;
+            }
         }
     }
 
     /**
-     * A special implementation of TrieMap that gives a prefixed view on an
-     * existing TrieMap.
-     *
-     * @param <V>
-     *            The value type that the trie holds.
+     * The key set of a navigable map that delegates all operations to the
+     * map.
      */
-    private static class SubTrieMap<V> extends TrieMap<V> {
+    private static final class NavigableKeySet extends
+            AbstractSet<CharSequence> implements NavigableSet<CharSequence> {
 
-        private static final long serialVersionUID = 1;
+        private final NavigableMap<CharSequence, ?> map;
 
-        private TrieNode<V> subRootNode;
-        private TrieMap<V> parent;
-        private final CharSequence prefix;
+        public NavigableKeySet(final NavigableMap<CharSequence, ?> map) {
+            this.map = map;
+        }
 
-        public SubTrieMap(final TrieMap<V> parent, final CharSequence prefix) {
-            this.parent = parent;
-            this.prefix = prefix;
-            this.modCount = -1;
+        @Override
+        public Iterator<CharSequence> iterator() {
+            final Iterator<? extends Entry<CharSequence, ?>> iterator = map
+                    .entrySet().iterator();
+            return new Iterator<CharSequence>() {
+
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public CharSequence next() {
+                    return iterator.next().getKey();
+                }
+
+                @Override
+                public void remove() {
+                    iterator.remove();
+                }
+            };
         }
 
-        private void ensureLatest() {
-            final int parentModCount = parent.modCount;
+        @Override
+        public Iterator<CharSequence> descendingIterator() {
+            return descendingSet().iterator();
+        }
 
-			/*
-			 * The submap is maybe ahead of the parent, e.g. in remove(), so
-			 * just update if modCount is lower than parent modCount
-			 */
-            if (modCount < parentModCount) {
-                modCount = parentModCount;
-                this.size = size(subRootNode = parent.findNode(prefix));
-            }
+        @Override
+        public int size() {
+            return map.size();
         }
 
-        private int size(final TrieNode<V> node) {
-            if (node == null) {
-                return 0;
-            }
+        @Override
+        public boolean isEmpty() {
+            return map.isEmpty();
+        }
 
-            int newSize = 0;
+        @Override
+        public boolean contains(final Object o) {
+            return map.containsKey(o);
+        }
 
-            if (node.inUse) {
-                ++newSize;
+        @Override
+        public boolean remove(final Object o) {
+            if (map.containsKey(o)) {
+                map.remove(o);
+                return true;
             }
 
-            for (final Map.Entry<Character, TrieNode<V>> entry : node.children
-                    .entrySet()) {
-                newSize += size(entry.getValue());
-            }
+            return false;
+        }
 
-            return newSize;
+        @Override
+        public void clear() {
+            map.clear();
         }
 
         @Override
-        TrieNode<V> getRoot() {
-            ensureLatest();
-            return subRootNode;
+        public Comparator<? super CharSequence> comparator() {
+            return map.comparator();
         }
 
         @Override
-        public V put(CharSequence key, V value) {
-            ensureLatest();
+        public CharSequence lower(final CharSequence e) {
+            return map.lowerKey(e);
+        }
 
-            if (subRootNode == null) {
-                final CharSequence localPrefix = prefix;
-                return parent.put(
-                        new StringBuilder(localPrefix.length() + key.length())
-                                .append(localPrefix).append(key).toString(),
-                        value);
-            } else {
-                return super.put(key, value);
-            }
+        @Override
+        public CharSequence floor(final CharSequence e) {
+            return map.floorKey(e);
         }
 
         @Override
-        void modifyData(final TrieNode<V> curNode, final V value) {
-			/*
-			 * For replace and add we can skip to update subRootNode, so adjust
-			 * size and modCount
-			 */
-            parent.modifyData(curNode, value);
-            ++modCount;
-            ++size;
+        public CharSequence ceiling(final CharSequence e) {
+            return map.ceilingKey(e);
         }
 
         @Override
-        public V remove(final Object o) {
-            ensureLatest();
-            final CharSequence key = keyCheck(o);
-
-            if (key.length() == 0) {
-                final CharSequence localPrefix = prefix;
-				/*
-				 * We delegate the remove to the parent when we would try to
-				 * remove the root of this sub map
-				 */
-                return parent.remove(new StringBuilder(localPrefix.length()
-                        + key.length()).append(localPrefix).append(key)
-                        .toString());
-            } else {
-                final int capturedModCount = modCount;
-                final V removed = super.remove(key);
+        public CharSequence higher(final CharSequence e) {
+            return map.higherKey(e);
+        }
 
-                if (capturedModCount != modCount) {
-					/* If we really removed something, adjust parent */
-                    final TrieMap<V> parentMap = parent;
-                    ++parentMap.modCount;
-                    --parentMap.size;
-                }
+        @Override
+        public CharSequence first() {
+            return map.firstKey();
+        }
 
-                return removed;
-            }
+        @Override
+        public CharSequence last() {
+            return map.lastKey();
         }
 
         @Override
-        V removeMapping(final Object o) {
-            final CharSequence key = keyCheck(o);
-
-            if (key.length() == 0) {
-                final CharSequence localPrefix = prefix;
-				/*
-				 * We delegate the remove to the parent when we would try to
-				 * remove the root of this sub map
-				 */
-                return parent.removeMapping(new StringBuilder(localPrefix
-                        .length() + key.length()).append(localPrefix)
-                        .append(key).toString());
-            } else {
-                final int capturedModCount = modCount;
-                final V removed = super.removeMapping(key);
+        public CharSequence pollFirst() {
+            return keyOrNull(map.pollFirstEntry());
+        }
 
-                if (capturedModCount != modCount) {
-					/* If we really removed something, adjust parent */
-                    final TrieMap<V> parentMap = parent;
-                    ++parentMap.modCount;
-                    --parentMap.size;
-                }
+        @Override
+        public CharSequence pollLast() {
+            return keyOrNull(map.pollLastEntry());
+        }
 
-                return removed;
-            }
+        @Override
+        public NavigableSet<CharSequence> descendingSet() {
+            return new NavigableKeySet(map.descendingMap());
         }
 
         @Override
-        public void clear() {
-            ensureLatest();
-            final int oldSize = this.size;
+        public NavigableSet<CharSequence> subSet(final CharSequence fromElement,
+                                                 final boolean fromInclusive,
+                                                 final CharSequence toElement,
+                                                 final boolean toInclusive) {
+            return new NavigableKeySet(map.subMap(fromElement, fromInclusive,
+                    toElement, toInclusive));
+        }
+
+        @Override
+        public NavigableSet<CharSequence> headSet(final CharSequence toElement,
+                                                  final boolean inclusive) {
+            return new NavigableKeySet(map.headMap(toElement, inclusive));
+        }
 
-            super.clear();
-            subRootNode.unset();
+        @Override
+        public NavigableSet<CharSequence> tailSet(final CharSequence fromElement,
+                                                  final boolean inclusive) {
+            return new NavigableKeySet(map.tailMap(fromElement, inclusive));
+        }
 
-            final TrieMap<V> parentMap = parent;
-            parentMap.size -= oldSize;
-            ++parentMap.modCount;
+        @Override
+        public SortedSet<CharSequence> subSet(final CharSequence fromElement,
+                                              final CharSequence toElement) {
+            return subSet(fromElement, true, toElement, false);
         }
 
         @Override
-        public int size() {
-            ensureLatest();
-            return super.size();
+        public SortedSet<CharSequence> headSet(final CharSequence toElement) {
+            return headSet(toElement, false);
         }
 
         @Override
-        public TrieMap<V> subMap(final CharSequence prefix) {
-            ensureLatest();
-            final CharSequence localPrefix = this.prefix;
-            return parent.subMap(new StringBuilder(localPrefix.length()
-                    + prefix.length()).append(localPrefix).append(prefix)
-                    .toString());
+        public SortedSet<CharSequence> tailSet(final CharSequence fromElement) {
+            return tailSet(fromElement, true);
         }
     }
 
@@ -0,0 +1,697 @@
+/**
+ * Copyright 2012 Blazebit
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.blazebit.collection;
+
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable set of char sequences that is stored as a minimal acyclic
+ * automaton (DAWG). Contrary to a trie, equivalent suffixes of the keys are
+ * shared and no value slots are stored, which makes this set suitable for very
+ * large key sets like allow or deny lists.
+ *
+ * The automaton is built incrementally from sorted keys with the algorithm of
+ * Daciuk et al., so only the states of the most recently added key are kept
+ * unminimized during construction, see {@link #fromSorted(Iterator)}. The
+ * states are stored in flat arrays. Optionally the number of keys that are
+ * reachable from every state is stored, which gives a minimal perfect hash
+ * that maps every key to its ordinal in the sorted key order, see
+ * {@link #ordinalOf(CharSequence)} and {@link #keyAt(int)}.
+ */
+public final class TrieSet extends AbstractSet<CharSequence> implements
+        Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /* The transitions of a state s are the sorted range offsets[s] until offsets[s + 1] */
+    private final int[] offsets;
+    private final char[] labels;
+    private final int[] targets;
+    private final BitSet finals;
+    /* The amount of keys that are accepted from a state or null if ordinals are not supported */
+    private final int[] counts;
+    private final int size;
+
+    private TrieSet(final int[] offsets, final char[] labels,
+                    final int[] targets, final BitSet finals, final int[] counts,
+                    final int size) {
+        this.offsets = offsets;
+        this.labels = labels;
+        this.targets = targets;
+        this.finals = finals;
+        this.counts = counts;
+        this.size = size;
+    }
+
+    /**
+     * Creates a set without ordinal support from the given keys which must be
+     * in ascending order, see {@link #fromSorted(Iterator, boolean)}.
+     *
+     * @param keys
+     *            The sorted keys
+     * @return A new set that contains the given keys
+     */
+    public static TrieSet fromSorted(final Iterator<? extends CharSequence> keys) {
+        return fromSorted(keys, false);
+    }
+
+    /**
+     * Creates a set from the given keys which must be in ascending order
+     * according to {@link String#compareTo(String)}. Duplicate keys are
+     * ignored.
+     *
+     * @param keys
+     *            The sorted keys
+     * @param ordinals
+     *            Whether the set should support {@link #ordinalOf(CharSequence)}
+     *            and {@link #keyAt(int)} which needs an int per state
+     * @return A new set that contains the given keys
+     * @throws IllegalArgumentException
+     *             When a key is null or the keys are not sorted
+     */
+    public static TrieSet fromSorted(
+            final Iterator<? extends CharSequence> keys, final boolean ordinals) {
+        final Builder builder = new Builder();
+
+        while (keys.hasNext()) {
+            builder.add(keys.next());
+        }
+
+        return builder.build(ordinals);
+    }
+
+    /*
+     * Construction
+     */
+
+    private static final class State {
+
+        private boolean isFinal;
+        private char[] chars = new char[2];
+        private State[] children = new State[2];
+        private int size;
+        private int hash;
+        /* Ids are assigned when freezing, -1 means not yet visited */
+        private int id = -1;
+
+        public void add(final char c, final State child) {
+            if (size == chars.length) {
+                chars = Arrays.copyOf(chars, size << 1);
+                children = Arrays.copyOf(children, size << 1);
+            }
+
+            chars[size] = c;
+            children[size] = child;
+            ++size;
+        }
+
+        public State last() {
+            return children[size - 1];
+        }
+
+        /**
+         * Computes the hash code, must be invoked when the state and its
+         * children are not modified anymore.
+         */
+        public void seal() {
+            int h = isFinal ? 1 : 0;
+
+            for (int i = 0; i < size; i++) {
+                h = 31 * h + chars[i];
+                h = 31 * h + System.identityHashCode(children[i]);
+            }
+
+            hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof State)) {
+                return false;
+            }
+
+            final State other = (State) obj;
+
+            if (isFinal != other.isFinal || size != other.size
+                    || hash != other.hash) {
+                return false;
+            }
+
+			/* Children are already minimized, so equivalent children are identical */
+            for (int i = 0; i < size; i++) {
+                if (chars[i] != other.chars[i]
+                        || children[i] != other.children[i]) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * Incremental construction of a minimal automaton from sorted keys. The
+     * states on the path of the last key are unminimized, every other state
+     * is contained in the register of unique states.
+     */
+    private static final class Builder {
+
+        private final Map<State, State> register = new HashMap<State, State>();
+        private final State root = new State();
+        private State[] path = new State[16];
+        private char[] lastKey = new char[16];
+        private int lastKeyLength;
+        private int size;
+
+        public Builder() {
+            path[0] = root;
+        }
+
+        public void add(final CharSequence key) {
+            if (key == null) {
+                throw new IllegalArgumentException(
+                        "This set does not support null keys");
+            }
+
+            final int keyLength = key.length();
+            final int max = Math.min(keyLength, lastKeyLength);
+            int prefixLength = 0;
+
+            while (prefixLength < max
+                    && key.charAt(prefixLength) == lastKey[prefixLength]) {
+                ++prefixLength;
+            }
+
+            if (prefixLength == keyLength) {
+                if (keyLength == lastKeyLength && (size > 0 || root.isFinal)) {
+					/* Duplicate key */
+                    return;
+                }
+                if (size > 0) {
+                    throw new IllegalArgumentException("Keys are not sorted: "
+                            + key + " after "
+                            + new String(lastKey, 0, lastKeyLength));
+                }
+            } else if (prefixLength < lastKeyLength
+                    && key.charAt(prefixLength) < lastKey[prefixLength]) {
+                throw new IllegalArgumentException("Keys are not sorted: "
+                        + key + " after "
+                        + new String(lastKey, 0, lastKeyLength));
+            }
+
+            replaceOrRegister(prefixLength);
+
+            if (keyLength >= path.length) {
+                final int newLength = Math.max(keyLength + 1,
+                        path.length << 1);
+                path = Arrays.copyOf(path, newLength);
+                lastKey = Arrays.copyOf(lastKey, newLength);
+            }
+
+            for (int i = prefixLength; i < keyLength; i++) {
+                final char c = key.charAt(i);
+                final State state = new State();
+                path[i].add(c, state);
+                path[i + 1] = state;
+                lastKey[i] = c;
+            }
+
+            path[keyLength].isFinal = true;
+            lastKeyLength = keyLength;
+            ++size;
+        }
+
+        /**
+         * Minimizes the states of the last key that are deeper than the given
+         * depth, deepest first, by replacing them with an equivalent
+         * registered state or registering them.
+         */
+        private void replaceOrRegister(final int depth) {
+            for (int i = lastKeyLength; i > depth; i--) {
+                final State state = path[i];
+                state.seal();
+                final State registered = register.get(state);
+
+                if (registered == null) {
+                    register.put(state, state);
+                } else {
+                    final State parent = path[i - 1];
+                    parent.children[parent.size - 1] = registered;
+                }
+
+                path[i] = null;
+            }
+        }
+
+        public TrieSet build(final boolean ordinals) {
+            replaceOrRegister(0);
+            register.clear();
+
+			/* Number the states in reverse post order so that parents come before their children */
+            final State[] order = postOrder();
+            final int stateCount = order.length;
+            final int[] offsets = new int[stateCount + 1];
+            int transitionCount = 0;
+
+            for (int i = 0; i < stateCount; i++) {
+                final State state = order[stateCount - 1 - i];
+                state.id = i;
+                offsets[i] = transitionCount;
+                transitionCount += state.size;
+            }
+
+            offsets[stateCount] = transitionCount;
+
+            final char[] labels = new char[transitionCount];
+            final int[] targets = new int[transitionCount];
+            final BitSet finals = new BitSet(stateCount);
+
+            for (int i = 0; i < stateCount; i++) {
+                final State state = order[stateCount - 1 - i];
+                final int offset = offsets[i];
+
+                if (state.isFinal) {
+                    finals.set(i);
+                }
+
+                for (int j = 0; j < state.size; j++) {
+                    labels[offset + j] = state.chars[j];
+                    targets[offset + j] = state.children[j].id;
+                }
+            }
+
+            int[] counts = null;
+
+            if (ordinals) {
+                counts = new int[stateCount];
+
+				/* Children have greater ids, so they are counted before their parents */
+                for (int i = stateCount - 1; i >= 0; i--) {
+                    int count = finals.get(i) ? 1 : 0;
+
+                    for (int j = offsets[i]; j < offsets[i + 1]; j++) {
+                        count += counts[targets[j]];
+                    }
+
+                    counts[i] = count;
+                }
+            }
+
+            return new TrieSet(offsets, labels, targets, finals, counts, size);
+        }
+
+        /**
+         * Returns the unique states in depth first post order, so the root is
+         * the last state.
+         */
+        private State[] postOrder() {
+            State[] order = new State[16];
+            int orderSize = 0;
+            State[] stack = new State[16];
+            int[] childIndexes = new int[16];
+            int stackSize = 1;
+            stack[0] = root;
+            root.id = 0;
+
+            while (stackSize > 0) {
+                final State state = stack[stackSize - 1];
+                final int childIndex = childIndexes[stackSize - 1];
+
+                if (childIndex == state.size) {
+                    if (orderSize == order.length) {
+                        order = Arrays.copyOf(order, orderSize << 1);
+                    }
+
+                    order[orderSize++] = state;
+                    --stackSize;
+                    continue;
+                }
+
+                childIndexes[stackSize - 1] = childIndex + 1;
+                final State child = state.children[childIndex];
+
+                if (child.id == -1) {
+                    child.id = 0;
+
+                    if (stackSize == stack.length) {
+                        stack = Arrays.copyOf(stack, stackSize << 1);
+                        childIndexes = Arrays.copyOf(childIndexes,
+                                stackSize << 1);
+                    }
+
+                    stack[stackSize] = child;
+                    childIndexes[stackSize] = 0;
+                    ++stackSize;
+                }
+            }
+
+            return Arrays.copyOf(order, orderSize);
+        }
+    }
+
+    /*
+     * Lookup
+     */
+
+    /**
+     * Returns the state that is reached with the given transition char or
+     * -1 if there is none.
+     */
+    private int transition(final int state, final char c) {
+        final int index = transitionIndex(state, c);
+        return index < 0 ? -1 : targets[index];
+    }
+
+    private int transitionIndex(final int state, final char c) {
+        final char[] chars = labels;
+        int low = offsets[state];
+        int high = offsets[state + 1] - 1;
+
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final char midChar = chars[mid];
+
+            if (midChar < c) {
+                low = mid + 1;
+            } else if (midChar > c) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the state that is reached with the given chars or -1.
+     */
+    private int walk(final CharSequence s) {
+        final int length = s.length();
+        int state = 0;
+
+        for (int i = 0; i < length && state >= 0; i++) {
+            state = transition(state, s.charAt(i));
+        }
+
+        return state;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean contains(final Object o) {
+        final int state = walk(keyCheck(o));
+        return state >= 0 && finals.get(state);
+    }
+
+    /**
+     * Returns true when at least one key starts with the given prefix.
+     *
+     * @param prefix
+     *            The prefix
+     * @return True when a key with the given prefix is contained, otherwise
+     *         false
+     */
+    public boolean containsKeyPrefix(final CharSequence prefix) {
+        final int state = walk(keyCheck(prefix));
+        return state >= 0 && (finals.get(state) || offsets[state + 1] > offsets[state]);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of states of the automaton.
+     */
+    int stateCount() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * Returns whether this set supports ordinals.
+     *
+     * @return True when ordinals are supported, otherwise false
+     */
+    public boolean hasOrdinals() {
+        return counts != null;
+    }
+
+    /**
+     * Returns the position of the given key in the sorted order of the keys
+     * of this set or -1 if the key is not contained.
+     *
+     * @param key
+     *            The key
+     * @return The ordinal of the key or -1
+     * @throws UnsupportedOperationException
+     *             When the set was built without ordinals
+     */
+    public int ordinalOf(final CharSequence key) {
+        checkOrdinals();
+        final int length = keyCheck(key).length();
+        int state = 0;
+        int ordinal = 0;
+
+        for (int i = 0; i < length; i++) {
+            final int index = transitionIndex(state, key.charAt(i));
+
+            if (index < 0) {
+                return -1;
+            }
+            if (finals.get(state)) {
+                ++ordinal;
+            }
+
+			/* Skip the keys that are reached through smaller transitions */
+            for (int j = offsets[state]; j < index; j++) {
+                ordinal += counts[targets[j]];
+            }
+
+            state = targets[index];
+        }
+
+        return finals.get(state) ? ordinal : -1;
+    }
+
+    /**
+     * Returns the key at the given position in the sorted order of the keys
+     * of this set.
+     *
+     * @param ordinal
+     *            The ordinal of the key
+     * @return The key
+     * @throws UnsupportedOperationException
+     *             When the set was built without ordinals
+     * @throws IndexOutOfBoundsException
+     *             When the ordinal is negative or not less than the size
+     */
+    public String keyAt(final int ordinal) {
+        checkOrdinals();
+
+        if (ordinal < 0 || ordinal >= size) {
+            throw new IndexOutOfBoundsException("Ordinal: " + ordinal
+                    + ", Size: " + size);
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        int remaining = ordinal;
+        int state = 0;
+
+        while (true) {
+            if (finals.get(state)) {
+                if (remaining == 0) {
+                    return sb.toString();
+                }
+
+                --remaining;
+            }
+
+            final int end = offsets[state + 1];
+
+            for (int j = offsets[state]; j < end; j++) {
+                final int count = counts[targets[j]];
+
+                if (remaining < count) {
+                    sb.append(labels[j]);
+                    state = targets[j];
+                    break;
+                }
+
+                remaining -= count;
+            }
+        }
+    }
+
+    private void checkOrdinals() {
+        if (counts == null) {
+            throw new UnsupportedOperationException(
+                    "This set was built without ordinals");
+        }
+    }
+
+    private static CharSequence keyCheck(final Object key) {
+        if (key == null) {
+            throw new IllegalArgumentException(
+                    "This set does not support null keys");
+        } else if (!(key instanceof CharSequence)) {
+            throw new IllegalArgumentException(
+                    "Argument must be instance of CharSequence");
+        }
+
+        return (CharSequence) key;
+    }
+
+	/*
+	 * Iterators
+	 */
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<CharSequence> iterator() {
+        return new KeyIterator(0, "");
+    }
+
+    /**
+     * Returns an iterator over the keys that start with the given prefix in
+     * ascending order.
+     *
+     * @param prefix
+     *            The prefix of the keys
+     * @return An iterator over the keys with the given prefix
+     */
+    public Iterator<CharSequence> iterator(final CharSequence prefix) {
+        return new KeyIterator(walk(keyCheck(prefix)), prefix);
+    }
+
+    /**
+     * Depth first iterator that reuses a char buffer for the current path and
+     * only allocates the returned strings.
+     */
+    private final class KeyIterator implements Iterator<CharSequence> {
+
+        private int[] states = new int[16];
+        private int[] transitions = new int[16];
+        private int depth;
+        private char[] key;
+        private final int prefixLength;
+        private String next;
+
+        public KeyIterator(final int start, final CharSequence prefix) {
+            this.prefixLength = prefix.length();
+            this.key = new char[prefixLength + 16];
+
+            for (int i = 0; i < prefixLength; i++) {
+                key[i] = prefix.charAt(i);
+            }
+
+            if (start < 0) {
+                depth = -1;
+            } else {
+                states[0] = start;
+                transitions[0] = offsets[start];
+
+                if (finals.get(start)) {
+                    next = new String(key, 0, prefixLength);
+                } else {
+                    fetch();
+                }
+            }
+        }
+
+        private void fetch() {
+            next = null;
+
+            while (depth >= 0) {
+                final int state = states[depth];
+                final int transition = transitions[depth];
+
+                if (transition == offsets[state + 1]) {
+                    --depth;
+                    continue;
+                }
+
+                transitions[depth] = transition + 1;
+                final int child = targets[transition];
+                final int keyLength = prefixLength + depth + 1;
+
+                if (depth + 1 == states.length) {
+                    states = Arrays.copyOf(states, states.length << 1);
+                    transitions = Arrays.copyOf(transitions,
+                            transitions.length << 1);
+                }
+                if (keyLength > key.length) {
+                    key = Arrays.copyOf(key, key.length << 1);
+                }
+
+                key[keyLength - 1] = labels[transition];
+                ++depth;
+                states[depth] = child;
+                transitions[depth] = offsets[child];
+
+                if (finals.get(child)) {
+                    next = new String(key, 0, keyLength);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public CharSequence next() {
+            final String result = next;
+
+            if (result == null) {
+                throw new NoSuchElementException();
+            }
+
+            fetch();
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("TrieSet is immutable");
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright 2012 Blazebit
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.blazebit.collection;
+
+/**
+ * Callback for visiting the entries of a trie without materializing the keys,
+ * see {@link TrieMap#forEach(TrieVisitor)}.
+ *
+ * @param <V>
+ *            The value type of the visited entries
+ */
+public interface TrieVisitor<V> {
+
+    /**
+     * Visits an entry. The key buffer is reused for the following entries,
+     * so a key that should be kept has to be copied, for example with
+     * <code>new String(key, 0, keyLength)</code>.
+     *
+     * @param key
+     *            The buffer that contains the key of the entry
+     * @param keyLength
+     *            The length of the key within the buffer
+     * @param value
+     *            The value of the entry
+     */
+    public void visit(char[] key, int keyLength, V value);
+}
@@ -0,0 +1,133 @@
+package com.blazebit.collection;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class AhoCorasickTest {
+
+    private static final class Collector<V> implements
+            AhoCorasick.MatchHandler<V> {
+
+        private final List<String> matches = new ArrayList<String>();
+
+        @Override
+        public boolean onMatch(int start, int end, V value) {
+            matches.add(start + "-" + end + "=" + value);
+            return true;
+        }
+    }
+
+    public AhoCorasick<String> matcher() {
+        TrieMap<String> map = new TrieMap<String>();
+        map.put("he", "he");
+        map.put("she", "she");
+        map.put("his", "his");
+        map.put("hers", "hers");
+        return map.toMatcher();
+    }
+
+    @Test
+    public void testScan() throws Exception {
+        Collector<String> collector = new Collector<String>();
+        matcher().scan("ushers", collector);
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("1-4=she");
+        expected.add("2-4=he");
+        expected.add("2-6=hers");
+        assertEquals(expected, collector.matches);
+
+        Collector<String> readerCollector = new Collector<String>();
+        matcher().scan(new StringReader("ushers"), readerCollector);
+        assertEquals(expected, readerCollector.matches);
+    }
+
+    @Test
+    public void testStop() throws Exception {
+        final List<Integer> ends = new ArrayList<Integer>();
+        matcher().scan("his hers", new AhoCorasick.MatchHandler<String>() {
+
+            @Override
+            public boolean onMatch(int start, int end, String value) {
+                ends.add(end);
+                return false;
+            }
+        });
+
+        assertEquals(1, ends.size());
+        assertEquals(Integer.valueOf(3), ends.get(0));
+        assertTrue(matcher().containsMatch("a hiss"));
+        assertFalse(matcher().containsMatch("a hi s"));
+    }
+
+    @Test
+    public void testRandomAgainstBruteForce() throws Exception {
+        Random random = new Random(42);
+        TrieMap<String> map = new TrieMap<String>();
+
+        for (int i = 0; i < 300; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = 1 + random.nextInt(5);
+
+            for (int j = 0; j < length; j++) {
+                sb.append((char) ('a' + random.nextInt(3)));
+            }
+
+            map.put(sb.toString(), sb.toString());
+        }
+
+        StringBuilder text = new StringBuilder();
+
+        for (int i = 0; i < 20000; i++) {
+            text.append((char) ('a' + random.nextInt(3)));
+        }
+
+        final int[] count = new int[1];
+        final String textString = text.toString();
+        map.toMatcher().scan(text, new AhoCorasick.MatchHandler<String>() {
+
+            @Override
+            public boolean onMatch(int start, int end, String value) {
+                assertEquals(value, textString.substring(start, end));
+                count[0]++;
+                return true;
+            }
+        });
+
+        int expectedCount = 0;
+
+        for (Map.Entry<CharSequence, String> entry : map.entrySet()) {
+            String key = entry.getKey().toString();
+            int index = -1;
+
+            while ((index = textString.indexOf(key, index + 1)) >= 0) {
+                expectedCount++;
+            }
+        }
+
+        assertEquals(expectedCount, count[0]);
+    }
+
+    @Test
+    public void testSubMap() throws Exception {
+        TrieMap<String> map = new TrieMap<String>();
+        map.put("/page/main", "main");
+        map.put("/page/admin", "admin");
+        map.put("/file/picture", "picture");
+
+        Collector<String> collector = new Collector<String>();
+        map.subMap("/page/").toMatcher().scan("admin/main", collector);
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("0-5=admin");
+        expected.add("6-10=main");
+        assertEquals(expected, collector.matches);
+    }
+}
@@ -0,0 +1,200 @@
+package com.blazebit.collection;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class ByteTrieMapTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void testByteArraySlices() throws Exception {
+        ByteTrieMap<Integer> map = new ByteTrieMap<Integer>();
+        map.put("GET", 1);
+        map.put("GETX", 2);
+        map.put("POST", 3);
+
+        byte[] request = "xxPOST /index.html".getBytes(UTF_8);
+        assertEquals(Integer.valueOf(3), map.get(request, 2, 4));
+        assertNull(map.get(request, 2, 3));
+        assertNull(map.get(request, 0, 4));
+
+        byte[] get = "GETX".getBytes(UTF_8);
+        assertEquals(Integer.valueOf(1), map.get(get, 0, 3));
+        assertEquals(Integer.valueOf(2), map.get(get, 0, 4));
+        assertNull(map.get(get, 1, 2));
+    }
+
+    @Test
+    public void testDirectBuffer() throws Exception {
+        ByteTrieMap<String> map = new ByteTrieMap<String>();
+        map.put("h\u00e9llo", "1");
+        map.put("h\u00e9", "2");
+        map.put("\u20ac", "3");
+
+        byte[] bytes = "--h\u00e9llo\u20ac".getBytes(UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+
+        assertEquals("1", map.get(buffer, 2, 6));
+        assertEquals("2", map.get(buffer, 2, 3));
+        assertEquals("3", map.get(buffer, 8, 3));
+        assertTrue(map.containsKey(buffer, 8, 3));
+        assertFalse(map.containsKey(buffer, 2, 4));
+        /* Only absolute reads are used */
+        assertEquals(0, buffer.position());
+
+        PrefixMatch<String> match = new PrefixMatch<String>();
+        assertEquals(6, map.longestPrefixMatch(buffer, 2, 9, match));
+        assertEquals("1", match.getValue());
+        assertEquals(3, map.longestPrefixMatch(buffer, 2, 5, match));
+        assertEquals("2", match.getValue());
+        assertEquals(-1, map.longestPrefixMatch(buffer, 0, 11, match));
+        assertFalse(match.isMatched());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testBufferBounds() throws Exception {
+        new ByteTrieMap<String>().get(ByteBuffer.allocate(4), 2, 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNullKey() throws Exception {
+        new ByteTrieMap<String>().put(null, "");
+    }
+
+    @Test
+    public void testSupplementaryChars() throws Exception {
+        ByteTrieMap<Integer> map = new ByteTrieMap<Integer>();
+        String key = "a\ud83d\ude00\u00e9\u20ac";
+        byte[] bytes = key.getBytes(UTF_8);
+        map.put(key, 1);
+
+        assertEquals(Integer.valueOf(1), map.get(bytes, 0, bytes.length));
+        assertEquals(key, map.keySet().iterator().next().toString());
+    }
+
+    @Test
+    public void testLoneSurrogates() throws Exception {
+        ByteTrieMap<Integer> map = new ByteTrieMap<Integer>();
+
+        for (String key : new String[]{ "a\ud83d", "\ude00b", "\ude00\ud83d" }) {
+            try {
+                map.put(key, 1);
+                fail("Expected an exception for " + key);
+            } catch (IllegalArgumentException ex) {
+                // Expected
+            }
+        }
+
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void testIterationOrder() throws Exception {
+        ByteTrieMap<Integer> map = new ByteTrieMap<Integer>();
+        map.put("b", 1);
+        map.put("\u00e4", 2);
+        map.put("a", 3);
+        map.put("ab", 4);
+        map.put("", 5);
+
+        List<String> keys = new ArrayList<String>();
+
+        for (CharSequence key : map.keySet()) {
+            keys.add(key.toString());
+        }
+
+        assertEquals("[, a, ab, b, \u00e4]", keys.toString());
+    }
+
+    @Test
+    public void testRandomAgainstTreeMap() throws Exception {
+        Random random = new Random(12);
+        ByteTrieMap<Integer> map = new ByteTrieMap<Integer>();
+        TreeMap<String, Integer> expected = new TreeMap<String, Integer>();
+        String alphabet = "ab\u00fc\u20ac";
+
+        for (int i = 0; i < 5000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(6);
+
+            for (int j = 0; j < length; j++) {
+                sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+
+            String key = sb.toString();
+
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                assertEquals(expected.put(key, i), map.put(key, i));
+            }
+
+            byte[] bytes = key.getBytes(UTF_8);
+            assertEquals(expected.get(key), map.get(ByteBuffer.wrap(bytes),
+                    0, bytes.length));
+        }
+
+        assertEquals(expected.size(), map.size());
+        /* All chars are in the BMP, so UTF-8 and UTF-16 order agree */
+        assertEquals(new ArrayList<Object>(expected.entrySet()).toString(),
+                new ArrayList<Object>(map.entrySet()).toString());
+    }
+
+    @Test
+    public void testIteratorRemove() throws Exception {
+        ByteTrieMap<Integer> map = new ByteTrieMap<Integer>();
+        map.put("a", 1);
+        map.put("ab", 2);
+        map.put("abc", 3);
+        map.put("abd", 4);
+        map.put("b", 5);
+
+        Iterator<Map.Entry<CharSequence, Integer>> iter = map.entrySet()
+                .iterator();
+
+        while (iter.hasNext()) {
+            if (iter.next().getValue() % 2 == 0) {
+                iter.remove();
+            }
+        }
+
+        assertEquals(3, map.size());
+        assertEquals(Integer.valueOf(3), map.get("abc"));
+        assertFalse(map.containsKey("ab"));
+        assertEquals("{a=1, abc=3, b=5}", map.toString());
+    }
+
+    @Test
+    public void testIteratorRemoveInvalidUtf8() throws Exception {
+        ByteTrieMap<Integer> map = new ByteTrieMap<Integer>();
+        byte[] invalid = new byte[]{ (byte) 0xC3 };
+        map.put(invalid, 0, 1, 1);
+        map.put("a", 2);
+
+        Iterator<Map.Entry<CharSequence, Integer>> iter = map.entrySet()
+                .iterator();
+        assertEquals(Integer.valueOf(2), iter.next().getValue());
+        assertEquals(Integer.valueOf(1), iter.next().getValue());
+        iter.remove();
+
+        assertFalse(iter.hasNext());
+        assertEquals(1, map.size());
+        assertNull(map.get(invalid, 0, 1));
+        assertEquals(Integer.valueOf(2), map.remove(new byte[]{ 'x', 'a' },
+                1, 1));
+        assertTrue(map.isEmpty());
+    }
+}
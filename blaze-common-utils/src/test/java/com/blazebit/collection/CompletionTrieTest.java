@@ -0,0 +1,118 @@
+package com.blazebit.collection;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CompletionTrieTest {
+
+    @Test
+    public void testTopK() throws Exception {
+        CompletionTrie<String> trie = new CompletionTrie<String>();
+        trie.put("java", "j", 10);
+        trie.put("javascript", "js", 30);
+        trie.put("jar", "jar", 5);
+        trie.put("jakarta", "ee", 20);
+        trie.put("python", "py", 50);
+
+        assertEquals("[javascript, jakarta, java]", keys(trie.topK("ja", 3)));
+        assertEquals("[javascript, java]", keys(trie.topK("jav", 5)));
+        assertEquals("[javascript]", keys(trie.topK("javas", 5)));
+        assertEquals("[python]", keys(trie.topK("", 1)));
+        assertEquals("[]", keys(trie.topK("x", 3)));
+        assertEquals("[]", keys(trie.topK("ja", 0)));
+        assertEquals(30, trie.topK("ja", 1).get(0).getScore(), 0);
+    }
+
+    @Test
+    public void testScoreUpdates() throws Exception {
+        CompletionTrie<String> trie = new CompletionTrie<String>();
+        trie.put("java", "j", 10);
+        trie.put("javascript", "js", 30);
+
+        assertEquals("js", trie.put("javascript", "js", 1));
+        assertEquals("[java, javascript]", keys(trie.topK("j", 2)));
+        assertEquals(1, trie.getScore("javascript"), 0);
+
+        assertEquals("j", trie.remove("java"));
+        assertEquals("[javascript]", keys(trie.topK("j", 2)));
+        assertNull(trie.remove("java"));
+        assertTrue(Double.isNaN(trie.getScore("java")));
+        assertEquals(1, trie.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNaNScore() throws Exception {
+        new CompletionTrie<String>().put("a", "a", Double.NaN);
+    }
+
+    @Test
+    public void testRandomAgainstSort() throws Exception {
+        Random random = new Random(16);
+        CompletionTrie<Integer> trie = new CompletionTrie<Integer>();
+        final Map<String, Double> scores = new HashMap<String, Double>();
+
+        for (int i = 0; i < 3000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(7);
+
+            for (int j = 0; j < length; j++) {
+                sb.append((char) ('a' + random.nextInt(3)));
+            }
+
+            String key = sb.toString();
+
+            if (random.nextInt(4) == 0) {
+                trie.remove(key);
+                scores.remove(key);
+            } else {
+                double score = random.nextInt(100);
+                trie.put(key, i, score);
+                scores.put(key, score);
+            }
+        }
+
+        assertEquals(scores.size(), trie.size());
+
+        for (String prefix : new String[]{ "", "a", "ab", "cab", "bbb" }) {
+            List<String> expected = new ArrayList<String>();
+
+            for (String key : scores.keySet()) {
+                if (key.startsWith(prefix)) {
+                    expected.add(key);
+                }
+            }
+
+            Collections.sort(expected, new Comparator<String>() {
+
+                @Override
+                public int compare(String o1, String o2) {
+                    int order = Double.compare(scores.get(o2), scores.get(o1));
+                    return order != 0 ? order : o1.compareTo(o2);
+                }
+            });
+
+            List<String> expectedTop = expected.subList(0,
+                    Math.min(10, expected.size()));
+            assertEquals(expectedTop.toString(), keys(trie.topK(prefix, 10)));
+        }
+    }
+
+    private static String keys(List<? extends Completion<?>> completions) {
+        List<String> keys = new ArrayList<String>();
+
+        for (Completion<?> completion : completions) {
+            keys.add(completion.getKey());
+        }
+
+        return keys.toString();
+    }
+}
@@ -0,0 +1,212 @@
+package com.blazebit.collection;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ConcurrentTrieMapTest {
+
+    public ConcurrentTrieMap<String> map() {
+        ConcurrentTrieMap<String> map = new ConcurrentTrieMap<String>();
+        map.put("/page/main", "/main.xhtml");
+        map.put("/page/main/home", "/pages/home.xhtml");
+        map.put("/page/main/pictures", "/pages/pictures.xhtml");
+        map.put("/page/main/projects", "/pages/projects.xhtml");
+        map.put("/page/main/projects/triemap", "/pages/projectDetails.xhtml");
+        map.put("/page/admin", "/admin.xhtml");
+        map.put("/page/sitemap", "/sitemap.xhtml");
+        map.put("/file/picture", "/picture.xhtml");
+        return map;
+    }
+
+    @Test
+    public void testPutAndGet() throws Exception {
+        ConcurrentTrieMap<String> map = map();
+
+        assertEquals(8, map.size());
+        assertEquals("/main.xhtml", map.get("/page/main"));
+        assertNull(map.get("/page/ma"));
+        assertEquals("/main.xhtml", map.put("/page/main", "test"));
+        assertEquals("test", map.get("/page/main"));
+        assertEquals(8, map.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNullValuePut() {
+        new ConcurrentTrieMap<String>().put("key", null);
+    }
+
+    @Test
+    public void testConcurrentMapOperations() throws Exception {
+        ConcurrentTrieMap<String> map = map();
+
+        assertEquals("/main.xhtml", map.putIfAbsent("/page/main", "other"));
+        assertNull(map.putIfAbsent("/page/other", "other"));
+        assertEquals("other", map.get("/page/other"));
+
+        assertFalse(map.replace("/page/other", "wrong", "new"));
+        assertTrue(map.replace("/page/other", "other", "new"));
+        assertEquals("new", map.replace("/page/other", "newer"));
+        assertNull(map.replace("/page/unknown", "newer"));
+
+        assertFalse(map.remove("/page/other", "wrong"));
+        assertTrue(map.remove("/page/other", "newer"));
+        assertEquals(8, map.size());
+    }
+
+    @Test
+    public void testRemoveAndPrefix() throws Exception {
+        ConcurrentTrieMap<String> map = map();
+
+        assertTrue(map.containsKeyPrefix("/page/ma"));
+        assertEquals("/main.xhtml", map.remove("/page/main"));
+        assertNull(map.remove("/page/main"));
+        assertEquals(7, map.size());
+        assertTrue(map.containsKeyPrefix("/page/main"));
+        assertEquals("/page/main/projects/",
+                map.getBestMatch("/page/main/projects/ai-utils"));
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        ConcurrentTrieMap<String> map = map();
+        ConcurrentTrieMap<String> snapshot = map.snapshot();
+        Iterator<Map.Entry<CharSequence, String>> iterator = map.entrySet()
+                .iterator();
+
+        map.remove("/page/main");
+        map.put("/page/new", "new");
+        snapshot.put("/page/snapshot", "snapshot");
+
+        assertEquals("/main.xhtml", snapshot.get("/page/main"));
+        assertNull(snapshot.get("/page/new"));
+        assertNull(map.get("/page/snapshot"));
+
+        /* The iterator sees the state of its creation */
+        int count = 0;
+
+        while (iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+
+        assertEquals(8, count);
+    }
+
+    @Test
+    public void testSubMap() throws Exception {
+        ConcurrentTrieMap<String> map = map();
+        ConcurrentTrieMap<String> subMap = map.subMap("/page/main/pro");
+
+        assertEquals(2, subMap.size());
+        assertEquals("/pages/projects.xhtml", subMap.get("jects"));
+
+        List<CharSequence> expectedKeys = new ArrayList<CharSequence>();
+        expectedKeys.add("jects");
+        expectedKeys.add("jects/triemap");
+        assertEquals(expectedKeys, new ArrayList<CharSequence>(subMap.keySet()));
+
+        subMap.put("mo", "promo");
+        assertEquals(3, subMap.size());
+        assertEquals("promo", map.get("/page/main/promo"));
+
+        subMap.clear();
+        assertTrue(subMap.isEmpty());
+        assertEquals(6, map.size());
+        assertEquals("/pages/pictures.xhtml", map.get("/page/main/pictures"));
+    }
+
+    @Test
+    public void testEquals() throws Exception {
+        TrieMap<String> expectedMap = new TrieMap<String>();
+        expectedMap.put("/page/main/projects", "/pages/projects.xhtml");
+        expectedMap.put("/page/main/pictures", "/pages/pictures.xhtml");
+
+        ConcurrentTrieMap<String> map = new ConcurrentTrieMap<String>(
+                expectedMap);
+
+        assertEquals(expectedMap, map);
+        assertEquals(new HashMap<CharSequence, String>(expectedMap), map);
+    }
+
+    @Test
+    public void testRandomOperationsAgainstTreeMap() throws Exception {
+        Random random = new Random(42);
+        ConcurrentTrieMap<Integer> map = new ConcurrentTrieMap<Integer>();
+        TreeMap<String, Integer> expectedMap = new TreeMap<String, Integer>();
+
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(6);
+
+            for (int j = 0; j < length; j++) {
+                sb.append((char) ('a' + random.nextInt(3)));
+            }
+
+            String key = sb.toString();
+
+            if (random.nextInt(3) == 0) {
+                assertEquals(expectedMap.remove(key), map.remove(key));
+            } else {
+                assertEquals(expectedMap.put(key, i), map.put(key, i));
+            }
+
+            assertEquals(expectedMap.size(), map.size());
+        }
+
+        assertEquals(new ArrayList<CharSequence>(expectedMap.keySet()),
+                new ArrayList<CharSequence>(map.keySet()));
+        assertEquals(expectedMap, map);
+    }
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        final ConcurrentTrieMap<Integer> map = new ConcurrentTrieMap<Integer>();
+        final int threadCount = 4;
+        final int keysPerThread = 2000;
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final Thread[] threads = new Thread[threadCount];
+
+        for (int t = 0; t < threadCount; t++) {
+            final int threadIndex = t;
+            threads[t] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        latch.await();
+
+                        for (int i = 0; i < keysPerThread; i++) {
+                            map.put("key" + i + "/" + threadIndex, i);
+                            map.get("key" + i);
+                        }
+                    } catch (Throwable ex) {
+                        error.set(ex);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        latch.countDown();
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertNull(error.get());
+        assertEquals(threadCount * keysPerThread, map.size());
+        assertEquals(Integer.valueOf(7), map.get("key7/3"));
+    }
+}
@@ -0,0 +1,104 @@
+package com.blazebit.collection;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class FrozenTrieMapTest {
+
+    public FrozenTrieMap<String> map() {
+        TrieMap<String> map = new TrieMap<String>();
+        map.put("/page/main", "/main.xhtml");
+        map.put("/page/main/home", "/pages/home.xhtml");
+        map.put("/page/main/pictures", "/pages/pictures.xhtml");
+        map.put("/page/main/projects", "/pages/projects.xhtml");
+        map.put("/page/main/projects/triemap", "/pages/projectDetails.xhtml");
+        map.put("/page/admin", "/admin.xhtml");
+        map.put("/page/sitemap", "/sitemap.xhtml");
+        map.put("/file/picture", "/picture.xhtml");
+        return map.freeze();
+    }
+
+    @Test
+    public void testGet() throws Exception {
+        FrozenTrieMap<String> map = map();
+
+        assertEquals(8, map.size());
+        assertEquals("/main.xhtml", map.get("/page/main"));
+        assertEquals("/picture.xhtml", map.get("/file/picture"));
+        assertNull(map.get("/page/ma"));
+        assertNull(map.get("/page/main/"));
+        assertNull(map.get(""));
+        assertTrue(map.containsKey("/page/main/projects/triemap"));
+        assertFalse(map.containsKey("/page/main/projects/triemap/"));
+    }
+
+    @Test
+    public void testPrefix() throws Exception {
+        FrozenTrieMap<String> map = map();
+
+        assertTrue(map.containsKeyPrefix("/page/ma"));
+        assertTrue(map.containsKeyPrefix(""));
+        assertFalse(map.containsKeyPrefix("/page/mx"));
+        assertEquals(5, map.countKeysWithPrefix("/page/main"));
+        assertEquals(2, map.countKeysWithPrefix("/page/main/pro"));
+        assertEquals("/page/main/projects/",
+                map.getBestMatch("/page/main/projects/ai-utils"));
+        assertEquals("/file/picture", map.getBestMatch("/file/picture"));
+    }
+
+    @Test
+    public void testSubMap() throws Exception {
+        FrozenTrieMap<String> subMap = map().subMap("/page/main/pro");
+
+        assertEquals(2, subMap.size());
+        assertEquals("/pages/projects.xhtml", subMap.get("jects"));
+        assertNull(subMap.get("ject"));
+
+        List<CharSequence> expectedKeys = new ArrayList<CharSequence>();
+        expectedKeys.add("jects");
+        expectedKeys.add("jects/triemap");
+        assertEquals(expectedKeys, new ArrayList<CharSequence>(subMap.keySet()));
+
+        assertEquals(1, subMap.subMap("jects/").size());
+        assertTrue(map().subMap("/unknown").isEmpty());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testPut() {
+        map().put("/page/main", "test");
+    }
+
+    @Test
+    public void testRandomKeysAgainstTreeMap() throws Exception {
+        Random random = new Random(42);
+        TrieMap<Integer> map = new TrieMap<Integer>();
+        TreeMap<String, Integer> expectedMap = new TreeMap<String, Integer>();
+
+        for (int i = 0; i < 5000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(8);
+
+            for (int j = 0; j < length; j++) {
+                sb.append((char) ('a' + random.nextInt(4)));
+            }
+
+            map.put(sb.toString(), i);
+            expectedMap.put(sb.toString(), i);
+        }
+
+        FrozenTrieMap<Integer> frozenMap = map.freeze();
+
+        assertEquals(expectedMap, frozenMap);
+        assertEquals(new ArrayList<CharSequence>(expectedMap.keySet()),
+                new ArrayList<CharSequence>(frozenMap.keySet()));
+        assertEquals(expectedMap.subMap("ab", "ac").size(),
+                frozenMap.countKeysWithPrefix("ab"));
+        assertEquals(map.subMap("ab"), frozenMap.subMap("ab"));
+    }
+}
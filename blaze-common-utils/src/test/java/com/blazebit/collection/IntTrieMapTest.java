@@ -0,0 +1,110 @@
+package com.blazebit.collection;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class IntTrieMapTest {
+
+    @Test
+    public void testPrimitiveAccess() throws Exception {
+        IntTrieMap map = new IntTrieMap();
+
+        assertEquals(-1, map.getInt("/page/main", -1));
+        assertEquals(-1, map.putInt("/page/main", 1, -1));
+        assertEquals(1, map.putInt("/page/main", 2, -1));
+        assertEquals(2, map.getInt("/page/main", -1));
+        assertEquals(3, map.addTo("/page/main", 1));
+        assertEquals(5, map.addTo("/page/admin", 5));
+        assertEquals(5, map.addTo("/page", 5));
+        assertEquals(3, map.size());
+        assertTrue(map.containsKeyPrefix("/page/ma"));
+        assertFalse(map.containsKeyPrefix("/page/x"));
+
+        assertEquals(3, map.removeInt("/page/main", -1));
+        assertEquals(-1, map.removeInt("/page/main", -1));
+        assertFalse(map.containsKey("/page/main"));
+
+        /* The slot of the removed entry is reused and must be reinitialized */
+        assertEquals(7, map.addTo("/page/other", 7));
+        assertEquals(7, map.putInt("/page/other", 2, -1));
+    }
+
+    @Test
+    public void testMapInterface() throws Exception {
+        IntTrieMap map = new IntTrieMap();
+        map.put("b", 2);
+        map.put("a", 1);
+        map.put("ab", 3);
+
+        assertEquals(Integer.valueOf(3), map.get("ab"));
+        assertNull(map.get("c"));
+        assertEquals(Integer.valueOf(3), map.remove("ab"));
+
+        Map.Entry<CharSequence, Integer> entry = map.entrySet().iterator()
+                .next();
+        assertEquals("a", entry.getKey());
+        entry.setValue(10);
+        assertEquals(10, map.getInt("a", -1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNullValue() {
+        new IntTrieMap().put("a", null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNullKey() {
+        new IntTrieMap().addTo(null, 1);
+    }
+
+    @Test
+    public void testRandomOperationsAgainstTreeMap() throws Exception {
+        Random random = new Random(42);
+        IntTrieMap map = new IntTrieMap();
+        TreeMap<String, Integer> expectedMap = new TreeMap<String, Integer>();
+
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(6);
+
+            for (int j = 0; j < length; j++) {
+                sb.append((char) ('a' + random.nextInt(3)));
+            }
+
+            String key = sb.toString();
+
+            if (random.nextInt(3) == 0) {
+                Integer expected = expectedMap.remove(key);
+                assertEquals(expected == null ? -1 : expected.intValue(),
+                        map.removeInt(key, -1));
+            } else {
+                Integer expected = expectedMap.get(key);
+                int newValue = (expected == null ? 0 : expected) + i;
+                expectedMap.put(key, newValue);
+                assertEquals(newValue, map.addTo(key, i));
+            }
+
+            assertEquals(expectedMap.size(), map.size());
+        }
+
+        assertEquals(new ArrayList<CharSequence>(expectedMap.keySet()),
+                new ArrayList<CharSequence>(map.keySet()));
+        assertEquals(expectedMap, map);
+
+        Iterator<CharSequence> iterator = map.keySet().iterator();
+
+        while (iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+
+        assertTrue(map.isEmpty());
+    }
+}
@@ -0,0 +1,37 @@
+package com.blazebit.collection;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class LongTrieMapTest {
+
+    @Test
+    public void testCounting() throws Exception {
+        LongTrieMap map = new LongTrieMap();
+        Map<CharSequence, Long> expectedMap = new HashMap<CharSequence, Long>();
+        String[] words = "the quick brown fox jumps over the lazy dog the end"
+                .split(" ");
+
+        for (String word : words) {
+            map.addTo(word, 1L << 40);
+            Long count = expectedMap.get(word);
+            expectedMap.put(word, (count == null ? 0 : count) + (1L << 40));
+        }
+
+        assertEquals(3L << 40, map.getLong("the", 0));
+        assertEquals(0, map.getLong("cat", 0));
+        assertEquals(expectedMap, map);
+
+        assertEquals(1L << 40, map.putLong("fox", 1, -1));
+        assertEquals(1, map.removeLong("fox", -1));
+        assertEquals(-1, map.removeLong("fox", -1));
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertEquals(5, map.addTo("fox", 5));
+    }
+}
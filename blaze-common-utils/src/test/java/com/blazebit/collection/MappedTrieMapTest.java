@@ -0,0 +1,115 @@
+package com.blazebit.collection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class MappedTrieMapTest {
+
+    private File file;
+
+    @Before
+    public void before() throws Exception {
+        file = File.createTempFile("trie", ".bin");
+    }
+
+    @After
+    public void after() {
+        file.delete();
+    }
+
+    public MappedTrieMap<String> map() throws IOException {
+        TrieMap<String> map = new TrieMap<String>();
+        map.put("/page/main", "/main.xhtml");
+        map.put("/page/main/home", "/pages/home.xhtml");
+        map.put("/page/main/pictures", "/pages/pictures.xhtml");
+        map.put("/page/main/projects", "/pages/projects.xhtml");
+        map.put("/page/main/projects/triemap", "/pages/projectDetails.xhtml");
+        map.put("/page/admin", "/admin.xhtml");
+        map.put("/page/sitemap", null);
+        map.put("/file/picture", "/picture.xhtml");
+        MappedTrieMap.write(map, MappedTrieMap.STRING_SERIALIZER, file);
+        return MappedTrieMap.open(file, MappedTrieMap.STRING_SERIALIZER);
+    }
+
+    @Test
+    public void testGet() throws Exception {
+        MappedTrieMap<String> map = map();
+
+        assertEquals(8, map.size());
+        assertEquals("/main.xhtml", map.get("/page/main"));
+        assertEquals("/picture.xhtml", map.get("/file/picture"));
+        assertNull(map.get("/page/sitemap"));
+        assertTrue(map.containsKey("/page/sitemap"));
+        assertNull(map.get("/page/ma"));
+        assertFalse(map.containsKey("/page/main/"));
+    }
+
+    @Test
+    public void testPrefixAndSubMap() throws Exception {
+        MappedTrieMap<String> map = map();
+
+        assertTrue(map.containsKeyPrefix("/page/ma"));
+        assertFalse(map.containsKeyPrefix("/page/mx"));
+        assertEquals(5, map.countKeysWithPrefix("/page/main"));
+        assertEquals("/page/main/projects/",
+                map.getBestMatch("/page/main/projects/ai-utils"));
+
+        MappedTrieMap<String> subMap = map.subMap("/page/main/pro");
+        List<CharSequence> expectedKeys = new ArrayList<CharSequence>();
+        expectedKeys.add("jects");
+        expectedKeys.add("jects/triemap");
+
+        assertEquals(2, subMap.size());
+        assertEquals("/pages/projects.xhtml", subMap.get("jects"));
+        assertEquals(expectedKeys, new ArrayList<CharSequence>(subMap.keySet()));
+        assertTrue(map.subMap("/unknown").isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidFile() throws Exception {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        out.writeInt(42);
+        out.close();
+        MappedTrieMap.open(file, MappedTrieMap.STRING_SERIALIZER);
+    }
+
+    @Test
+    public void testRandomKeysAgainstTreeMap() throws Exception {
+        Random random = new Random(42);
+        TrieMap<Long> map = new TrieMap<Long>();
+        TreeMap<String, Long> expectedMap = new TreeMap<String, Long>();
+
+        for (int i = 0; i < 5000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(8);
+
+            for (int j = 0; j < length; j++) {
+                sb.append((char) ('a' + random.nextInt(4)));
+            }
+
+            map.put(sb.toString(), (long) i);
+            expectedMap.put(sb.toString(), (long) i);
+        }
+
+        MappedTrieMap.write(map, MappedTrieMap.LONG_SERIALIZER, file);
+        MappedTrieMap<Long> mappedMap = MappedTrieMap.open(file,
+                MappedTrieMap.LONG_SERIALIZER);
+
+        assertEquals(expectedMap, mappedMap);
+        assertEquals(new ArrayList<CharSequence>(expectedMap.keySet()),
+                new ArrayList<CharSequence>(mappedMap.keySet()));
+        assertEquals(map.subMap("ab"), mappedMap.subMap("ab"));
+    }
+}
@@ -1,10 +1,16 @@
 package com.blazebit.collection;
 
+import com.blazebit.collection.PatternTrie.ParameterizedKeyBuilder;
 import com.blazebit.collection.PatternTrie.ParameterizedValue;
+import com.blazebit.collection.PatternTrie.PatternHandle;
 import org.junit.Test;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.*;
 
@@ -197,6 +203,768 @@ public class PatternTrieTest {
     // "/pages/invalidModule.xhtml", "pageName", "home", "pageNumber", "1");
     // }
 
+    @Test
+    public void testSerialization() throws Exception {
+        PatternTrie<String> trie = new PatternTrie<String>();
+        trie.add("/dashboard", "/dashboard.xhtml");
+        trie.add("/dashboard", "/dashboard2.xhtml");
+        trie.parameterized("/{page}", "/page.xhtml")
+                .matching("page", "a*").add();
+
+        PatternTrie<String> copy = TrieMapTest.serializeAndDeserialize(trie);
+        assertEquals(trie.toString(), copy.toString());
+
+        if (!SKIP_RESOLVE) {
+            assertEquals(trie.resolve("/dashboard"), copy.resolve("/dashboard"));
+            assertEquals(trie.resolve("/aaa"), copy.resolve("/aaa"));
+        }
+    }
+
+    @Test
+    public void testCompile() throws Exception {
+        PatternTrie<String> trie = createRoutes();
+        PatternTrie<String> compiled = createRoutes().compile();
+        String[] keys = { "/page/main", "/page/main/home",
+                "/page/main/users", "/page/main/users/12",
+                "/page/main/projects/foo-bar", "/page/main/x", "/r/cd",
+                "/r/ccd", "/r/ccccd", "/r/cccccd", "/s/d", "/s/aad", "/d/i",
+                "/n/admire", "" };
+
+        assertFalse(trie.isCompiled());
+        assertTrue(compiled.isCompiled());
+
+        if (SKIP_RESOLVE) {
+            return;
+        }
+
+        for (String key : keys) {
+            assertEquals(key, trie.resolve(key), compiled.resolve(key));
+        }
+
+        assertTrieContains(compiled, "/page/main/users/12", 1,
+                "/pages/indexPage.xhtml", "pageName", "users", "pageNumber",
+                "12");
+        assertTrieContains(compiled, "/r/cccd", 1, "/repeat.xhtml", "repeat",
+                "cccd");
+
+        int stateCount = compiled.automatonStateCount();
+
+        for (String key : keys) {
+            compiled.resolve(key);
+        }
+
+        /* All states are cached after the first round */
+        assertEquals(stateCount, compiled.automatonStateCount());
+
+        compiled.add("/r/cd", "/cd.xhtml");
+        assertEquals(0, compiled.automatonStateCount());
+        assertTrieContains(compiled, "/r/cd", 1, "/cd.xhtml");
+    }
+
+    @Test
+    public void testParameterCapture() throws Exception {
+        PatternTrie<String> trie = createRoutes();
+
+        if (SKIP_RESOLVE) {
+            return;
+        }
+
+        assertTrieContains(trie, "/page/main/gallery/42", 1,
+                "/pages/indexPage.xhtml", "pageName", "gallery",
+                "pageNumber", "42");
+        assertTrieContains(trie, "/page/main/projects/a-b", 1,
+                "/pages/projectDetails.xhtml", "projectName", "a-b");
+        assertTrieContains(trie, "/s/aaad", 1, "/star.xhtml", "star", "aaad");
+        assertTrieContains(trie, "/page/main/home", 1, "/pages/home.xhtml");
+
+        ParameterizedValue<String> value = trie.resolve("/r/ccd").iterator()
+                .next();
+        assertEquals("ccd", value.getParameter("repeat"));
+        assertNull(value.getParameter("star"));
+        assertEquals(1, value.getParameterNames().size());
+        assertEquals(trie.resolve("/r/ccd"), trie.resolve("/r/ccd"));
+        assertFalse(trie.resolve("/r/ccd").equals(trie.resolve("/r/cccd")));
+    }
+
+    @Test
+    public void testCompileAmbiguousCaptures() throws Exception {
+        PatternTrie<String> trie = new PatternTrie<String>();
+        trie.parameterized("/{a}{b}", "v").matching("a", "[a-c]+")
+                .matching("b", ".*").add();
+
+        if (SKIP_RESOLVE) {
+            return;
+        }
+
+        Set<ParameterizedValue<String>> expected = trie.resolve("/ca/cc");
+        assertTrieContains(trie, "/ca/cc", 1, "v", "a", "ca", "b", "/cc");
+        assertEquals(expected, trie.compile().resolve("/ca/cc"));
+        assertTrieContains(trie, "/ca/cc", 1, "v", "a", "ca", "b", "/cc");
+    }
+
+    @Test
+    public void testCompileAgainstResolve() throws Exception {
+        Random random = new Random(19);
+        String[] templates = { "/{a}/{b}", "/{a}x{b}", "/x{a}", "/{a}",
+                "{a}/{b}/c", "/{a}{b}", "/ab", "/x/a" };
+        String[] patterns = { "[a-c]+", ".*", ".", "[ab]{1,3}", "c*d?", "x" };
+
+        for (int i = 0; i < 300; i++) {
+            PatternTrie<String> trie = new PatternTrie<String>();
+            int routes = 1 + random.nextInt(4);
+
+            for (int j = 0; j < routes; j++) {
+                /* The routes share prefixes, so their nodes are merged */
+                String template = templates[random.nextInt(templates.length)];
+                ParameterizedKeyBuilder<String> builder = trie.parameterized(
+                        template, "v" + j);
+
+                for (String name : new String[]{ "a", "b" }) {
+                    if (template.contains("{" + name + "}")) {
+                        String pattern = patterns[random.nextInt(patterns.length)];
+
+                        if (random.nextInt(4) == 0) {
+                            builder.matchingNot(name, pattern);
+                        } else {
+                            builder.matching(name, pattern);
+                        }
+                    }
+                }
+
+                builder.add();
+            }
+
+            List<String> keys = new ArrayList<String>();
+            List<Set<ParameterizedValue<String>>> expected = new ArrayList<Set<ParameterizedValue<String>>>();
+
+            for (int j = 0; j < 40; j++) {
+                StringBuilder sb = new StringBuilder();
+                int length = random.nextInt(7);
+                sb.append('/');
+
+                for (int k = 0; k < length; k++) {
+                    sb.append("abcdx/".charAt(random.nextInt(6)));
+                }
+
+                Set<ParameterizedValue<String>> all = trie.resolve(sb
+                        .toString());
+                ParameterizedValue<String> best = trie.resolveBest(sb
+                        .toString());
+
+                assertEquals(all.isEmpty(), best == null);
+                assertTrue(best == null || all.contains(best));
+                keys.add(sb.toString());
+                expected.add(all);
+            }
+
+            trie.compile();
+
+            for (int j = 0; j < keys.size(); j++) {
+                assertEquals(keys.get(j), expected.get(j), trie.resolve(keys
+                        .get(j)));
+            }
+        }
+    }
+
+    @Test
+    public void testCompileSharedPrefixes() throws Exception {
+        PatternTrie<String> trie = new PatternTrie<String>();
+        trie.parameterized("/{a}x{b}", "/ax.xhtml").matching("a", "a")
+                .matching("b", "x").add();
+        trie.parameterized("/{a}x{b}", "/ax2.xhtml").matching("a", "[a-c]+")
+                .matchingNot("b", "c*d?").add();
+
+        PatternTrie<String> other = new PatternTrie<String>();
+        other.parameterized("/{a}/c", "/c.xhtml").matching("a", "x").add();
+        other.parameterized("/x{a}", "/x.xhtml").matching("a", "x").add();
+        other.add("/xa", "/xa.xhtml");
+
+        /* Patterns with repeats that share a prefix merge cyclic graphs */
+        PatternTrie<String> repeats = new PatternTrie<String>();
+        repeats.parameterized("/{a}/{b}", "/ab.xhtml").add();
+        repeats.parameterized("/{a}", "/a.xhtml").add();
+
+        if (SKIP_RESOLVE) {
+            return;
+        }
+
+        String[] keys = { "/acbx", "/acbxz", "/axx", "/ax" };
+        List<Set<ParameterizedValue<String>>> expected = resolveAll(trie, keys);
+        assertEquals(expected, resolveAll(trie.compile(), keys));
+
+        keys = new String[]{ "/xx/bc", "/x/c", "/xx", "/xa" };
+        expected = resolveAll(other, keys);
+        assertEquals(expected, resolveAll(other.compile(), keys));
+
+        keys = new String[]{ "/ab/c", "/ab", "/a/b/c" };
+        expected = resolveAll(repeats, keys);
+        assertEquals(expected, resolveAll(repeats.compile(), keys));
+    }
+
+    @Test
+    public void testCaptureSharedNodes() throws Exception {
+        PatternTrie<String> trie = new PatternTrie<String>();
+        trie.parameterized("/{a}x{b}", "/ax.xhtml").matching("a", "a")
+                .matching("b", "x").add();
+        trie.parameterized("/{a}x{b}", "/ax2.xhtml").matching("a", "[a-c]+")
+                .matchingNot("b", "c*d?").add();
+
+        /* The nodes of b are shared, but only one of the paths ends in them */
+        PatternTrie<String> other = new PatternTrie<String>();
+        other.parameterized("/{a}/{b}", "/ab.xhtml").matching("a", "b").add();
+        other.parameterized("/{a}", "/a.xhtml").matching("a", "[a-c]+").add();
+
+        assertTrieContains(trie, "/acbxz", 1, "/ax2.xhtml", "a", "acb", "b",
+                "z");
+        assertTrieContains(trie, "/axx", 1, "/ax.xhtml", "a", "a", "b", "x");
+        assertTrieContains(other, "/bca", 1, "/a.xhtml", "a", "bca");
+        assertTrieContains(other, "/b/x", 1, "/ab.xhtml", "a", "b", "b", "x");
+
+        trie.compile();
+        other.compile();
+
+        assertTrieContains(trie, "/acbxz", 1, "/ax2.xhtml", "a", "acb", "b",
+                "z");
+        assertTrieContains(other, "/bca", 1, "/a.xhtml", "a", "bca");
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        final PatternTrie<String> trie = PatternTrie.concurrent();
+        final int routeCount = 200;
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final AtomicInteger registered = new AtomicInteger();
+        Thread[] readers = new Thread[4];
+
+        assertTrue(trie.isConcurrent());
+        assertFalse(new PatternTrie<String>().isConcurrent());
+        trie.parameterized("/user/{id}", "/user.xhtml")
+                .matching("id", "[0-9]+").add();
+
+        if (SKIP_RESOLVE) {
+            return;
+        }
+
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        while (registered.get() < routeCount) {
+                            int known = registered.get();
+
+                            for (int j = 0; j < known; j++) {
+                                assertEquals(1, trie.resolve("/route" + j)
+                                        .size());
+                            }
+
+                            assertEquals("7", trie.resolve("/user/7")
+                                    .iterator().next().getParameter("id"));
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+            readers[i].start();
+        }
+
+        for (int i = 0; i < routeCount; i++) {
+            trie.add("/route" + i, "/route" + i + ".xhtml");
+            registered.incrementAndGet();
+
+            if (i == routeCount / 2) {
+                trie.compile();
+            }
+        }
+
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        PatternTrie<String> copy = TrieMapTest.serializeAndDeserialize(trie);
+        assertTrue(copy.isConcurrent());
+        assertEquals(trie.toString(), copy.toString());
+        assertTrieContains(copy, "/route42", 1, "/route42.xhtml");
+    }
+
+    @Test
+    public void testResolveBest() throws Exception {
+        PatternTrie<String> trie = new PatternTrie<String>();
+        trie.parameterized("/item/{any}", "/any.xhtml").matching("any", ".+")
+                .add();
+        trie.parameterized("/item/{notX}", "/notX.xhtml")
+                .matching("notX", "[^x][a-z]+").add();
+        trie.parameterized("/item/{name}", "/name.xhtml")
+                .matching("name", "n.*").add();
+        trie.add("/item/new", "/new.xhtml");
+        trie.add("/item/new", "/new2.xhtml");
+
+        if (SKIP_RESOLVE) {
+            return;
+        }
+
+        assertEquals("/new.xhtml", trie.resolveBest("/item/new").getValue());
+        assertEquals("/any.xhtml", trie.resolveFirst("/item/new").getValue());
+
+        ParameterizedValue<String> value = trie.resolveBest("/item/nice");
+        assertEquals("/name.xhtml", value.getValue());
+        assertEquals("nice", value.getParameter("name"));
+
+        value = trie.resolveBest("/item/bar");
+        assertEquals("/notX.xhtml", value.getValue());
+        assertEquals("bar", value.getParameter("notX"));
+
+        value = trie.resolveBest("/item/b9");
+        assertEquals("/any.xhtml", value.getValue());
+        assertEquals("b9", value.getParameter("any"));
+
+        assertNull(trie.resolveBest("/other"));
+        assertNull(trie.resolveFirst("/item/"));
+    }
+
+    @Test
+    public void testResolveBestAgainstResolve() throws Exception {
+        PatternTrie<String> trie = createRoutes();
+        String[] keys = { "/page/main", "/page/main/users",
+                "/page/main/users/12", "/page/main/projects/foo-bar",
+                "/r/ccd", "/s/aad", "/n/admire", "/page/main/x", "" };
+
+        if (SKIP_RESOLVE) {
+            return;
+        }
+
+        for (String key : keys) {
+            Set<ParameterizedValue<String>> all = trie.resolve(key);
+            ParameterizedValue<String> best = trie.resolveBest(key);
+            ParameterizedValue<String> first = trie.resolveFirst(key);
+
+            if (all.isEmpty()) {
+                assertNull(key, best);
+                assertNull(key, first);
+            } else {
+                assertTrue(key, all.contains(best));
+                assertTrue(key, all.contains(first));
+            }
+        }
+    }
+
+    @Test
+    public void testResolveBestAmbiguous() throws Exception {
+        PatternTrie<String> trie = new PatternTrie<String>();
+        trie.parameterized("/users/{id}", "/user.xhtml")
+                .matching("id", "[a-z]+").add();
+        trie.add("/users/new", "/newUser.xhtml");
+        trie.parameterized("/{a}/{b}", "/ab.xhtml")
+                .matchingNot("a", "[ab]{1,3}").matching("b", ".*").add();
+
+        PatternTrie<String> segmented = PatternTrie.segmented('/');
+        segmented.parameterized("/users/{id}", "/user.xhtml")
+                .matching("id", "[a-z]+").add();
+        segmented.add("/users/new", "/newUser.xhtml");
+
+        if (SKIP_RESOLVE) {
+            return;
+        }
+
+        assertEquals("/newUser.xhtml", trie.resolveBest("/users/new")
+                .getValue());
+        assertEquals("/newUser.xhtml", segmented.resolveBest("/users/new")
+                .getValue());
+        assertEquals("/user.xhtml", trie.resolveFirst("/users/new")
+                .getValue());
+        assertEquals("/user.xhtml", trie.resolveBest("/users/old")
+                .getValue());
+
+        Set<ParameterizedValue<String>> all = trie.resolve("/b///c");
+        assertFalse(all.isEmpty());
+        assertTrue(all.contains(trie.resolveBest("/b///c")));
+        assertTrue(all.contains(trie.resolveFirst("/b///c")));
+        assertTrue(all.contains(trie.compile().resolveBest("/b///c")));
+    }
+
+    @Test
+    public void testResolveCache() throws Exception {
+        PatternTrie<String> trie = createRoutes().enableResolveCache(2);
+
+        if (SKIP_RESOLVE) {
+            return;
+        }
+
+        Set<ParameterizedValue<String>> result = trie.resolve("/r/ccd");
+        assertSame(result, trie.resolve("/r/ccd"));
+        assertEquals(createRoutes().resolve("/r/ccd"), result);
+        assertEquals(1, trie.getResolveCacheHits());
+        assertEquals(1, trie.getResolveCacheMisses());
+
+        try {
+            result.clear();
+            fail("Expected cached results to be unmodifiable");
+        } catch (UnsupportedOperationException ex) {
+            // Expected
+        }
+
+        /* The least recently used key is evicted */
+        trie.resolve("/s/d");
+        trie.resolve("/r/ccd");
+        trie.resolve("/d/i");
+        trie.resolve("/s/d");
+        assertEquals(2, trie.getResolveCacheHits());
+        assertEquals(4, trie.getResolveCacheMisses());
+
+        /* Adding invalidates the cache */
+        trie.add("/r/ccd", "/ccd.xhtml");
+        assertEquals(2, trie.resolve("/r/ccd").size());
+        assertEquals(5, trie.getResolveCacheMisses());
+
+        trie.disableResolveCache();
+        assertNotSame(trie.resolve("/r/ccd"), trie.resolve("/r/ccd"));
+        assertEquals(5, trie.getResolveCacheMisses());
+    }
+
+    @Test
+    public void testSegmented() throws Exception {
+        PatternTrie<String> trie = PatternTrie.segmented('/');
+        trie.add("/users", "/users.xhtml");
+        trie.add("/users/new", "/newUser.xhtml");
+        trie.parameterized("/users/{id}", "/user.xhtml")
+                .matching("id", "[0-9]+").add();
+        trie.parameterized("/users/{name}", "/userByName.xhtml")
+                .matchingNot("name", "new|[0-9]+").add();
+        trie.parameterized("/users/{id}/{tab}", "/userTab.xhtml")
+                .matching("id", "[0-9]+").add();
+        trie.parameterized("/files/{name}.{extension}", "/file.xhtml")
+                .matching("extension", "(pdf|txt)").add();
+        trie.parameterized("/any/{rest}", "/any.xhtml").add();
+
+        assertTrue(trie.isSegmented());
+
+        if (SKIP_RESOLVE) {
+            return;
+        }
+
+        assertTrieContains(trie, "/users", 1, "/users.xhtml");
+        assertTrieContains(trie, "/users/new", 1, "/newUser.xhtml");
+        assertTrieContains(trie, "/users/42", 1, "/user.xhtml", "id", "42");
+        assertTrieContains(trie, "/users/bob", 1, "/userByName.xhtml",
+                "name", "bob");
+        assertTrieContains(trie, "/users/42/settings", 1, "/userTab.xhtml",
+                "id", "42", "tab", "settings");
+        assertTrieContains(trie, "/files/report.v2.pdf", 1, "/file.xhtml",
+                "name", "report.v2", "extension", "pdf");
+        assertTrieContains(trie, "/any/", 1, "/any.xhtml", "rest", "");
+        assertEquals(0, trie.resolve("/users/42/settings/x").size());
+        assertEquals(0, trie.resolve("/files/report.doc").size());
+        assertEquals(0, trie.resolve("/any/a/b").size());
+
+        assertEquals("/newUser.xhtml", trie.resolveBest("/users/new")
+                .getValue());
+        assertEquals("/user.xhtml", trie.resolveBest("/users/7").getValue());
+        assertNull(trie.resolveBest("/users/7/a/b"));
+
+        PatternTrie<String> copy = TrieMapTest.serializeAndDeserialize(trie);
+        assertTrue(copy.isSegmented());
+        assertEquals(trie.toString(), copy.toString());
+        assertEquals(trie.resolve("/users/42/settings"),
+                copy.resolve("/users/42/settings"));
+    }
+
+    @Test
+    public void testSegmentedSpecificity() throws Exception {
+        PatternTrie<String> trie = PatternTrie.segmented('/', true);
+        trie.parameterized("/{a}/{b}", "/any.xhtml").add();
+        trie.parameterized("/{a}/{b}", "/anyRestricted.xhtml")
+                .matching("b", "[a-z]+").add();
+        trie.parameterized("/{a}/x", "/anyLiteral.xhtml").add();
+        trie.parameterized("/{a}/{b}", "/notX.xhtml")
+                .matchingNot("a", "x").add();
+        trie.parameterized("/p/{b}", "/literalAny.xhtml").add();
+        trie.parameterized("/p/{b}", "/literalAny2.xhtml").add();
+
+        if (SKIP_RESOLVE) {
+            return;
+        }
+
+        assertEquals(6, trie.resolve("/p/x").size());
+        assertEquals("/literalAny.xhtml", trie.resolveBest("/p/x").getValue());
+        assertEquals("/any.xhtml", trie.resolveFirst("/p/x").getValue());
+        assertEquals("/notX.xhtml", trie.resolveBest("/q/x").getValue());
+        assertEquals("/anyLiteral.xhtml", trie.resolveBest("/x/x").getValue());
+        assertEquals("/anyRestricted.xhtml", trie.resolveBest("/x/y")
+                .getValue());
+        assertEquals("/any.xhtml", trie.resolveBest("/x/1").getValue());
+        assertEquals("1", trie.resolveBest("/x/1").getParameter("b"));
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        PatternTrie<String> trie = createRoutes();
+        int nodeCount = trie.nodeCount();
+        int patternCount = trie.patternCount();
+
+        trie.add("/page/main/extra", "/extra.xhtml");
+        trie.add("/page/main/extra", "/extra2.xhtml");
+        PatternHandle handle = trie.parameterized("/x/{a}/{b}", "/x.xhtml")
+                .matching("a", "[0-9]+").matchingNot("b", "admin").add();
+        PatternHandle dot = trie.parameterized("/d/{dot}", "/dot2.xhtml")
+                .matching("dot", ".").add();
+
+        assertTrue(trie.nodeCount() > nodeCount);
+        assertEquals(patternCount + 2, trie.patternCount());
+
+        if (!SKIP_RESOLVE) {
+            assertEquals(2, trie.resolve("/page/main/extra").size());
+            assertTrieContains(trie, "/x/1/b", 1, "/x.xhtml", "a", "1", "b",
+                    "b");
+            assertEquals(2, trie.resolve("/d/x").size());
+        }
+
+        assertTrue(trie.remove("/page/main/extra"));
+        assertFalse(trie.remove("/page/main/extra"));
+        assertTrue(trie.remove(handle));
+        assertFalse(trie.remove(handle));
+        assertTrue(trie.remove(dot));
+
+        assertEquals(nodeCount, trie.nodeCount());
+        assertEquals(patternCount, trie.patternCount());
+
+        if (SKIP_RESOLVE) {
+            return;
+        }
+
+        assertEquals(0, trie.resolve("/page/main/extra").size());
+        assertEquals(0, trie.resolve("/x/1/b").size());
+        assertTrieContains(trie, "/d/x", 1, "/dot.xhtml", "dot", "x");
+        assertTrieContains(trie, "/s/aad", 1, "/star.xhtml", "star", "aad");
+        assertTrieContains(trie, "/page/main", 1, "/main.xhtml");
+        assertTrieContains(trie, "/r/ccd", 1, "/repeat.xhtml", "repeat",
+                "ccd");
+
+        PatternTrie<String> routes = createRoutes();
+
+        for (String key : new String[]{ "/page/main/home", "/page/main/users/3",
+                "/page/main/projects/blaze", "/r/cccd", "/d/x", "/n/user" }) {
+            assertEquals(key, routes.resolve(key), trie.resolve(key));
+        }
+    }
+
+    @Test
+    public void testRemoveSharedPrefixes() throws Exception {
+        PatternTrie<String> trie = new PatternTrie<String>();
+        PatternHandle handle = trie.parameterized("/{a}/{b}", "/ab.xhtml")
+                .matching("a", "[a-c]+").matching("b", "a").add();
+        trie.add("/ab", "/static.xhtml");
+
+        assertTrue(trie.remove(handle));
+        assertEquals(0, trie.resolve("/cb").size());
+        assertEquals(0, trie.resolve("/bb").size());
+        assertTrieContains(trie, "/ab", 1, "/static.xhtml");
+
+        trie = new PatternTrie<String>();
+        PatternHandle first = trie.parameterized("/{a}/{b}", "/ab.xhtml")
+                .matching("a", "[ab]{1,3}").matchingNot("b", ".").add();
+        PatternHandle second = trie.parameterized("/x{a}", "/x.xhtml")
+                .matching("a", ".").add();
+        trie.parameterized("/{a}", "/a.xhtml").matching("a", "[a-c]+").add();
+        trie.add("/ab", "/static.xhtml");
+
+        PatternTrie<String> fresh = new PatternTrie<String>();
+        fresh.parameterized("/{a}", "/a.xhtml").matching("a", "[a-c]+").add();
+        fresh.add("/ab", "/static.xhtml");
+
+        assertTrue(trie.remove(first));
+        assertTrue(trie.remove(second));
+        assertEquals(fresh.nodeCount(), trie.nodeCount());
+        assertEquals(fresh.patternCount(), trie.patternCount());
+
+        String[] keys = { "/bca", "/bab", "/ab", "/xa" };
+        assertEquals(resolveAll(fresh, keys), resolveAll(trie, keys));
+
+        Random random = new Random(25);
+
+        for (int i = 0; i < 200; i++) {
+            trie = new PatternTrie<String>();
+            fresh = new PatternTrie<String>();
+            List<int[]> routes = new ArrayList<int[]>();
+            List<PatternHandle> handles = new ArrayList<PatternHandle>();
+            int routeCount = 1 + random.nextInt(5);
+
+            for (int j = 0; j < routeCount; j++) {
+                int[] route = new int[5];
+
+                for (int k = 0; k < route.length; k++) {
+                    route[k] = random.nextInt(64);
+                }
+
+                routes.add(route);
+                handles.add(addRoute(trie, route, "v" + j));
+            }
+
+            for (int j = 0; j < routeCount; j++) {
+                if (random.nextBoolean()) {
+                    assertTrue(trie.remove(handles.get(j)));
+                } else {
+                    addRoute(fresh, routes.get(j), "v" + j);
+                }
+            }
+
+            assertEquals(fresh.nodeCount(), trie.nodeCount());
+            assertEquals(fresh.patternCount(), trie.patternCount());
+
+            if (SKIP_RESOLVE) {
+                continue;
+            }
+
+            for (int j = 0; j < 40; j++) {
+                StringBuilder sb = new StringBuilder("/");
+                int length = random.nextInt(7);
+
+                for (int k = 0; k < length; k++) {
+                    sb.append("abcdx/".charAt(random.nextInt(6)));
+                }
+
+                String key = sb.toString();
+                assertEquals(key, fresh.resolve(key), trie.resolve(key));
+                assertEquals(key, fresh.resolveBest(key), trie.resolveBest(key));
+            }
+        }
+    }
+
+    @Test
+    public void testRemoveAndReplace() throws Exception {
+        PatternTrie<String> trie = new PatternTrie<String>();
+        trie.add("/a", "/a.xhtml");
+        int nodeCount = trie.nodeCount();
+        PatternHandle handle = trie.parameterized("/users/{id}", "/user.xhtml")
+                .matching("id", "[0-9]+").add();
+
+        if (!SKIP_RESOLVE) {
+            assertTrieContains(trie, "/users/42", 1, "/user.xhtml", "id", "42");
+        }
+
+        assertTrue(trie.remove(handle));
+        assertEquals(nodeCount, trie.nodeCount());
+        assertEquals(0, trie.patternCount());
+        handle = trie.parameterized("/users/{name}", "/userByName.xhtml")
+                .add();
+
+        if (!SKIP_RESOLVE) {
+            assertTrieContains(trie, "/users/42", 1, "/userByName.xhtml",
+                    "name", "42");
+        }
+
+        PatternTrie<String> copy = TrieMapTest.serializeAndDeserialize(trie);
+        assertTrue(copy.remove(handle));
+        assertEquals(nodeCount, copy.nodeCount());
+        assertTrue(copy.remove("/a"));
+        assertEquals(1, copy.nodeCount());
+        assertEquals(0, copy.resolve("/a").size());
+        assertEquals(1, trie.resolve("/a").size());
+    }
+
+    @Test
+    public void testRemoveConcurrent() throws Exception {
+        PatternTrie<String> trie = PatternTrie.concurrent();
+        trie.add("/a", "/a.xhtml");
+        PatternHandle handle = trie.parameterized("/b/{id}", "/b.xhtml").add();
+        trie.compile().enableResolveCache(16);
+
+        assertEquals(1, trie.resolve("/b/1").size());
+        assertTrue(trie.remove(handle));
+        assertEquals(0, trie.resolve("/b/1").size());
+        assertEquals(1, trie.resolve("/a").size());
+        assertEquals(3, trie.nodeCount());
+    }
+
+    @Test
+    public void testRemoveSegmented() throws Exception {
+        PatternTrie<String> trie = PatternTrie.segmented('/');
+        trie.add("/users", "/users.xhtml");
+        int nodeCount = trie.nodeCount();
+        PatternHandle handle = trie.parameterized("/users/{id}/{tab}",
+                "/userTab.xhtml").matching("id", "[0-9]+").add();
+        trie.parameterized("/users/{id}", "/user.xhtml").add();
+
+        assertTrue(trie.remove(handle));
+        assertEquals(0, trie.resolve("/users/1/a").size());
+        assertEquals(1, trie.resolve("/users/1").size());
+        assertTrue(trie.remove("/users/{id}"));
+        assertEquals(nodeCount, trie.nodeCount());
+        assertEquals(0, trie.patternCount());
+        assertEquals(1, trie.resolve("/users").size());
+    }
+
+    private static PatternTrie<String> createRoutes() {
+        PatternTrie<String> trie = new PatternTrie<String>();
+        trie.add("/page/main", "/main.xhtml");
+        trie.add("/page/main/home", "/pages/home.xhtml");
+        trie.add("/page/main/projects", "/pages/projects.xhtml");
+        trie.parameterized("/page/main/projects/{projectName}",
+                "/pages/projectDetails.xhtml")
+                .matching("projectName", "[a-zA-Z\\-]+").add();
+        trie.parameterized("/page/main/{pageName}", "/pages/indexPage.xhtml")
+                .matching("pageName", "(users|articles|gallery)").add();
+        trie.parameterized("/page/main/{pageName}/{pageNumber}",
+                "/pages/indexPage.xhtml")
+                .matching("pageName", "(users|articles|gallery)")
+                .matching("pageNumber", "[1-9][0-9]*").add();
+        trie.parameterized("/r/{repeat}", "/repeat.xhtml")
+                .matching("repeat", "c{2,4}d").add();
+        trie.parameterized("/s/{star}", "/star.xhtml")
+                .matching("star", "a*d").add();
+        trie.parameterized("/d/{dot}", "/dot.xhtml").matching("dot", ".")
+                .add();
+        trie.parameterized("/n/{negation}", "/negation.xhtml")
+                .matchingNot("negation", "admin").add();
+        return trie;
+    }
+
+    /**
+     * Adds the route that is described by the given random numbers, the
+     * templates share prefixes so that their nodes are merged.
+     */
+    private static PatternHandle addRoute(PatternTrie<String> trie,
+                                          int[] route, String value) {
+        String[] templates = { "/{a}/{b}", "/{a}x{b}", "/x{a}", "/{a}",
+                "/{a}/c", "/{a}{b}", "/ab", "/x/a" };
+        String[] patterns = { "[a-c]+", ".*", ".", "[ab]{1,3}", "c*d?", "x" };
+        String template = templates[route[0] % templates.length];
+        ParameterizedKeyBuilder<String> builder = trie.parameterized(template,
+                value);
+
+        for (int i = 0; i < 2; i++) {
+            String name = i == 0 ? "a" : "b";
+
+            if (template.contains("{" + name + "}")) {
+                String pattern = patterns[route[1 + i] % patterns.length];
+
+                if (route[3 + i] % 4 == 0) {
+                    builder.matchingNot(name, pattern);
+                } else {
+                    builder.matching(name, pattern);
+                }
+            }
+        }
+
+        return builder.add();
+    }
+
+    private static List<Set<ParameterizedValue<String>>> resolveAll(
+            PatternTrie<String> trie, String... keys) {
+        List<Set<ParameterizedValue<String>>> results = new ArrayList<Set<ParameterizedValue<String>>>();
+
+        for (String key : keys) {
+            results.add(trie.resolve(key));
+        }
+
+        return results;
+    }
+
     private void assertTrieContains(PatternTrie<String> trie, String test,
                                     int size, String expectedValue, String... keyValues) {
         assertTrie(trie, test, size, expectedValue, true, keyValues);
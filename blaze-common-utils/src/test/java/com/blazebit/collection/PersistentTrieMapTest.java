@@ -0,0 +1,96 @@
+package com.blazebit.collection;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class PersistentTrieMapTest {
+
+    @Test
+    public void testVersionsAreIndependent() throws Exception {
+        PersistentTrieMap<String> v1 = PersistentTrieMap.<String> empty()
+                .with("/page/main", "/main.xhtml")
+                .with("/page/admin", "/admin.xhtml");
+        PersistentTrieMap<String> v2 = v1.with("/page/main/home",
+                "/home.xhtml");
+        PersistentTrieMap<String> v3 = v2.without("/page/main");
+
+        assertEquals(2, v1.size());
+        assertFalse(v1.containsKey("/page/main/home"));
+        assertEquals(3, v2.size());
+        assertEquals("/home.xhtml", v2.get("/page/main/home"));
+        assertEquals(2, v3.size());
+        assertNull(v3.get("/page/main"));
+        assertEquals("/main.xhtml", v2.get("/page/main"));
+        assertEquals("{/page/admin=/admin.xhtml, /page/main/home=/home.xhtml}",
+                v3.toString());
+    }
+
+    @Test
+    public void testUnchangedVersions() throws Exception {
+        String value = "value";
+        PersistentTrieMap<String> map = PersistentTrieMap.<String> empty()
+                .with("a", value);
+
+        assertSame(map, map.with("a", value));
+        assertSame(map, map.without("b"));
+        assertSame(map, map.without("ab"));
+        assertTrue(map.without("a").isEmpty());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testImmutable() throws Exception {
+        PersistentTrieMap.<String> empty().put("a", "a");
+    }
+
+    @Test
+    public void testRandomAgainstTreeMap() throws Exception {
+        Random random = new Random(17);
+        TreeMap<String, Integer> expected = new TreeMap<String, Integer>();
+        PersistentTrieMap<Integer> map = PersistentTrieMap.empty();
+        List<PersistentTrieMap<Integer>> versions = new ArrayList<PersistentTrieMap<Integer>>();
+        List<String> snapshots = new ArrayList<String>();
+
+        for (int i = 0; i < 3000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(6);
+
+            for (int j = 0; j < length; j++) {
+                sb.append((char) ('a' + random.nextInt(3)));
+            }
+
+            String key = sb.toString();
+
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                map = map.without(key);
+            } else {
+                expected.put(key, i);
+                map = map.with(key, i);
+            }
+
+            assertEquals(expected.get(key), map.get(key));
+
+            if (i % 500 == 0) {
+                versions.add(map);
+                snapshots.add(expected.toString());
+            }
+        }
+
+        assertEquals(expected.size(), map.size());
+        assertEquals(expected.toString(), map.toString());
+
+        for (int i = 0; i < versions.size(); i++) {
+            assertEquals(snapshots.get(i), versions.get(i).toString());
+        }
+
+        PersistentTrieMap<Integer> copy = TrieMapTest
+                .serializeAndDeserialize(map);
+        assertEquals(map, copy);
+    }
+}
@@ -0,0 +1,100 @@
+package com.blazebit.collection;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class SubstringIndexTest {
+
+    @Test
+    public void testKeysContaining() throws Exception {
+        SubstringIndex index = new SubstringIndex(Arrays.asList("banana",
+                "bandana", "ananas", "cabana"));
+
+        assertEquals("[banana, bandana, ananas, cabana]", index.keysContaining("ana")
+                .toString());
+        assertEquals("[banana, bandana, cabana]", index.keysContaining("ban")
+                .toString());
+        assertEquals("[bandana]", index.keysContaining("nda").toString());
+        assertEquals("[]", index.keysContaining("xyz").toString());
+        assertEquals("[]", index.keysContaining("bananas").toString());
+        assertEquals(4, index.keysContaining("").size());
+        assertEquals("[banana, ananas]", index.keysContaining("nan").toString());
+        assertEquals(4, index.countKeysContaining("ana"));
+        assertEquals(0, index.countKeysContaining("q"));
+    }
+
+    @Test
+    public void testIncrementalAdd() throws Exception {
+        SubstringIndex index = new SubstringIndex();
+
+        assertTrue(index.add("abcab"));
+        assertEquals("[abcab]", index.keysContaining("ab").toString());
+
+        assertTrue(index.add("bcabc"));
+        assertFalse(index.add("abcab"));
+        assertEquals("[abcab, bcabc]", index.keysContaining("cab").toString());
+        assertEquals("[abcab, bcabc]", index.keysContaining("abc").toString());
+        assertEquals("[bcabc]", index.keysContaining("cabc").toString());
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void testRandomAgainstIndexOf() throws Exception {
+        Random random = new Random(18);
+        SubstringIndex index = new SubstringIndex();
+        Set<String> keys = new LinkedHashSet<String>();
+
+        for (int i = 0; i < 400; i++) {
+            String key = randomString(random, random.nextInt(12));
+            assertEquals(keys.add(key), index.add(key));
+
+            if (i % 50 == 0) {
+                assertMatches(keys, index, random);
+            }
+        }
+
+        assertMatches(keys, index, random);
+        assertTrue(index.stateCount() < 2 * 12 * keys.size());
+        assertMatches(keys, TrieMapTest.serializeAndDeserialize(index), random);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNullKey() throws Exception {
+        new SubstringIndex().add(null);
+    }
+
+    private static void assertMatches(Set<String> keys, SubstringIndex index,
+            Random random) {
+        for (int i = 0; i < 50; i++) {
+            String substring = randomString(random, random.nextInt(4));
+            List<String> expected = new ArrayList<String>();
+
+            for (String key : keys) {
+                if (key.contains(substring)) {
+                    expected.add(key);
+                }
+            }
+
+            assertEquals(substring, expected, index.keysContaining(substring));
+            assertEquals(expected.size(), index.countKeysContaining(substring));
+        }
+    }
+
+    private static String randomString(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length);
+
+        for (int j = 0; j < length; j++) {
+            sb.append((char) ('a' + random.nextInt(3)));
+        }
+
+        return sb.toString();
+    }
+}
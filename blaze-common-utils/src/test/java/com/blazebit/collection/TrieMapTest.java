@@ -2,8 +2,20 @@ package com.blazebit.collection;
 
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.junit.Assert.*;
 
@@ -58,6 +70,58 @@ public class TrieMapTest {
                 map().getBestMatch("/page/main/projects/ai-utils"));
     }
 
+    @Test
+    public void testGetBestMatchFullKey() throws Exception {
+        assertEquals("/page/main", map().getBestMatch("/page/main"));
+        assertEquals("/main", map().subMap("/page").getBestMatch("/main"));
+    }
+
+    @Test
+    public void testLongestPrefixMatch() throws Exception {
+        TrieMap<String> map = map();
+        PrefixMatch<String> match = new PrefixMatch<String>();
+        String path = "GET /page/main/projects/ai-utils";
+
+        assertEquals(19, map.longestPrefixMatch(path, 4, path.length()));
+        assertTrue(map.longestPrefixMatch(path, 4, path.length(), match));
+        assertEquals(19, match.getLength());
+        assertEquals("/pages/projects.xhtml", match.getValue());
+
+        /* Only keys that end within the range count */
+        assertEquals(10, map.longestPrefixMatch(path, 4, 20));
+        assertEquals(-1, map.longestPrefixMatch(path, 4, 12));
+        assertFalse(map.longestPrefixMatch(path, 4, 12, match));
+        assertFalse(match.isMatched());
+        assertNull(match.getValue());
+        assertEquals(-1, map.longestPrefixMatch(path, 0, path.length()));
+
+        /* Branch nodes without value don't count */
+        map.put("/page/mainx", "x");
+        assertEquals(-1, map.longestPrefixMatch("/page/mai", 0, 9));
+
+        map.put("", "root");
+        assertTrue(map.longestPrefixMatch(path, 0, path.length(), match));
+        assertEquals(0, match.getLength());
+        assertEquals("root", match.getValue());
+    }
+
+    @Test
+    public void testSubMapLongestPrefixMatch() throws Exception {
+        TrieMap<String> subMap = map().subMap("/page/main/pro");
+        PrefixMatch<String> match = new PrefixMatch<String>();
+
+        assertEquals(5, subMap.longestPrefixMatch("jects/x", 0, 7));
+        assertTrue(subMap.longestPrefixMatch("jects/triemap", 0, 13, match));
+        assertEquals("/pages/projectDetails.xhtml", match.getValue());
+        assertEquals(-1, subMap.longestPrefixMatch("je", 0, 2));
+        assertEquals(-1, map().subMap("/x").longestPrefixMatch("a", 0, 1));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testLongestPrefixMatchOutOfBounds() {
+        map().longestPrefixMatch("/page", 0, 6);
+    }
+
     @Test
     public void testRemove() throws Exception {
         TrieMap<String> map = map();
@@ -454,4 +518,603 @@ public class TrieMapTest {
                 originalMap.get("/page/main/projects/ai-utils"));
         assertEquals("/pages/aiUtils.xhtml", subMap.get("ai-utils"));
     }
+
+    @Test
+    public void testSplitAndMergeLabels() throws Exception {
+        TrieMap<String> map = new TrieMap<String>();
+        map.put("/page/main/projects", "projects");
+        map.put("/page/main/pictures", "pictures");
+        map.put("/page/main", "main");
+        map.put("/page", "page");
+
+        assertEquals(4, map.size());
+        assertNull(map.get("/page/main/p"));
+        assertFalse(map.containsKey("/page/ma"));
+        assertTrue(map.containsKeyPrefix("/page/ma"));
+        assertTrue(map.containsKeyPrefix("/page/main/pro"));
+        assertFalse(map.containsKeyPrefix("/page/main/prx"));
+
+        assertEquals("main", map.remove("/page/main"));
+        assertEquals("page", map.remove("/page"));
+        assertNull(map.remove("/page/main/p"));
+        assertEquals("projects", map.get("/page/main/projects"));
+        assertEquals("pictures", map.get("/page/main/pictures"));
+
+        assertEquals("projects", map.remove("/page/main/projects"));
+        assertEquals(1, map.size());
+        assertEquals("pictures", map.get("/page/main/pictures"));
+        assertTrue(map.containsKeyPrefix("/page/main/pi"));
+    }
+
+    @Test
+    public void testRandomOperationsAgainstTreeMap() throws Exception {
+        Random random = new Random(42);
+        TrieMap<Integer> map = new TrieMap<Integer>();
+        TreeMap<String, Integer> expectedMap = new TreeMap<String, Integer>();
+
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(6);
+
+            for (int j = 0; j < length; j++) {
+                sb.append((char) ('a' + random.nextInt(3)));
+            }
+
+            String key = sb.toString();
+
+            if (random.nextInt(3) == 0) {
+                assertEquals(expectedMap.remove(key), map.remove(key));
+            } else {
+                assertEquals(expectedMap.put(key, i), map.put(key, i));
+            }
+
+            assertEquals(expectedMap.size(), map.size());
+        }
+
+        List<CharSequence> expectedKeys = new ArrayList<CharSequence>(
+                expectedMap.keySet());
+        assertEquals(expectedKeys, new ArrayList<CharSequence>(map.keySet()));
+        assertEquals(expectedMap, map);
+    }
+
+    @Test
+    public void testCountKeysWithPrefix() throws Exception {
+        TrieMap<String> map = map();
+        TrieMap<String> subMap = map.subMap("/page/main/pro");
+
+        assertEquals(8, map.countKeysWithPrefix(""));
+        assertEquals(5, map.countKeysWithPrefix("/page/main"));
+        assertEquals(2, map.countKeysWithPrefix("/page/main/pro"));
+        assertEquals(0, map.countKeysWithPrefix("/page/mx"));
+        assertEquals(1, subMap.countKeysWithPrefix("jects/"));
+
+        map.put("/page/main/promo", "promo");
+        map.put("/page/main", "replaced");
+        assertEquals(3, subMap.size());
+        assertEquals(6, map.countKeysWithPrefix("/page/main"));
+
+        map.remove("/page/main/projects");
+        subMap.subMap("jects/").clear();
+        assertEquals(1, subMap.size());
+        assertEquals(4, map.countKeysWithPrefix("/page/main"));
+        assertEquals(7, map.countKeysWithPrefix(""));
+        assertFalse(new TrieMap<String>().containsKeyPrefix(""));
+    }
+
+    @Test
+    public void testRandomCountsAgainstTreeMap() throws Exception {
+        Random random = new Random(42);
+        TrieMap<Integer> map = new TrieMap<Integer>();
+        TreeMap<String, Integer> expectedMap = new TreeMap<String, Integer>();
+        String[] prefixes = { "", "a", "ab", "abc", "b", "ca", "cab" };
+
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(6);
+
+            for (int j = 0; j < length; j++) {
+                sb.append((char) ('a' + random.nextInt(3)));
+            }
+
+            String key = sb.toString();
+
+            if (random.nextInt(3) == 0) {
+                map.remove(key);
+                expectedMap.remove(key);
+            } else if (random.nextInt(50) == 0) {
+                map.subMap(key).clear();
+                expectedMap.subMap(key, key + Character.MAX_VALUE).clear();
+            } else {
+                map.put(key, i);
+                expectedMap.put(key, i);
+            }
+        }
+
+        for (String prefix : prefixes) {
+            int expectedCount = expectedMap.subMap(prefix,
+                    prefix + Character.MAX_VALUE).size();
+            assertEquals(expectedCount, map.countKeysWithPrefix(prefix));
+            assertEquals(expectedCount, map.subMap(prefix).size());
+        }
+
+        assertEquals(expectedMap.size(), map.countKeysWithPrefix(""));
+        assertEquals(expectedMap.size(),
+                new TrieMap<Integer>(map).countKeysWithPrefix(""));
+        assertEquals(expectedMap.size(), TrieMap.fromSorted(expectedMap
+                .entrySet().iterator()).countKeysWithPrefix(""));
+    }
+
+    @Test
+    public void testSubMapWithinLabel() throws Exception {
+        TrieMap<String> map = map();
+        TrieMap<String> subMap = map.subMap("/page/main/pro");
+
+        assertEquals(2, subMap.size());
+        assertEquals("/pages/projects.xhtml", subMap.get("jects"));
+        assertTrue(subMap.containsKey("jects/triemap"));
+
+        List<CharSequence> expectedKeys = new ArrayList<CharSequence>();
+        expectedKeys.add("jects");
+        expectedKeys.add("jects/triemap");
+        assertEquals(expectedKeys, new ArrayList<CharSequence>(subMap.keySet()));
+
+        subMap.clear();
+
+        assertTrue(subMap.isEmpty());
+        assertEquals(6, map.size());
+        assertEquals("/pages/pictures.xhtml", map.get("/page/main/pictures"));
+    }
+
+    @Test
+    public void testFromSorted() throws Exception {
+        TreeMap<String, String> sortedMap = new TreeMap<String, String>();
+        sortedMap.put("", "root");
+        sortedMap.put("/page/main", "/main.xhtml");
+        sortedMap.put("/page/main/home", "/pages/home.xhtml");
+        sortedMap.put("/page/main/pictures", "/pages/pictures.xhtml");
+        sortedMap.put("/page/main/projects", "/pages/projects.xhtml");
+        sortedMap.put("/page/admin", "/admin.xhtml");
+        sortedMap.put("/file/picture", "/picture.xhtml");
+
+        TrieMap<String> map = TrieMap.fromSorted(sortedMap.entrySet()
+                .iterator());
+
+        assertEquals(sortedMap, map);
+        assertEquals(new ArrayList<CharSequence>(sortedMap.keySet()),
+                new ArrayList<CharSequence>(map.keySet()));
+        assertEquals("/page/main/p", map.getBestMatch("/page/main/pa"));
+
+        map.put("/page/main/pa", "test");
+        map.remove("/page/main/pictures");
+        sortedMap.put("/page/main/pa", "test");
+        sortedMap.remove("/page/main/pictures");
+        assertEquals(sortedMap, map);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFromSortedUnsorted() {
+        List<Map.Entry<CharSequence, String>> entries = new ArrayList<Map.Entry<CharSequence, String>>();
+        entries.add(new HashMap.SimpleEntry<CharSequence, String>("b", "b"));
+        entries.add(new HashMap.SimpleEntry<CharSequence, String>("a", "a"));
+        TrieMap.fromSorted(entries.iterator());
+    }
+
+    @Test
+    public void testFromSortedParallel() throws Exception {
+        Random random = new Random(42);
+        TreeMap<String, Integer> expectedMap = new TreeMap<String, Integer>();
+
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(8);
+
+            for (int j = 0; j < length; j++) {
+                sb.append((char) ('a' + random.nextInt(6)));
+            }
+
+            expectedMap.put(sb.toString(), i);
+        }
+
+        List<Map.Entry<String, Integer>> entries = new ArrayList<Map.Entry<String, Integer>>(
+                expectedMap.entrySet());
+        ForkJoinPool pool = new ForkJoinPool(4);
+
+        try {
+            TrieMap<Integer> map = TrieMap.fromSorted(entries, pool);
+
+            assertEquals(expectedMap.size(), map.size());
+            assertEquals(expectedMap, map);
+            assertEquals(new ArrayList<CharSequence>(expectedMap.keySet()),
+                    new ArrayList<CharSequence>(map.keySet()));
+            assertEquals(new TrieMap<Integer>(new HashMap<CharSequence, Integer>(map)), map);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testForEach() throws Exception {
+        TrieMap<String> map = map();
+        final List<String> keys = new ArrayList<String>();
+        final List<String> values = new ArrayList<String>();
+
+        map.subMap("/page/main/pro").forEach(new TrieVisitor<String>() {
+
+            @Override
+            public void visit(char[] key, int keyLength, String value) {
+                keys.add(new String(key, 0, keyLength));
+                values.add(value);
+            }
+        });
+
+        List<String> expectedKeys = new ArrayList<String>();
+        expectedKeys.add("jects");
+        expectedKeys.add("jects/triemap");
+        List<String> expectedValues = new ArrayList<String>();
+        expectedValues.add("/pages/projects.xhtml");
+        expectedValues.add("/pages/projectDetails.xhtml");
+
+        assertEquals(expectedKeys, keys);
+        assertEquals(expectedValues, values);
+    }
+
+    @Test
+    public void testParallelForEach() throws Exception {
+        Random random = new Random(42);
+        TrieMap<Integer> map = new TrieMap<Integer>();
+        Map<String, Integer> expectedMap = new HashMap<String, Integer>();
+
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = 1 + random.nextInt(8);
+
+            for (int j = 0; j < length; j++) {
+                sb.append((char) ('a' + random.nextInt(4)));
+            }
+
+            map.put(sb.toString(), i);
+            expectedMap.put(sb.toString(), i);
+        }
+
+        final Map<String, Integer> visited = new ConcurrentHashMap<String, Integer>();
+        ForkJoinPool pool = new ForkJoinPool(4);
+
+        try {
+            map.forEach(new TrieVisitor<Integer>() {
+
+                @Override
+                public void visit(char[] key, int keyLength, Integer value) {
+                    assertNull(visited.put(new String(key, 0, keyLength), value));
+                }
+            }, pool);
+        } finally {
+            pool.shutdown();
+        }
+
+        assertEquals(expectedMap, visited);
+    }
+
+    @Test
+    public void testIteratorRemoveWhileCompacting() throws Exception {
+        Random random = new Random(42);
+        TrieMap<Integer> map = new TrieMap<Integer>();
+        TreeMap<String, Integer> expectedMap = new TreeMap<String, Integer>();
+
+        for (int i = 0; i < 5000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(6);
+
+            for (int j = 0; j < length; j++) {
+                sb.append((char) ('a' + random.nextInt(3)));
+            }
+
+            map.put(sb.toString(), i);
+            expectedMap.put(sb.toString(), i);
+        }
+
+        TrieMap<Integer> subMap = map.subMap("ab");
+        Iterator<CharSequence> iterator = subMap.keySet().iterator();
+        List<CharSequence> iteratedKeys = new ArrayList<CharSequence>();
+        List<CharSequence> expectedKeys = new ArrayList<CharSequence>();
+
+        for (String key : expectedMap.subMap("ab", "ac").keySet()) {
+            expectedKeys.add(key.substring(2));
+        }
+
+        while (iterator.hasNext()) {
+            CharSequence key = iterator.next();
+            iteratedKeys.add(key);
+
+            if (random.nextBoolean()) {
+                iterator.remove();
+                expectedMap.remove("ab" + key);
+            }
+        }
+
+        assertEquals(expectedKeys, iteratedKeys);
+        assertEquals(expectedMap, map);
+        iterator = map.keySet().iterator();
+
+        while (iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void testFuzzyMatches() throws Exception {
+        TrieMap<String> map = new TrieMap<String>();
+        map.put("hello", "1");
+        map.put("help", "2");
+        map.put("hell", "3");
+        map.put("shell", "4");
+        map.put("world", "5");
+
+        List<FuzzyMatch<String>> matches = map.fuzzyMatches("helo", 1);
+        List<String> keys = new ArrayList<String>();
+
+        for (FuzzyMatch<String> match : matches) {
+            keys.add(match.getKey());
+        }
+
+        List<String> expectedKeys = new ArrayList<String>();
+        expectedKeys.add("hell");
+        expectedKeys.add("hello");
+        expectedKeys.add("help");
+        assertEquals(expectedKeys, keys);
+        assertEquals(1, matches.get(0).getDistance());
+        assertEquals("3", matches.get(0).getValue());
+
+        assertEquals(0, map.fuzzyMatches("hello", 0).get(0).getDistance());
+        assertTrue(map.fuzzyMatches("xyz", 2).isEmpty());
+        assertEquals("hell", map.subMap("s").fuzzyMatches("hel", 1).get(0)
+                .getKey());
+    }
+
+    @Test
+    public void testRandomFuzzyMatchesAgainstBruteForce() throws Exception {
+        Random random = new Random(42);
+        TrieMap<Integer> map = new TrieMap<Integer>();
+
+        for (int i = 0; i < 2000; i++) {
+            map.put(randomWord(random), i);
+        }
+
+        for (int i = 0; i < 50; i++) {
+            String query = randomWord(random);
+            int maxEdits = random.nextInt(3);
+            List<FuzzyMatch<Integer>> matches = map.fuzzyMatches(query, maxEdits);
+            int expectedCount = 0;
+            int lastDistance = 0;
+
+            for (CharSequence key : map.keySet()) {
+                if (levenshtein(key.toString(), query) <= maxEdits) {
+                    expectedCount++;
+                }
+            }
+
+            assertEquals(expectedCount, matches.size());
+
+            for (FuzzyMatch<Integer> match : matches) {
+                assertEquals(levenshtein(match.getKey(), query), match.getDistance());
+                assertTrue(lastDistance <= match.getDistance());
+                assertEquals(map.get(match.getKey()), match.getValue());
+                lastDistance = match.getDistance();
+            }
+        }
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        TrieMap<String> map = map();
+        map.put("", "/root.xhtml");
+        map.put("/nullValue", null);
+
+        TrieMap<String> copy = serializeAndDeserialize(map);
+        assertEquals(map, copy);
+        assertEquals(new ArrayList<CharSequence>(map.keySet()).toString(),
+                new ArrayList<CharSequence>(copy.keySet()).toString());
+        assertEquals(5, copy.countKeysWithPrefix("/page/main"));
+
+        copy.put("/page/main/other", "/other.xhtml");
+        assertEquals(6, copy.countKeysWithPrefix("/page/main"));
+    }
+
+    @Test
+    public void testSerializationLongKey() throws Exception {
+        TrieMap<Integer> map = new TrieMap<Integer>();
+        StringBuilder sb = new StringBuilder();
+
+        /* A node per char would overflow the stack with recursive serialization */
+        for (int i = 0; i < 20000; i++) {
+            sb.append((char) ('a' + i % 26));
+            map.put(sb.toString(), i);
+        }
+
+        TrieMap<Integer> copy = serializeAndDeserialize(map);
+        assertEquals(map.size(), copy.size());
+        assertEquals(Integer.valueOf(19999), copy.get(sb));
+    }
+
+    @Test
+    public void testSerializationSubMap() throws Exception {
+        TrieMap<String> subMap = serializeAndDeserialize(map().subMap(
+                "/page/main/"));
+
+        assertEquals(4, subMap.size());
+        assertEquals("/pages/home.xhtml", subMap.get("home"));
+        subMap.put("new", "/new.xhtml");
+        assertEquals(5, subMap.size());
+    }
+
+    @Test
+    public void testNavigation() throws Exception {
+        TrieMap<String> map = map();
+
+        assertEquals("/file/picture", map.firstKey());
+        assertEquals("/page/sitemap", map.lastKey());
+        assertEquals("/page/main", map.ceilingKey("/page/b"));
+        assertEquals("/page/admin", map.floorKey("/page/b"));
+        assertEquals("/page/main", map.floorKey("/page/main"));
+        assertEquals("/page/admin", map.lowerKey("/page/main"));
+        assertEquals("/page/main/home", map.higherKey("/page/main"));
+        assertEquals("/page/main/projects/triemap",
+                map.floorKey("/page/main/q"));
+        assertNull(map.higherKey("/page/sitemap"));
+        assertNull(map.lowerKey("/file/picture"));
+
+        assertEquals("[/page/main/home, /page/main/pictures]", map
+                .subMap("/page/main/", "/page/main/projects").keySet()
+                .toString());
+        assertEquals(3, map.headMap("/page/main", true).size());
+        assertEquals("[/page/sitemap, /page/main/projects/triemap]", map
+                .tailMap("/page/main/projects", false).descendingMap()
+                .keySet().toString());
+    }
+
+    @Test
+    public void testNavigationAgainstTreeMap() throws Exception {
+        Random random = new Random(15);
+        TrieMap<Integer> map = new TrieMap<Integer>();
+        TreeMap<String, Integer> expected = new TreeMap<String, Integer>();
+
+        for (int i = 0; i < 500; i++) {
+            String key = randomWord(random);
+            map.put(key, i);
+            expected.put(key, i);
+        }
+
+        for (int i = 0; i < 500; i++) {
+            String key = random.nextInt(10) == 0 ? "" : randomWord(random);
+            assertEquals(expected.ceilingKey(key), map.ceilingKey(key));
+            assertEquals(expected.floorKey(key), map.floorKey(key));
+            assertEquals(expected.higherKey(key), map.higherKey(key));
+            assertEquals(expected.lowerKey(key), map.lowerKey(key));
+            assertEquals(expected.headMap(key).size(), map.headMap(key).size());
+            assertEquals(expected.tailMap(key, false).size(),
+                    map.tailMap(key, false).size());
+
+            String to = randomWord(random);
+
+            if (key.compareTo(to) <= 0) {
+                NavigableMap<CharSequence, Integer> range = map.subMap(key,
+                        true, to, true);
+                NavigableMap<String, Integer> expectedRange = expected.subMap(
+                        key, true, to, true);
+                assertEquals(expectedRange.size(), range.size());
+                assertEquals(expectedRange.toString(), range.toString());
+                assertEquals(expectedRange.descendingMap().toString(), range
+                        .descendingMap().toString());
+            }
+        }
+
+        assertEquals(expected.descendingMap().toString(), map.descendingMap()
+                .toString());
+    }
+
+    @Test
+    public void testEqualBoundsAgainstTreeMap() throws Exception {
+        TrieMap<String> map = map();
+        TreeMap<String, String> expected = new TreeMap<String, String>();
+
+        for (Map.Entry<CharSequence, String> entry : map.entrySet()) {
+            expected.put(entry.getKey().toString(), entry.getValue());
+        }
+
+        for (String key : new String[]{ "/page/main", "/page/x", "" }) {
+            for (int i = 0; i < 4; i++) {
+                boolean loInclusive = (i & 1) != 0;
+                boolean hiInclusive = (i & 2) != 0;
+                NavigableMap<CharSequence, String> range = map.subMap(key,
+                        loInclusive, key, hiInclusive);
+                NavigableMap<String, String> expectedRange = expected.subMap(
+                        key, loInclusive, key, hiInclusive);
+                String message = key + " " + loInclusive + " " + hiInclusive;
+
+                assertEquals(message, expectedRange.size(), range.size());
+                assertEquals(message, expectedRange.isEmpty(), range.isEmpty());
+                assertEquals(message, expectedRange.toString(),
+                        range.toString());
+            }
+        }
+    }
+
+    @Test
+    public void testNavigationSubMap() throws Exception {
+        TrieMap<String> subMap = map().subMap("/page/m");
+
+        assertEquals("ain", subMap.firstKey());
+        assertEquals("ain/projects/triemap", subMap.lastKey());
+        assertEquals("ain/home", subMap.ceilingKey("ain/a"));
+        assertNull(subMap.higherKey("ain/projects/triemap"));
+        assertNull(subMap.lowerKey("ain"));
+        assertEquals(3, subMap.tailMap("ain/home", false).size());
+    }
+
+    @Test
+    public void testRangeViewModification() throws Exception {
+        TrieMap<String> map = map();
+        NavigableMap<CharSequence, String> range = map.subMap("/page/main",
+                false, "/page/sitemap", false);
+
+        assertEquals(4, range.size());
+        range.pollFirstEntry();
+        assertFalse(map.containsKey("/page/main/home"));
+        range.navigableKeySet().remove("/page/main/pictures");
+        assertEquals(2, range.size());
+        assertEquals(6, map.size());
+
+        try {
+            range.put("/page/x", "");
+            fail("Expected an exception for a key out of range");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+
+        range.clear();
+        assertEquals(4, map.size());
+        assertTrue(range.isEmpty());
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T serializeAndDeserialize(T object) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(object);
+        oos.close();
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(
+                baos.toByteArray()));
+        return (T) ois.readObject();
+    }
+
+    private static String randomWord(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int length = 1 + random.nextInt(7);
+
+        for (int j = 0; j < length; j++) {
+            sb.append((char) ('a' + random.nextInt(4)));
+        }
+
+        return sb.toString();
+    }
+
+    private static int levenshtein(String a, String b) {
+        int[][] d = new int[a.length() + 1][b.length() + 1];
+
+        for (int i = 0; i <= a.length(); i++) {
+            for (int j = 0; j <= b.length(); j++) {
+                if (i == 0 || j == 0) {
+                    d[i][j] = i + j;
+                } else {
+                    int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                    d[i][j] = Math.min(d[i - 1][j - 1] + cost,
+                            Math.min(d[i - 1][j], d[i][j - 1]) + 1);
+                }
+            }
+        }
+
+        return d[a.length()][b.length()];
+    }
 }
@@ -0,0 +1,111 @@
+package com.blazebit.collection;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+public class TrieSetTest {
+
+    @Test
+    public void testContains() throws Exception {
+        TrieSet set = TrieSet.fromSorted(Arrays.asList("", "tap", "tap",
+                "taps", "top", "tops").iterator());
+
+        assertEquals(5, set.size());
+        assertTrue(set.contains(""));
+        assertTrue(set.contains("taps"));
+        assertTrue(set.contains("top"));
+        assertFalse(set.contains("to"));
+        assertFalse(set.contains("topsy"));
+        assertTrue(set.containsKeyPrefix("to"));
+        assertFalse(set.containsKeyPrefix("tx"));
+        assertFalse(set.hasOrdinals());
+    }
+
+    @Test
+    public void testSuffixesAreShared() throws Exception {
+        TrieSet set = TrieSet.fromSorted(Arrays.asList("tap", "taps", "top",
+                "tops").iterator());
+
+        /* The root and the states after t, a|o, p and s */
+        assertEquals(5, set.stateCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsorted() throws Exception {
+        TrieSet.fromSorted(Arrays.asList("b", "a").iterator());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsortedPrefix() throws Exception {
+        TrieSet.fromSorted(Arrays.asList("ab", "a").iterator());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testOrdinalsNotBuilt() throws Exception {
+        TrieSet.fromSorted(Arrays.asList("a").iterator()).ordinalOf("a");
+    }
+
+    @Test
+    public void testPrefixIterator() throws Exception {
+        TrieSet set = TrieSet.fromSorted(Arrays.asList("a", "ab", "abc",
+                "abd", "b").iterator());
+
+        assertEquals("[ab, abc, abd]", toList(set.iterator("ab")).toString());
+        assertEquals("[abd]", toList(set.iterator("abd")).toString());
+        assertEquals("[]", toList(set.iterator("x")).toString());
+        assertEquals("[a, ab, abc, abd, b]", toList(set.iterator()).toString());
+    }
+
+    @Test
+    public void testRandomAgainstTreeSet() throws Exception {
+        Random random = new Random(13);
+        TreeSet<String> expected = new TreeSet<String>();
+
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(10);
+
+            for (int j = 0; j < length; j++) {
+                sb.append((char) ('a' + random.nextInt(4)));
+            }
+
+            expected.add(sb.toString());
+        }
+
+        TrieSet set = TrieSet.fromSorted(expected.iterator(), true);
+        assertEquals(expected.size(), set.size());
+        assertEquals(new ArrayList<String>(expected), toList(set.iterator()));
+
+        int ordinal = 0;
+
+        for (String key : expected) {
+            assertTrue(set.contains(key));
+            assertEquals(ordinal, set.ordinalOf(key));
+            assertEquals(key, set.keyAt(ordinal));
+            ordinal++;
+        }
+
+        assertFalse(set.contains("e"));
+        assertEquals(-1, set.ordinalOf("e"));
+        /* A trie would need at least one node per key */
+        assertTrue(set.stateCount() < expected.size());
+    }
+
+    private static List<String> toList(Iterator<CharSequence> iter) {
+        List<String> list = new ArrayList<String>();
+
+        while (iter.hasNext()) {
+            list.add(iter.next().toString());
+        }
+
+        return list;
+    }
+}